@@ -0,0 +1,99 @@
+package com.piggybank.components;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares blocking request handling on Tomcat's default pool of 200 platform threads against a virtual thread
+ * per request (see {@link VirtualThreads}). Every request blocks on a future completed 5ms later, standing in for
+ * a getApiFuture() wait on a Firestore round trip.
+ *
+ * Throughput is reported in requests per second. Heap allocation comes from the GC profiler, and the peak
+ * number of platform threads (each reserving its own native stack) from the 'peakPlatformThreads' counter.
+ * The virtual mode needs a JDK 21+ runtime.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RequestThreadsBenchmark {
+    private static final int REQUESTS = 2_000;
+    private static final long LATENCY_MILLIS = 5;
+
+    @Param({"platform", "virtual"})
+    public String mode;
+
+    private ExecutorService requestThreads;
+    private ScheduledExecutorService firestore;
+
+    @Setup
+    public void setup() {
+        if (mode.equals("virtual")) {
+            requestThreads = VirtualThreads.newPerTaskExecutor();
+            if (requestThreads == null) {
+                throw new IllegalStateException("Virtual threads need a JDK 21+ runtime");
+            }
+        } else {
+            requestThreads = Executors.newFixedThreadPool(200);
+        }
+        firestore = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @TearDown
+    public void tearDown() {
+        requestThreads.shutdownNow();
+        firestore.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public void blockingRequests(ThreadCounters counters) throws Exception {
+        List<Future<?>> requests = new ArrayList<>(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            requests.add(requestThreads.submit(() -> {
+                CompletableFuture<String> roundTrip = new CompletableFuture<>();
+                firestore.schedule(() -> roundTrip.complete("document"), LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+                return roundTrip.get();
+            }));
+        }
+        for (Future<?> request : requests) {
+            request.get();
+        }
+        counters.peakPlatformThreads = Math.max(
+                counters.peakPlatformThreads, ManagementFactory.getThreadMXBean().getPeakThreadCount());
+    }
+
+    /**
+     * Platform threads alive at once, reported next to the throughput.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ThreadCounters {
+        public long peakPlatformThreads;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+            peakPlatformThreads = 0;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.piggybank.repository;
+
+import com.piggybank.model.Account;
+import com.piggybank.model.BankAccount;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.Field;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building a partial-update map with {@link PatchMapper} against the reflective loop the
+ * repositories used before (getDeclaredFields, setAccessible and Field.get on every request).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PatchMapperBenchmark {
+    private final PatchMapper<Account> accountMapper = PatchMapper.of(Account.class);
+    private final PatchMapper<BankAccount> bankAccountMapper = PatchMapper.of(BankAccount.class);
+
+    private Account account;
+    private BankAccount bankAccount;
+
+    @Setup
+    public void setup() {
+        account = new Account(Account.AccountType.CUSTOMER);
+        account.setUsername("user1");
+        account.setEmail("user1@email.com");
+        account.setProfilePictureUrl("/path/to/user1/pic.jpg");
+
+        bankAccount = new BankAccount();
+        bankAccount.setAccountNumber(12345L);
+        bankAccount.setNameOnAccount("User1 Name");
+    }
+
+    @Benchmark
+    public Map<String, Object> accountReflectiveLoop() throws IllegalAccessException {
+        return reflectiveLoop(Account.class, account, null);
+    }
+
+    @Benchmark
+    public Map<String, Object> accountPatchMapper() {
+        return accountMapper.toUpdateMap(account);
+    }
+
+    @Benchmark
+    public Map<String, Object> bankAccountReflectiveLoop() throws IllegalAccessException {
+        return reflectiveLoop(BankAccount.class, bankAccount, "bankAccount");
+    }
+
+    @Benchmark
+    public Map<String, Object> bankAccountPatchMapper() {
+        return bankAccountMapper.toUpdateMap("bankAccount", bankAccount);
+    }
+
+    /**
+     * The previous per-request loop, collecting into a map instead of issuing one update per field.
+     */
+    private static <T> Map<String, Object> reflectiveLoop(Class<T> type, T content, String parent)
+            throws IllegalAccessException {
+        Map<String, Object> patch = new LinkedHashMap<>();
+        for (Field declaredField : type.getDeclaredFields()) {
+            boolean accessible = declaredField.canAccess(content);
+            declaredField.setAccessible(true);
+            Object value = declaredField.get(content);
+            if (value != null) {
+                patch.put(parent == null ? declaredField.getName() : parent + "." + declaredField.getName(), value);
+            }
+            declaredField.setAccessible(accessible);
+        }
+        return patch;
+    }
+}
@@ -0,0 +1,160 @@
+package com.piggybank.components;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.firebase.cloud.FirestoreClient;
+import com.piggybank.model.Account;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.core.env.Environment;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spring Bean
+ *
+ * Bounded in-process cache of accounts (with sensitive data filtered out), keyed by email. Eviction is
+ * Caffeine's W-TinyLFU, so accounts that are read on every screen stay cached while one-off reads don't
+ * push them out.
+ *
+ * Every cached account has a snapshot listener on its document, which invalidates the entry as soon as the
+ * document changes on any node. Writes made through the repositories on this node invalidate the affected
+ * entries directly, so they are visible to the next read without waiting for the listener. The listener is
+ * removed together with the entry.
+ *
+ * Hit ratio and evictions are published under the 'cache.*' metrics tagged with 'cache=accounts', and the
+ * time between a document changing and its entry being invalidated under 'accounts.cache.staleness'.
+ */
+@Component
+@DependsOn("firebaseInitializer")
+public class AccountCache {
+    private final CollectionReference accountCollection;
+    private final Cache<String, Entry> cache;
+    private final Timer staleness;
+
+    /**
+     * Builds the cache and registers its metrics.
+     *
+     * @param env Environment containing properties.
+     * @param registry Registry the cache's metrics are published to.
+     */
+    public AccountCache(Environment env, MeterRegistry registry) {
+        String accountsLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.accounts"));
+        long maximumSize = env.getProperty("piggybank.cache.accounts.maximum-size", Long.class, 10_000L);
+        Duration expireAfterWrite = env.getProperty(
+                "piggybank.cache.accounts.expire-after-write", Duration.class, Duration.ofMinutes(10));
+
+        accountCollection = FirestoreClient.getFirestore().collection(accountsLabel);
+        cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .removalListener((String email, Entry entry, RemovalCause cause) -> {
+                    if (entry != null) {
+                        entry.registration.remove();
+                    }
+                })
+                .build();
+        CaffeineCacheMetrics.monitor(registry, cache, "accounts");
+        staleness = registry.timer("accounts.cache.staleness");
+    }
+
+    /**
+     * @param email Email of the account.
+     * @return The cached account, or null if it isn't cached.
+     */
+    @Nullable
+    public Account get(@NonNull String email) {
+        Entry entry = cache.getIfPresent(email);
+        return entry == null ? null : entry.account;
+    }
+
+    /**
+     * Caches an account that was just read from Firestore and starts listening for changes to its document.
+     *
+     * @param email Email of the account.
+     * @param account Account to cache.
+     * @param updateTime Update time of the document the account was read from. If the listener sees a
+     *                   different version, the document changed in between and the entry is dropped.
+     */
+    public void put(@NonNull String email, @NonNull Account account, @Nullable Timestamp updateTime) {
+        Entry entry = new Entry(account, updateTime);
+        entry.registration = accountCollection.document(email).addSnapshotListener(
+                (snapshot, error) -> onSnapshot(email, entry, snapshot, error));
+        cache.put(email, entry);
+
+        // The listener may have seen a change before the entry was cached.
+        if (entry.stale) {
+            cache.asMap().remove(email, entry);
+        }
+    }
+
+    /**
+     * Drops the cached accounts with the given emails, if any.
+     *
+     * @param emails Emails of accounts that were just written.
+     */
+    public void invalidate(@NonNull String... emails) {
+        for (String email : emails) {
+            if (email != null) {
+                cache.invalidate(email);
+            }
+        }
+    }
+
+    /**
+     * Drops every cached account.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Drops an entry once its document changes. The first snapshot only confirms the version that was cached.
+     */
+    private void onSnapshot(String email, Entry entry, DocumentSnapshot snapshot, FirestoreException error) {
+        if (error == null && snapshot != null && !entry.confirmed) {
+            entry.confirmed = true;
+            if (Objects.equals(entry.updateTime, snapshot.getUpdateTime())) {
+                return;
+            }
+        }
+
+        if (snapshot != null && snapshot.getUpdateTime() != null) {
+            long changedAt = TimeUnit.SECONDS.toMillis(snapshot.getUpdateTime().getSeconds())
+                    + TimeUnit.NANOSECONDS.toMillis(snapshot.getUpdateTime().getNanos());
+            staleness.record(Math.max(0, System.currentTimeMillis() - changedAt), TimeUnit.MILLISECONDS);
+        }
+        entry.stale = true;
+        cache.asMap().remove(email, entry);
+    }
+
+    /**
+     * Cached account together with the listener that keeps it fresh.
+     */
+    private static class Entry {
+        private final Account account;
+        private final Timestamp updateTime;
+        private volatile ListenerRegistration registration;
+        private volatile boolean confirmed;
+        private volatile boolean stale;
+
+        private Entry(Account account, Timestamp updateTime) {
+            this.account = account;
+            this.updateTime = updateTime;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.piggybank.components;
+
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.firebase.cloud.FirestoreClient;
+import com.piggybank.model.Transaction;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.core.env.Environment;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spring Bean
+ *
+ * Live feed of accounts' balances and new transactions, pushed to the clients following them (see
+ * TransactionController.feed()). Snapshot listeners are multiplexed: however many clients follow an account on
+ * this node, the account has a single set of listeners, started with its first subscriber and removed with its
+ * last one:
+ *   - one on the account document and one on its balance shards, for the balance;
+ *   - one per participant field on the Transactions collection, limited to the newest 'piggybank.feed.window'
+ *     transactions, so the listener's view stays small however long the history is.
+ * A subscriber is only its callbacks, so an idle connection costs the feed one set entry.
+ *
+ * Events are delivered in order, on the thread of the listener that saw them, so subscribers must hand them off
+ * rather than block on a client (see TransactionController.EmitterSubscriber). Every subscriber also gets a
+ * heartbeat every 'piggybank.feed.heartbeat', so connections that were dropped without closing are noticed.
+ * The number of subscribers and followed accounts are published under the 'feed.subscribers' and
+ * 'feed.accounts' gauges.
+ */
+@Component
+@DependsOn("firebaseInitializer")
+public class AccountFeed {
+    /** Event carrying an account's balance, in cents. */
+    public static final String BALANCE = "balance";
+    /** Event carrying a transaction the account took part in. */
+    public static final String TRANSACTION = "transaction";
+
+    /** Fields naming the accounts that take part in a transaction. */
+    private static final String[] PARTICIPANT_FIELDS = { "transactorEmail", "recipientEmail" };
+    /** Subcollection holding a sharded account's balance shards (see BalanceShards). */
+    private static final String SHARDS_COLLECTION = "BalanceShards";
+
+    private final CollectionReference accountCollection;
+    private final CollectionReference transactionCollection;
+    private final int window;
+    private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final ScheduledExecutorService heartbeats;
+
+    /**
+     * Registers the feed's metrics and schedules its heartbeats.
+     *
+     * @param env Environment containing properties.
+     * @param registry Registry the feed's metrics are published to.
+     */
+    public AccountFeed(Environment env, MeterRegistry registry) {
+        String accountsLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.accounts"));
+        String transactionsLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.transactions"));
+        accountCollection = FirestoreClient.getFirestore().collection(accountsLabel);
+        transactionCollection = FirestoreClient.getFirestore().collection(transactionsLabel);
+        window = Math.max(1, env.getProperty("piggybank.feed.window", Integer.class, 25));
+        long heartbeat = env.getProperty("piggybank.feed.heartbeat", Duration.class, Duration.ofSeconds(30)).toMillis();
+
+        registry.gauge("feed.subscribers", subscriberCount);
+        registry.gaugeMapSize("feed.accounts", List.of(), topics);
+
+        heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "account-feed-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeats.scheduleWithFixedDelay(this::heartbeat, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        heartbeats.shutdownNow();
+        topics.values().forEach(Topic::close);
+        topics.clear();
+    }
+
+    /**
+     * Follows an account. The subscriber gets its cancel handle first (see Subscriber.onSubscribe()), then the
+     * account's current balance once it's known (right away if the account is already followed on this node),
+     * then every change of its balance and every new transaction it takes part in.
+     *
+     * @param email Email of the account to follow.
+     * @param subscriber Receives the account's events.
+     * @return Cancels the subscription, the same handle the subscriber was given. Once an account's last
+     *         subscriber is gone, its listeners are removed.
+     */
+    @NonNull
+    public Runnable subscribe(@NonNull String email, @NonNull Subscriber subscriber) {
+        // The handle is given out before the subscriber can get any event, so a subscriber whose first send
+        // fails can already cancel. Cancelling before the subscriber is added keeps it from being added.
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Runnable cancel = () -> {
+            if (cancelled.compareAndSet(false, true)) {
+                unsubscribe(email, subscriber);
+            }
+        };
+        subscriber.onSubscribe(cancel);
+
+        boolean[] added = { false };
+        Topic topic = topics.compute(email, (key, existing) -> {
+            if (cancelled.get()) {
+                return existing;
+            }
+            Topic current = existing == null ? new Topic(key) : existing;
+            current.subscribers.add(subscriber);
+            subscriberCount.incrementAndGet();
+            added[0] = true;
+            return current;
+        });
+
+        Long balance = added[0] ? topic.balance : null;
+        if (balance != null) {
+            subscriber.onEvent(BALANCE, balance);
+        }
+        return cancel;
+    }
+
+    private void unsubscribe(String email, Subscriber subscriber) {
+        topics.computeIfPresent(email, (key, current) -> {
+            // A subscriber of a topic that failed is no longer in the account's current topic, if any.
+            if (!current.subscribers.remove(subscriber)) {
+                return current;
+            }
+            subscriberCount.decrementAndGet();
+            if (current.subscribers.isEmpty()) {
+                current.close();
+                return null;
+            }
+            return current;
+        });
+    }
+
+    private void heartbeat() {
+        for (Topic topic : topics.values()) {
+            for (Subscriber subscriber : topic.subscribers) {
+                try {
+                    subscriber.onHeartbeat();
+                } catch (RuntimeException e) {
+                    // A subscriber that can't be reached unsubscribes itself.
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the events of a followed account.
+     */
+    public interface Subscriber {
+        /**
+         * Called before any other callback, so the subscriber can cancel from within them (e.g. when its
+         * connection turns out to be gone while the initial balance is sent).
+         *
+         * @param cancel Cancels the subscription.
+         */
+        void onSubscribe(Runnable cancel);
+
+        /**
+         * @param event Name of the event, BALANCE or TRANSACTION.
+         * @param data The balance (a Long) or the Transaction.
+         */
+        void onEvent(String event, Object data);
+
+        /**
+         * Called periodically while nothing else may be sent, to keep the connection alive.
+         */
+        void onHeartbeat();
+
+        /**
+         * Called when the feed stops following the account, e.g. because a listener failed; the subscription is
+         * already cancelled and the client should reconnect.
+         */
+        void onClose();
+    }
+
+    /**
+     * Listeners of one followed account, shared by all of its subscribers.
+     */
+    private final class Topic {
+        private final String email;
+        private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+        private final List<ListenerRegistration> registrations = new ArrayList<>();
+
+        /** Latest snapshots of the account's document and shards, and the balance last published. */
+        private volatile DocumentSnapshot account;
+        private volatile List<QueryDocumentSnapshot> shards = List.of();
+        private volatile Long balance;
+
+        private Topic(String email) {
+            this.email = email;
+            DocumentReference document = accountCollection.document(email);
+            registrations.add(document.addSnapshotListener((snapshot, error) -> {
+                if (error != null) {
+                    fail();
+                    return;
+                }
+                account = snapshot;
+                publishBalance();
+            }));
+            registrations.add(document.collection(SHARDS_COLLECTION).addSnapshotListener((snapshot, error) -> {
+                if (error != null) {
+                    fail();
+                    return;
+                }
+                shards = snapshot.getDocuments();
+                publishBalance();
+            }));
+            for (String field : PARTICIPANT_FIELDS) {
+                Query newest = transactionCollection.whereEqualTo(field, email)
+                        .orderBy("timestamp", Query.Direction.DESCENDING)
+                        .limit(window);
+                boolean[] initial = { true };
+                registrations.add(newest.addSnapshotListener((snapshot, error) -> {
+                    if (error != null) {
+                        fail();
+                        return;
+                    }
+                    // The first snapshot holds the existing history, not new transactions.
+                    if (initial[0]) {
+                        initial[0] = false;
+                        return;
+                    }
+                    for (DocumentChange change : snapshot.getDocumentChanges()) {
+                        if (change.getType() == DocumentChange.Type.ADDED) {
+                            publish(TRANSACTION, change.getDocument().toObject(Transaction.class));
+                        }
+                    }
+                }));
+            }
+        }
+
+        /**
+         * Publishes the account's balance (its balance field plus its shards) if it changed.
+         */
+        private synchronized void publishBalance() {
+            DocumentSnapshot snapshot = account;
+            if (snapshot == null || !snapshot.exists()) {
+                return;
+            }
+            long total = Objects.requireNonNullElse(snapshot.getLong("balance"), 0L);
+            for (QueryDocumentSnapshot shard : shards) {
+                total += Objects.requireNonNullElse(shard.getLong("balance"), 0L);
+            }
+            if (!Objects.equals(balance, total)) {
+                balance = total;
+                publish(BALANCE, total);
+            }
+        }
+
+        private void publish(String event, Object data) {
+            for (Subscriber subscriber : subscribers) {
+                try {
+                    subscriber.onEvent(event, data);
+                } catch (RuntimeException e) {
+                    // A subscriber that can't be reached unsubscribes itself.
+                }
+            }
+        }
+
+        /**
+         * Stops following the account after a listener failed, so its subscribers reconnect with new listeners.
+         */
+        private void fail() {
+            if (topics.remove(email, this)) {
+                close();
+                subscriberCount.addAndGet(-subscribers.size());
+                subscribers.forEach(Subscriber::onClose);
+            }
+        }
+
+        private void close() {
+            registrations.forEach(ListenerRegistration::remove);
+        }
+    }
+}
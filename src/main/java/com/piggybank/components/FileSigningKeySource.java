@@ -0,0 +1,31 @@
+package com.piggybank.components;
+
+import org.springframework.lang.NonNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads signing keys from a local JSON file in the format of Google's endpoint, e.g. keys generated for tests.
+ * The file is read again every LIFETIME, so its keys may be replaced without a restart.
+ */
+final class FileSigningKeySource implements SigningKeySource {
+    private static final long LIFETIME = TimeUnit.HOURS.toMillis(1);
+
+    private final Path path;
+
+    /**
+     * @param path File holding the keys.
+     */
+    FileSigningKeySource(@NonNull Path path) {
+        this.path = path;
+    }
+
+    @NonNull
+    @Override
+    public SigningKeys fetch() throws Exception {
+        return new SigningKeys(SigningKeySource.parseCertificates(Files.readAllBytes(path)),
+                System.currentTimeMillis() + LIFETIME);
+    }
+}
@@ -0,0 +1,49 @@
+package com.piggybank.components;
+
+import com.google.firebase.auth.AuthErrorCode;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseAuthException;
+import com.google.firebase.auth.UserRecord;
+import org.springframework.lang.NonNull;
+
+import java.util.Map;
+
+/**
+ * The FirebaseAuth calls SessionAuthenticator verifies sessions with, kept apart from it so tests can stand in
+ * for FirebaseAuth.
+ */
+class FirebaseSessions {
+    /**
+     * Checks a session cookie's signature and claims through FirebaseAuth, without checking whether it was
+     * revoked.
+     *
+     * @param sessionCookie Session ID from the HTTP request cookie.
+     * @return Claims of the session cookie; its user's ID is the 'sub' claim.
+     * @throws FirebaseAuthException If the session cookie isn't authentic.
+     */
+    @NonNull
+    Map<String, Object> verifySessionCookie(@NonNull String sessionCookie) throws FirebaseAuthException {
+        return FirebaseAuth.getInstance().verifySessionCookie(sessionCookie, false).getClaims();
+    }
+
+    /**
+     * Reads a user's revocation state, like FirebaseAuth's revocation check: sessions are valid if they were
+     * signed in after the user's tokens were last revoked, and none are if the user is gone or disabled.
+     *
+     * @param uid ID of the user.
+     * @return Time sessions must be signed in after to be valid, in milliseconds since the epoch.
+     * @throws FirebaseAuthException If the user couldn't be read.
+     */
+    long validAfter(@NonNull String uid) throws FirebaseAuthException {
+        UserRecord user;
+        try {
+            user = FirebaseAuth.getInstance().getUser(uid);
+        } catch (FirebaseAuthException e) {
+            if (e.getAuthErrorCode() == AuthErrorCode.USER_NOT_FOUND) {
+                return Long.MAX_VALUE;
+            }
+            throw e;
+        }
+        return user.isDisabled() ? Long.MAX_VALUE : user.getTokensValidAfterTimestamp();
+    }
+}
@@ -0,0 +1,105 @@
+package com.piggybank.components;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Spring Bean
+ *
+ * Propagates a client's deadline into the repositories. A request may carry the time it has left, in
+ * milliseconds, in the 'X-Request-Timeout' header; while the request is handled, the resulting deadline is
+ * available through current(), and repository calls started by the request fail once it passes (see
+ * PBRepository.withDeadline()). Requests that arrive with no time left are answered with 504 GATEWAY TIMEOUT
+ * without being handled.
+ */
+@Component
+public class RequestDeadline extends OncePerRequestFilter {
+    /** Header carrying the time the client is willing to wait for the response, in milliseconds. */
+    public static final String TIMEOUT_HEADER = "X-Request-Timeout";
+
+    /** Deadline of the request handled by the current thread, as a System.nanoTime() value. */
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+
+    @Override
+    protected void doFilterInternal(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+                                    @NonNull FilterChain chain) throws ServletException, IOException {
+        Long deadline;
+        try {
+            deadline = deadlineOf(request.getHeader(TIMEOUT_HEADER));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "Invalid " + TIMEOUT_HEADER + " header");
+            return;
+        }
+        if (deadline == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        if (deadline - System.nanoTime() <= 0) {
+            response.sendError(HttpStatus.GATEWAY_TIMEOUT.value(), "Deadline exceeded");
+            return;
+        }
+
+        DEADLINE.set(deadline);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            DEADLINE.remove();
+        }
+    }
+
+    /**
+     * @return Deadline of the request handled by the current thread (a System.nanoTime() value), or null if it
+     *         has none.
+     */
+    @Nullable
+    public static Long current() {
+        return DEADLINE.get();
+    }
+
+    /**
+     * Runs a call as part of a request with the given deadline, for handlers that aren't run by this filter
+     * (e.g. the reactive routes).
+     *
+     * @param deadline Deadline of the request (a System.nanoTime() value), or null if it has none.
+     * @param call Call to run.
+     * @param <T> Type of the call's result.
+     * @return The call's result.
+     */
+    public static <T> T callWith(@Nullable Long deadline, @NonNull Supplier<T> call) {
+        Long previous = DEADLINE.get();
+        DEADLINE.set(deadline);
+        try {
+            return call.get();
+        } finally {
+            if (previous == null) {
+                DEADLINE.remove();
+            } else {
+                DEADLINE.set(previous);
+            }
+        }
+    }
+
+    /**
+     * @param timeout Value of the 'X-Request-Timeout' header, or null.
+     * @return Deadline it sets, as a System.nanoTime() value, or null if there's no header.
+     * @throws NumberFormatException When the header isn't a number of milliseconds.
+     */
+    @Nullable
+    public static Long deadlineOf(@Nullable String timeout) {
+        if (timeout == null) {
+            return null;
+        }
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(timeout.trim()));
+    }
+}
@@ -1,22 +1,123 @@
 package com.piggybank.components;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.google.common.hash.Hashing;
+import com.google.firebase.ErrorCode;
+import com.google.firebase.auth.AuthErrorCode;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseAuthException;
 import com.google.firebase.auth.FirebaseToken;
 import com.google.firebase.auth.SessionCookieOptions;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
 import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
 
 import javax.security.auth.message.AuthException;
 import javax.servlet.http.Cookie;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Manages all authentication procedures on the server-side.
  * Handles generation, validation, and revocation of session IDs through the FirebaseAuth API.
+ *
+ * Verifying a session takes two separate checks:
+ *   - its signature and claims, checked locally by SessionCookieVerifier when
+ *     'piggybank.sessions.local-verification.enabled' is set (and its keys are ready), or by FirebaseAuth
+ *     otherwise;
+ *   - its revocation, checked against the user's 'tokens valid after' time, which is cached per user.
+ * Verified sessions are cached, keyed by a SHA-256 hash of the session ID. An entry lives for
+ * 'piggybank.cache.sessions.expire-after-write' but never past the expiration of the session's token. Each
+ * user's revocation state is read again in the background once it's
+ * 'piggybank.cache.sessions.refresh-after-write' old and used (the request itself is answered from the cache),
+ * so the common path is pure CPU. A session revoked on this node is rejected at once; one revoked elsewhere is
+ * noticed within the refresh interval.
+ *
+ * Hit ratios are published under the 'cache.*' metrics tagged with 'cache=sessions' and 'cache=revocations',
+ * and the latency of signature checks under 'sessions.verify'.
  */
 @Component
 public class SessionAuthenticator {
+    private final SessionCookieVerifier verifier;
+    private final FirebaseSessions firebase;
+    private final Cache<String, Session> sessions;
+    /** Time (in milliseconds since the epoch) each user's sessions must be signed in after to be valid. */
+    private final LoadingCache<String, Long> revocations;
+    private final Timer verifyTimer;
+
+    /**
+     * Builds the caches and registers their metrics.
+     *
+     * @param env Environment containing properties.
+     * @param registry Registry the authenticator's metrics are published to.
+     * @param verifier Verifies session cookies locally, when enabled.
+     */
+    @Autowired
+    public SessionAuthenticator(Environment env, MeterRegistry registry, SessionCookieVerifier verifier) {
+        this(env, registry, verifier, new FirebaseSessions());
+    }
+
+    /**
+     * @param env Environment containing properties.
+     * @param registry Registry the authenticator's metrics are published to.
+     * @param verifier Verifies session cookies locally, when enabled.
+     * @param firebase Verifies session cookies and reads revocation states through FirebaseAuth.
+     */
+    SessionAuthenticator(Environment env, MeterRegistry registry, SessionCookieVerifier verifier,
+                         FirebaseSessions firebase) {
+        long maximumSize = env.getProperty("piggybank.cache.sessions.maximum-size", Long.class, 100_000L);
+        Duration expireAfterWrite = env.getProperty(
+                "piggybank.cache.sessions.expire-after-write", Duration.class, Duration.ofMinutes(5));
+        Duration refreshAfterWrite = env.getProperty(
+                "piggybank.cache.sessions.refresh-after-write", Duration.class, Duration.ofMinutes(1));
+        long ttlNanos = expireAfterWrite.toNanos();
+
+        this.verifier = verifier;
+        this.firebase = firebase;
+        sessions = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new Expiry<String, Session>() {
+                    @Override
+                    public long expireAfterCreate(@NonNull String key, @NonNull Session session, long now) {
+                        return Math.min(ttlNanos, session.nanosUntilExpiration());
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(@NonNull String key, @NonNull Session session, long now,
+                                                  long currentDuration) {
+                        return Math.min(ttlNanos, session.nanosUntilExpiration());
+                    }
+
+                    @Override
+                    public long expireAfterRead(@NonNull String key, @NonNull Session session, long now,
+                                                long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        revocations = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite)
+                .refreshAfterWrite(refreshAfterWrite)
+                .recordStats()
+                .build(firebase::validAfter);
+        CaffeineCacheMetrics.monitor(registry, sessions, "sessions");
+        CaffeineCacheMetrics.monitor(registry, revocations, "revocations");
+        verifyTimer = registry.timer("sessions.verify");
+    }
+
     /**
      * Given a session ID, verifies the ID's authenticity through FirebaseAuth.
      * A session ID would be valid if it hasn't expired from the initial expiration time set and it
@@ -26,7 +127,20 @@ public class SessionAuthenticator {
      * @throws FirebaseAuthException If the session ID is not authentic, or has been revoked.
      */
     public void validateSession(@NonNull String sessionCookie) throws FirebaseAuthException {
-        FirebaseAuth.getInstance().verifySessionCookie(sessionCookie, true);
+        verify(sessionCookie);
+    }
+
+    /**
+     * Given a session ID, verifies the ID's authenticity like validateSession() and retrieves the email of the
+     * account the session belongs to.
+     *
+     * @param sessionCookie Session ID from the HTTP request cookie.
+     * @return Email of the session's account, or null if its token has no email.
+     * @throws FirebaseAuthException If the session ID is not authentic, or has been revoked.
+     */
+    @Nullable
+    public String getSessionEmail(@NonNull String sessionCookie) throws FirebaseAuthException {
+        return verify(sessionCookie).email;
     }
 
     /**
@@ -40,6 +154,8 @@ public class SessionAuthenticator {
     public void clearSessionAndRevoke(@NonNull String sessionCookie) throws FirebaseAuthException {
         FirebaseToken decodedToken = FirebaseAuth.getInstance().verifySessionCookie(sessionCookie, true);
         FirebaseAuth.getInstance().revokeRefreshTokens(decodedToken.getUid());
+        sessions.invalidate(keyOf(sessionCookie));
+        revocations.invalidate(decodedToken.getUid());
     }
 
     /**
@@ -76,4 +192,86 @@ public class SessionAuthenticator {
         cookie.setHttpOnly(true);
         return cookie;
     }
+
+    /**
+     * Verifies a session ID, answering from the cache when it was verified recently.
+     *
+     * @param sessionCookie Session ID from the HTTP request cookie.
+     * @return The verified session.
+     * @throws FirebaseAuthException If the session ID is not authentic, or has been revoked.
+     */
+    private Session verify(String sessionCookie) throws FirebaseAuthException {
+        String key = keyOf(sessionCookie);
+        Session session = sessions.getIfPresent(key);
+        if (session == null) {
+            long start = System.nanoTime();
+            try {
+                session = new Session(verifier.isReady()
+                        ? verifier.verify(sessionCookie)
+                        : firebase.verifySessionCookie(sessionCookie));
+            } finally {
+                verifyTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+            if (session.nanosUntilExpiration() > 0) {
+                sessions.put(key, session);
+            }
+        }
+
+        Long validAfter;
+        try {
+            validAfter = revocations.get(session.uid);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof FirebaseAuthException) {
+                throw (FirebaseAuthException) e.getCause();
+            }
+            throw e;
+        }
+        if (session.authTimeMillis < validAfter) {
+            sessions.invalidate(key);
+            throw new FirebaseAuthException(ErrorCode.INVALID_ARGUMENT, "Session cookie has been revoked", null,
+                    null, AuthErrorCode.REVOKED_SESSION_COOKIE);
+        }
+        return session;
+    }
+
+    /**
+     * @return Cache key of a session ID, so the cache doesn't hold session IDs themselves.
+     */
+    private static String keyOf(String sessionCookie) {
+        return Hashing.sha256().hashString(sessionCookie, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Claims of a verified session cookie. Both FirebaseAuth and SessionCookieVerifier return the cookie's JWT
+     * claims, where the user's ID is the 'sub' claim.
+     */
+    private static final class Session {
+        private final String uid;
+        private final String email;
+        private final long authTimeMillis;
+        /** Expiration of the session cookie, in milliseconds since the epoch (0 if it has none). */
+        private final long expirationMillis;
+
+        private Session(Map<String, Object> claims) throws FirebaseAuthException {
+            if (!(claims.get("sub") instanceof String)) {
+                throw new FirebaseAuthException(ErrorCode.INVALID_ARGUMENT, "Session cookie has no subject", null,
+                        null, AuthErrorCode.INVALID_SESSION_COOKIE);
+            }
+            uid = (String) claims.get("sub");
+            email = (String) claims.get("email");
+            authTimeMillis = TimeUnit.SECONDS.toMillis(secondsOf(claims.get("auth_time")));
+            expirationMillis = TimeUnit.SECONDS.toMillis(secondsOf(claims.get("exp")));
+        }
+
+        /**
+         * @return Time left until the session expires, in nanoseconds; 0 if it has expired.
+         */
+        private long nanosUntilExpiration() {
+            return Math.max(0, TimeUnit.MILLISECONDS.toNanos(expirationMillis - System.currentTimeMillis()));
+        }
+
+        private static long secondsOf(Object claim) {
+            return claim instanceof Number ? ((Number) claim).longValue() : 0;
+        }
+    }
 }
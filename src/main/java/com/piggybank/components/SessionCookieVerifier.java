@@ -0,0 +1,227 @@
+package com.piggybank.components;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.firebase.ErrorCode;
+import com.google.firebase.auth.AuthErrorCode;
+import com.google.firebase.auth.FirebaseAuthException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spring Bean
+ *
+ * Verifies session cookies locally, enabled by 'piggybank.sessions.local-verification.enabled'. A session
+ * cookie is a JWT signed with one of Google's rotating keys; the signature and claims are checked here against
+ * keys held in memory, so verification needs no network round trip. Revocation isn't checked (see
+ * SessionAuthenticator).
+ *
+ * The keys come from a SigningKeySource: Google's endpoint, or the JSON file at
+ * 'piggybank.sessions.local-verification.keys-file' if one is set (e.g. keys generated for tests). They're
+ * fetched at startup, so the first requests after a deploy don't wait for them, and fetched again in the
+ * background 'piggybank.sessions.local-verification.refresh-ahead' before they expire. A failed fetch is retried
+ * every RETRY_MILLIS while the previous keys stay in use; failures are logged and counted under
+ * 'sessions.keys.failures'.
+ */
+@Component
+public class SessionCookieVerifier {
+    /** Endpoint publishing the certificates of the keys session cookies are signed with. */
+    private static final String KEYS_URL =
+            "https://www.googleapis.com/identitytoolkit/v3/relyingparty/publicKeys";
+    private static final String ISSUER_PREFIX = "https://session.firebase.google.com/";
+    private static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    /** Tolerated difference between this node's clock and the issuer's, for the 'iat' claim. */
+    private static final long CLOCK_SKEW_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionCookieVerifier.class);
+
+    private final boolean enabled;
+    private final String projectId;
+    private final long refreshAhead;
+    private final SigningKeySource source;
+    private final Counter failures;
+    private final ScheduledExecutorService refresher;
+
+    private volatile Map<String, PublicKey> keys;
+
+    /**
+     * Fetches the signing keys and schedules their refresh, if local verification is enabled.
+     *
+     * @param env Environment containing properties.
+     * @param registry Registry the verifier's metrics are published to.
+     */
+    @Autowired
+    public SessionCookieVerifier(Environment env, MeterRegistry registry) {
+        this(env, registry, sourceOf(env));
+    }
+
+    /**
+     * @param env Environment containing properties.
+     * @param registry Registry the verifier's metrics are published to.
+     * @param source Source the signing keys are fetched from.
+     */
+    SessionCookieVerifier(Environment env, MeterRegistry registry, SigningKeySource source) {
+        enabled = env.getProperty("piggybank.sessions.local-verification.enabled", Boolean.class, false);
+        projectId = env.getProperty("firebase.project-id");
+        refreshAhead = env.getProperty("piggybank.sessions.local-verification.refresh-ahead", Duration.class,
+                Duration.ofMinutes(5)).toMillis();
+        this.source = source;
+        failures = registry.counter("sessions.keys.failures");
+
+        if (!enabled) {
+            refresher = null;
+            return;
+        }
+        Objects.requireNonNull(projectId, "firebase.project-id is required for local session verification");
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-keys-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresh();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * @return Whether session cookies can be verified locally: the mode is enabled and keys have been fetched.
+     */
+    public boolean isReady() {
+        return enabled && keys != null;
+    }
+
+    /**
+     * Checks a session cookie's signature and claims, without checking whether it was revoked.
+     *
+     * @param sessionCookie Session ID from the HTTP request cookie.
+     * @return Claims of the session cookie; its user's ID is the 'sub' claim.
+     * @throws FirebaseAuthException If the session cookie is malformed, badly signed, expired, or wasn't issued
+     *         for this project.
+     * @throws IllegalStateException If the verifier isn't ready.
+     */
+    @NonNull
+    public Map<String, Object> verify(@NonNull String sessionCookie) throws FirebaseAuthException {
+        Map<String, PublicKey> current = keys;
+        if (!enabled || current == null) {
+            throw new IllegalStateException("Local session verification isn't ready");
+        }
+
+        String[] parts = sessionCookie.split("\\.", -1);
+        if (parts.length != 3) {
+            throw invalid("Session cookie isn't a JWT", null);
+        }
+        Map<String, Object> header = decode(parts[0]);
+        Map<String, Object> claims = decode(parts[1]);
+        if (!"RS256".equals(header.get("alg"))) {
+            throw invalid("Session cookie has an unexpected algorithm", null);
+        }
+        PublicKey key = current.get(String.valueOf(header.get("kid")));
+        if (key == null) {
+            throw invalid("Session cookie is signed with an unknown key", null);
+        }
+
+        try {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initVerify(key);
+            signature.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+            if (!signature.verify(Base64.getUrlDecoder().decode(parts[2]))) {
+                throw invalid("Session cookie has an invalid signature", null);
+            }
+        } catch (FirebaseAuthException e) {
+            throw e;
+        } catch (Exception e) {
+            throw invalid("Session cookie has an invalid signature", e);
+        }
+
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        Object subject = claims.get("sub");
+        if (!projectId.equals(claims.get("aud")) || !(ISSUER_PREFIX + projectId).equals(claims.get("iss"))) {
+            throw invalid("Session cookie wasn't issued for this project", null);
+        }
+        if (!(subject instanceof String) || ((String) subject).isEmpty() || ((String) subject).length() > 128) {
+            throw invalid("Session cookie has an invalid subject", null);
+        }
+        if (!(claims.get("iat") instanceof Number) ||
+                ((Number) claims.get("iat")).longValue() > now + CLOCK_SKEW_SECONDS) {
+            throw invalid("Session cookie has an invalid issue time", null);
+        }
+        if (!(claims.get("auth_time") instanceof Number) ||
+                ((Number) claims.get("auth_time")).longValue() > now + CLOCK_SKEW_SECONDS) {
+            throw invalid("Session cookie has an invalid sign-in time", null);
+        }
+        if (!(claims.get("exp") instanceof Number) || ((Number) claims.get("exp")).longValue() <= now) {
+            throw new FirebaseAuthException(ErrorCode.INVALID_ARGUMENT, "Session cookie has expired", null, null,
+                    AuthErrorCode.EXPIRED_SESSION_COOKIE);
+        }
+
+        return claims;
+    }
+
+    /**
+     * Fetches the keys and schedules the next fetch, before they expire or, if the fetch failed, after
+     * RETRY_MILLIS.
+     */
+    private void refresh() {
+        long delay;
+        try {
+            SigningKeySource.SigningKeys fetched = source.fetch();
+            keys = fetched.getKeys();
+            delay = Math.max(RETRY_MILLIS, fetched.getExpiresAt() - refreshAhead - System.currentTimeMillis());
+        } catch (Exception e) {
+            failures.increment();
+            LOGGER.error("Failed to fetch session signing keys, retrying in {} ms", RETRY_MILLIS, e);
+            delay = RETRY_MILLIS;
+        }
+        if (!refresher.isShutdown()) {
+            refresher.schedule(this::refresh, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return Google's endpoint, or the JSON file at 'piggybank.sessions.local-verification.keys-file' if set.
+     */
+    private static SigningKeySource sourceOf(Environment env) {
+        String keysFile = env.getProperty("piggybank.sessions.local-verification.keys-file");
+        return keysFile == null || keysFile.isBlank()
+                ? new UrlSigningKeySource(URI.create(KEYS_URL))
+                : new FileSigningKeySource(Path.of(keysFile));
+    }
+
+    private static Map<String, Object> decode(String part) throws FirebaseAuthException {
+        try {
+            return MAPPER.readValue(Base64.getUrlDecoder().decode(part), new TypeReference<>() {});
+        } catch (Exception e) {
+            throw invalid("Session cookie is malformed", e);
+        }
+    }
+
+    private static FirebaseAuthException invalid(String message, Exception cause) {
+        return new FirebaseAuthException(ErrorCode.INVALID_ARGUMENT, message, cause, null,
+                AuthErrorCode.INVALID_SESSION_COOKIE);
+    }
+}
@@ -0,0 +1,70 @@
+package com.piggybank.components;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.lang.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Source of the public keys session cookies are signed with (see SessionCookieVerifier). Keys are published
+ * as a JSON object mapping key IDs to PEM-encoded X.509 certificates, the format of Google's endpoint, so a
+ * local file in that format can stand in for the endpoint.
+ */
+public interface SigningKeySource {
+    /**
+     * @return The current keys, and until when they may be used.
+     * @throws Exception When the keys couldn't be fetched.
+     */
+    @NonNull
+    SigningKeys fetch() throws Exception;
+
+    /**
+     * @param json JSON object mapping key IDs to PEM-encoded X.509 certificates.
+     * @return Public keys of the certificates, by key ID.
+     * @throws Exception When the JSON or a certificate is malformed.
+     */
+    @NonNull
+    static Map<String, PublicKey> parseCertificates(@NonNull byte[] json) throws Exception {
+        Map<String, String> certificates = new ObjectMapper().readValue(json, new TypeReference<>() {});
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        Map<String, PublicKey> keys = new HashMap<>();
+        for (Map.Entry<String, String> certificate : certificates.entrySet()) {
+            byte[] pem = certificate.getValue().getBytes(StandardCharsets.UTF_8);
+            keys.put(certificate.getKey(),
+                    factory.generateCertificate(new ByteArrayInputStream(pem)).getPublicKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Public keys by key ID, and the time they may be used until.
+     */
+    final class SigningKeys {
+        private final Map<String, PublicKey> keys;
+        private final long expiresAt;
+
+        /**
+         * @param keys Public keys by key ID.
+         * @param expiresAt Time the keys may be used until, in milliseconds since the epoch.
+         */
+        public SigningKeys(@NonNull Map<String, PublicKey> keys, long expiresAt) {
+            this.keys = Map.copyOf(keys);
+            this.expiresAt = expiresAt;
+        }
+
+        @NonNull
+        public Map<String, PublicKey> getKeys() {
+            return keys;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.piggybank.components;
+
+import com.piggybank.repository.AccountRepository;
+import com.piggybank.repository.TransactionRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Spring Bean
+ *
+ * Runs one-off data migrations once the application has started. Each migration is switched on by its own
+ * property under 'piggybank.migrations' in application.yml and is safe to run more than once, so a migration
+ * can be switched on for the deploy that needs it and switched off again afterwards. All are off by default.
+ * Migrations run in the background, one after the other, so they never hold up or abort startup: a failed
+ * migration is logged and counted under 'piggybank.migrations.failures', and can be retried by restarting w/ it
+ * still switched on.
+ */
+@Component
+public class StartupMigrations implements ApplicationRunner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StartupMigrations.class);
+
+    private final Environment env;
+    private final AccountRepository accountRepository;
+    private final TransactionRepository transactionRepository;
+    private final MeterRegistry registry;
+
+    /**
+     * @param env Environment containing properties.
+     * @param accountRepository Repository used to backfill the username reservations and drop the
+     *                          transaction ID arrays.
+     * @param transactionRepository Repository used to backfill the transaction timestamps.
+     * @param registry Meter registry the migration failures are counted in.
+     */
+    public StartupMigrations(
+            Environment env,
+            AccountRepository accountRepository,
+            TransactionRepository transactionRepository,
+            MeterRegistry registry
+    ) {
+        this.env = env;
+        this.accountRepository = accountRepository;
+        this.transactionRepository = transactionRepository;
+        this.registry = registry;
+    }
+
+    /**
+     * Starts a background thread running every migration that is switched on.
+     *
+     * @param args Application arguments (unused).
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        Thread thread = new Thread(this::runMigrations, "startup-migrations");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs every migration that is switched on, in order. A failed migration doesn't stop the ones after it.
+     */
+    void runMigrations() {
+        migrate("username-index", "Username index backfill reserved {} usernames",
+                accountRepository::backfillUsernameIndex);
+        migrate("transaction-timestamps", "Transaction timestamp backfill updated {} transactions",
+                transactionRepository::backfillTimestamps);
+        migrate("drop-transaction-ids", "Removed transaction ID arrays from {} accounts",
+                accountRepository::dropTransactionIds);
+    }
+
+    /**
+     * Runs a migration if it's switched on, logging how many documents it wrote, or logging and counting its
+     * failure.
+     *
+     * @param name Name of the migration's property under 'piggybank.migrations'.
+     * @param message Message logged w/ the number of documents written once the migration has run.
+     * @param migration The migration, returning the number of documents it wrote.
+     */
+    private void migrate(String name, String message, Callable<Integer> migration) {
+        if (!env.getProperty("piggybank.migrations." + name, Boolean.class, false)) {
+            return;
+        }
+        try {
+            LOGGER.info(message, migration.call());
+        } catch (Exception e) {
+            LOGGER.error("Migration '{}' failed", name, e);
+            registry.counter("piggybank.migrations.failures", "migration", name).increment();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.piggybank.components;
+
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.firebase.cloud.FirestoreClient;
+import com.piggybank.model.Rollup;
+import com.piggybank.model.Transaction;
+import com.piggybank.repository.AccountRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.core.env.Environment;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spring Bean
+ *
+ * Transactional outbox for processed transactions. The Firestore transaction of a bank or peer transaction only
+ * updates balances and creates a small entry in the Outbox collection (labelled by the transaction's ID); the
+ * full Transaction document is written afterwards by this worker, so the contended transaction holds its locks
+ * for as short a time as possible.
+ *
+ * Committed entries are handed to the worker through a bounded in-memory queue. A single worker thread drains
+ * the queue and, for each batch, writes the Transaction documents, deletes their entries and adds the
+ * transactions to their rollups (see TransactionRollups) in one Firestore transaction. Entries that never reach
+ * the queue (the queue was full, the batch failed, or the node stopped after committing) stay in the Outbox
+ * collection, and the worker sweeps up entries older than a grace period. The Firestore transaction only handles
+ * entries that still exist, so an entry picked up twice (e.g. by two nodes) is counted in the rollups once.
+ * The sweep also resumes re-keying the history of accounts whose email changed but whose history move didn't
+ * finish (see AccountRepository.resumeEmailMoves()).
+ *
+ * Until its document is written, a transaction is read from its entry (see TransactionRepository.getTxn()), but
+ * doesn't show up in histories or rollups yet.
+ *
+ * Queue depth, batch sizes, dropped entries, failed writes and sweeps, and the lag between a transaction
+ * committing and its document being written are published under the 'outbox.*' metrics.
+ */
+@Component
+@DependsOn("firebaseInitializer")
+public class TransactionOutbox {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionOutbox.class);
+
+    /** Longest time the worker waits for the first entry of a batch. */
+    private static final long POLL_MILLIS = 50;
+
+    /** Most writes Firestore accepts in a single transaction. */
+    private static final int MAX_WRITES = 500;
+
+    private final CollectionReference outboxCollection;
+    private final CollectionReference transactionCollection;
+    private final BlockingQueue<Transaction> queue;
+    private final TransactionRollups rollups;
+    private final AccountRepository accountRepository;
+    private final int batchSize;
+    private final long sweepIntervalMillis;
+    private final long sweepGraceMillis;
+
+    /** Held while a batch is taken off the queue and written, so flush() can wait for it. */
+    private final Object writeLock = new Object();
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long nextSweep;
+
+    private final DistributionSummary batchSizes;
+    private final Timer lag;
+    private final Counter dropped;
+    private final Counter failures;
+
+    /**
+     * Registers the outbox's metrics and starts the worker thread.
+     *
+     * @param env Environment containing properties.
+     * @param registry Registry the outbox's metrics are published to.
+     * @param rollups Rollups the written transactions are added to.
+     * @param accountRepository Repository whose unfinished history moves the sweep resumes.
+     */
+    public TransactionOutbox(Environment env, MeterRegistry registry, TransactionRollups rollups,
+                             AccountRepository accountRepository) {
+        String outboxLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.outbox"));
+        String transactionsLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.transactions"));
+        outboxCollection = FirestoreClient.getFirestore().collection(outboxLabel);
+        transactionCollection = FirestoreClient.getFirestore().collection(transactionsLabel);
+        this.rollups = rollups;
+        this.accountRepository = accountRepository;
+
+        queue = new ArrayBlockingQueue<>(env.getProperty("piggybank.outbox.queue-capacity", Integer.class, 10_000));
+        // Every entry takes two writes: the Transaction document and the entry's deletion. Batches whose rollup
+        // writes don't fit along with them are written in parts.
+        batchSize = Math.min(250, env.getProperty("piggybank.outbox.batch-size", Integer.class, 250));
+        sweepIntervalMillis = env.getProperty(
+                "piggybank.outbox.sweep-interval", Duration.class, Duration.ofSeconds(30)).toMillis();
+        sweepGraceMillis = env.getProperty(
+                "piggybank.outbox.sweep-grace", Duration.class, Duration.ofSeconds(30)).toMillis();
+        nextSweep = System.currentTimeMillis() + sweepIntervalMillis;
+
+        batchSizes = registry.summary("outbox.batch.size");
+        lag = registry.timer("outbox.lag");
+        dropped = registry.counter("outbox.dropped");
+        failures = registry.counter("outbox.failures");
+        Gauge.builder("outbox.queue.depth", queue, BlockingQueue::size).register(registry);
+
+        worker = new Thread(this::run, "transaction-outbox");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @param transactionId ID of a transaction.
+     * @return Document of the transaction's outbox entry, to be created in the transaction's Firestore transaction.
+     */
+    @NonNull
+    public DocumentReference entry(@NonNull String transactionId) {
+        return outboxCollection.document(transactionId);
+    }
+
+    /**
+     * Hands a committed transaction to the worker. If the queue is full, the entry is left for the sweep.
+     *
+     * @param txn Transaction whose outbox entry was just committed.
+     */
+    public void enqueue(@NonNull Transaction txn) {
+        if (!queue.offer(txn)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Writes every queued transaction before returning, including a batch the worker is in the middle of.
+     * Used where a transaction's document must be readable right after processing it, e.g. in tests.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            List<Transaction> batch = new ArrayList<>();
+            while (queue.drainTo(batch, batchSize) > 0) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Stops the worker and writes whatever is still queued.
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        running = false;
+        worker.join(TimeUnit.SECONDS.toMillis(5));
+        flush();
+    }
+
+    /**
+     * Worker loop: writes queued transactions in batches, and sweeps the Outbox collection periodically.
+     */
+    private void run() {
+        while (running) {
+            try {
+                synchronized (writeLock) {
+                    Transaction first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        List<Transaction> batch = new ArrayList<>();
+                        batch.add(first);
+                        queue.drainTo(batch, batchSize - 1);
+                        write(batch);
+                    }
+                }
+                if (System.currentTimeMillis() >= nextSweep) {
+                    sweep();
+                    nextSweep = System.currentTimeMillis() + sweepIntervalMillis;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                failures.increment();
+                LOGGER.error("Transaction outbox worker failed, retrying on its next pass", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the Transaction documents of a batch, deletes their outbox entries and adds the transactions to
+     * their rollups (see TransactionRollups). The batch is split into parts whose writes fit in one Firestore
+     * transaction. If a part fails, its entries stay in the Outbox collection for the sweep.
+     *
+     * @param transactions Transactions to write, at most 'batchSize'.
+     * @return Whether the whole batch was written.
+     */
+    private boolean write(List<Transaction> transactions) {
+        boolean written = true;
+        List<Transaction> part = new ArrayList<>();
+        Set<String> labels = new HashSet<>();
+        for (Transaction txn : transactions) {
+            Set<String> txnLabels = rollups.rollupsOf(txn).keySet();
+            int newLabels = (int) txnLabels.stream().filter(label -> !labels.contains(label)).count();
+            if (!part.isEmpty() && 2 * (part.size() + 1) + labels.size() + newLabels > MAX_WRITES) {
+                written &= writePart(part);
+                part = new ArrayList<>();
+                labels.clear();
+            }
+            part.add(txn);
+            labels.addAll(txnLabels);
+        }
+        if (!part.isEmpty()) {
+            written &= writePart(part);
+        }
+        return written;
+    }
+
+    /**
+     * Writes part of a batch in a single Firestore transaction, which first reads the part's outbox entries: an
+     * entry that's already gone was handled elsewhere (e.g. by another node's sweep), so its transaction isn't
+     * added to the rollups again. The Transaction documents are written from the entries as read, not from the
+     * queued copies.
+     *
+     * @param transactions Transactions to write, whose writes fit in one Firestore transaction.
+     * @return Whether the part was written.
+     */
+    private boolean writePart(List<Transaction> transactions) {
+        DocumentReference[] entries = transactions.stream()
+                .map(txn -> outboxCollection.document(txn.getId()))
+                .toArray(DocumentReference[]::new);
+        try {
+            FirestoreClient.getFirestore().runTransaction(tx -> {
+                List<DocumentSnapshot> snapshots = tx.getAll(entries).get();
+                List<Transaction> pending = new ArrayList<>();
+                Map<String, Rollup> additions = new LinkedHashMap<>();
+                for (int i = 0; i < transactions.size(); i++) {
+                    if (snapshots.get(i).exists()) {
+                        // Written as the entry now reads, in case it was re-keyed after an account's email changed.
+                        Transaction txn = Objects.requireNonNull(snapshots.get(i).toObject(Transaction.class));
+                        pending.add(txn);
+                        rollups.rollupsOf(txn).forEach((label, addition) ->
+                                additions.merge(label, addition, (rollup, more) -> {
+                                    rollup.add(more);
+                                    return rollup;
+                                }));
+                    }
+                }
+
+                // Each rollup is added to on one random shard, so other nodes' workers rarely touch the same one.
+                List<DocumentReference> shards = new ArrayList<>();
+                for (String label : additions.keySet()) {
+                    shards.add(rollups.pickShard(label));
+                }
+                List<DocumentSnapshot> shardSnapshots = shards.isEmpty()
+                        ? List.of()
+                        : tx.getAll(shards.toArray(new DocumentReference[0])).get();
+                int index = 0;
+                for (Rollup rollup : additions.values()) {
+                    DocumentSnapshot shard = shardSnapshots.get(index++);
+                    Rollup current = shard.exists() ? shard.toObject(Rollup.class) : null;
+                    if (current != null) {
+                        rollup.add(current);
+                    }
+                    tx.set(shard.getReference(), rollup);
+                }
+
+                for (Transaction txn : pending) {
+                    tx.set(transactionCollection.document(txn.getId()), txn);
+                    tx.delete(outboxCollection.document(txn.getId()));
+                }
+                return null;
+            }).get();
+        } catch (Exception e) {
+            failures.increment();
+            LOGGER.warn("Failed to write {} transactions from the outbox, leaving them for the sweep",
+                    transactions.size(), e);
+            return false;
+        }
+
+        batchSizes.record(transactions.size());
+        long now = System.currentTimeMillis();
+        for (Transaction txn : transactions) {
+            if (txn.getTimestamp() != null) {
+                lag.record(Math.max(0, now - txn.getTimestamp()), TimeUnit.MILLISECONDS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes outbox entries that have been waiting longer than the grace period, a batch at a time, then resumes
+     * the history moves started longer than the grace period ago.
+     *
+     * @throws Exception When the Outbox collection can't be read, or a history move fails.
+     */
+    private void sweep() throws Exception {
+        long cutoff = System.currentTimeMillis() - sweepGraceMillis;
+        List<QueryDocumentSnapshot> entries;
+        do {
+            entries = outboxCollection.whereLessThan("timestamp", cutoff).limit(batchSize).get().get().getDocuments();
+            List<Transaction> transactions = new ArrayList<>(entries.size());
+            for (QueryDocumentSnapshot entry : entries) {
+                transactions.add(entry.toObject(Transaction.class));
+            }
+            if (!transactions.isEmpty()) {
+                synchronized (writeLock) {
+                    if (!write(transactions)) {
+                        return;
+                    }
+                }
+            }
+        } while (entries.size() == batchSize && running);
+
+        int resumed = accountRepository.resumeEmailMoves(sweepGraceMillis);
+        if (resumed > 0) {
+            LOGGER.info("Resumed {} account history moves", resumed);
+        }
+    }
+}
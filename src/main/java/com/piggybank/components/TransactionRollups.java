@@ -0,0 +1,123 @@
+package com.piggybank.components;
+
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.firebase.cloud.FirestoreClient;
+import com.piggybank.model.Rollup;
+import com.piggybank.model.Transaction;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.core.env.Environment;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Spring Bean
+ *
+ * Spending and revenue rollups of every account, per hour, day and month (see Rollup). The rollups are
+ * maintained incrementally by the TransactionOutbox, in the Firestore transaction that writes a batch of
+ * Transaction documents, so every processed transaction is added to its rollups exactly once, and reading a
+ * rollup never reads any transaction.
+ *
+ * A rollup is split across up to 'piggybank.rollups.shards' shard documents, labelled
+ * '{email}|{period}|{start}|{shard}', and each outbox batch adds to one random shard of every rollup it touches.
+ * Sharding only pays off across nodes: on one node, a single worker thread writes every rollup, one batch at a
+ * time, so its transactions never contend with each other, and one shard (the default) is enough. Every node
+ * runs its own worker and sweep, though, and payments to a busy merchant are processed on all of them, so their
+ * workers add to the same rollups at once; Firestore then aborts all but one of the transactions touching a
+ * rollup document, and the others retry the whole batch. With about one shard per node, concurrent batches
+ * mostly land on different shards. Writing costs the same either way (one shard read per rollup touched), while
+ * readers add up every shard. Periods start at the boundaries of 'piggybank.rollups.zone' (UTC by default).
+ */
+@Component
+@DependsOn("firebaseInitializer")
+public class TransactionRollups {
+    private final CollectionReference rollupCollection;
+    private final int shards;
+    private final ZoneId zone;
+
+    /**
+     * @param env Environment containing properties.
+     */
+    public TransactionRollups(Environment env) {
+        String rollupsLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.rollups"));
+        rollupCollection = FirestoreClient.getFirestore().collection(rollupsLabel);
+        shards = Math.max(1, env.getProperty("piggybank.rollups.shards", Integer.class, 1));
+        zone = ZoneId.of(env.getProperty("piggybank.rollups.zone", "UTC"));
+    }
+
+    /**
+     * @param txn Processed transaction.
+     * @return What the transaction adds to each of its rollups, by label: one rollup per period for the
+     *         transactor, and for the recipient if there is one. Empty if the transaction has no timestamp or
+     *         amount.
+     */
+    @NonNull
+    public Map<String, Rollup> rollupsOf(@NonNull Transaction txn) {
+        Map<String, Rollup> rollups = new LinkedHashMap<>();
+        if (txn.getTimestamp() == null || txn.getAmount() == null) {
+            return rollups;
+        }
+        for (Rollup.Period period : Rollup.Period.values()) {
+            long start = startOf(period, txn.getTimestamp());
+            add(rollups, txn.getTransactorEmail(), period, start, txn.getAmount(), true);
+            if (txn.getRecipientEmail() != null) {
+                add(rollups, txn.getRecipientEmail(), period, start, txn.getAmount(), false);
+            }
+        }
+        return rollups;
+    }
+
+    /**
+     * @param label Label of a rollup.
+     * @return A random shard document of the rollup.
+     */
+    @NonNull
+    public DocumentReference pickShard(@NonNull String label) {
+        return rollupCollection.document(label + "|" + ThreadLocalRandom.current().nextInt(shards));
+    }
+
+    /**
+     * @param period Length of the period.
+     * @param timestamp Time within the period, in milliseconds since the epoch.
+     * @return Start of the period, in milliseconds since the epoch.
+     */
+    public long startOf(@NonNull Rollup.Period period, long timestamp) {
+        ZonedDateTime time = Instant.ofEpochMilli(timestamp).atZone(zone);
+        switch (period) {
+            case HOUR:
+                time = time.truncatedTo(ChronoUnit.HOURS);
+                break;
+            case DAY:
+                time = time.truncatedTo(ChronoUnit.DAYS);
+                break;
+            case MONTH:
+                time = time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+                break;
+        }
+        return time.toInstant().toEpochMilli();
+    }
+
+    private static void add(Map<String, Rollup> rollups, String email, Rollup.Period period, long start,
+                            long amount, boolean sent) {
+        Rollup rollup = rollups.computeIfAbsent(email + "|" + period + "|" + start,
+                label -> new Rollup(email, period, start));
+        if (sent) {
+            rollup.setSentCount(rollup.getSentCount() + 1);
+            rollup.setSentSum(rollup.getSentSum() + amount);
+            rollup.setSentMax(Math.max(rollup.getSentMax(), amount));
+        } else {
+            rollup.setReceivedCount(rollup.getReceivedCount() + 1);
+            rollup.setReceivedSum(rollup.getReceivedSum() + amount);
+            rollup.setReceivedMax(Math.max(rollup.getReceivedMax(), amount));
+        }
+    }
+}
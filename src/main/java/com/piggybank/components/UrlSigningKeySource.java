@@ -0,0 +1,55 @@
+package com.piggybank.components;
+
+import org.springframework.lang.NonNull;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fetches signing keys from an HTTP endpoint, such as Google's session cookie endpoint. The keys may be used for
+ * as long as the response's 'Cache-Control: max-age' allows, or DEFAULT_MAX_AGE if it has none.
+ */
+final class UrlSigningKeySource implements SigningKeySource {
+    private static final long DEFAULT_MAX_AGE = TimeUnit.HOURS.toMillis(1);
+    private static final Pattern MAX_AGE = Pattern.compile("max-age=(\\d+)");
+
+    private final URI uri;
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    /**
+     * @param uri Endpoint publishing the keys.
+     */
+    UrlSigningKeySource(@NonNull URI uri) {
+        this.uri = uri;
+    }
+
+    @NonNull
+    @Override
+    public SigningKeys fetch() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(10))
+                .GET()
+                .build();
+        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Fetching signing keys from " + uri + " failed with status " +
+                    response.statusCode());
+        }
+
+        long maxAge = response.headers().firstValue("Cache-Control")
+                .map(MAX_AGE::matcher)
+                .filter(Matcher::find)
+                .map(matcher -> TimeUnit.SECONDS.toMillis(Long.parseLong(matcher.group(1))))
+                .orElse(DEFAULT_MAX_AGE);
+        return new SigningKeys(SigningKeySource.parseCertificates(response.body()),
+                System.currentTimeMillis() + maxAge);
+    }
+}
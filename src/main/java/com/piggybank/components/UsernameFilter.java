@@ -0,0 +1,211 @@
+package com.piggybank.components;
+
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.firebase.cloud.FirestoreClient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.core.env.Environment;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spring Bean
+ *
+ * Node-local Bloom filter over every reserved username. A negative answer means the username is definitely
+ * free, so the signup form can be answered without a Firestore round trip; only possible hits need to be
+ * confirmed against the Usernames collection.
+ *
+ * The filter is built from the first snapshot of a listener on the Usernames collection and kept current by
+ * the same listener. Bloom filters can't forget an entry, so released usernames are only counted, and the
+ * filter is rebuilt from the listener's latest snapshot once enough of them pile up. Until the first snapshot
+ * arrives (or if the listener fails) every username is reported as a possible hit.
+ */
+@Component
+@DependsOn("firebaseInitializer")
+public class UsernameFilter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UsernameFilter.class);
+
+    /** The filter is sized for at least this many usernames. */
+    private static final int MIN_CAPACITY = 10_000;
+
+    private final double falsePositiveRate;
+    private final CollectionReference usernameCollection;
+    private final ListenerRegistration registration;
+
+    private volatile BloomFilter<CharSequence> filter;
+    private volatile int capacity;
+    private final AtomicLong releasedSinceRebuild = new AtomicLong();
+
+    private final Timer rebuildTimer;
+    private final Counter negatives;
+    private final Counter positives;
+    private final Counter falsePositives;
+
+    /**
+     * Registers the filter's metrics and starts listening to the Usernames collection.
+     *
+     * @param env Environment containing properties.
+     * @param registry Registry the filter's metrics are published to.
+     */
+    public UsernameFilter(Environment env, MeterRegistry registry) {
+        String usernamesLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.usernames"));
+        falsePositiveRate = env.getProperty("piggybank.usernames.filter.false-positive-rate", Double.class, 0.01);
+        usernameCollection = FirestoreClient.getFirestore().collection(usernamesLabel);
+
+        rebuildTimer = registry.timer("usernames.filter.rebuild");
+        negatives = registry.counter("usernames.filter.lookups", "result", "negative");
+        positives = registry.counter("usernames.filter.lookups", "result", "positive");
+        falsePositives = registry.counter("usernames.filter.lookups", "result", "false_positive");
+        Gauge.builder("usernames.filter.expected.fpp", this, f -> f.filter == null ? 1 : f.filter.expectedFpp())
+                .register(registry);
+        Gauge.builder("usernames.filter.bytes", this, UsernameFilter::sizeInBytes)
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("usernames.filter.usernames", this, f -> f.filter == null ? 0 : f.filter.approximateElementCount())
+                .register(registry);
+
+        registration = usernameCollection.addSnapshotListener(this::onSnapshot);
+    }
+
+    /**
+     * Determines whether a username might be reserved.
+     *
+     * @param username Username to check.
+     * @return False if the username is definitely not reserved, true if it might be.
+     */
+    public boolean mightContain(@NonNull String username) {
+        BloomFilter<CharSequence> current = filter;
+        if (current == null) {
+            return true;
+        }
+        if (current.mightContain(username)) {
+            return true;
+        }
+        negatives.increment();
+        return false;
+    }
+
+    /**
+     * Records the outcome of confirming a possible hit against Firestore, which feeds the observed
+     * false-positive rate.
+     *
+     * @param exists Whether the username turned out to be reserved.
+     */
+    public void confirm(boolean exists) {
+        if (filter != null) {
+            (exists ? positives : falsePositives).increment();
+        }
+    }
+
+    /**
+     * Adds a username that was just reserved on this node, so it's visible before the listener catches up.
+     *
+     * @param username Newly reserved username.
+     */
+    public void put(@NonNull String username) {
+        BloomFilter<CharSequence> current = filter;
+        if (current != null) {
+            current.put(username);
+        }
+    }
+
+    /**
+     * Rebuilds the filter from the document IDs of the Usernames collection, without reading the documents.
+     *
+     * @throws Exception When the collection can't be listed.
+     */
+    public void rebuild() throws Exception {
+        List<String> usernames = new ArrayList<>();
+        for (DocumentReference reservation : usernameCollection.listDocuments()) {
+            usernames.add(reservation.getId());
+        }
+        rebuild(usernames);
+    }
+
+    /**
+     * Stops listening to the Usernames collection.
+     */
+    @PreDestroy
+    public void close() {
+        registration.remove();
+    }
+
+    /**
+     * Applies a snapshot of the Usernames collection. The first snapshot (and any snapshot that leaves the
+     * filter too full or too stale) rebuilds the filter; otherwise only the added usernames are inserted.
+     *
+     * @param snapshot Snapshot of the Usernames collection.
+     * @param error Error that ended the listener, if any.
+     */
+    private void onSnapshot(@Nullable QuerySnapshot snapshot, @Nullable FirestoreException error) {
+        if (error != null || snapshot == null) {
+            LOGGER.warn("Username filter listener failed, falling back to Firestore", error);
+            filter = null;
+            return;
+        }
+
+        for (DocumentChange change : snapshot.getDocumentChanges()) {
+            if (change.getType() == DocumentChange.Type.REMOVED) {
+                releasedSinceRebuild.incrementAndGet();
+            }
+        }
+        if (filter == null || snapshot.size() > capacity || releasedSinceRebuild.get() > snapshot.size() / 10) {
+            List<String> usernames = new ArrayList<>(snapshot.size());
+            snapshot.getDocuments().forEach(reservation -> usernames.add(reservation.getId()));
+            rebuild(usernames);
+        } else {
+            for (DocumentChange change : snapshot.getDocumentChanges()) {
+                if (change.getType() == DocumentChange.Type.ADDED) {
+                    filter.put(change.getDocument().getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the filter with one sized for twice the given usernames and containing all of them.
+     *
+     * @param usernames Every reserved username.
+     */
+    private void rebuild(List<String> usernames) {
+        rebuildTimer.record(() -> {
+            int newCapacity = Math.max(MIN_CAPACITY, usernames.size() * 2);
+            BloomFilter<CharSequence> newFilter = BloomFilter.create(
+                    Funnels.stringFunnel(StandardCharsets.UTF_8), newCapacity, falsePositiveRate);
+            usernames.forEach(newFilter::put);
+            capacity = newCapacity;
+            releasedSinceRebuild.set(0);
+            filter = newFilter;
+        });
+    }
+
+    /**
+     * @return Approximate size of the filter's bit array, following the sizing Guava uses.
+     */
+    private double sizeInBytes() {
+        if (filter == null) {
+            return 0;
+        }
+        return -capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)) / 8;
+    }
+}
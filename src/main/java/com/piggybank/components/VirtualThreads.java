@@ -0,0 +1,84 @@
+package com.piggybank.components;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.core.env.Environment;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Spring Bean
+ *
+ * Opt-in execution mode running blocking work on virtual threads instead of pooled platform threads, enabled by
+ * 'piggybank.threads.virtual' on JDK 21+ runtimes. In this mode, Tomcat handles every request (and every async
+ * dispatch) on a new virtual thread, so Tomcat's 'server.tomcat.threads.*' limits no longer apply, and the
+ * repositories run their Firestore transaction functions on virtual threads, so the reads they block on inside
+ * a transaction don't hold platform threads.
+ *
+ * Virtual threads are created reflectively, since the application is compiled for Java 11. On runtimes without
+ * them, the mode is reported and ignored.
+ */
+@Component
+public class VirtualThreads implements WebServerFactoryCustomizer<TomcatServletWebServerFactory> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private final ExecutorService executor;
+
+    /**
+     * @param env Environment containing properties.
+     */
+    public VirtualThreads(Environment env) {
+        if (env.getProperty("piggybank.threads.virtual", Boolean.class, false)) {
+            executor = newPerTaskExecutor();
+            if (executor == null) {
+                LOGGER.warn("Virtual threads aren't supported by this runtime ({}), using platform threads",
+                        System.getProperty("java.version"));
+            }
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * @return Executor starting a virtual thread per task, or null if the mode is off or unsupported.
+     */
+    @Nullable
+    public ExecutorService executor() {
+        return executor;
+    }
+
+    /**
+     * Hands Tomcat's request processing to the virtual-thread executor.
+     */
+    @Override
+    public void customize(TomcatServletWebServerFactory factory) {
+        if (executor != null) {
+            factory.addProtocolHandlerCustomizers(handler -> handler.setExecutor(executor));
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return A new executor starting a virtual thread per task, or null if the runtime has no virtual threads.
+     */
+    @Nullable
+    public static ExecutorService newPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
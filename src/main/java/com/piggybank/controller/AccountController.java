@@ -4,6 +4,8 @@ import com.google.firebase.auth.FirebaseAuthException;
 import com.piggybank.PiggyBankApplication;
 import com.piggybank.model.Account;
 import com.piggybank.repository.AccountRepository;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -11,12 +13,17 @@ import org.springframework.web.bind.annotation.*;
 import javax.security.auth.message.AuthException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Account-related application interface.
  * Base URL: /api/v1/account/
+ *
+ * Not served under the 'reactive' profile, which has no counterpart of this interface: reactive nodes rely on
+ * servlet nodes for it (see application-reactive.yml).
  */
 @RestController
+@Profile("!reactive")
 public class AccountController extends PBController<AccountRepository> {
     private static final String BASE_URL = PiggyBankApplication.BASE_URL + "account/";
 
@@ -71,7 +78,7 @@ public class AccountController extends PBController<AccountRepository> {
      *           If the token parameter is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
      */
     @PostMapping(BASE_URL + "create")
-    public ResponseEntity<?> create(
+    public CompletableFuture<ResponseEntity<?>> create(
             @RequestParam String token,
             @RequestBody Account newAccount,
             HttpServletResponse response
@@ -80,14 +87,12 @@ public class AccountController extends PBController<AccountRepository> {
         try {
             Cookie cookie = authenticator.generateNewSession(token);
             response.addCookie(cookie);
-            return ResponseEntity.ok(repository.create(newAccount));
         } catch (FirebaseAuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Failed to create a session");
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to create a session");
         } catch (AuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Recent sign in required");
-        } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            return completed(HttpStatus.UNAUTHORIZED, "Recent sign in required");
         }
+        return respond(repository.createAsync(newAccount), HttpStatus.BAD_REQUEST);
     }
 
     /**
@@ -112,7 +117,7 @@ public class AccountController extends PBController<AccountRepository> {
      *           If the token parameter is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
      */
     @PostMapping(BASE_URL + "log-in")
-    public ResponseEntity<?> login(
+    public CompletableFuture<ResponseEntity<?>> login(
             @RequestParam String email,
             @RequestParam String password,
             @RequestParam String token,
@@ -121,14 +126,12 @@ public class AccountController extends PBController<AccountRepository> {
         try {
             //create cookie from token, sent back in the HttpServletResponse object
             response.addCookie(authenticator.generateNewSession(token));
-            return ResponseEntity.ok(repository.login(email, password));
         } catch (FirebaseAuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Failed to create a session");
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to create a session");
         } catch (AuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Recent sign in required");
-        } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            return completed(HttpStatus.UNAUTHORIZED, "Recent sign in required");
         }
+        return respond(repository.loginAsync(email, password), HttpStatus.BAD_REQUEST);
     }
 
     /**
@@ -193,19 +196,17 @@ public class AccountController extends PBController<AccountRepository> {
      *           If the session ID is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
      */
     @PutMapping(BASE_URL + "update")
-    public ResponseEntity<?> update(
+    public CompletableFuture<ResponseEntity<?>> update(
             @RequestParam String email,
             @RequestBody Account content,
             @CookieValue(value = "session") String sessionCookieId
     ) {
         try {
             authenticator.validateSession(sessionCookieId);
-            return ResponseEntity.ok(repository.update(email, content));
         } catch (FirebaseAuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Failed to validate session");
-        } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
         }
+        return respond(repository.updateAsync(email, content), HttpStatus.BAD_REQUEST);
     }
 
     /**
@@ -215,6 +216,7 @@ public class AccountController extends PBController<AccountRepository> {
      * Takes in account email and session cookie; if both valid, returns account object
      * associated with that email. Sensitive information such as password and list
      * of transactions are excluded (set to null) from the returned Account object. 
+     * Accounts are served from a cache unless the request has a 'Cache-Control: no-cache' header.
      *
      * Example:
      *   curl -X POST URL/api/v1/account/get?email={email}
@@ -224,25 +226,60 @@ public class AccountController extends PBController<AccountRepository> {
      *             }'
      *
      * @param email - email of desired account
+     * @param cacheControl - 'no-cache' to read the account from Firestore even if it is cached
      * @param sessionCookieId - cookie associated with account/session
      * @return - If all parameters are valid, an HTTP response w/ status 200 OK containing the account requested.
      *           If the email parameter is invalid, an HTTP response w/ status 400 BAD REQUEST.
      *           If the session ID is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
      */
     @GetMapping(BASE_URL + "get")
-    public ResponseEntity<?> get(
+    public CompletableFuture<ResponseEntity<?>> get(
             @RequestParam String email,
+            @RequestHeader(value = HttpHeaders.CACHE_CONTROL, required = false) String cacheControl,
             @CookieValue(value = "session") String sessionCookieId
     ) {
         try {
             authenticator.validateSession(sessionCookieId);
-            return ResponseEntity.ok(repository.get(email));
         } catch (FirebaseAuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Failed to validate session");
-        } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
         }
+        boolean bypassCache = cacheControl != null && cacheControl.contains("no-cache");
+        return respond(repository.getAsync(email, bypassCache), HttpStatus.BAD_REQUEST);
     }
+
+    /**
+     * Type: PUT
+     * Path: /api/v1/account/setBalanceShards
+     *
+     * Takes in an account email and a shard count, and splits the account's balance across that many
+     * shard documents (0 stops sharding the balance). Meant for accounts that receive many concurrent
+     * payments, since each payment then lands on one random shard instead of the account document.
+     *
+     * Example:
+     *   curl -X PUT URL/api/v1/account/setBalanceShards?email={email}&shards=10
+     *        -H 'Cookie: {sessionCookieId}'
+     *
+     * @param email - email of the account to shard
+     * @param shards - number of shards, between 0 and 100
+     * @param sessionCookieId - cookie associated with account/session
+     * @return - If all parameters are valid, an HTTP response w/ status 200 OK containing a success message.
+     *           If the email or shard count is invalid, an HTTP response w/ status 400 BAD REQUEST.
+     *           If the session ID is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
+     */
+    @PutMapping(BASE_URL + "setBalanceShards")
+    public CompletableFuture<ResponseEntity<?>> setBalanceShards(
+            @RequestParam String email,
+            @RequestParam int shards,
+            @CookieValue(value = "session") String sessionCookieId
+    ) {
+        try {
+            authenticator.validateSession(sessionCookieId);
+        } catch (FirebaseAuthException e) {
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
+        }
+        return respond(repository.setBalanceShardsAsync(email, shards), HttpStatus.BAD_REQUEST);
+    }
+
     /**
      * Type: GET
      * Path: /api/v1/account/usernameExists
@@ -261,17 +298,15 @@ public class AccountController extends PBController<AccountRepository> {
      
      */
     @GetMapping(BASE_URL + "usernameExists")
-    public ResponseEntity<?> usernameExists(
+    public CompletableFuture<ResponseEntity<?>> usernameExists(
             @RequestParam String username,
             @CookieValue(value = "session") String sessionCookieId
     ) {
         try {
             authenticator.validateSession(sessionCookieId);
-            return ResponseEntity.ok(repository.usernameExists(username));
         } catch (FirebaseAuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Failed to validate session");
-        } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(e.getMessage());
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
         }
+        return respond(repository.usernameExistsAsync(username), HttpStatus.INTERNAL_SERVER_ERROR);
     }
 }
@@ -5,6 +5,7 @@ import com.piggybank.PiggyBankApplication;
 import com.piggybank.model.Account;
 import com.piggybank.model.BankAccount;
 import com.piggybank.repository.BankAccountRepository;
+import org.springframework.context.annotation.Profile;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -12,12 +13,17 @@ import org.springframework.web.bind.annotation.*;
 import javax.security.auth.message.AuthException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Bank account-related application interface.
  * Base URL: /api/v1/bank/
+ *
+ * Not served under the 'reactive' profile, which has no counterpart of this interface: reactive nodes rely on
+ * servlet nodes for it (see application-reactive.yml).
  */
 @RestController
+@Profile("!reactive")
 public class BankAccountController extends PBController<BankAccountRepository> {
     private static final String BASE_URL = PiggyBankApplication.BASE_URL + "bank/";
 
@@ -70,19 +76,17 @@ public class BankAccountController extends PBController<BankAccountRepository> {
      *           If the session cookie is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
      */
     @PutMapping(BASE_URL + "update")
-    public ResponseEntity<?> update(
+    public CompletableFuture<ResponseEntity<?>> update(
             @RequestParam String email,
             @RequestBody BankAccount content,
             @CookieValue(value = "session") String sessionCookieId
     ) {
         try {
             authenticator.validateSession(sessionCookieId);
-            return ResponseEntity.ok(repository.update(email, content));
         } catch (FirebaseAuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Failed to validate session");
-        } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
         }
+        return respond(repository.updateAsync(email, content), HttpStatus.BAD_REQUEST);
     }
 
     /**
@@ -103,18 +107,16 @@ public class BankAccountController extends PBController<BankAccountRepository> {
      *           If the session cookie is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
      */
     @DeleteMapping(BASE_URL + "remove")
-    public ResponseEntity<?> remove(
+    public CompletableFuture<ResponseEntity<?>> remove(
             @RequestParam String email,
             @CookieValue(value = "session") String sessionCookieId
     ) {
         try {
             authenticator.validateSession(sessionCookieId);
-            return ResponseEntity.ok(repository.remove(email));
         } catch (FirebaseAuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Failed to validate session");
-        } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
         }
+        return respond(repository.removeAsync(email), HttpStatus.BAD_REQUEST);
     }
 
     /**
@@ -135,17 +137,15 @@ public class BankAccountController extends PBController<BankAccountRepository> {
      *           If the session cookie is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
      */
     @GetMapping(BASE_URL + "get")
-    public ResponseEntity<?> get(
+    public CompletableFuture<ResponseEntity<?>> get(
             @RequestParam String email,
             @CookieValue(value = "session") String sessionCookieId
     ) {
         try {
             authenticator.validateSession(sessionCookieId);
-            return ResponseEntity.ok(repository.get(email));
         } catch (FirebaseAuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Failed to validate session");
-        } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
         }
+        return respond(repository.getAsync(email), HttpStatus.BAD_REQUEST);
     }
 }
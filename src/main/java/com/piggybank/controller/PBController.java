@@ -1,15 +1,69 @@
 package com.piggybank.controller;
 
 import com.piggybank.components.SessionAuthenticator;
+import com.piggybank.repository.OutcomeUnknownException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Root class of all controllers for the PiggyBank back-end service.
  * Contains bean instances for the respective repository as well as the session authenticator.
  *
+ * Endpoints that read or write Firestore return a CompletableFuture of their response, built from the
+ * repository's async methods, so the request thread is released while Firestore is working and the response is
+ * written once the future completes.
+ *
  * @param <R> Respective repository type.
  */
 public abstract class PBController<R> {
     @Autowired protected R repository;
     @Autowired protected SessionAuthenticator authenticator;
+
+    /**
+     * @param result Future result of a repository call.
+     * @param failureStatus Status of the response when the call fails.
+     * @return Future response: 200 OK with the result, 504 GATEWAY TIMEOUT if the call's deadline passed (see
+     *         RequestDeadline), 202 ACCEPTED if a write's deadline passed while it may still commit (see
+     *         OutcomeUnknownException), or 'failureStatus' with the failure's message.
+     */
+    protected static CompletableFuture<ResponseEntity<?>> respond(CompletableFuture<?> result, HttpStatus failureStatus) {
+        return result.<ResponseEntity<?>>handle((body, error) -> {
+            if (error == null) {
+                return ResponseEntity.ok(body);
+            }
+            Throwable cause = causeOf(error);
+            HttpStatus status = failureStatus;
+            if (cause instanceof TimeoutException) {
+                status = HttpStatus.GATEWAY_TIMEOUT;
+            } else if (cause instanceof OutcomeUnknownException) {
+                status = HttpStatus.ACCEPTED;
+            }
+            return ResponseEntity.status(status).body(cause.getMessage());
+        });
+    }
+
+    /**
+     * @param status Status of the response.
+     * @param message Body of the response.
+     * @return Response that is already complete, e.g. when the session couldn't be validated.
+     */
+    protected static CompletableFuture<ResponseEntity<?>> completed(HttpStatus status, String message) {
+        return CompletableFuture.completedFuture(ResponseEntity.status(status).body(message));
+    }
+
+    /**
+     * @param error Failure of a future.
+     * @return The exception that caused it, without CompletionException wrappers added by dependent stages.
+     */
+    private static Throwable causeOf(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
 }
@@ -2,20 +2,64 @@ package com.piggybank.controller;
 
 import com.google.firebase.auth.FirebaseAuthException;
 import com.piggybank.PiggyBankApplication;
+import com.piggybank.components.AccountFeed;
+import com.piggybank.model.MultiLegTransfer;
+import com.piggybank.model.Rollup;
 import com.piggybank.model.Transaction;
 import com.piggybank.repository.TransactionRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Bank account-related application interface.
  * Base URL: /api/v1/bank/
+ *
+ * Under the 'reactive' profile, the same interface is served by TransactionRoutes instead.
  */
 @RestController
+@Profile("!reactive")
 public class TransactionController extends PBController<TransactionRepository> {
     private static final String BASE_URL = PiggyBankApplication.BASE_URL + "transaction/";
 
+    /** Header carrying the client's idempotency key for a bank or peer transaction. */
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    /** Most feed events buffered for a client that isn't reading them. */
+    static final int FEED_BUFFER = 64;
+
+    @Autowired private AccountFeed feed;
+    @Autowired private Environment env;
+
+    /** Sends feed events to clients, so a slow client never blocks the feed's listener threads. */
+    private final ExecutorService feedSender = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "account-feed-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    public void stop() {
+        feedSender.shutdownNow();
+    }
+
     /**
      * Test mapping.
      * Used to see if the bank account endpoints are reachable.
@@ -44,13 +88,16 @@ public class TransactionController extends PBController<TransactionRepository> {
      * Path: /api/v1/transaction/bank
      * Body: Bank transaction.
      *
-     * Given a bank transaction, processes it by transferring the amount specified
+     * Given a bank transaction, processes it by transferring the amount specified.
+     * Requests retried with the same 'Idempotency-Key' header are processed only once, and every retry gets
+     * the original response.
      *
      * Example:
      *   curl -X POST URL/api/v1/transaction/bank
      *        -H '{
      *              'Content-Type: application/json',
-     *              'Cookie: {sessionCookieId}'
+     *              'Cookie: {sessionCookieId}',
+     *              'Idempotency-Key: {uniqueKey}'
      *            }'
      *        -d '{
      *              "transactorEmail": "user1@email.com",
@@ -59,24 +106,28 @@ public class TransactionController extends PBController<TransactionRepository> {
      *            }'
      *
      * @param bankTxn Transaction representing an account transferring funds to their bank.
+     * @param idempotencyKey - key identifying the request across retries (optional)
      * @param sessionCookieId - cookie associated with account/session
      * @return - If all parameters are valid, an HTTP response w/ status 200 OK containing a success message.
      *           If the 'bankTxn' is invalid, an HTTP response w/ status 400 BAD REQUEST.
+     *           If the deadline passed before the transaction started, an HTTP response w/ status 504 GATEWAY
+     *           TIMEOUT; nothing was processed.
+     *           If the deadline passed while the transaction was processed, an HTTP response w/ status 202
+     *           ACCEPTED; it may still complete, and a retry with the same 'Idempotency-Key' gets its outcome.
      *           If the session ID is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
      */
     @PostMapping(BASE_URL + "bank")
-    public ResponseEntity<?> requestBankTransaction(
+    public CompletableFuture<ResponseEntity<?>> requestBankTransaction(
         @RequestBody Transaction bankTxn, 
+        @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey,
         @CookieValue(value = "session") String sessionCookieId
     ) {
         try {
             authenticator.validateSession(sessionCookieId);
-            return ResponseEntity.ok(repository.processBankTxn(bankTxn));
         } catch (FirebaseAuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Failed to validate session");
-        } catch(Exception e) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
         }
+        return respond(repository.processBankTxnAsync(bankTxn, idempotencyKey), HttpStatus.BAD_REQUEST);
     }
 
     /**
@@ -86,12 +137,15 @@ public class TransactionController extends PBController<TransactionRepository> {
      *
      * Given a peer transaction, processes it by transferring the amount specified in the account represented
      * by 'transactorEmail' to the account represented by 'recipientEmail'.
+     * Requests retried with the same 'Idempotency-Key' header are processed only once, and every retry gets
+     * the original response.
      *
      * Example:
      *   curl -X POST URL/api/v1/transaction/peer
      *        -H '{
      *              'Content-Type: application/json',
-     *              'Cookie: {sessionCookieId}'
+     *              'Cookie: {sessionCookieId}',
+     *              'Idempotency-Key: {uniqueKey}'
      *            }'
      *        -d '{
      *              "transactorEmail": "user1@email.com",
@@ -101,25 +155,80 @@ public class TransactionController extends PBController<TransactionRepository> {
      *            }'
      *
      * @param peerTxn Transaction representing an account transferring funds to another account.
+     * @param idempotencyKey - key identifying the request across retries (optional)
      * @param sessionCookieId - cookie associated with account/session
      * @return - If all parameters are valid, an HTTP response w/ status 200 OK containing a success message.
      *           If the 'peerTxn' is invalid, an HTTP response w/ status 400 BAD REQUEST.
+     *           If the deadline passed before the transaction started, an HTTP response w/ status 504 GATEWAY
+     *           TIMEOUT; nothing was processed.
+     *           If the deadline passed while the transaction was processed, an HTTP response w/ status 202
+     *           ACCEPTED; it may still complete, and a retry with the same 'Idempotency-Key' gets its outcome.
      *           If the session ID is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
      */
     @PostMapping(BASE_URL + "peer")
-    public ResponseEntity<?> requestPeerTransaction(
+    public CompletableFuture<ResponseEntity<?>> requestPeerTransaction(
         @RequestBody Transaction peerTxn,
+        @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey,
         @CookieValue(value = "session") String sessionCookieId
     ) {
-        try  {
+        try {
             authenticator.validateSession(sessionCookieId);
-            return ResponseEntity.ok(repository.processPeerTxn(peerTxn));
         } catch (FirebaseAuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Failed to validate session");
-        } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
+        }
+        return respond(repository.processPeerTxnAsync(peerTxn, idempotencyKey), HttpStatus.BAD_REQUEST);
+    }
+
+    /**
+     * Type: POST
+     * Path: /api/v1/transaction/multi
+     * Body: Multi-leg transfer.
+     *
+     * Given a multi-leg transfer, pays every leg's recipient from the account represented by 'transactorEmail',
+     * e.g. a merchant's payouts or a split bill. The legs are validated together against the transactor's
+     * balance, then committed in as few Firestore transactions (chunks) as Firestore's limits allow; a chunk's
+     * legs are committed together or not at all. The response holds each leg's transaction ID and each chunk's
+     * outcome.
+     * Requests retried with the same 'Idempotency-Key' header only process the legs that weren't committed yet.
+     *
+     * Example:
+     *   curl -X POST URL/api/v1/transaction/multi
+     *        -H '{
+     *              'Content-Type: application/json',
+     *              'Cookie: {sessionCookieId}',
+     *              'Idempotency-Key: {uniqueKey}'
+     *            }'
+     *        -d '{
+     *              "transactorEmail": "user2@email.com",
+     *              "legs": [
+     *                { "recipientEmail": "user1@email.com", "amount": 1500 },
+     *                { "recipientEmail": "jbiewer@wisc.edu", "amount": 2500 }
+     *              ]
+     *            }'
+     *
+     * @param transfer Transfer from one account to several recipients.
+     * @param idempotencyKey - key identifying the request across retries (optional)
+     * @param sessionCookieId - cookie associated with account/session
+     * @return - If all parameters are valid, an HTTP response w/ status 200 OK containing the outcome of each chunk.
+     *           If the 'transfer' is invalid, an HTTP response w/ status 400 BAD REQUEST.
+     *           If the session ID is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
+     *           If the deadline passed before the transfer started, an HTTP response w/ status 504 GATEWAY
+     *           TIMEOUT; nothing was processed.
+     *           If the deadline passed while the transfer was processed, an HTTP response w/ status 202
+     *           ACCEPTED; it may still complete, and a retry with the same 'Idempotency-Key' gets its outcome.
+     */
+    @PostMapping(BASE_URL + "multi")
+    public CompletableFuture<ResponseEntity<?>> requestMultiLegTransfer(
+        @RequestBody MultiLegTransfer transfer,
+        @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey,
+        @CookieValue(value = "session") String sessionCookieId
+    ) {
+        try {
+            authenticator.validateSession(sessionCookieId);
+        } catch (FirebaseAuthException e) {
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
         }
-        
+        return respond(repository.processMultiLegTxnAsync(transfer, idempotencyKey), HttpStatus.BAD_REQUEST);
     }
 
     /**
@@ -140,18 +249,47 @@ public class TransactionController extends PBController<TransactionRepository> {
      *           If the session ID is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
      */
     @GetMapping(BASE_URL + "getSingleTransaction")
-    public ResponseEntity<?> getSingleTransaction(
+    public CompletableFuture<ResponseEntity<?>> getSingleTransaction(
         @RequestParam String txnId, 
         @CookieValue(value = "session") String sessionCookieId
     ) {
         try {
             authenticator.validateSession(sessionCookieId);
-            return ResponseEntity.ok(repository.getTxn(txnId));
         } catch (FirebaseAuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Failed to validate session");
-        } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
         }
+        return respond(repository.getTxnAsync(txnId), HttpStatus.BAD_REQUEST);
+    }
+
+    /**
+     * Type: GET
+     * Path: /api/v1/transaction/getMany
+     * Param: txnIds -- IDs of the transactions to retrieve (at most 100).
+     *
+     * Given a list of transaction IDs, retrieves the transactions w/ those IDs from Firestore in one batched
+     * read. IDs that don't match a transaction are left out of the response.
+     *
+     * Example:
+     *   curl -X GET URL/api/v1/transaction/getMany?txnIds={transactionId},{transactionId}
+     *        -H 'Cookie: {sessionCookieId}'
+     *
+     * @param txnIds IDs of the transactions to retrieve.
+     * @param sessionCookieId - cookie associated with account/session
+     * @return - If all parameters are valid, an HTTP response w/ status 200 OK containing the transactions.
+     *           If 'txnIds' is empty or too long, an HTTP response w/ status 400 BAD REQUEST.
+     *           If the session ID is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
+     */
+    @GetMapping(BASE_URL + "getMany")
+    public CompletableFuture<ResponseEntity<?>> getManyTransactions(
+        @RequestParam List<String> txnIds,
+        @CookieValue(value = "session") String sessionCookieId
+    ) {
+        try {
+            authenticator.validateSession(sessionCookieId);
+        } catch (FirebaseAuthException e) {
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
+        }
+        return respond(repository.getTxnsAsync(txnIds), HttpStatus.BAD_REQUEST);
     }
 
     /**
@@ -159,9 +297,9 @@ public class TransactionController extends PBController<TransactionRepository> {
      * Path: /api/v1/transaction/getAllFromUser
      * Param: email -- Email of the account to retrieve all transactions from.
      *
-     * Given an email, retrieves all transactions that are owned by the account represented by that
-     * email. An account "owns" a transaction if the transaction ID is in the account's transactionIds
-     * list.
+     * Given an email, retrieves all transactions that the account represented by that email took part in,
+     * as either the transactor or the recipient, newest first. Long histories should be read with
+     * /getPageFromUser instead.
      *
      * Example:
      *   curl -X GET URL/api/v1/transaction/getAllFromUser?email=user1@email.com
@@ -174,18 +312,233 @@ public class TransactionController extends PBController<TransactionRepository> {
      *           If the session ID is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
      */
     @GetMapping(BASE_URL + "getAllFromUser")
-    public ResponseEntity<?> getAllTransactionsFromUser(
+    public CompletableFuture<ResponseEntity<?>> getAllTransactionsFromUser(
         @RequestParam String email, 
         @CookieValue(value = "session") String sessionCookieId
     ) {
         try {
             authenticator.validateSession(sessionCookieId);
-            return ResponseEntity.ok(repository.getAllTxnFromUser(email));
         } catch (FirebaseAuthException e) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Failed to validate session");
-        } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
+        }
+        return respond(repository.getAllTxnFromUserAsync(email), HttpStatus.BAD_REQUEST);
+    }
+
+    /**
+     * Type: GET
+     * Path: /api/v1/transaction/getPageFromUser
+     * Param: email -- Email of the account to retrieve transactions from.
+     * Param: limit -- Maximum number of transactions in the page (default 20, at most 100).
+     * Param: cursor -- Cursor returned with the previous page; omitted for the first page.
+     *
+     * Given an email, retrieves one page of the transactions that the account represented by that email
+     * took part in, newest first, along with the cursor of the next page ('nextCursor' is null on the
+     * last page).
+     *
+     * Example:
+     *   curl -X GET URL/api/v1/transaction/getPageFromUser?email=user1@email.com&limit=20&cursor={nextCursor}
+     *        -H 'Cookie: {sessionCookieId}'
+     *
+     * @param email Email of the account to retrieve transactions from.
+     * @param limit Maximum number of transactions in the page.
+     * @param cursor Cursor of the page, or null for the first page.
+     * @param sessionCookieId - cookie associated with account/session
+     * @return - If all parameters are valid, an HTTP response w/ status 200 OK containing the page.
+     *           If the limit or cursor is invalid, an HTTP response w/ status 400 BAD REQUEST.
+     *           If the session ID is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
+     */
+    @GetMapping(BASE_URL + "getPageFromUser")
+    public CompletableFuture<ResponseEntity<?>> getPageOfTransactionsFromUser(
+        @RequestParam String email,
+        @RequestParam(defaultValue = "20") int limit,
+        @RequestParam(required = false) String cursor,
+        @CookieValue(value = "session") String sessionCookieId
+    ) {
+        try {
+            authenticator.validateSession(sessionCookieId);
+        } catch (FirebaseAuthException e) {
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
+        }
+        return respond(repository.getTxnPageFromUserAsync(email, limit, cursor), HttpStatus.BAD_REQUEST);
+    }
+
+    /**
+     * Type: GET
+     * Path: /api/v1/transaction/rollups
+     * Param: email -- Email of the account to retrieve rollups of.
+     * Param: period -- Length of the periods: HOUR, DAY or MONTH.
+     * Param: from -- Earliest start of a period, in milliseconds since the epoch (inclusive).
+     * Param: to -- Latest start of a period, in milliseconds since the epoch (exclusive).
+     *
+     * Given an email, retrieves the account's spending and revenue per period (the count, sum and largest amount
+     * of the transactions it sent and received), oldest first, without reading its transactions. Periods without
+     * transactions are left out.
+     *
+     * Example:
+     *   curl -X GET URL/api/v1/transaction/rollups?email=user1@email.com&period=DAY&from=1617235200000&to=1619827200000
+     *        -H 'Cookie: {sessionCookieId}'
+     *
+     * @param email Email of the account to retrieve rollups of.
+     * @param period Length of the periods.
+     * @param from Earliest start of a period.
+     * @param to Latest start of a period.
+     * @param sessionCookieId - cookie associated with account/session
+     * @return - If all parameters are valid, an HTTP response w/ status 200 OK containing the rollups.
+     *           If the range is empty, an HTTP response w/ status 400 BAD REQUEST.
+     *           If the session ID is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
+     */
+    @GetMapping(BASE_URL + "rollups")
+    public CompletableFuture<ResponseEntity<?>> getRollups(
+        @RequestParam String email,
+        @RequestParam Rollup.Period period,
+        @RequestParam long from,
+        @RequestParam long to,
+        @CookieValue(value = "session") String sessionCookieId
+    ) {
+        try {
+            authenticator.validateSession(sessionCookieId);
+        } catch (FirebaseAuthException e) {
+            return completed(HttpStatus.UNAUTHORIZED, "Failed to validate session");
         }
+        return respond(repository.getRollupsAsync(email, period, from, to), HttpStatus.BAD_REQUEST);
     }
 
-}
\ No newline at end of file
+    /**
+     * Type: GET
+     * Path: /api/v1/transaction/feed
+     *
+     * Streams the balance and new transactions of the session's account as Server-Sent Events, instead of
+     * polling /account/get and /getAllFromUser. The current balance is sent first, then a 'balance' event
+     * whenever it changes and a 'transaction' event (the Transaction as JSON) for every new transaction the
+     * account takes part in. Comments are sent as heartbeats. The stream ends after 'piggybank.feed.timeout', or
+     * if the feed stops following the account, and the client should then reconnect. Events a slow client hasn't
+     * consumed are buffered up to FEED_BUFFER, after which the oldest are dropped.
+     *
+     * Example:
+     *   curl -N -X GET URL/api/v1/transaction/feed
+     *        -H 'Cookie: {sessionCookieId}'
+     *
+     * @param sessionCookieId - cookie associated with account/session
+     * @return - If the session is valid, an HTTP response w/ status 200 OK streaming the account's events.
+     *           If the session ID is invalid, an HTTP response w/ status 401 UNAUTHORIZED.
+     */
+    @GetMapping(BASE_URL + "feed")
+    public ResponseEntity<SseEmitter> feed(@CookieValue(value = "session") String sessionCookieId) {
+        String email;
+        try {
+            email = authenticator.getSessionEmail(sessionCookieId);
+        } catch (FirebaseAuthException e) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        if (email == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+
+        Duration timeout = env.getProperty("piggybank.feed.timeout", Duration.class, Duration.ofMinutes(30));
+        SseEmitter emitter = new SseEmitter(timeout.toMillis());
+        Runnable cancel = feed.subscribe(email, new EmitterSubscriber(emitter, feedSender));
+        emitter.onCompletion(cancel);
+        emitter.onTimeout(cancel);
+        emitter.onError(e -> cancel.run());
+        return ResponseEntity.ok(emitter);
+    }
+
+    /**
+     * Sends a feed's events to one client. Events are queued and sent on the 'sender' executor, so the feed's
+     * listener thread never waits on the client; a client falling more than FEED_BUFFER events behind loses the
+     * oldest. Failing to send means the client is gone, so the subscription is cancelled right away rather than
+     * when the container notices.
+     */
+    static final class EmitterSubscriber implements AccountFeed.Subscriber {
+        private final SseEmitter emitter;
+        private final Executor sender;
+        /** Events waiting to be sent, guarded by 'this'. */
+        private final Deque<SseEmitter.SseEventBuilder> pending = new ArrayDeque<>();
+        /** Whether a task is draining 'pending', guarded by 'this'. */
+        private boolean draining;
+        /** Whether the feed closed, so the emitter completes once 'pending' is sent; guarded by 'this'. */
+        private boolean closed;
+        private volatile Runnable cancel;
+
+        EmitterSubscriber(SseEmitter emitter, Executor sender) {
+            this.emitter = emitter;
+            this.sender = sender;
+        }
+
+        @Override
+        public void onSubscribe(Runnable cancel) {
+            this.cancel = cancel;
+        }
+
+        @Override
+        public void onEvent(String event, Object data) {
+            enqueue(SseEmitter.event().name(event).data(data, MediaType.APPLICATION_JSON));
+        }
+
+        @Override
+        public void onHeartbeat() {
+            enqueue(SseEmitter.event().comment(""));
+        }
+
+        @Override
+        public void onClose() {
+            synchronized (this) {
+                closed = true;
+                if (draining) {
+                    return;
+                }
+            }
+            emitter.complete();
+        }
+
+        private void enqueue(SseEmitter.SseEventBuilder event) {
+            synchronized (this) {
+                if (pending.size() == FEED_BUFFER) {
+                    pending.removeFirst();
+                }
+                pending.addLast(event);
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            try {
+                sender.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    draining = false;
+                }
+            }
+        }
+
+        /**
+         * Sends the queued events until none are left, or the client is gone.
+         */
+        private void drain() {
+            while (true) {
+                SseEmitter.SseEventBuilder event;
+                synchronized (this) {
+                    event = pending.pollFirst();
+                    if (event == null) {
+                        draining = false;
+                        if (closed) {
+                            emitter.complete();
+                        }
+                        return;
+                    }
+                }
+                try {
+                    emitter.send(event);
+                } catch (IOException | IllegalStateException e) {
+                    synchronized (this) {
+                        pending.clear();
+                        draining = false;
+                    }
+                    cancel.run();
+                    emitter.completeWithError(e);
+                    return;
+                }
+            }
+        }
+    }
+}
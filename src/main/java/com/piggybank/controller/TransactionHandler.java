@@ -0,0 +1,320 @@
+package com.piggybank.controller;
+
+import com.google.firebase.auth.FirebaseAuthException;
+import com.piggybank.components.AccountFeed;
+import com.piggybank.components.RequestDeadline;
+import com.piggybank.components.SessionAuthenticator;
+import com.piggybank.model.MultiLegTransfer;
+import com.piggybank.model.Rollup;
+import com.piggybank.model.Transaction;
+import com.piggybank.repository.OutcomeUnknownException;
+import com.piggybank.repository.TransactionRepository;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpCookie;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Spring Bean
+ *
+ * Handlers of the reactive transaction routes (see TransactionRoutes), the WebFlux counterpart of
+ * TransactionController. Each handler adapts the same TransactionRepository methods the controller uses, and
+ * responds with the same statuses and messages.
+ *
+ * Validating a session calls Firebase Auth and blocks, so it runs on the bounded elastic scheduler rather than
+ * on an event loop thread.
+ */
+@Component
+@Profile("reactive")
+public class TransactionHandler {
+    /** Most feed events buffered for a client that isn't reading them. */
+    private static final int FEED_BUFFER = 64;
+
+    private final TransactionRepository repository;
+    private final SessionAuthenticator authenticator;
+    private final AccountFeed feed;
+    /** How long a feed stays open before the client has to reconnect. */
+    private final Duration feedTimeout;
+
+    public TransactionHandler(TransactionRepository repository, SessionAuthenticator authenticator, AccountFeed feed,
+                              Environment env) {
+        this.repository = repository;
+        this.authenticator = authenticator;
+        this.feed = feed;
+        feedTimeout = env.getProperty("piggybank.feed.timeout", Duration.class, Duration.ofMinutes(30));
+    }
+
+    /**
+     * Test handler; the session is only validated when a session cookie is present.
+     */
+    public Mono<ServerResponse> test(ServerRequest request) {
+        HttpCookie session = request.cookies().getFirst("session");
+        Mono<String> message = request.bodyToMono(String.class)
+                .map(repository::test)
+                .switchIfEmpty(Mono.fromSupplier(() -> repository.test(null)));
+        if (session == null) {
+            return message.flatMap(body -> ServerResponse.ok().bodyValue(body));
+        }
+        return validateSession(request, () -> message.flatMap(body -> ServerResponse.ok().bodyValue(body)));
+    }
+
+    /**
+     * Processes a bank transaction; see TransactionController.requestBankTransaction().
+     */
+    public Mono<ServerResponse> bank(ServerRequest request) {
+        String idempotencyKey = request.headers().firstHeader(TransactionController.IDEMPOTENCY_KEY);
+        return validateSession(request, () -> request.bodyToMono(Transaction.class)
+                .flatMap(txn -> respond(request, () -> repository.processBankTxnAsync(txn, idempotencyKey))));
+    }
+
+    /**
+     * Processes a peer transaction; see TransactionController.requestPeerTransaction().
+     */
+    public Mono<ServerResponse> peer(ServerRequest request) {
+        String idempotencyKey = request.headers().firstHeader(TransactionController.IDEMPOTENCY_KEY);
+        return validateSession(request, () -> request.bodyToMono(Transaction.class)
+                .flatMap(txn -> respond(request, () -> repository.processPeerTxnAsync(txn, idempotencyKey))));
+    }
+
+    /**
+     * Processes a multi-leg transfer; see TransactionController.requestMultiLegTransfer().
+     */
+    public Mono<ServerResponse> multi(ServerRequest request) {
+        String idempotencyKey = request.headers().firstHeader(TransactionController.IDEMPOTENCY_KEY);
+        return validateSession(request, () -> request.bodyToMono(MultiLegTransfer.class)
+                .flatMap(transfer -> respond(request, () -> repository.processMultiLegTxnAsync(transfer, idempotencyKey))));
+    }
+
+    /**
+     * Retrieves one transaction; see TransactionController.getSingleTransaction().
+     */
+    public Mono<ServerResponse> getSingle(ServerRequest request) {
+        return validateSession(request, () -> param(request, "txnId", Function.identity())
+                .flatMap(txnId -> respond(request, () -> repository.getTxnAsync(txnId))));
+    }
+
+    /**
+     * Retrieves several transactions; see TransactionController.getManyTransactions().
+     */
+    public Mono<ServerResponse> getMany(ServerRequest request) {
+        return validateSession(request, () -> param(request, "txnIds", TransactionHandler::splitIds)
+                .flatMap(txnIds -> respond(request, () -> repository.getTxnsAsync(txnIds))));
+    }
+
+    /**
+     * Retrieves an account's whole history; see TransactionController.getAllTransactionsFromUser().
+     */
+    public Mono<ServerResponse> getAllFromUser(ServerRequest request) {
+        return validateSession(request, () -> param(request, "email", Function.identity())
+                .flatMap(email -> respond(request, () -> repository.getAllTxnFromUserAsync(email))));
+    }
+
+    /**
+     * Retrieves one page of an account's history; see TransactionController.getPageOfTransactionsFromUser().
+     */
+    public Mono<ServerResponse> getPageFromUser(ServerRequest request) {
+        String cursor = request.queryParam("cursor").orElse(null);
+        return validateSession(request, () -> param(request, "email", Function.identity())
+                .zipWith(intParam(request, "limit", 20))
+                .flatMap(args -> respond(request, () ->
+                        repository.getTxnPageFromUserAsync(args.getT1(), args.getT2(), cursor))));
+    }
+
+    /**
+     * Retrieves an account's rollups; see TransactionController.getRollups().
+     */
+    public Mono<ServerResponse> rollups(ServerRequest request) {
+        return validateSession(request, () -> Mono.zip(
+                        param(request, "email", Function.identity()),
+                        param(request, "period", Rollup.Period::valueOf),
+                        param(request, "from", Long::parseLong),
+                        param(request, "to", Long::parseLong))
+                .flatMap(args -> respond(request, () -> repository.getRollupsAsync(
+                        args.getT1(), args.getT2(), args.getT3(), args.getT4()))));
+    }
+
+    /**
+     * Streams an account's whole history as newline-delimited JSON, newest first. Pages are read from Firestore
+     * only as fast as the client consumes the response.
+     */
+    public Mono<ServerResponse> streamFromUser(ServerRequest request) {
+        return validateSession(request, () -> param(request, "email", Function.identity())
+                .zipWith(intParam(request, "pageSize", TransactionRepository.MAX_PAGE_SIZE))
+                .flatMap(args -> {
+                    if (args.getT2() < 1 || args.getT2() > TransactionRepository.MAX_PAGE_SIZE) {
+                        return badRequest("Page size must be between 1 and " + TransactionRepository.MAX_PAGE_SIZE);
+                    }
+                    return ServerResponse.ok()
+                            .contentType(MediaType.APPLICATION_NDJSON)
+                            .body(repository.streamTxnsFromUser(args.getT1(), args.getT2()), Transaction.class);
+                }));
+    }
+
+    /**
+     * Streams the balance and new transactions of the session's account as Server-Sent Events; see
+     * TransactionController.feed(). Events a slow client hasn't consumed are buffered up to FEED_BUFFER, after
+     * which the oldest are dropped.
+     */
+    public Mono<ServerResponse> feed(ServerRequest request) {
+        HttpCookie session = request.cookies().getFirst("session");
+        if (session == null) {
+            return ServerResponse.status(HttpStatus.BAD_REQUEST).bodyValue("Missing session cookie");
+        }
+        return Mono.fromCallable(() -> Optional.ofNullable(authenticator.getSessionEmail(session.getValue())))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(email -> email.isEmpty()
+                        ? ServerResponse.status(HttpStatus.UNAUTHORIZED).bodyValue("Failed to validate session")
+                        : ServerResponse.ok()
+                                .contentType(MediaType.TEXT_EVENT_STREAM)
+                                .body(BodyInserters.fromServerSentEvents(events(email.get()))))
+                .onErrorResume(FirebaseAuthException.class, e ->
+                        ServerResponse.status(HttpStatus.UNAUTHORIZED).bodyValue("Failed to validate session"));
+    }
+
+    /**
+     * @param email Email of the account to follow.
+     * @return The account's feed, subscribed to the AccountFeed while the client is connected.
+     */
+    private Flux<ServerSentEvent<Object>> events(String email) {
+        return Flux.<ServerSentEvent<Object>>create(sink -> {
+                    feed.subscribe(email, new AccountFeed.Subscriber() {
+                        @Override
+                        public void onSubscribe(Runnable cancel) {
+                            sink.onDispose(cancel::run);
+                        }
+
+                        @Override
+                        public void onEvent(String event, Object data) {
+                            sink.next(ServerSentEvent.builder(data).event(event).build());
+                        }
+
+                        @Override
+                        public void onHeartbeat() {
+                            sink.next(ServerSentEvent.builder().comment("").build());
+                        }
+
+                        @Override
+                        public void onClose() {
+                            sink.complete();
+                        }
+                    });
+                })
+                .onBackpressureBuffer(FEED_BUFFER, BufferOverflowStrategy.DROP_OLDEST)
+                .take(feedTimeout);
+    }
+
+    /**
+     * Validates the request's session cookie before handling it.
+     *
+     * @param request Request carrying the session cookie.
+     * @param handler Handles the request once the session is valid.
+     * @return The handler's response; 400 BAD REQUEST if the session cookie or a parameter is missing, or
+     *         401 UNAUTHORIZED if the session is invalid.
+     */
+    private Mono<ServerResponse> validateSession(ServerRequest request, Supplier<Mono<ServerResponse>> handler) {
+        HttpCookie session = request.cookies().getFirst("session");
+        if (session == null) {
+            return ServerResponse.status(HttpStatus.BAD_REQUEST).bodyValue("Missing session cookie");
+        }
+        return Mono.fromCallable(() -> {
+                    authenticator.validateSession(session.getValue());
+                    return true;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(valid -> handler.get())
+                .onErrorResume(FirebaseAuthException.class, e ->
+                        ServerResponse.status(HttpStatus.UNAUTHORIZED).bodyValue("Failed to validate session"))
+                .onErrorResume(IllegalArgumentException.class, e -> badRequest(e.getMessage()));
+    }
+
+    /**
+     * Starts a repository call within the request's deadline, if it carries an 'X-Request-Timeout' header (see
+     * RequestDeadline, which does the same for the servlet controllers).
+     *
+     * @param request Request the call is made for.
+     * @param result Starts a repository call.
+     * @return 200 OK with the call's result, 504 GATEWAY TIMEOUT if the deadline passed first, 202 ACCEPTED if a
+     *         write's deadline passed while it may still commit, or 400 BAD REQUEST with the failure's message.
+     */
+    private static Mono<ServerResponse> respond(ServerRequest request, Supplier<CompletableFuture<?>> result) {
+        return Mono.defer(() -> {
+                    Long deadline;
+                    try {
+                        deadline = RequestDeadline.deadlineOf(
+                                request.headers().firstHeader(RequestDeadline.TIMEOUT_HEADER));
+                    } catch (NumberFormatException e) {
+                        return Mono.error(new IllegalArgumentException(
+                                "Invalid " + RequestDeadline.TIMEOUT_HEADER + " header"));
+                    }
+                    CompletableFuture<?> future = RequestDeadline.callWith(deadline, result);
+                    return Mono.<Object>fromFuture(future);
+                })
+                .flatMap(body -> ServerResponse.ok().bodyValue(body))
+                .onErrorResume(e -> {
+                    Throwable cause = causeOf(e);
+                    if (cause instanceof TimeoutException) {
+                        return ServerResponse.status(HttpStatus.GATEWAY_TIMEOUT).bodyValue(cause.getMessage());
+                    }
+                    if (cause instanceof OutcomeUnknownException) {
+                        return ServerResponse.status(HttpStatus.ACCEPTED).bodyValue(cause.getMessage());
+                    }
+                    return badRequest(cause.getMessage());
+                });
+    }
+
+    private static Mono<ServerResponse> badRequest(String message) {
+        return message == null
+                ? ServerResponse.badRequest().build()
+                : ServerResponse.badRequest().bodyValue(message);
+    }
+
+    /**
+     * @return The required query parameter, converted; failed with IllegalArgumentException if it's missing.
+     */
+    private static <T> Mono<T> param(ServerRequest request, String name, Function<String, T> convert) {
+        return Mono.justOrEmpty(request.queryParam(name))
+                .map(convert)
+                .switchIfEmpty(Mono.error(new IllegalArgumentException("Missing parameter '" + name + "'")));
+    }
+
+    /**
+     * @return The optional integer query parameter, or 'defaultValue' if it's missing; failed with
+     *         IllegalArgumentException if it isn't an integer.
+     */
+    private static Mono<Integer> intParam(ServerRequest request, String name, int defaultValue) {
+        return Mono.fromCallable(() -> request.queryParam(name).map(Integer::parseInt).orElse(defaultValue))
+                .onErrorMap(NumberFormatException.class, e ->
+                        new IllegalArgumentException("Invalid parameter '" + name + "'"));
+    }
+
+    private static List<String> splitIds(String ids) {
+        return Arrays.asList(ids.split(","));
+    }
+
+    private static Throwable causeOf(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
@@ -0,0 +1,45 @@
+package com.piggybank.controller;
+
+import com.piggybank.PiggyBankApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerResponse;
+
+import static org.springframework.web.reactive.function.server.RequestPredicates.GET;
+import static org.springframework.web.reactive.function.server.RequestPredicates.POST;
+import static org.springframework.web.reactive.function.server.RouterFunctions.route;
+
+/**
+ * Reactive (WebFlux) variant of the transaction application interface, enabled by the 'reactive' profile, which
+ * also runs the application as a reactive web application (see application-reactive.yml). The servlet
+ * controllers are disabled under that profile, so a reactive node only serves these routes: the account, session
+ * and bank account endpoints are served by servlet nodes only, and reactive nodes must sit behind a router that
+ * sends that traffic to them.
+ * Base URL: /api/v1/transaction/
+ *
+ * The routes match TransactionController's endpoints, plus:
+ *   GET /api/v1/transaction/streamFromUser?email={email}&pageSize={pageSize}
+ * which streams an account's history as newline-delimited JSON, read from Firestore as the client consumes it.
+ */
+@Configuration
+@Profile("reactive")
+public class TransactionRoutes {
+    private static final String BASE_URL = PiggyBankApplication.BASE_URL + "transaction/";
+
+    @Bean
+    public RouterFunction<ServerResponse> transactionRouter(TransactionHandler handler) {
+        return route(GET(BASE_URL + "test"), handler::test)
+                .andRoute(POST(BASE_URL + "bank"), handler::bank)
+                .andRoute(POST(BASE_URL + "peer"), handler::peer)
+                .andRoute(POST(BASE_URL + "multi"), handler::multi)
+                .andRoute(GET(BASE_URL + "getSingleTransaction"), handler::getSingle)
+                .andRoute(GET(BASE_URL + "getMany"), handler::getMany)
+                .andRoute(GET(BASE_URL + "getAllFromUser"), handler::getAllFromUser)
+                .andRoute(GET(BASE_URL + "getPageFromUser"), handler::getPageFromUser)
+                .andRoute(GET(BASE_URL + "streamFromUser"), handler::streamFromUser)
+                .andRoute(GET(BASE_URL + "rollups"), handler::rollups)
+                .andRoute(GET(BASE_URL + "feed"), handler::feed);
+    }
+}
@@ -1,23 +1,24 @@
 package com.piggybank.model;
 
-import java.util.ArrayList;
-import java.util.List;
+import com.google.cloud.firestore.annotation.IgnoreExtraProperties;
+
 import java.util.Objects;
 
 /**
  * Represents how an account is structured in Firestore.
+ * Accounts no longer embed the IDs of their transactions; documents that still carry the legacy
+ * 'transactionIds' array are read without it.
  */
+@IgnoreExtraProperties
 public class Account {
     /**
-     * Given an account instance, removes any sensitive data such as encrypted passwords and
-     * transactions ID's.
+     * Given an account instance, removes any sensitive data such as encrypted passwords.
      *
      * @param account Account containing sensitive information to be removed.
      * @return The same account instance with sensitive information removed.
      */
     public static Account filterSensitiveData(Account account) {
         account.setPassword(null);
-        account.setTransactionIds(null);
         return account;
     }
 
@@ -31,9 +32,10 @@ public class Account {
     private String email;
     private AccountType type;
     private String profilePictureUrl;
-    private long balance;
+    private Long balance;
     private BankAccount bankAccount;
-    private List<String> transactionIds = new ArrayList<>();
+    /** Number of shards the balance is split across (see /account/setBalanceShards), null if it isn't sharded. */
+    private Integer balanceShards;
 
     // Default constructor needed for http requests.
     public Account() {}
@@ -82,11 +84,11 @@ public class Account {
         this.profilePictureUrl = profilePictureUrl;
     }
 
-    public long getBalance() {
+    public Long getBalance() {
         return balance;
     }
 
-    public void setBalance(long balance) {
+    public void setBalance(Long balance) {
         this.balance = balance;
     }
 
@@ -98,12 +100,12 @@ public class Account {
         this.bankAccount = bankAccount;
     }
 
-    public List<String> getTransactionIds() {
-        return transactionIds;
+    public Integer getBalanceShards() {
+        return balanceShards;
     }
 
-    public void setTransactionIds(List<String> transactionIds) {
-        this.transactionIds = transactionIds;
+    public void setBalanceShards(Integer balanceShards) {
+        this.balanceShards = balanceShards;
     }
 
     @Override
@@ -116,7 +118,7 @@ public class Account {
                 ", profilePictureUrl='" + profilePictureUrl + '\'' +
                 ", balance=" + balance +
                 ", bankAccount=" + bankAccount +
-                ", transactionIds=" + transactionIds +
+                ", balanceShards=" + balanceShards +
                 '}';
     }
 
@@ -132,7 +134,7 @@ public class Account {
                 Objects.equals(profilePictureUrl, account.profilePictureUrl) &&
                 Objects.equals(balance, account.balance) &&
                 Objects.equals(bankAccount, account.bankAccount) &&
-                Objects.equals(transactionIds, account.transactionIds);
+                Objects.equals(balanceShards, account.balanceShards);
     }
 
     @Override
@@ -145,7 +147,7 @@ public class Account {
                 profilePictureUrl,
                 balance,
                 bankAccount,
-                transactionIds
+                balanceShards
         );
     }
 }
@@ -6,25 +6,25 @@ import java.util.Objects;
  * Model to represent an account's bank account.
  */
 public class BankAccount {
-    private long accountNumber;
-    private long routingNumber;
+    private Long accountNumber;
+    private Long routingNumber;
     private String nameOnAccount;
 
     public BankAccount() {}
 
-    public long getAccountNumber() {
+    public Long getAccountNumber() {
         return accountNumber;
     }
 
-    public void setAccountNumber(long accountNumber) {
+    public void setAccountNumber(Long accountNumber) {
         this.accountNumber = accountNumber;
     }
 
-    public long getRoutingNumber() {
+    public Long getRoutingNumber() {
         return routingNumber;
     }
 
-    public void setRoutingNumber(long routingNumber) {
+    public void setRoutingNumber(Long routingNumber) {
         this.routingNumber = routingNumber;
     }
 
@@ -50,8 +50,8 @@ public class BankAccount {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         BankAccount account = (BankAccount) o;
-        return accountNumber == account.accountNumber &&
-                routingNumber == account.routingNumber &&
+        return Objects.equals(accountNumber, account.accountNumber) &&
+                Objects.equals(routingNumber, account.routingNumber) &&
                 Objects.equals(nameOnAccount, account.nameOnAccount);
     }
 
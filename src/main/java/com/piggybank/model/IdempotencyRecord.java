@@ -0,0 +1,105 @@
+package com.piggybank.model;
+
+import java.util.Objects;
+
+/**
+ * Represents how a used idempotency key is structured in Firestore.
+ * The record is written in the same Firestore transaction as the transaction it belongs to, and holds enough of
+ * the request to tell a retry apart from a different request that reuses the key.
+ */
+public class IdempotencyRecord {
+    private String transactorEmail;
+    private String recipientEmail;
+    private Long amount;
+    private Transaction.TransactionType type;
+    private String transactionId;
+    private Long timestamp;
+    private String result;
+
+    public IdempotencyRecord() {}
+
+    public IdempotencyRecord(Transaction txn, String result) {
+        this.transactorEmail = txn.getTransactorEmail();
+        this.recipientEmail = txn.getRecipientEmail();
+        this.amount = txn.getAmount();
+        this.type = txn.getType();
+        this.transactionId = txn.getId();
+        this.timestamp = txn.getTimestamp();
+        this.result = result;
+    }
+
+    public String getTransactorEmail() {
+        return transactorEmail;
+    }
+
+    public void setTransactorEmail(String transactorEmail) {
+        this.transactorEmail = transactorEmail;
+    }
+
+    public String getRecipientEmail() {
+        return recipientEmail;
+    }
+
+    public void setRecipientEmail(String recipientEmail) {
+        this.recipientEmail = recipientEmail;
+    }
+
+    public Long getAmount() {
+        return amount;
+    }
+
+    public void setAmount(Long amount) {
+        this.amount = amount;
+    }
+
+    public Transaction.TransactionType getType() {
+        return type;
+    }
+
+    public void setType(Transaction.TransactionType type) {
+        this.type = type;
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public void setTransactionId(String transactionId) {
+        this.transactionId = transactionId;
+    }
+
+    public Long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(Long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public String getResult() {
+        return result;
+    }
+
+    public void setResult(String result) {
+        this.result = result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        IdempotencyRecord that = (IdempotencyRecord) o;
+        return Objects.equals(transactorEmail, that.transactorEmail) &&
+               Objects.equals(recipientEmail, that.recipientEmail) &&
+               Objects.equals(amount, that.amount) &&
+               type == that.type &&
+               Objects.equals(transactionId, that.transactionId) &&
+               Objects.equals(timestamp, that.timestamp) &&
+               Objects.equals(result, that.result);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(transactorEmail, recipientEmail, amount, type, transactionId, timestamp, result);
+    }
+}
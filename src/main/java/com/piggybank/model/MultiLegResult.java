@@ -0,0 +1,118 @@
+package com.piggybank.model;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Outcome of a multi-leg transfer. The legs are committed in chunks of consecutive legs, each in its own
+ * Firestore transaction, so a chunk's legs are either all committed or none of them are.
+ */
+public class MultiLegResult {
+    /** ID of each leg's transaction, in the order of the legs; null for the legs of a chunk that failed. */
+    private List<String> transactionIds;
+    private List<Chunk> chunks;
+
+    public MultiLegResult() {}
+
+    public MultiLegResult(List<String> transactionIds, List<Chunk> chunks) {
+        this.transactionIds = transactionIds;
+        this.chunks = chunks;
+    }
+
+    public List<String> getTransactionIds() {
+        return transactionIds;
+    }
+
+    public void setTransactionIds(List<String> transactionIds) {
+        this.transactionIds = transactionIds;
+    }
+
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(List<Chunk> chunks) {
+        this.chunks = chunks;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        MultiLegResult that = (MultiLegResult) o;
+        return Objects.equals(transactionIds, that.transactionIds) &&
+               Objects.equals(chunks, that.chunks);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(transactionIds, chunks);
+    }
+
+    /**
+     * Outcome of one chunk of legs.
+     */
+    public static class Chunk {
+        /** Index of the chunk's first leg. */
+        private int firstLeg;
+        private int legCount;
+        private boolean committed;
+        /** Success message, or why the chunk failed. */
+        private String message;
+
+        public Chunk() {}
+
+        public Chunk(int firstLeg, int legCount) {
+            this.firstLeg = firstLeg;
+            this.legCount = legCount;
+        }
+
+        public int getFirstLeg() {
+            return firstLeg;
+        }
+
+        public void setFirstLeg(int firstLeg) {
+            this.firstLeg = firstLeg;
+        }
+
+        public int getLegCount() {
+            return legCount;
+        }
+
+        public void setLegCount(int legCount) {
+            this.legCount = legCount;
+        }
+
+        public boolean isCommitted() {
+            return committed;
+        }
+
+        public void setCommitted(boolean committed) {
+            this.committed = committed;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public void setMessage(String message) {
+            this.message = message;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Chunk chunk = (Chunk) o;
+            return firstLeg == chunk.firstLeg &&
+                   legCount == chunk.legCount &&
+                   committed == chunk.committed &&
+                   Objects.equals(message, chunk.message);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(firstLeg, legCount, committed, message);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.piggybank.model;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Represents a transfer from one account to several recipients at once, such as a merchant's payouts or a
+ * split bill. Each leg is a peer-to-peer transaction sent by the transfer's transactor; a leg's transactor
+ * email and type may be left out.
+ */
+public class MultiLegTransfer {
+    private String transactorEmail;
+    private List<Transaction> legs;
+
+    public MultiLegTransfer() {}
+
+    public MultiLegTransfer(String transactorEmail, List<Transaction> legs) {
+        this.transactorEmail = transactorEmail;
+        this.legs = legs;
+    }
+
+    public String getTransactorEmail() {
+        return transactorEmail;
+    }
+
+    public void setTransactorEmail(String transactorEmail) {
+        this.transactorEmail = transactorEmail;
+    }
+
+    public List<Transaction> getLegs() {
+        return legs;
+    }
+
+    public void setLegs(List<Transaction> legs) {
+        this.legs = legs;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        MultiLegTransfer that = (MultiLegTransfer) o;
+        return Objects.equals(transactorEmail, that.transactorEmail) &&
+               Objects.equals(legs, that.legs);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(transactorEmail, legs);
+    }
+}
@@ -0,0 +1,142 @@
+package com.piggybank.model;
+
+import java.util.Objects;
+
+/**
+ * Represents how an account's rollup of one period is structured in Firestore: the count, sum and largest
+ * amount of the transactions the account sent (its spending, including transfers to its bank) and received (its
+ * revenue) during the period. A rollup may be stored across several shard documents, each holding a part of it.
+ */
+public class Rollup {
+    public enum Period {
+        HOUR,
+        DAY,
+        MONTH
+    }
+
+    private String email;
+    private Period period;
+    /** Start of the period, in milliseconds since the epoch. */
+    private Long start;
+    private long sentCount;
+    private long sentSum;
+    private long sentMax;
+    private long receivedCount;
+    private long receivedSum;
+    private long receivedMax;
+
+    public Rollup() {}
+
+    public Rollup(String email, Period period, Long start) {
+        this.email = email;
+        this.period = period;
+        this.start = start;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
+    public Period getPeriod() {
+        return period;
+    }
+
+    public void setPeriod(Period period) {
+        this.period = period;
+    }
+
+    public Long getStart() {
+        return start;
+    }
+
+    public void setStart(Long start) {
+        this.start = start;
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    public void setSentCount(long sentCount) {
+        this.sentCount = sentCount;
+    }
+
+    public long getSentSum() {
+        return sentSum;
+    }
+
+    public void setSentSum(long sentSum) {
+        this.sentSum = sentSum;
+    }
+
+    public long getSentMax() {
+        return sentMax;
+    }
+
+    public void setSentMax(long sentMax) {
+        this.sentMax = sentMax;
+    }
+
+    public long getReceivedCount() {
+        return receivedCount;
+    }
+
+    public void setReceivedCount(long receivedCount) {
+        this.receivedCount = receivedCount;
+    }
+
+    public long getReceivedSum() {
+        return receivedSum;
+    }
+
+    public void setReceivedSum(long receivedSum) {
+        this.receivedSum = receivedSum;
+    }
+
+    public long getReceivedMax() {
+        return receivedMax;
+    }
+
+    public void setReceivedMax(long receivedMax) {
+        this.receivedMax = receivedMax;
+    }
+
+    /**
+     * Adds another part of the same rollup (e.g. another shard) to this one.
+     *
+     * @param other Part to add.
+     */
+    public void add(Rollup other) {
+        sentCount += other.sentCount;
+        sentSum += other.sentSum;
+        sentMax = Math.max(sentMax, other.sentMax);
+        receivedCount += other.receivedCount;
+        receivedSum += other.receivedSum;
+        receivedMax = Math.max(receivedMax, other.receivedMax);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Rollup that = (Rollup) o;
+        return sentCount == that.sentCount &&
+               sentSum == that.sentSum &&
+               sentMax == that.sentMax &&
+               receivedCount == that.receivedCount &&
+               receivedSum == that.receivedSum &&
+               receivedMax == that.receivedMax &&
+               Objects.equals(email, that.email) &&
+               period == that.period &&
+               Objects.equals(start, that.start);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(email, period, start, sentCount, sentSum, sentMax, receivedCount, receivedSum, receivedMax);
+    }
+}
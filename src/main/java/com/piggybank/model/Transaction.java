@@ -16,6 +16,8 @@ public class Transaction {
     private String recipientEmail; 
     private Long amount;
     private TransactionType type;
+    /** Time the transaction was processed, in milliseconds since the epoch. */
+    private Long timestamp;
 
     public Transaction() {}
 
@@ -63,6 +65,14 @@ public class Transaction {
         this.type = type;
     }
 
+    public Long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(Long timestamp) {
+        this.timestamp = timestamp;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -72,11 +82,12 @@ public class Transaction {
                Objects.equals(id, that.id) &&
                Objects.equals(transactorEmail, that.transactorEmail) &&
                Objects.equals(recipientEmail, that.recipientEmail) &&
-               type == that.type;
+               type == that.type &&
+               Objects.equals(timestamp, that.timestamp);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, transactorEmail, recipientEmail, amount, type);
+        return Objects.hash(id, transactorEmail, recipientEmail, amount, type, timestamp);
     }
 }
\ No newline at end of file
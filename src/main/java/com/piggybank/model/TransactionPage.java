@@ -0,0 +1,50 @@
+package com.piggybank.model;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * One page of an account's transaction history, newest first.
+ */
+public class TransactionPage {
+    private List<Transaction> transactions;
+    /** Opaque cursor of the next page, or null if this is the last page. */
+    private String nextCursor;
+
+    public TransactionPage() {}
+
+    public TransactionPage(List<Transaction> transactions, String nextCursor) {
+        this.transactions = transactions;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    public void setTransactions(List<Transaction> transactions) {
+        this.transactions = transactions;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TransactionPage that = (TransactionPage) o;
+        return Objects.equals(transactions, that.transactions) &&
+               Objects.equals(nextCursor, that.nextCursor);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(transactions, nextCursor);
+    }
+}
@@ -1,19 +1,35 @@
 package com.piggybank.repository;
 
 import com.google.api.core.ApiFuture;
+import com.google.cloud.firestore.CollectionReference;
 import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteBatch;
 import com.google.firebase.cloud.FirestoreClient;
+import com.piggybank.components.AccountCache;
+import com.piggybank.components.UsernameFilter;
+import com.piggybank.components.VirtualThreads;
 import com.piggybank.model.Account;
+import com.piggybank.model.Rollup;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.core.env.Environment;
 import org.springframework.lang.NonNull;
 import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Repository;
 
-import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ExecutionException;
-import java.util.stream.StreamSupport;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
 
 import static com.piggybank.model.Account.AccountType;
 
@@ -22,15 +38,61 @@ import static com.piggybank.model.Account.AccountType;
  */
 @Repository
 public class AccountRepository extends PBRepository {
+    /** Builds the field map for partial account updates. */
+    private static final PatchMapper<Account> PATCH_MAPPER = PatchMapper.of(Account.class);
+
+    /**
+     * Username reservations, one document per username labelled with the username itself.
+     * Each reservation holds the email of the account that owns the username.
+     */
+    private final CollectionReference usernameCollection;
+
+    /**
+     * Collections keyed by the emails of their accounts, re-keyed when an account's email changes: the
+     * Transactions and Outbox collections name participants in 'transactorEmail' and 'recipientEmail', and
+     * rollups are labelled by, and name, the account they add up.
+     */
+    private final CollectionReference transactionCollection;
+    private final CollectionReference outboxCollection;
+    private final CollectionReference rollupCollection;
+
+    /**
+     * Email moves whose history hasn't been re-keyed yet, one document per move labelled with the old email.
+     * Each holds the new email and the time the account moved (see moveHistory()).
+     */
+    private final CollectionReference emailMoveCollection;
+
+    /** Node-local filter that answers most lookups for free usernames without reading Firestore. */
+    private final UsernameFilter usernameFilter;
+
+    /** Read-through cache in front of get(). */
+    private final AccountCache accountCache;
 
     /**
      * Initializes the collection reference to the value at the specified property location
      * in application.yml.
      *
      * @param env Environment containing properties.
+     * @param usernameFilter Filter over every reserved username.
+     * @param accountCache Cache of recently read accounts.
+     * @param threads Virtual threads the transaction functions run on, when enabled.
+     * @param registry Registry the repository's metrics are published to.
      */
-    public AccountRepository(Environment env) {
-        super(Objects.requireNonNull(env.getProperty("firebase.database.labels.accounts")));
+    public AccountRepository(Environment env, UsernameFilter usernameFilter, AccountCache accountCache,
+                             VirtualThreads threads, MeterRegistry registry) {
+        super(Objects.requireNonNull(env.getProperty("firebase.database.labels.accounts")), env, threads, registry);
+        String usernamesLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.usernames"));
+        usernameCollection = FirestoreClient.getFirestore().collection(usernamesLabel);
+        String transactionsLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.transactions"));
+        transactionCollection = FirestoreClient.getFirestore().collection(transactionsLabel);
+        String outboxLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.outbox"));
+        outboxCollection = FirestoreClient.getFirestore().collection(outboxLabel);
+        String rollupsLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.rollups"));
+        rollupCollection = FirestoreClient.getFirestore().collection(rollupsLabel);
+        String emailMovesLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.email-moves"));
+        emailMoveCollection = FirestoreClient.getFirestore().collection(emailMovesLabel);
+        this.usernameFilter = usernameFilter;
+        this.accountCache = accountCache;
     }
 
     /**
@@ -48,7 +110,7 @@ public class AccountRepository extends PBRepository {
     /**
      * Creates a new account in Firestore if one with the specified email doesn't already exist.
      * Using the fields from the 'newAccount' parameter, a document is created in Firestore labelled with the
-     * email in 'newAccount'.
+     * email in 'newAccount'. The account's username is reserved in the same transaction.
      *
      * @param newAccount Account object representing the new account in Firestore.
      * @return Message indicating success.
@@ -58,16 +120,47 @@ public class AccountRepository extends PBRepository {
      */
     @NonNull
     public String create(@NonNull Account newAccount) throws Exception {
-        if (newAccount.getType() == null) { throw new IllegalArgumentException("Must specify account type"); }
-        if (newAccount.getType() == AccountType.MERCHANT) {
-            if (newAccount.getBankAccount() == null) { throw new IllegalArgumentException("Merchant account must have a bank account"); }
-        }
-        if (newAccount.getUsername() == null) { throw new IllegalArgumentException("Must specify account username"); }
-        if (usernameExists(newAccount.getUsername())) { throw new IllegalArgumentException("Account with this username already exists"); }
-        if (newAccount.getEmail() == null) { throw new IllegalArgumentException("Must specify account email"); }
-        if (newAccount.getPassword() == null) { throw new IllegalArgumentException("Must specify account password"); }
-        getApiFuture(collection.document(newAccount.getEmail()).create(newAccount));
-        return "Account created successfully!";
+        return await(createAsync(newAccount));
+    }
+
+    /**
+     * Non-blocking variant of create(Account).
+     *
+     * @param newAccount Account object representing the new account in Firestore.
+     * @return Future holding the message indicating success, or failed with the exceptions create() throws.
+     */
+    @NonNull
+    public CompletableFuture<String> createAsync(@NonNull Account newAccount) {
+        return withWriteDeadline("create", deadline -> {
+            if (newAccount.getType() == null) { throw new IllegalArgumentException("Must specify account type"); }
+            if (newAccount.getType() == AccountType.MERCHANT) {
+                if (newAccount.getBankAccount() == null) { throw new IllegalArgumentException("Merchant account must have a bank account"); }
+            }
+            if (newAccount.getUsername() == null) { throw new IllegalArgumentException("Must specify account username"); }
+            if (newAccount.getEmail() == null) { throw new IllegalArgumentException("Must specify account email"); }
+            if (newAccount.getPassword() == null) { throw new IllegalArgumentException("Must specify account password"); }
+            if (newAccount.getBalance() == null) { newAccount.setBalance(0L); }
+            newAccount.setBalanceShards(null);
+
+            if (!deadline.start()) {
+                throw new TimeoutException("Deadline exceeded");
+            }
+            ApiFuture<String> futureTx = runTransaction("create", tx -> {
+                DocumentReference reservation = usernameCollection.document(newAccount.getUsername());
+                if (tx.get(reservation).get().exists()) {
+                    throw new IllegalArgumentException("Account with this username already exists");
+                }
+
+                tx.create(reservation, Map.of("email", newAccount.getEmail()));
+                tx.create(collection.document(newAccount.getEmail()), newAccount);
+                return "Account created successfully!";
+            });
+
+            return toCompletableFuture(futureTx).thenApply(result -> {
+                usernameFilter.put(newAccount.getUsername());
+                return result;
+            });
+        });
     }
 
     /**
@@ -84,76 +177,244 @@ public class AccountRepository extends PBRepository {
      */
     @NonNull
     public String login(@NonNull String email, @NonNull String password) throws Exception {
-        ApiFuture<String> futureTx = FirestoreClient.getFirestore().runTransaction(tx -> {
-            // Confirm account exists.
-            DocumentSnapshot snapshot = tx.get(collection.document(email)).get();
-            if (!snapshot.exists()) {
-                throw new IllegalArgumentException("Account with that email not found");
-            }
+        return await(loginAsync(email, password));
+    }
 
-            // Update password if it's different.
-            String storedPassword = snapshot.getString("password");
-            if (!password.equals(storedPassword)) {
-                tx.update(collection.document(email), "password", password);
+    /**
+     * Non-blocking variant of login(String, String).
+     *
+     * @param email Email of an existing account.
+     * @param password Password of the existing account to match against.
+     * @return Future holding the success message, or failed with the exceptions login() throws.
+     */
+    @NonNull
+    public CompletableFuture<String> loginAsync(@NonNull String email, @NonNull String password) {
+        return withWriteDeadline("login", deadline -> {
+            if (!deadline.start()) {
+                throw new TimeoutException("Deadline exceeded");
             }
+            return toCompletableFuture(runTransaction("login", tx -> {
+                // Confirm account exists.
+                DocumentSnapshot snapshot = tx.get(collection.document(email)).get();
+                if (!snapshot.exists()) {
+                    throw new IllegalArgumentException("Account with that email not found");
+                }
 
-            return "Login successful!";
-        });
+                // Update password if it's different.
+                String storedPassword = snapshot.getString("password");
+                if (!password.equals(storedPassword)) {
+                    tx.update(collection.document(email), "password", password);
+                }
 
-        return getApiFuture(futureTx);
+                return "Login successful!";
+            }));
+        });
     }
 
     /**
      * Updates the account info if one exists with given email. If fields of the Account
      * object parameter are not null, the fields of the account associated with the email parameter
-     * are updated
+     * are updated in a single write. A new username is reserved (and the old one released) in the same transaction.
+     * When the email changes, the account's transactions and rollups are re-keyed to the new email once the
+     * account has moved (see moveHistory()), so its history follows it. The move is recorded in the same
+     * transaction as the account's, so a re-key that didn't finish is resumed by retrying the update with the old
+     * email, or else by resumeEmailMoves().
      * 
      * @param email Email of account to update.
      * @param content Account object containing fields that are used to update the account in Firestore.
      * @return A success message indicating the account was updated.
-     * @throws IllegalArgumentException When an account with the email doesn't exist.
+     * @throws IllegalArgumentException When an account with the email doesn't exist, or the new username is
+     *                                  already taken.
      * @throws Exception When an unexpected exception occurs.
      */
     @NonNull
     public String update(@NonNull String email, @NonNull Account content) throws Exception {
-        ApiFuture<String> futureTx = FirestoreClient.getFirestore().runTransaction(tx -> {
-            String currentEmail = email;
+        return await(updateAsync(email, content));
+    }
 
-            // Copy document over to newly labelled document, if new email was specified.
-            if (content.getEmail() != null && !content.getEmail().equals(email)) {
+    /**
+     * Non-blocking variant of update(String, Account).
+     *
+     * @param email Email of account to update.
+     * @param content Account object containing fields that are used to update the account in Firestore.
+     * @return Future holding the success message, or failed with the exceptions update() throws.
+     */
+    @NonNull
+    public CompletableFuture<String> updateAsync(@NonNull String email, @NonNull Account content) {
+        return withWriteDeadline("update", deadline -> {
+            if (!deadline.start()) {
+                throw new TimeoutException("Deadline exceeded");
+            }
+            return toCompletableFuture(runTransaction("update", tx -> {
+                String currentEmail = email;
+
+                // Confirm account exists.
                 DocumentSnapshot snapshot = tx.get(collection.document(email)).get();
-                if (snapshot.exists() && snapshot.getData() != null) {
-                    tx.set(collection.document(content.getEmail()), snapshot.getData());
+                if (!snapshot.exists() || snapshot.getData() == null) {
+                    // A retry of an update that already moved the account only resumes re-keying its history.
+                    DocumentSnapshot move = tx.get(emailMoveCollection.document(email)).get();
+                    if (move.exists() && Objects.equals(move.getString("newEmail"), content.getEmail())) {
+                        return "Account successfully updated!";
+                    }
+                    throw new IllegalArgumentException("Account with that email not found");
+                }
+
+                // Confirm the new username (if any) isn't reserved by another account.
+                String oldUsername = snapshot.getString("username");
+                String newUsername = content.getUsername();
+                boolean usernameChanged = newUsername != null && !newUsername.equals(oldUsername);
+                if (usernameChanged && tx.get(usernameCollection.document(newUsername)).get().exists()) {
+                    throw new IllegalArgumentException("Account with this username already exists");
+                }
+
+                // Change other fields if requested, except for the bank account and balance shards.
+                content.setBankAccount(null);
+                content.setBalanceShards(null);
+                Map<String, Object> patch = PATCH_MAPPER.toUpdateMap(content);
+
+                // Move the account to a newly labelled document if a new email was specified, otherwise patch it.
+                // Balance shards don't move with the document, so they are folded into the moved balance.
+                boolean emailChanged = content.getEmail() != null && !content.getEmail().equals(email);
+                if (emailChanged) {
+                    List<QueryDocumentSnapshot> shards = BalanceShards.count(snapshot.getLong("balanceShards")) > 0
+                            ? tx.get(BalanceShards.of(collection.document(email))).get().getDocuments()
+                            : List.of();
+                    Map<String, Object> data = new HashMap<>(snapshot.getData());
+                    data.putAll(patch);
+                    if (!shards.isEmpty()) {
+                        long balance = ((Number) data.getOrDefault("balance", 0L)).longValue();
+                        data.put("balance", balance + BalanceShards.sum(shards));
+                        shards.forEach(shard -> tx.delete(shard.getReference()));
+                    }
+                    tx.set(collection.document(content.getEmail()), data);
                     tx.delete(collection.document(email));
+                    tx.set(emailMoveCollection.document(email),
+                            Map.of("newEmail", content.getEmail(), "timestamp", System.currentTimeMillis()));
                     currentEmail = content.getEmail();
-                } else {
-                    throw new IllegalArgumentException("Account with that email not found");
+                } else if (!patch.isEmpty()) {
+                    tx.update(collection.document(email), patch);
                 }
-            }
 
-            // Change other fields if requested, except for transaction IDs and bank account.
-            DocumentReference document = collection.document(currentEmail);
-            content.setTransactionIds(null);
-            content.setBankAccount(null);
-            for (Field declaredField : Account.class.getDeclaredFields()) {
-                boolean accessible = declaredField.canAccess(content);
-                declaredField.setAccessible(true);
-                //balance field's default value is 0 (not null), so set to -1 if don't want to update balance
-                if (declaredField.getName().equals("balance")) {
-                    if (!declaredField.get(content).toString().equals("-1")) {
-                        tx.update(document, declaredField.getName(), declaredField.get(content));
-                    }   
-                } else {
-                    if (declaredField.get(content) != null) {
-                        tx.update(document, declaredField.getName(), declaredField.get(content));
+                // Keep the username reservation pointing at the account.
+                if (usernameChanged) {
+                    if (oldUsername != null) {
+                        tx.delete(usernameCollection.document(oldUsername));
                     }
+                    tx.create(usernameCollection.document(newUsername), Map.of("email", currentEmail));
+                } else if (emailChanged && oldUsername != null) {
+                    tx.set(usernameCollection.document(oldUsername), Map.of("email", currentEmail));
                 }
-                declaredField.setAccessible(accessible);
+                return "Account successfully updated!";
+            })).thenCompose(result -> {
+                boolean emailChanged = content.getEmail() != null && !content.getEmail().equals(email);
+                return emailChanged
+                        ? moveHistory(email, content.getEmail()).thenApply(ignored -> result)
+                        : CompletableFuture.completedFuture(result);
+            }).thenApply(result -> {
+                accountCache.invalidate(email, content.getEmail());
+                if (content.getUsername() != null) {
+                    usernameFilter.put(content.getUsername());
+                }
+                return result;
+            });
+        });
+    }
+
+    /**
+     * Re-keys the history of an account whose email changed from 'oldEmail' to 'newEmail'. Transfers can't
+     * touch the old email once the account has moved, so the history stops changing under it, except for
+     * transactions still in the outbox. Their entries are re-keyed first: the outbox writes a Transaction
+     * document from its entry in the same Firestore transaction that deletes the entry, so it either writes the
+     * new email, or writes the old one (and its rollups) before the Transactions and Rollups are re-keyed. Each
+     * step only touches documents still under the old email, so the move can simply be run again if it fails.
+     * Once the history has moved, the record of the move written by update() is deleted.
+     *
+     * @param oldEmail Previous email of the account.
+     * @param newEmail Email the account moved to.
+     * @return Future completed once the account's history is keyed by its new email.
+     */
+    private CompletableFuture<Void> moveHistory(String oldEmail, String newEmail) {
+        CompletableFuture<Void> moved = CompletableFuture.completedFuture(null);
+        for (CollectionReference txns : List.of(outboxCollection, transactionCollection)) {
+            for (String field : List.of("transactorEmail", "recipientEmail")) {
+                moved = moved.thenCompose(ignored -> rekey(txns.whereEqualTo(field, oldEmail), field, newEmail));
             }
-            return "Account successfully updated!";
+        }
+        return moved.thenCompose(ignored -> moveRollups(oldEmail, newEmail))
+                .thenCompose(ignored -> toCompletableFuture(emailMoveCollection.document(oldEmail).delete()))
+                .thenApply(ignored -> null);
+    }
+
+    /**
+     * Resumes the history moves of accounts whose email changed at least 'graceMillis' ago, but whose history
+     * hasn't been re-keyed yet, e.g. because the re-key failed or the node stopped before it finished. Younger
+     * moves are left to the update that started them. Moves run one after the other.
+     *
+     * @param graceMillis Time a move is left to the update that started it.
+     * @return Number of moves resumed.
+     * @throws Exception When a move fails; it's resumed again on the next call.
+     */
+    public int resumeEmailMoves(long graceMillis) throws Exception {
+        long cutoff = System.currentTimeMillis() - graceMillis;
+        List<QueryDocumentSnapshot> moves =
+                emailMoveCollection.whereLessThan("timestamp", cutoff).get().get().getDocuments();
+        for (QueryDocumentSnapshot move : moves) {
+            await(moveHistory(move.getId(), Objects.requireNonNull(move.getString("newEmail"))));
+        }
+        return moves.size();
+    }
+
+    /**
+     * Sets a field of every document matching a query, a batch at a time.
+     *
+     * @param query Documents whose field still holds the old value; re-keyed documents drop out of it.
+     * @param field Field to set.
+     * @param value New value of the field.
+     * @return Future completed once no document matches the query.
+     */
+    private CompletableFuture<Void> rekey(Query query, String field, String value) {
+        return toCompletableFuture(query.limit(MAX_BATCH_SIZE).get()).thenCompose(page -> {
+            if (page.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            WriteBatch batch = FirestoreClient.getFirestore().batch();
+            page.getDocuments().forEach(doc -> batch.update(doc.getReference(), field, value));
+            return toCompletableFuture(batch.commit()).thenCompose(ignored -> rekey(query, field, value));
         });
+    }
 
-        return getApiFuture(futureTx);
+    /**
+     * Moves the rollup shards of an account to labels under its new email, a transaction at a time. A shard
+     * already under the new label (e.g. written by the outbox since the account moved) is added to, not
+     * overwritten.
+     *
+     * @param oldEmail Previous email of the account.
+     * @param newEmail Email the account moved to.
+     * @return Future completed once no shard is labelled by the old email.
+     */
+    private CompletableFuture<Void> moveRollups(String oldEmail, String newEmail) {
+        // Each shard takes two writes: the merged shard under its new label, and the deleted old one.
+        Query query = rollupCollection.whereEqualTo("email", oldEmail).limit(MAX_BATCH_SIZE / 2);
+        return toCompletableFuture(runTransaction("update", tx -> {
+            List<QueryDocumentSnapshot> shards = tx.get(query).get().getDocuments();
+            if (shards.isEmpty()) {
+                return false;
+            }
+            DocumentReference[] targets = shards.stream()
+                    .map(shard -> rollupCollection.document(newEmail + shard.getId().substring(oldEmail.length())))
+                    .toArray(DocumentReference[]::new);
+            List<DocumentSnapshot> existing = tx.getAll(targets).get();
+            for (int i = 0; i < shards.size(); i++) {
+                Rollup rollup = shards.get(i).toObject(Rollup.class);
+                rollup.setEmail(newEmail);
+                if (existing.get(i).exists()) {
+                    rollup.add(Objects.requireNonNull(existing.get(i).toObject(Rollup.class)));
+                }
+                tx.set(targets[i], rollup);
+                tx.delete(shards.get(i).getReference());
+            }
+            return true;
+        })).thenCompose(moved -> moved ? moveRollups(oldEmail, newEmail) : CompletableFuture.completedFuture(null));
     }
 
     /**
@@ -167,24 +428,131 @@ public class AccountRepository extends PBRepository {
      */
     @NonNull
     public Account get(String email) throws Exception {
-        ApiFuture<Account> futureTx = FirestoreClient.getFirestore().runTransaction(transaction -> {
-            DocumentSnapshot snapshot = transaction.get(collection.document(email)).get();
-            if (snapshot.exists()) {
-                Account account = Objects.requireNonNull(snapshot.toObject(Account.class));
-                return Account.filterSensitiveData(account);
-            } else {
+        return get(email, false);
+    }
+
+    /**
+     * Get the account info associated with the given email, served from the account cache when possible.
+     * Doesn't send back sensitive information. The balance of a sharded account includes its shards, which
+     * are read in the same transaction as the account.
+     *
+     * @param email Email linked to the account to retrieve.
+     * @param bypassCache True to read the account from Firestore even if it is cached.
+     * @return The account object linked to the email.
+     * @throws IllegalArgumentException When an account with the email doesn't exist.
+     * @throws Exception When an unexpected exception occurs.
+     */
+    @NonNull
+    public Account get(String email, boolean bypassCache) throws Exception {
+        return await(getAsync(email, bypassCache));
+    }
+
+    /**
+     * Non-blocking variant of get(String, boolean).
+     *
+     * @param email Email linked to the account to retrieve.
+     * @param bypassCache True to read the account from Firestore even if it is cached.
+     * @return Future holding the account, or failed with the exceptions get() throws.
+     */
+    @NonNull
+    public CompletableFuture<Account> getAsync(String email, boolean bypassCache) {
+        if (!bypassCache) {
+            Account cached = accountCache.get(email);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+
+        // The account's snapshot comes first, followed by its shards if it's sharded.
+        DocumentReference document = collection.document(email);
+        return withDeadline("get", () -> hedged("get", () -> toCompletableFuture(runReadOnlyTransaction(transaction -> {
+            DocumentSnapshot snapshot = transaction.get(document).get();
+            if (!snapshot.exists()) {
                 throw new IllegalArgumentException("Account with that email not found");
             }
+            List<DocumentSnapshot> snapshots = new ArrayList<>();
+            snapshots.add(snapshot);
+            if (BalanceShards.count(snapshot.getLong("balanceShards")) > 0) {
+                snapshots.addAll(transaction.get(BalanceShards.of(document)).get().getDocuments());
+            }
+            return snapshots;
+        })))).thenApply(snapshots -> {
+            DocumentSnapshot snapshot = snapshots.get(0);
+            Account account = Account.filterSensitiveData(Objects.requireNonNull(snapshot.toObject(Account.class)));
+            if (BalanceShards.count(account.getBalanceShards()) > 0) {
+                // Credits to the shards don't change the account document, so the cache's listener wouldn't see
+                // them; sharded accounts are always read from Firestore.
+                account.setBalance(account.getBalance() + BalanceShards.sum(snapshots.subList(1, snapshots.size())));
+            } else {
+                accountCache.put(email, account, snapshot.getUpdateTime());
+            }
+            return account;
         });
+    }
 
-        return getApiFuture(futureTx);
+    /**
+     * Splits the balance of an account across 'shards' shard documents, or stops sharding it when 'shards' is 0.
+     * Sharding is meant for accounts that receive many concurrent credits, such as busy merchants: each credit
+     * lands on a random shard instead of rewriting the account document. The balance held by the current shards
+     * is folded back into the account document in the same transaction, so the new shards start empty.
+     *
+     * @param email Email of the account.
+     * @param shards Number of shards, between 0 and 100.
+     * @return A success message indicating the account was updated.
+     * @throws IllegalArgumentException When the shard count is out of range or the account doesn't exist.
+     * @throws Exception When an unexpected exception occurs.
+     */
+    @NonNull
+    public String setBalanceShards(@NonNull String email, int shards) throws Exception {
+        return await(setBalanceShardsAsync(email, shards));
+    }
+
+    /**
+     * Non-blocking variant of setBalanceShards(String, int).
+     *
+     * @param email Email of the account.
+     * @param shards Number of shards, between 0 and 100.
+     * @return Future holding the success message, or failed with the exceptions setBalanceShards() throws.
+     */
+    @NonNull
+    public CompletableFuture<String> setBalanceShardsAsync(@NonNull String email, int shards) {
+        return withWriteDeadline("setBalanceShards", deadline -> {
+            if (shards < 0 || shards > BalanceShards.MAX_SHARDS) {
+                throw new IllegalArgumentException("Shard count must be between 0 and " + BalanceShards.MAX_SHARDS);
+            }
+
+            if (!deadline.start()) {
+                throw new TimeoutException("Deadline exceeded");
+            }
+            ApiFuture<String> futureTx = runTransaction("setBalanceShards", tx -> {
+                DocumentReference document = collection.document(email);
+                DocumentSnapshot snapshot = tx.get(document).get();
+                if (!snapshot.exists()) {
+                    throw new IllegalArgumentException("Account with that email not found");
+                }
+                List<QueryDocumentSnapshot> current = tx.get(BalanceShards.of(document)).get().getDocuments();
+
+                Long balance = snapshot.getLong("balance");
+                current.forEach(shard -> tx.delete(shard.getReference()));
+                tx.update(document,
+                        "balance", (balance == null ? 0 : balance) + BalanceShards.sum(current),
+                        "balanceShards", shards == 0 ? FieldValue.delete() : shards);
+                return "Balance shards updated!";
+            });
+
+            return toCompletableFuture(futureTx).thenApply(result -> {
+                accountCache.invalidate(email);
+                return result;
+            });
+        });
     }
 
-    
     /**
      * Given a username, determines if an account with that username exists.
-     * Because the account documents in Firestore are labelled by the account's email, this method is useful
-     * to determine if an account containing the username exists without having to specify the account's email.
+     * Because the account documents in Firestore are labelled by the account's email, usernames are reserved
+     * in their own collection labelled by the username. Checking for a username is therefore a single
+     * document lookup rather than a scan over every account, and that lookup is skipped entirely when the
+     * node-local username filter knows the username is free.
      * 
      * @param username Username possibly linked to an account.
      * @return True if an account with that username exists, false otherwise.
@@ -192,21 +560,110 @@ public class AccountRepository extends PBRepository {
      */
     @NonNull
     public boolean usernameExists(@NonNull String username) throws Exception {
-        ApiFuture<Boolean> futureTx = FirestoreClient.getFirestore().runTransaction(transaction -> {
-            // Using a parallel stream, check if any document has the username specified.
-            return StreamSupport.stream(collection.listDocuments().spliterator(), true)
-                    .map(document -> {
-                        try {
-                            return document.get().get();
-                        } catch (InterruptedException | ExecutionException e) {
-                            e.printStackTrace();
-                            return null;
-                        }
-                    })
-                    .filter(Objects::nonNull)
-                    .anyMatch(snap -> username.equals(snap.get("username")));
+        return await(usernameExistsAsync(username));
+    }
+
+    /**
+     * Non-blocking variant of usernameExists(String).
+     *
+     * @param username Username possibly linked to an account.
+     * @return Future holding whether an account with that username exists, or failed with the exceptions
+     *         usernameExists() throws.
+     */
+    @NonNull
+    public CompletableFuture<Boolean> usernameExistsAsync(@NonNull String username) {
+        if (!usernameFilter.mightContain(username)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return withDeadline("usernameExists", () -> hedged("usernameExists",
+                () -> toCompletableFuture(usernameCollection.document(username).get()))).thenApply(snapshot -> {
+            boolean exists = snapshot.exists();
+            usernameFilter.confirm(exists);
+            return exists;
         });
+    }
+
+    /**
+     * Reserves the username of every existing account that doesn't have a reservation yet.
+     * Accounts are read a page at a time (only the username field) and the reservations for each page are
+     * written in a single batch, so the backfill can run against a large collection without holding it all
+     * in memory. Reservations that already exist are left untouched.
+     *
+     * @return Number of reservations written.
+     * @throws Exception When an unexpected exception occurs.
+     */
+    public int backfillUsernameIndex() throws Exception {
+        int written = 0;
+        Query page = collection.orderBy(FieldPath.documentId()).select("username").limit(MAX_BATCH_SIZE);
+        List<QueryDocumentSnapshot> accounts = getApiFuture(page.get()).getDocuments();
+        while (!accounts.isEmpty()) {
+            // Look up the existing reservations for the whole page at once.
+            DocumentReference[] reservations = accounts.stream()
+                    .map(account -> account.getString("username"))
+                    .filter(Objects::nonNull)
+                    .distinct()
+                    .map(usernameCollection::document)
+                    .toArray(DocumentReference[]::new);
+            Set<String> reserved = new HashSet<>();
+            if (reservations.length > 0) {
+                for (DocumentSnapshot reservation : getApiFuture(FirestoreClient.getFirestore().getAll(reservations))) {
+                    if (reservation.exists()) {
+                        reserved.add(reservation.getId());
+                    }
+                }
+            }
 
-        return getApiFuture(futureTx);
+            WriteBatch batch = FirestoreClient.getFirestore().batch();
+            int batched = 0;
+            for (QueryDocumentSnapshot account : accounts) {
+                String username = account.getString("username");
+                if (username != null && reserved.add(username)) {
+                    batch.create(usernameCollection.document(username), Map.of("email", account.getId()));
+                    batched++;
+                }
+            }
+            if (batched > 0) {
+                getApiFuture(batch.commit());
+                written += batched;
+            }
+            reserved.forEach(usernameFilter::put);
+
+            QueryDocumentSnapshot last = accounts.get(accounts.size() - 1);
+            accounts = getApiFuture(page.startAfter(last).get()).getDocuments();
+        }
+        return written;
+    }
+
+    /**
+     * Removes the legacy 'transactionIds' array from every account that still has one. Transactions are now
+     * found by querying their participant emails, so the arrays are no longer read or written.
+     * Accounts are streamed a page at a time (only the array field) and each page is updated in a single batch;
+     * accounts without the array aren't written, so their cached copies stay valid.
+     *
+     * @return Number of accounts updated.
+     * @throws Exception When an unexpected exception occurs.
+     */
+    public int dropTransactionIds() throws Exception {
+        int written = 0;
+        Query page = collection.orderBy(FieldPath.documentId()).select("transactionIds").limit(MAX_BATCH_SIZE);
+        List<QueryDocumentSnapshot> accounts = getApiFuture(page.get()).getDocuments();
+        while (!accounts.isEmpty()) {
+            WriteBatch batch = FirestoreClient.getFirestore().batch();
+            int batched = 0;
+            for (QueryDocumentSnapshot account : accounts) {
+                if (account.contains("transactionIds")) {
+                    batch.update(account.getReference(), "transactionIds", FieldValue.delete());
+                    batched++;
+                }
+            }
+            if (batched > 0) {
+                getApiFuture(batch.commit());
+                written += batched;
+            }
+
+            QueryDocumentSnapshot last = accounts.get(accounts.size() - 1);
+            accounts = getApiFuture(page.startAfter(last).get()).getDocuments();
+        }
+        return written;
     }
-}
\ No newline at end of file
+}
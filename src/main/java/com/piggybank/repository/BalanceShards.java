@@ -0,0 +1,103 @@
+package com.piggybank.repository;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QuerySnapshot;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+/**
+ * Balance counters split across shard documents, for accounts that receive more credits than a single
+ * document can take (Firestore sustains about one write per second on a document).
+ *
+ * A sharded account keeps its 'balance' field, and the shards live in its 'BalanceShards' subcollection as
+ * documents '0' to 'balanceShards - 1', each holding a 'balance'. The account's balance is the sum of its
+ * 'balance' field and every shard. Credits are blind increments of one random shard, so they neither read nor
+ * lock the account document and rarely collide with each other; debits are rare for such accounts and are
+ * taken from the account document after checking the summed balance. Shards are created by the first credit
+ * that lands on them.
+ */
+final class BalanceShards {
+    /** Name of the subcollection holding an account's shards. */
+    static final String COLLECTION = "BalanceShards";
+
+    /** Largest number of shards an account can have. */
+    static final int MAX_SHARDS = 100;
+
+    private BalanceShards() {}
+
+    /**
+     * @param balanceShards The account's 'balanceShards' field.
+     * @return Number of shards of the account, 0 if it isn't sharded.
+     */
+    static int count(@Nullable Number balanceShards) {
+        return balanceShards == null ? 0 : Math.max(0, balanceShards.intValue());
+    }
+
+    /**
+     * @param account Account document.
+     * @return The account's shard subcollection.
+     */
+    @NonNull
+    static CollectionReference of(@NonNull DocumentReference account) {
+        return account.collection(COLLECTION);
+    }
+
+    /**
+     * Picks the shard a credit lands on.
+     *
+     * @param account Account document.
+     * @param shards Number of shards of the account (at least 1).
+     * @return A random shard of the account.
+     */
+    @NonNull
+    static DocumentReference pick(@NonNull DocumentReference account, int shards) {
+        return of(account).document(String.valueOf(ThreadLocalRandom.current().nextInt(shards)));
+    }
+
+    /**
+     * @param amount Amount to add to a shard's balance.
+     * @return Fields for a merging set that adds 'amount' to a shard, creating it if needed.
+     */
+    @NonNull
+    static Map<String, Object> credit(long amount) {
+        return Map.of("balance", FieldValue.increment(amount));
+    }
+
+    /**
+     * Sums the balances of an account's shards.
+     *
+     * @param get Query read to use, e.g. a transaction's get.
+     * @param account Account document.
+     * @return Future holding the sum of every shard's balance.
+     */
+    @NonNull
+    static ApiFuture<Long> sum(@NonNull Function<Query, ApiFuture<QuerySnapshot>> get, @NonNull DocumentReference account) {
+        return ApiFutures.transform(get.apply(of(account)), shards -> sum(shards.getDocuments()), directExecutor());
+    }
+
+    /**
+     * @param shards Snapshots of an account's shards.
+     * @return Sum of every shard's balance.
+     */
+    static long sum(@NonNull List<? extends DocumentSnapshot> shards) {
+        long total = 0;
+        for (DocumentSnapshot shard : shards) {
+            Long balance = shard.getLong("balance");
+            total += balance == null ? 0 : balance;
+        }
+        return total;
+    }
+}
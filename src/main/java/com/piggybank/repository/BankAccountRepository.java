@@ -1,30 +1,47 @@
 package com.piggybank.repository;
 
+import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.FieldMask;
+import com.google.cloud.firestore.WriteResult;
+import com.piggybank.components.AccountCache;
+import com.piggybank.components.VirtualThreads;
 import com.piggybank.model.BankAccount;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.core.env.Environment;
 import org.springframework.lang.NonNull;
 import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Repository;
 
-import java.lang.reflect.Field;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Interface for database interactions for bank accounts.
  */
 @Repository
 public class BankAccountRepository extends PBRepository {
+    /** Builds the field map for partial bank account updates. */
+    private static final PatchMapper<BankAccount> PATCH_MAPPER = PatchMapper.of(BankAccount.class);
+
+    /** Cached accounts include their bank account, so they're dropped whenever it changes. */
+    private final AccountCache accountCache;
 
     /**
      * Initializes the collection reference to the value at the specified property location
      * in application.yml.
      *
      * @param env Environment containing properties.
+     * @param accountCache Cache of recently read accounts.
+     * @param threads Virtual threads the transaction functions run on, when enabled.
+     * @param registry Registry the repository's metrics are published to.
      */
-    public BankAccountRepository(Environment env) {
-        super(Objects.requireNonNull(env.getProperty("firebase.database.labels.accounts")));
+    public BankAccountRepository(Environment env, AccountCache accountCache, VirtualThreads threads,
+                                 MeterRegistry registry) {
+        super(Objects.requireNonNull(env.getProperty("firebase.database.labels.accounts")), env, threads, registry);
+        this.accountCache = accountCache;
     }
 
     /**
@@ -52,30 +69,41 @@ public class BankAccountRepository extends PBRepository {
      */
     @NonNull
     public String update(@NonNull String email, @NonNull BankAccount content) throws Exception {
+        return await(updateAsync(email, content));
+    }
+
+    /**
+     * Non-blocking variant of update(String, BankAccount).
+     *
+     * @param email Email associated with the account to update.
+     * @param content Data to update the account's bank account with.
+     * @return Future holding the success string, or failed with the exceptions update() throws.
+     */
+    @NonNull
+    public CompletableFuture<String> updateAsync(@NonNull String email, @NonNull BankAccount content) {
         // Check if document w/ ID 'email' exists.
-        DocumentSnapshot snapshot = collection.document(email).get(FieldMask.of("bankAccount")).get();
-        if (!snapshot.exists()) {
-            throw new IllegalArgumentException("Account with that email not found");
-        }
+        return withWriteDeadline("update", deadline -> readBankAccount(email).thenCompose(snapshot -> {
+            if (!deadline.start()) {
+                return CompletableFuture.failedFuture(new TimeoutException("Deadline exceeded"));
+            }
 
-        // Update the document's bankAccount field.
-        BankAccount bank = snapshot.get("bankAccount", BankAccount.class);
-        if (bank == null) {
-            bank = content;
-        } else {
-            for (Field declaredField : BankAccount.class.getDeclaredFields()) {
-                boolean accessible = declaredField.canAccess(content);
-                declaredField.setAccessible(true);
-                Object value = declaredField.get(content);
-                if (value != null) {
-                    declaredField.set(bank, value);
+            // Update the document's bankAccount field, or only its present fields if it already exists.
+            ApiFuture<WriteResult> write = null;
+            if (snapshot.get("bankAccount") == null) {
+                write = collection.document(email).update("bankAccount", content);
+            } else {
+                Map<String, Object> patch = PATCH_MAPPER.toUpdateMap("bankAccount", content);
+                if (!patch.isEmpty()) {
+                    write = collection.document(email).update(patch);
                 }
-                declaredField.setAccessible(accessible);
             }
-        }
-        collection.document(email).update("bankAccount", bank).get();
-
-        return "Bank account successfully updated!";
+            CompletableFuture<WriteResult> written =
+                    write == null ? CompletableFuture.completedFuture(null) : toCompletableFuture(write);
+            return written.thenApply(result -> {
+                accountCache.invalidate(email);
+                return "Bank account successfully updated!";
+            });
+        }));
     }
 
     /**
@@ -89,15 +117,26 @@ public class BankAccountRepository extends PBRepository {
      */
     @NonNull
     public String remove(@NonNull String email) throws Exception {
-        // Check if document w/ ID 'email' exists.
-        DocumentSnapshot snapshot = collection.document(email).get(FieldMask.of("bankAccount")).get();
-        if (!snapshot.exists()) {
-            throw new IllegalArgumentException("Account with that email not found");
-        }
+        return await(removeAsync(email));
+    }
 
-        // Remove the bank account.
-        collection.document(email).update("bankAccount", null).get();
-        return "Bank account successfully removed!";
+    /**
+     * Non-blocking variant of remove(String).
+     *
+     * @param email Email associated with the account to remove the bank account from.
+     * @return Future holding the success string, or failed with the exceptions remove() throws.
+     */
+    @NonNull
+    public CompletableFuture<String> removeAsync(@NonNull String email) {
+        // Check if document w/ ID 'email' exists, then remove the bank account.
+        return withWriteDeadline("remove", deadline -> readBankAccount(email)
+                .thenCompose(snapshot -> deadline.start()
+                        ? toCompletableFuture(collection.document(email).update("bankAccount", null))
+                        : CompletableFuture.<WriteResult>failedFuture(new TimeoutException("Deadline exceeded")))
+                .thenApply(result -> {
+                    accountCache.invalidate(email);
+                    return "Bank account successfully removed!";
+                }));
     }
 
     /**
@@ -111,13 +150,33 @@ public class BankAccountRepository extends PBRepository {
      */
     @Nullable
     public BankAccount get(@NonNull String email) throws Exception {
-        // Check if document w/ ID 'email' exists.
-        DocumentSnapshot snapshot = collection.document(email).get(FieldMask.of("bankAccount")).get();
-        if (!snapshot.exists()) {
-            throw new IllegalArgumentException("Account with that email not found");
-        }
+        return await(getAsync(email));
+    }
 
+    /**
+     * Non-blocking variant of get(String).
+     *
+     * @param email Email associated with the account to get the bank account from.
+     * @return Future holding the bank account (null if there is none), or failed with the exceptions get() throws.
+     */
+    @NonNull
+    public CompletableFuture<BankAccount> getAsync(@NonNull String email) {
         // Retrieve the bank account.
-        return snapshot.get("bankAccount", BankAccount.class);
+        return withDeadline("get", () -> hedged("get", () -> readBankAccount(email)))
+                .thenApply(snapshot -> snapshot.get("bankAccount", BankAccount.class));
+    }
+
+    /**
+     * @param email Email associated with an account.
+     * @return Future holding the account's bankAccount field, or failed with an IllegalArgumentException when no
+     *         account is found with the specified email.
+     */
+    private CompletableFuture<DocumentSnapshot> readBankAccount(String email) {
+        return toCompletableFuture(collection.document(email).get(FieldMask.of("bankAccount"))).thenApply(snapshot -> {
+            if (!snapshot.exists()) {
+                throw new IllegalArgumentException("Account with that email not found");
+            }
+            return snapshot;
+        });
     }
 }
\ No newline at end of file
@@ -0,0 +1,59 @@
+package com.piggybank.repository;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Recent latencies of one repository method, used to decide when a read is slow enough to hedge.
+ *
+ * The last SAMPLES latencies are kept in a ring buffer. Percentiles are computed by sorting a copy of the buffer,
+ * at most once every REFRESH_NANOS, so reads only pay for it occasionally. Until MIN_SAMPLES latencies have been
+ * recorded, no percentile is known.
+ */
+final class LatencyTracker {
+    private static final int SAMPLES = 512;
+    private static final int MIN_SAMPLES = 32;
+    private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+    private final AtomicInteger recorded = new AtomicInteger();
+    private final double percentile;
+
+    private volatile long cachedNanos = -1;
+    private volatile long cachedAt;
+
+    /**
+     * @param percentile Percentile reported by percentileNanos(), between 0 and 1.
+     */
+    LatencyTracker(double percentile) {
+        this.percentile = Math.min(1, Math.max(0, percentile));
+    }
+
+    void record(long nanos) {
+        samples.set(Math.floorMod(recorded.getAndIncrement(), SAMPLES), nanos);
+    }
+
+    /**
+     * @return The percentile of the recent latencies in nanoseconds, or -1 if too few have been recorded.
+     */
+    long percentileNanos() {
+        long now = System.nanoTime();
+        if (cachedNanos >= 0 && now - cachedAt < REFRESH_NANOS) {
+            return cachedNanos;
+        }
+        int count = Math.min(Math.max(recorded.get(), 0), SAMPLES);
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = new long[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        cachedNanos = sorted[(int) Math.min(count - 1, Math.floor(percentile * count))];
+        cachedAt = now;
+        return cachedNanos;
+    }
+}
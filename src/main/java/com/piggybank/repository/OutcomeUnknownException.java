@@ -0,0 +1,15 @@
+package com.piggybank.repository;
+
+/**
+ * Thrown when a write's deadline passes after its Firestore transaction started, so it may still commit. The
+ * client should retry the write: a money movement with the same idempotency key, which returns its result instead
+ * of repeating it, and any other write as is, since account and bank account writes can be repeated safely.
+ */
+public class OutcomeUnknownException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public OutcomeUnknownException() {
+        super("Deadline exceeded while the transaction was being processed; it may still complete. " +
+                "Retry it (with the same Idempotency-Key, if it had one) to get its outcome");
+    }
+}
@@ -1,41 +1,508 @@
 package com.piggybank.repository;
 
 import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.BaseServiceException;
 import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Transaction;
+import com.google.cloud.firestore.TransactionOptions;
 import com.google.firebase.cloud.FirestoreClient;
+import com.piggybank.components.RequestDeadline;
+import com.piggybank.components.VirtualThreads;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.core.env.Environment;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 
 /**
  * Parent class of all repositories for PiggyBank.
  */
 public abstract class PBRepository {
+    /**
+     * Starts retries of aborted transactions once their backoff has passed, fails operations whose deadline has
+     * passed, and sends hedged reads. Its tasks only start or complete futures, so one thread is enough.
+     */
+    private static final ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "firestore-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // Most deadlines and hedges are cancelled once their operation completes; don't keep them queued.
+        SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Maximum number of writes Firestore accepts in a single batch. */
+    protected static final int MAX_BATCH_SIZE = 500;
+
+    /** Maximum number of documents requested by a single batched read. */
+    protected static final int MAX_GET_ALL_SIZE = 100;
 
     /** Firestore collection corresponding to the repository that interacts with it. */
     protected final CollectionReference collection;
 
+    /** Number of attempts made by read-write transactions; attempts beyond one per call were aborted. */
+    private final Counter readWriteAttempts;
+
+    /** Number of attempts made by read-only transactions. */
+    private final Counter readOnlyAttempts;
+
+    /** Retry policy and metrics of each repository method that runs read-write transactions. */
+    private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<>();
+
+    private final Environment env;
+
+    /** Registry the repository's metrics are published to. */
+    protected final MeterRegistry registry;
+
+    /** Deadline of each repository method (see withDeadline()). */
+    private final ConcurrentMap<String, Duration> deadlines = new ConcurrentHashMap<>();
+
+    /** Deadline of methods without their own, and of the blocking waits in getApiFuture(). */
+    private final Duration defaultDeadline;
+
+    /** Whether idempotent reads send a second request when the first one is slow (see hedged()). */
+    private final boolean hedgeReads;
+    private final double hedgePercentile;
+    private final Duration hedgeMinDelay;
+
+    /** Recent latencies of each repository method whose reads are hedged. */
+    private final ConcurrentMap<String, LatencyTracker> latencies = new ConcurrentHashMap<>();
+
+    /** Options for transactions that never write, so they take no locks and are never aborted. */
+    private final TransactionOptions readOnly;
+
+    /** Options for read-write transactions; aborted attempts are retried by runTransaction() itself. */
+    private final TransactionOptions singleAttempt;
+
     /**
      * Initializes the reference to the document collection labelled with 'collectionLabel'
      *
      * @param collectionLabel Label of the collection in Firestore.
+     * @param env Environment containing properties, including the transaction retry policies and deadlines.
+     * @param threads Virtual threads the transaction functions run on, when enabled.
+     * @param registry Registry the repository's metrics are published to.
      */
-    public PBRepository(String collectionLabel) {
+    public PBRepository(String collectionLabel, Environment env, VirtualThreads threads, MeterRegistry registry) {
         this.collection = FirestoreClient.getFirestore().collection(collectionLabel);
+        this.env = env;
+        this.registry = registry;
+
+        TransactionOptions.ReadOnlyOptionsBuilder readOnlyOptions = TransactionOptions.createReadOnlyOptionsBuilder();
+        TransactionOptions.ReadWriteOptionsBuilder readWriteOptions =
+                TransactionOptions.createReadWriteOptionsBuilder().setNumberOfAttempts(1);
+        if (threads.executor() != null) {
+            readOnlyOptions.setExecutor(threads.executor());
+            readWriteOptions.setExecutor(threads.executor());
+        }
+        readOnly = readOnlyOptions.build();
+        singleAttempt = readWriteOptions.build();
+
+        defaultDeadline = env.getProperty("piggybank.deadlines.default", Duration.class, Duration.ofSeconds(10));
+        hedgeReads = env.getProperty("piggybank.reads.hedging.enabled", Boolean.class, false);
+        hedgePercentile = env.getProperty("piggybank.reads.hedging.percentile", Double.class, 0.95);
+        hedgeMinDelay = env.getProperty("piggybank.reads.hedging.min-delay", Duration.class, Duration.ofMillis(5));
+
+        String repository = getClass().getSimpleName();
+        readWriteAttempts = registry.counter("firestore.transaction.attempts", "repository", repository, "mode", "read_write");
+        readOnlyAttempts = registry.counter("firestore.transaction.attempts", "repository", repository, "mode", "read_only");
+    }
+
+    /**
+     * Runs a read-write transaction. Firestore locks the documents it reads and aborts the transaction when it
+     * conflicts with another one; aborted attempts are retried according to the method's RetryPolicy, with
+     * jittered exponential backoff, until one commits, the attempts run out or the deadline passes. The function
+     * must therefore be safe to run more than once.
+     *
+     * Attempts, aborts and outcomes (committed, failed, exhausted or deadline_exceeded) are published under
+     * 'firestore.transaction.operation.*' tagged with the repository and the method.
+     *
+     * @param operation Name of the repository method running the transaction.
+     * @param function Function to run in the transaction.
+     * @param <T> Type of the transaction's result.
+     * @return Future holding the transaction's result.
+     */
+    protected <T> ApiFuture<T> runTransaction(String operation, Transaction.Function<T> function) {
+        Operation op = operations.computeIfAbsent(operation, Operation::new);
+        SettableApiFuture<T> result = SettableApiFuture.create();
+        attempt(op, function, 1, System.nanoTime() + op.policy.deadline.toNanos(), result);
+        return result;
+    }
+
+    /**
+     * Starts one attempt of a read-write transaction, and schedules the next one if it's aborted.
+     */
+    private <T> void attempt(Operation op, Transaction.Function<T> function, int attempt, long deadline,
+                             SettableApiFuture<T> result) {
+        ApiFuture<T> future = FirestoreClient.getFirestore().runTransaction(tx -> {
+            readWriteAttempts.increment();
+            op.attempts.increment();
+            return function.updateCallback(tx);
+        }, singleAttempt);
+
+        ApiFutures.addCallback(future, new ApiFutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                op.outcome("committed");
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (!isAborted(t)) {
+                    op.outcome("failed");
+                    result.setException(t);
+                    return;
+                }
+                op.aborts.increment();
+                if (attempt >= op.policy.maxAttempts) {
+                    op.outcome("exhausted");
+                    result.setException(t);
+                    return;
+                }
+                long backoff = op.policy.backoffNanos(attempt);
+                if (System.nanoTime() + backoff >= deadline) {
+                    op.outcome("deadline_exceeded");
+                    result.setException(t);
+                    return;
+                }
+                SCHEDULER.schedule(
+                        () -> attempt(op, function, attempt + 1, deadline, result), backoff, TimeUnit.NANOSECONDS);
+            }
+        }, directExecutor());
+    }
+
+    /**
+     * @param t Failure of a transaction attempt.
+     * @return Whether Firestore aborted the attempt (e.g. because of contention), so it may be retried.
+     */
+    private static boolean isAborted(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiException
+                    && ((ApiException) cause).getStatusCode().getCode() == StatusCode.Code.ABORTED) {
+                return true;
+            }
+            if (cause instanceof BaseServiceException && "ABORTED".equals(((BaseServiceException) cause).getReason())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs a read-only transaction. All reads see one consistent snapshot, but no locks are taken, so the
+     * reads don't contend with concurrent writers (such as peer transfers) on the same documents.
+     *
+     * @param function Function to run in the transaction; it must not write.
+     * @param <T> Type of the transaction's result.
+     * @return Future holding the transaction's result.
+     */
+    protected <T> ApiFuture<T> runReadOnlyTransaction(Transaction.Function<T> function) {
+        return FirestoreClient.getFirestore().runTransaction(tx -> {
+            readOnlyAttempts.increment();
+            return function.updateCallback(tx);
+        }, readOnly);
+    }
+
+    /**
+     * Reads many documents with batched reads of at most MAX_GET_ALL_SIZE documents each. Every batch is
+     * issued up front without blocking, and the results are merged back into the order of 'documents'.
+     *
+     * @param getAll Batched read to use, e.g. a transaction's or Firestore's getAll.
+     * @param documents Documents to read.
+     * @return Future holding one snapshot per document, in order.
+     */
+    protected static ApiFuture<List<DocumentSnapshot>> getAllInChunks(
+            Function<DocumentReference[], ApiFuture<List<DocumentSnapshot>>> getAll,
+            List<DocumentReference> documents
+    ) {
+        List<ApiFuture<List<DocumentSnapshot>>> chunks = new ArrayList<>();
+        for (int start = 0; start < documents.size(); start += MAX_GET_ALL_SIZE) {
+            List<DocumentReference> chunk = documents.subList(start, Math.min(start + MAX_GET_ALL_SIZE, documents.size()));
+            chunks.add(getAll.apply(chunk.toArray(new DocumentReference[0])));
+        }
+
+        return ApiFutures.transform(ApiFutures.allAsList(chunks), results -> {
+            List<DocumentSnapshot> snapshots = new ArrayList<>(documents.size());
+            results.forEach(snapshots::addAll);
+            return snapshots;
+        }, directExecutor());
+    }
+
+    /**
+     * Adapts an ApiFuture to a CompletableFuture without blocking; the CompletableFuture is completed by the
+     * thread that completes the ApiFuture.
+     *
+     * @param future ApiFuture to adapt.
+     * @param <T> Type of the future's result.
+     * @return CompletableFuture completed with the ApiFuture's result or failure.
+     */
+    protected static <T> CompletableFuture<T> toCompletableFuture(ApiFuture<T> future) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ApiFutures.addCallback(future, new ApiFutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                result.complete(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }, directExecutor());
+        return result;
+    }
+
+    /**
+     * Starts an asynchronous operation, turning an exception thrown while starting it (e.g. by validation)
+     * into a failed future, so callers of async methods only ever see failures through the future.
+     *
+     * @param start Starts the operation.
+     * @param <T> Type of the operation's result.
+     * @return The operation's future, or a future failed with the exception thrown by 'start'.
+     */
+    protected static <T> CompletableFuture<T> startAsync(Callable<CompletableFuture<T>> start) {
+        try {
+            return start.call();
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
     }
 
     /**
-     * Given an future (async object), attempts to retrieve it by blocking until response.
+     * Runs a repository method within its deadline. The deadline is 'piggybank.deadlines.default', or
+     * 'piggybank.deadlines.operations.{repository}.{method}' if the method has its own, and is cut short by the
+     * deadline of the request calling the method, if any (see RequestDeadline). A call whose deadline has
+     * already passed is shed without being started; otherwise the returned future fails with a
+     * TimeoutException once the deadline passes, even if Firestore hasn't answered.
+     *
+     * Shed calls and calls that ran out of time are counted under 'firestore.operation.deadline.exceeded',
+     * tagged with the repository, the method and whether the call was 'shed' or 'timed_out'.
+     *
+     * @param operation Name of the repository method.
+     * @param call Starts the method's work.
+     * @param <T> Type of the method's result.
+     * @return Future holding the method's result, or failed with the exception thrown while starting it or a
+     *         TimeoutException.
+     */
+    protected <T> CompletableFuture<T> withDeadline(String operation, Callable<CompletableFuture<T>> call) {
+        long remaining = deadlineOf(operation) - System.nanoTime();
+        if (remaining <= 0) {
+            deadlineExceeded(operation, "shed");
+            return CompletableFuture.failedFuture(new TimeoutException("Deadline exceeded"));
+        }
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = SCHEDULER.schedule(() -> {
+            if (result.completeExceptionally(new TimeoutException("Deadline exceeded"))) {
+                deadlineExceeded(operation, "timed_out");
+            }
+        }, remaining, TimeUnit.NANOSECONDS);
+        startAsync(call).whenComplete((value, error) -> {
+            timeout.cancel(false);
+            complete(result, value, error);
+        });
+        return result;
+    }
+
+    /**
+     * Runs a repository method that writes within its deadline, computed like withDeadline()'s. Unlike
+     * withDeadline(), the deadline never turns a write that may have committed into a failure:
+     *   - a call whose deadline has already passed is shed without being started;
+     *   - a call still queued (e.g. in a StripedExecutor) when its deadline passes fails with a TimeoutException,
+     *     and is skipped when its turn comes, so it never reaches Firestore;
+     *   - a call whose Firestore transaction has started fails with an OutcomeUnknownException once the deadline
+     *     passes, while the transaction carries on; the client retries (with its idempotency key, for money
+     *     movements) to learn the outcome.
+     * The call marks the moment it starts its Firestore transaction with WriteDeadline.start().
+     *
+     * Shed calls are counted under 'firestore.operation.deadline.exceeded' with the reason 'shed', and calls
+     * whose outcome was unknown with 'outcome_unknown'.
+     *
+     * @param operation Name of the repository method.
+     * @param call Starts the method's work, given its deadline.
+     * @param <T> Type of the method's result.
+     * @return Future holding the method's result, or failed with the exception thrown while starting it, a
+     *         TimeoutException or an OutcomeUnknownException.
+     */
+    protected <T> CompletableFuture<T> withWriteDeadline(String operation, WriteCall<T> call) {
+        long deadline = deadlineOf(operation);
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            deadlineExceeded(operation, "shed");
+            return CompletableFuture.failedFuture(new TimeoutException("Deadline exceeded"));
+        }
+
+        WriteDeadline write = new WriteDeadline(deadline);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = SCHEDULER.schedule(() -> {
+            if (write.expire()) {
+                if (result.completeExceptionally(new TimeoutException("Deadline exceeded"))) {
+                    deadlineExceeded(operation, "shed");
+                }
+            } else if (result.completeExceptionally(new OutcomeUnknownException())) {
+                deadlineExceeded(operation, "outcome_unknown");
+            }
+        }, remaining, TimeUnit.NANOSECONDS);
+        startAsync(() -> call.start(write)).whenComplete((value, error) -> {
+            timeout.cancel(false);
+            complete(result, value, error);
+        });
+        return result;
+    }
+
+    /**
+     * Starts a write run by withWriteDeadline().
+     *
+     * @param <T> Type of the write's result.
+     */
+    @FunctionalInterface
+    protected interface WriteCall<T> {
+        CompletableFuture<T> start(WriteDeadline deadline) throws Exception;
+    }
+
+    /**
+     * Runs an idempotent read, and when 'piggybank.reads.hedging.enabled' is set, sends the same read again if
+     * the first one hasn't completed after the configured percentile of the method's recent latencies (but at
+     * least 'piggybank.reads.hedging.min-delay'), so a single slow replica or request doesn't set the method's
+     * tail latency. Whichever read completes first is used. Until enough latencies have been recorded, reads
+     * aren't hedged.
+     *
+     * Hedged reads are counted under 'firestore.read.hedges' tagged with the repository, the method and whether
+     * the hedge was 'sent' or 'won'.
+     *
+     * @param operation Name of the repository method.
+     * @param read Starts the read; it may be called twice.
+     * @param <T> Type of the read's result.
+     * @return Future holding the result of the first read to complete.
+     */
+    protected <T> CompletableFuture<T> hedged(String operation, Callable<CompletableFuture<T>> read) {
+        if (!hedgeReads) {
+            return startAsync(read);
+        }
+        LatencyTracker latency = latencies.computeIfAbsent(operation, name -> new LatencyTracker(hedgePercentile));
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long start = System.nanoTime();
+        startAsync(read).whenComplete((value, error) -> {
+            latency.record(System.nanoTime() - start);
+            complete(result, value, error);
+        });
+
+        long percentile = latency.percentileNanos();
+        if (percentile < 0) {
+            return result;
+        }
+        String repository = getClass().getSimpleName();
+        ScheduledFuture<?> hedge = SCHEDULER.schedule(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            registry.counter("firestore.read.hedges", "repository", repository, "operation", operation,
+                    "outcome", "sent").increment();
+            startAsync(read).whenComplete((value, error) -> {
+                if (complete(result, value, error)) {
+                    registry.counter("firestore.read.hedges", "repository", repository, "operation", operation,
+                            "outcome", "won").increment();
+                }
+            });
+        }, Math.max(percentile, hedgeMinDelay.toNanos()), TimeUnit.NANOSECONDS);
+        result.whenComplete((value, error) -> hedge.cancel(false));
+        return result;
+    }
+
+    private static <T> boolean complete(CompletableFuture<T> future, T value, Throwable error) {
+        return error == null ? future.complete(value) : future.completeExceptionally(error);
+    }
+
+    /**
+     * @param operation Name of the repository method.
+     * @return Deadline of a call to the method starting now, as a System.nanoTime() value: the method's own
+     *         deadline, cut short by the deadline of the request calling it, if any.
+     */
+    private long deadlineOf(String operation) {
+        long deadline = System.nanoTime() + deadlines.computeIfAbsent(operation, this::durationOf).toNanos();
+        Long requestDeadline = RequestDeadline.current();
+        if (requestDeadline != null && requestDeadline - deadline < 0) {
+            deadline = requestDeadline;
+        }
+        return deadline;
+    }
+
+    private Duration durationOf(String operation) {
+        String property = "piggybank.deadlines.operations." + getClass().getSimpleName() + "." + operation;
+        return env.getProperty(property, Duration.class, defaultDeadline);
+    }
+
+    private void deadlineExceeded(String operation, String reason) {
+        registry.counter("firestore.operation.deadline.exceeded", "repository", getClass().getSimpleName(),
+                "operation", operation, "reason", reason).increment();
+    }
+
+    /**
+     * Blocks until a CompletableFuture completes, and handles its failure like getApiFuture().
+     *
+     * @param future CompletableFuture to block on.
+     * @param <T> Type of object being retrieved.
+     * @return The object being retrieved.
+     * @throws Exception When something goes wrong retrieving the future.
+     */
+    protected static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException | InterruptedException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else {
+                throw new Exception("Internal server error.");
+            }
+        }
+    }
+
+    /**
+     * Given an future (async object), attempts to retrieve it by blocking until response, for at most the
+     * default deadline ('piggybank.deadlines.default').
      * If retrieving it is successful, the object retrieved is returned, otherwise the error/exception that
      * occurred is handled properly.
      *
      * @param future ApiFuture to retrieve and block on.
      * @param <T> Type of object being retrieved.
      * @return The object being retrieved.
+     * @throws TimeoutException When the deadline passes first; the future is cancelled.
      * @throws Exception When something goes wrong retrieving the future.
      */
-    protected static <T> T getApiFuture(ApiFuture<T> future) throws Exception {
+    protected <T> T getApiFuture(ApiFuture<T> future) throws Exception {
         try {
-            return future.get();
+            return future.get(defaultDeadline.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new TimeoutException("Deadline exceeded");
         } catch (ExecutionException | InterruptedException e) {
             // todo: log internally
             if (e.getCause() instanceof Exception) {
@@ -45,4 +512,29 @@ public abstract class PBRepository {
             }
         }
     }
+
+    /**
+     * Retry policy and metrics of one repository method.
+     */
+    private final class Operation {
+        private final RetryPolicy policy;
+        private final Counter attempts;
+        private final Counter aborts;
+        private final String name;
+
+        private Operation(String name) {
+            String repository = PBRepository.this.getClass().getSimpleName();
+            this.name = name;
+            policy = RetryPolicy.of(env, repository, name);
+            attempts = registry.counter("firestore.transaction.operation.attempts",
+                    "repository", repository, "operation", name);
+            aborts = registry.counter("firestore.transaction.operation.aborts",
+                    "repository", repository, "operation", name);
+        }
+
+        private void outcome(String outcome) {
+            registry.counter("firestore.transaction.operation.outcomes", "repository",
+                    PBRepository.this.getClass().getSimpleName(), "operation", name, "outcome", outcome).increment();
+        }
+    }
 }
@@ -0,0 +1,116 @@
+package com.piggybank.repository;
+
+import org.springframework.lang.NonNull;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Turns a partially-filled model into the map of fields to update in Firestore.
+ * A field counts as present when it is non-null, so models used as patches keep their fields boxed.
+ *
+ * Reflection is only used once, when the mapper is created: each field's getter is compiled into a
+ * {@link Function} through {@link LambdaMetafactory}, so building a patch is a plain call per field.
+ *
+ * @param <T> Model type.
+ */
+final class PatchMapper<T> {
+    private final List<String> fieldNames;
+    private final List<Function<T, Object>> getters;
+
+    /**
+     * Compiles the getters of every non-static field declared by 'type'.
+     *
+     * @param type Model class with a public getter for each declared field.
+     * @param <T> Model type.
+     * @return Mapper for the model type.
+     * @throws IllegalStateException When a field has no public getter.
+     */
+    @NonNull
+    static <T> PatchMapper<T> of(@NonNull Class<T> type) {
+        return new PatchMapper<>(type);
+    }
+
+    private PatchMapper(Class<T> type) {
+        List<String> names = new ArrayList<>();
+        List<Function<T, Object>> compiled = new ArrayList<>();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (Field field : type.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            String name = field.getName();
+            String getterName = "get" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            try {
+                compiled.add(compile(lookup, lookup.unreflect(type.getMethod(getterName))));
+                names.add(name);
+            } catch (Throwable e) {
+                throw new IllegalStateException("Can't compile getter for " + type.getSimpleName() + "." + name, e);
+            }
+        }
+        fieldNames = List.copyOf(names);
+        getters = List.copyOf(compiled);
+    }
+
+    /**
+     * @param lookup Lookup with access to the getter.
+     * @param getter Handle of a model's getter.
+     * @param <T> Model type.
+     * @return The getter as a Function.
+     * @throws Throwable When the getter can't be compiled.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Function<T, Object> compile(MethodHandles.Lookup lookup, MethodHandle getter) throws Throwable {
+        CallSite site = LambdaMetafactory.metafactory(
+                lookup,
+                "apply",
+                MethodType.methodType(Function.class),
+                MethodType.methodType(Object.class, Object.class),
+                getter,
+                getter.type().wrap()
+        );
+        return (Function<T, Object>) site.getTarget().invoke();
+    }
+
+    /**
+     * Collects every present (non-null) field of 'content'.
+     *
+     * @param content Partially-filled model.
+     * @return Map of field name to value, in declaration order.
+     */
+    @NonNull
+    Map<String, Object> toUpdateMap(@NonNull T content) {
+        return toUpdateMap(null, content);
+    }
+
+    /**
+     * Collects every present (non-null) field of 'content', with each field path nested under 'parent'.
+     * Useful when the model is stored as a map field of a document.
+     *
+     * @param parent Name of the map field holding the model, or null for a top-level model.
+     * @param content Partially-filled model.
+     * @return Map of field path to value, in declaration order.
+     */
+    @NonNull
+    Map<String, Object> toUpdateMap(String parent, @NonNull T content) {
+        Map<String, Object> patch = new LinkedHashMap<>();
+        for (int i = 0; i < getters.size(); i++) {
+            Object value = getters.get(i).apply(content);
+            if (value != null) {
+                String name = fieldNames.get(i);
+                patch.put(parent == null ? name : parent + "." + name, value);
+            }
+        }
+        return patch;
+    }
+}
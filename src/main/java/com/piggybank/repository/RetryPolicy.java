@@ -0,0 +1,72 @@
+package com.piggybank.repository;
+
+import org.springframework.core.env.Environment;
+import org.springframework.lang.NonNull;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a read-write transaction is retried when Firestore aborts it because of contention: how many attempts
+ * it gets, how long to back off before each retry, and after how long no further attempt is started.
+ *
+ * Policies are read from 'piggybank.transactions.retry.*', and can be overridden for one repository method
+ * under 'piggybank.transactions.retry.operations.{repository}.{method}.*', e.g.
+ * 'piggybank.transactions.retry.operations.TransactionRepository.processPeerTxn.max-attempts'.
+ */
+final class RetryPolicy {
+    private static final String PREFIX = "piggybank.transactions.retry.";
+
+    /** Total number of attempts, including the first. */
+    final int maxAttempts;
+
+    /** Backoff before the first retry; it doubles with every retry up to 'maxBackoff'. */
+    final Duration initialBackoff;
+    final Duration maxBackoff;
+
+    /** Time after the first attempt started beyond which no retry is started. */
+    final Duration deadline;
+
+    private RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff, Duration deadline) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param env Environment containing properties.
+     * @param repository Simple class name of the repository.
+     * @param operation Name of the repository method.
+     * @return Policy of the method: its own properties where set, the defaults otherwise.
+     */
+    @NonNull
+    static RetryPolicy of(@NonNull Environment env, @NonNull String repository, @NonNull String operation) {
+        String override = PREFIX + "operations." + repository + "." + operation + ".";
+        int maxAttempts = Math.max(1, property(env, override, "max-attempts", Integer.class, 5));
+        Duration initialBackoff = property(env, override, "initial-backoff", Duration.class, Duration.ofMillis(10));
+        Duration maxBackoff = property(env, override, "max-backoff", Duration.class, Duration.ofSeconds(1));
+        Duration deadline = property(env, override, "deadline", Duration.class, Duration.ofSeconds(10));
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, deadline);
+    }
+
+    /**
+     * Exponential backoff with full jitter: a random delay up to the exponential bound, so transactions aborted
+     * by the same conflict don't all retry at the same moment and collide again.
+     *
+     * @param retry Number of the retry, starting at 1.
+     * @return Delay before the retry, in nanoseconds.
+     */
+    long backoffNanos(int retry) {
+        long bound = initialBackoff.toNanos() << Math.min(retry - 1, 30);
+        if (bound <= 0 || bound > maxBackoff.toNanos()) {
+            bound = maxBackoff.toNanos();
+        }
+        return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    private static <T> T property(Environment env, String override, String name, Class<T> type, T defaultValue) {
+        T value = env.getProperty(override + name, type);
+        return value != null ? value : env.getProperty(PREFIX + name, type, defaultValue);
+    }
+}
@@ -0,0 +1,159 @@
+package com.piggybank.repository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.lang.NonNull;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Serializes operations on the same accounts within this node, so concurrent transfers touching one account
+ * queue up here instead of racing each other inside Firestore (where the losers are aborted and pay another
+ * round trip to retry).
+ *
+ * Accounts are hashed onto a fixed number of stripes, each acting as a queue: an operation starts once every
+ * operation submitted before it on any of its stripes has completed, so operations on one account run in the
+ * order they arrived. Operations are asynchronous, and no thread waits while an operation is queued; the next
+ * operation is started by whichever thread completes the previous one. Operations on accounts in different
+ * stripes run fully in parallel. With no stripes, operations start immediately.
+ *
+ * The number of operations queued or running on each stripe is published under 'transfers.stripe.queue.depth'
+ * (tagged with the stripe), the time operations spend queued under 'transfers.stripe.wait', and the writes
+ * skipped because their deadline passed while queued under 'transfers.stripe.shed'.
+ */
+final class StripedExecutor {
+    private final Stripe[] stripes;
+    private final Timer waitTimer;
+    private final Counter shedCounter;
+
+    /**
+     * @param stripes Number of stripes, or 0 to run operations unserialized.
+     * @param registry Registry the executor's metrics are published to.
+     */
+    StripedExecutor(int stripes, @NonNull MeterRegistry registry) {
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            Stripe stripe = new Stripe();
+            this.stripes[i] = stripe;
+            Gauge.builder("transfers.stripe.queue.depth", stripe.depth, AtomicInteger::get)
+                    .tag("stripe", String.valueOf(i))
+                    .register(registry);
+        }
+        waitTimer = registry.timer("transfers.stripe.wait");
+        shedCounter = registry.counter("transfers.stripe.shed");
+    }
+
+    /**
+     * Queues an operation behind the operations already submitted on the same accounts.
+     *
+     * @param task Starts the operation.
+     * @param accounts Emails of the accounts the operation touches; null emails are ignored.
+     * @param <T> Type of the operation's result.
+     * @return Future completed with the operation's result once it has run.
+     */
+    @NonNull
+    <T> CompletableFuture<T> submit(@NonNull Supplier<CompletableFuture<T>> task, @NonNull String... accounts) {
+        if (stripes.length == 0) {
+            return start(task);
+        }
+        int[] indexes = Arrays.stream(accounts)
+                .filter(account -> account != null)
+                .mapToInt(this::stripeOf)
+                .distinct()
+                .sorted()
+                .toArray();
+
+        // Swap in this operation as the tail of each of its stripes; stripes are locked in order, briefly.
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<?>[] previous = new CompletableFuture<?>[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            stripes[indexes[i]].lock.lock();
+        }
+        try {
+            for (int i = 0; i < indexes.length; i++) {
+                Stripe stripe = stripes[indexes[i]];
+                previous[i] = stripe.tail;
+                stripe.tail = done;
+                stripe.depth.incrementAndGet();
+            }
+        } finally {
+            for (int i = indexes.length - 1; i >= 0; i--) {
+                stripes[indexes[i]].lock.unlock();
+            }
+        }
+
+        long queuedAt = System.nanoTime();
+        return CompletableFuture.allOf(previous)
+                .thenCompose(ignored -> {
+                    waitTimer.record(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+                    return start(task);
+                })
+                .whenComplete((result, error) -> {
+                    for (int index : indexes) {
+                        stripes[index].depth.decrementAndGet();
+                    }
+                    done.complete(null);
+                });
+    }
+
+    /**
+     * Queues a write like submit(), but skips it if its deadline passes while it's queued, so requests that have
+     * already timed out don't reach Firestore. Skipped writes are counted under 'transfers.stripe.shed'.
+     *
+     * @param deadline Deadline of the write.
+     * @param task Starts the write's Firestore transaction.
+     * @param accounts Emails of the accounts the write touches; null emails are ignored.
+     * @param <T> Type of the write's result.
+     * @return Future completed with the write's result once it has run, or failed with a TimeoutException if it
+     *         was skipped.
+     */
+    @NonNull
+    <T> CompletableFuture<T> submit(@NonNull WriteDeadline deadline, @NonNull Supplier<CompletableFuture<T>> task,
+                                    @NonNull String... accounts) {
+        return submit(() -> {
+            if (!deadline.start()) {
+                shedCounter.increment();
+                return CompletableFuture.failedFuture(new TimeoutException("Deadline exceeded"));
+            }
+            return task.get();
+        }, accounts);
+    }
+
+    /**
+     * @param task Starts an operation.
+     * @return The operation's future, or a future failed with the exception thrown while starting it.
+     */
+    private static <T> CompletableFuture<T> start(Supplier<CompletableFuture<T>> task) {
+        try {
+            return task.get();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @param account Email of an account.
+     * @return Index of the account's stripe.
+     */
+    private int stripeOf(String account) {
+        int hash = account.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), stripes.length);
+    }
+
+    /**
+     * Queue of operations on the accounts hashed to one stripe, represented by the completion of its last one.
+     */
+    private static final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final AtomicInteger depth = new AtomicInteger();
+        private CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+    }
+}
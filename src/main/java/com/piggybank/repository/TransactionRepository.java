@@ -1,20 +1,51 @@
 package com.piggybank.repository;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.api.core.ApiFuture;
+import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.CollectionReference;
 import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.FieldMask;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.common.hash.Hashing;
 import com.google.firebase.cloud.FirestoreClient;
 import com.google.firebase.internal.NonNull;
+import com.piggybank.components.AccountCache;
+import com.piggybank.components.TransactionOutbox;
+import com.piggybank.components.VirtualThreads;
 import com.piggybank.model.Account;
+import com.piggybank.model.IdempotencyRecord;
+import com.piggybank.model.MultiLegResult;
+import com.piggybank.model.MultiLegTransfer;
+import com.piggybank.model.Rollup;
 import com.piggybank.model.Transaction;
+import com.piggybank.model.TransactionPage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.springframework.core.env.Environment;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static com.piggybank.model.Account.AccountType;
 
@@ -23,18 +54,95 @@ import static com.piggybank.model.Account.AccountType;
  */
 @Repository
 public class TransactionRepository extends PBRepository {
+    /** Largest page of transactions that can be requested at once. */
+    public static final int MAX_PAGE_SIZE = 100;
+
+    /** Fields naming the accounts that take part in a transaction. */
+    private static final String[] PARTICIPANT_FIELDS = { "transactorEmail", "recipientEmail" };
+
+    /** Order of a transaction history: newest first, ties broken by descending document ID. */
+    private static final Comparator<DocumentSnapshot> NEWEST_FIRST = Comparator
+            .comparing((DocumentSnapshot snapshot) -> snapshot.getLong("timestamp"))
+            .thenComparing(DocumentSnapshot::getId)
+            .reversed();
+
+    /** Longest idempotency key a client may send. */
+    public static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+
+    /** Most legs a multi-leg transfer may have. */
+    public static final int MAX_TRANSFER_LEGS = 1000;
+
     private final CollectionReference accountCollection;
 
+    /**
+     * Collection of used idempotency keys. Each record is labelled by a hash of the transactor's email and the
+     * key, so clients choose keys without coordinating with each other.
+     */
+    private final CollectionReference idempotencyCollection;
+
+    /** Sharded spending and revenue rollups, maintained by the outbox (see TransactionRollups). */
+    private final CollectionReference rollupCollection;
+
+    /** Recently used idempotency keys, so retries are answered without reading Firestore. */
+    private final Cache<String, IdempotencyRecord> idempotencyCache;
+
+    /** Cached accounts include their balance, so they're dropped whenever a transaction commits. */
+    private final AccountCache accountCache;
+
+    /** Writes the Transaction documents once their Firestore transactions have committed. */
+    private final TransactionOutbox outbox;
+
+    /** Serializes transactions on the same accounts within this node before they reach Firestore. */
+    private final StripedExecutor accountStripes;
+
+    /** Whether peer transactions are gathered into batches per recipient (see TransferBatcher). */
+    private final boolean batchTransfers;
+
+    /** Gathers peer transactions to the same recipient and commits each batch with commitPeerBatch(). */
+    private final TransferBatcher transferBatcher;
+
     /**
      * Initializes the collection reference to the value at the specified property location
      * in application.yml.
      *
      * @param env Environment containing properties.
+     * @param accountCache Cache of recently read accounts.
+     * @param outbox Outbox the processed transactions are written through.
+     * @param threads Virtual threads the transaction functions run on, when enabled.
+     * @param registry Registry the repository's metrics are published to.
      */
-    public TransactionRepository(Environment env) {
-        super(Objects.requireNonNull(env.getProperty("firebase.database.labels.transactions")));
+    public TransactionRepository(Environment env, AccountCache accountCache, TransactionOutbox outbox,
+                                 VirtualThreads threads, MeterRegistry registry) {
+        super(Objects.requireNonNull(env.getProperty("firebase.database.labels.transactions")), env, threads,
+                registry);
         String accountsLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.accounts"));
+        String idempotencyLabel = Objects.requireNonNull(env.getProperty("firebase.database.labels.idempotency-keys"));
         accountCollection = FirestoreClient.getFirestore().collection(accountsLabel);
+        idempotencyCollection = FirestoreClient.getFirestore().collection(idempotencyLabel);
+        rollupCollection = FirestoreClient.getFirestore().collection(
+                Objects.requireNonNull(env.getProperty("firebase.database.labels.rollups")));
+        this.accountCache = accountCache;
+        this.outbox = outbox;
+
+        idempotencyCache = Caffeine.newBuilder()
+                .maximumSize(env.getProperty("piggybank.cache.idempotency-keys.maximum-size", Long.class, 100_000L))
+                .expireAfterWrite(env.getProperty(
+                        "piggybank.cache.idempotency-keys.expire-after-write", Duration.class, Duration.ofHours(1)))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, idempotencyCache, "idempotency_keys");
+
+        accountStripes = new StripedExecutor(
+                Math.max(0, env.getProperty("piggybank.transfers.stripes", Integer.class, 64)), registry);
+
+        batchTransfers = env.getProperty("piggybank.transfers.batching.enabled", Boolean.class, false);
+        Duration window = env.getProperty(
+                "piggybank.transfers.batching.window", Duration.class, Duration.ofMillis(10));
+        // Each transfer takes up to three writes (debit, outbox entry and idempotency key), and the transactors
+        // are read in batches of MAX_GET_ALL_SIZE, so batches stay within Firestore's limits.
+        int maxSize = Math.max(1, Math.min(MAX_GET_ALL_SIZE,
+                env.getProperty("piggybank.transfers.batching.max-size", Integer.class, 100)));
+        transferBatcher = new TransferBatcher(window, maxSize, this::commitPeerBatch, registry);
     }
 
     /**
@@ -62,43 +170,96 @@ public class TransactionRepository extends PBRepository {
      */
     @NonNull
     public String processBankTxn(@NonNull Transaction bankTxn) throws Exception {
-        if (bankTxn.getType() != Transaction.TransactionType.BANK) {
-            throw new IllegalArgumentException("Transaction type does not match (must be type BANK)");
-        }
-        if (bankTxn.getAmount() == null) {
-            throw new IllegalArgumentException("Amount not specified");
-        }
+        return processBankTxn(bankTxn, null);
+    }
+
+    /**
+     * Processes a bank transaction at most once per idempotency key. The key is recorded in the same Firestore
+     * transaction as the bank transaction, and a retry with the same key gets the original result (and the
+     * original transaction ID set on 'bankTxn') without processing the transaction again. The transaction waits
+     * for other transactions on this node touching the same account (see StripedExecutor).
+     *
+     * @param bankTxn Bank transaction information.
+     * @param idempotencyKey Key chosen by the client for this request, or null to process it unconditionally.
+     * @return Message indicating success.
+     * @throws IllegalArgumentException When the transaction is invalid (see processBankTxn(Transaction)), or the
+     *                                  key is too long or was already used for a different transaction.
+     * @throws Exception For any internal error.
+     */
+    @NonNull
+    public String processBankTxn(@NonNull Transaction bankTxn, @Nullable String idempotencyKey) throws Exception {
+        return await(processBankTxnAsync(bankTxn, idempotencyKey));
+    }
 
-        ApiFuture<String> futureTx = FirestoreClient.getFirestore().runTransaction(tx -> {
-            DocumentReference document = accountCollection.document(bankTxn.getTransactorEmail());
-            DocumentSnapshot snapshot = document.get(FieldMask.of("balance", "transactionIds")).get();
-            Account transactor = snapshot.toObject(Account.class);
+    /**
+     * Non-blocking variant of processBankTxn(Transaction, String).
+     *
+     * @param bankTxn Bank transaction information.
+     * @param idempotencyKey Key chosen by the client for this request, or null to process it unconditionally.
+     * @return Future holding the message indicating success, or failed with the exceptions processBankTxn() throws.
+     */
+    @NonNull
+    public CompletableFuture<String> processBankTxnAsync(@NonNull Transaction bankTxn, @Nullable String idempotencyKey) {
+        return withWriteDeadline("processBankTxn", deadline -> {
+            if (bankTxn.getType() != Transaction.TransactionType.BANK) {
+                throw new IllegalArgumentException("Transaction type does not match (must be type BANK)");
+            }
+            if (bankTxn.getAmount() == null) {
+                throw new IllegalArgumentException("Amount not specified");
+            }
+            DocumentReference keyDoc = idempotencyDocument(bankTxn, idempotencyKey);
+            String replayed = replayFromCache(keyDoc, bankTxn);
+            if (replayed != null) {
+                return CompletableFuture.completedFuture(replayed);
+            }
 
-            if (!snapshot.exists() || transactor == null) {
-                throw new IllegalArgumentException("Account associated with transactor doesn't exist");
-            } else {
-                // Transaction amount can't be more than current balance
-                if (transactor.getBalance() < bankTxn.getAmount()) {
-                    throw new IllegalArgumentException("Transaction amount exceeds account balance");
+            AtomicBoolean processed = new AtomicBoolean();
+            return accountStripes.submit(deadline, () -> toCompletableFuture(runTransaction("processBankTxn", tx -> {
+                processed.set(false);
+                IdempotencyRecord record =
+                        keyDoc == null ? null : tx.get(keyDoc).get().toObject(IdempotencyRecord.class);
+                if (record != null) {
+                    return replay(record, bankTxn);
                 }
 
-                // Create a new transaction document and associate it with the transactor.
-                bankTxn.setId(UUID.randomUUID().toString());
+                DocumentReference document = accountCollection.document(bankTxn.getTransactorEmail());
+                DocumentReference[] documents = { document };
+                DocumentSnapshot snapshot = tx.getAll(documents, FieldMask.of("balance", "balanceShards")).get().get(0);
+                Account transactor = snapshot.toObject(Account.class);
 
-                transactor.getTransactionIds().add(bankTxn.getId());
-                tx.update(document, new HashMap<>() {{
-                    put("transactionIds", transactor.getTransactionIds());
-                    put("balance", transactor.getBalance() - bankTxn.getAmount());
-                }});
+                if (!snapshot.exists() || transactor == null) {
+                    throw new IllegalArgumentException("Account associated with transactor doesn't exist");
+                } else {
+                    // Transaction amount can't be more than current balance
+                    if (totalBalance(tx::get, document, transactor) < bankTxn.getAmount()) {
+                        throw new IllegalArgumentException("Transaction amount exceeds account balance");
+                    }
 
-                // This is where we would add the balance to the bank account, but we can't do that :(
+                    // Create a new transaction document; it's found through its transactorEmail, so the account
+                    // document only needs its balance updated.
+                    bankTxn.setId(UUID.randomUUID().toString());
+                    bankTxn.setTimestamp(System.currentTimeMillis());
+                    tx.update(document, "balance", transactor.getBalance() - bankTxn.getAmount());
 
-                tx.create(collection.document(bankTxn.getId()), bankTxn);
-                return "Transaction successful!";
-            }
-        });
+                    // This is where we would add the balance to the bank account, but we can't do that :(
 
-        return getApiFuture(futureTx);
+                    // The Transaction document is written by the outbox once this commits.
+                    tx.create(outbox.entry(bankTxn.getId()), bankTxn);
+                    if (keyDoc != null) {
+                        tx.create(keyDoc, new IdempotencyRecord(bankTxn, "Transaction successful!"));
+                    }
+                    processed.set(true);
+                    return "Transaction successful!";
+                }
+            })), bankTxn.getTransactorEmail()).thenApply(result -> {
+                accountCache.invalidate(bankTxn.getTransactorEmail());
+                if (processed.get()) {
+                    outbox.enqueue(bankTxn);
+                }
+                remember(keyDoc, bankTxn, result);
+                return result;
+            });
+        });
     }
 
     /**
@@ -116,6 +277,163 @@ public class TransactionRepository extends PBRepository {
      */
     @NonNull
     public Object processPeerTxn(Transaction peerTxn) throws Exception {
+        return processPeerTxn(peerTxn, null);
+    }
+
+    /**
+     * Processes a peer-to-peer transaction at most once per idempotency key. The key is recorded in the same
+     * Firestore transaction as the peer transaction, and a retry with the same key gets the original result (and
+     * the original transaction ID set on 'peerTxn') without processing the transaction again. When transfer
+     * batching is enabled, the transaction is committed as part of a batch (see processPeerTxnBatched()), and
+     * batches don't go through the stripes: consecutive batches to one recipient, and batches sharing a
+     * transactor, may commit concurrently and contend in Firestore, which retries the aborted ones. Otherwise the
+     * transaction waits for other transactions on this node touching either account (see StripedExecutor).
+     *
+     * @param peerTxn Peer-to-peer transaction information.
+     * @param idempotencyKey Key chosen by the client for this request, or null to process it unconditionally.
+     * @return Message indicating success.
+     * @throws IllegalArgumentException When the transaction is invalid (see processPeerTxn(Transaction)), or the
+     *                                  key is too long or was already used for a different transaction.
+     * @throws Exception For any internal error.
+     */
+    @NonNull
+    public Object processPeerTxn(Transaction peerTxn, @Nullable String idempotencyKey) throws Exception {
+        return await(processPeerTxnAsync(peerTxn, idempotencyKey));
+    }
+
+    /**
+     * Non-blocking variant of processPeerTxn(Transaction, String).
+     *
+     * @param peerTxn Peer-to-peer transaction information.
+     * @param idempotencyKey Key chosen by the client for this request, or null to process it unconditionally.
+     * @return Future holding the message indicating success, or failed with the exceptions processPeerTxn() throws.
+     */
+    @NonNull
+    public CompletableFuture<String> processPeerTxnAsync(Transaction peerTxn, @Nullable String idempotencyKey) {
+        return withWriteDeadline("processPeerTxn", deadline -> {
+            if (batchTransfers) {
+                // A batch may commit as soon as the transaction joins it.
+                if (!deadline.start()) {
+                    throw new TimeoutException("Deadline exceeded");
+                }
+                return processPeerTxnBatched(peerTxn, idempotencyKey);
+            }
+            validatePeerTxn(peerTxn);
+
+            DocumentReference keyDoc = idempotencyDocument(peerTxn, idempotencyKey);
+            String replayed = replayFromCache(keyDoc, peerTxn);
+            if (replayed != null) {
+                return CompletableFuture.completedFuture(replayed);
+            }
+
+            AtomicBoolean processed = new AtomicBoolean();
+            return accountStripes.submit(deadline, () -> toCompletableFuture(runTransaction("processPeerTxn", tx -> {
+                processed.set(false);
+                IdempotencyRecord record =
+                        keyDoc == null ? null : tx.get(keyDoc).get().toObject(IdempotencyRecord.class);
+                if (record != null) {
+                    return replay(record, peerTxn);
+                }
+
+                DocumentReference transactorDoc = accountCollection.document(peerTxn.getTransactorEmail());
+                DocumentReference recipientDoc = accountCollection.document(peerTxn.getRecipientEmail());
+
+                // Read both accounts in one round trip, inside the transaction.
+                DocumentReference[] documents = { transactorDoc, recipientDoc };
+                List<DocumentSnapshot> snapshots =
+                        tx.getAll(documents, FieldMask.of("type", "balance", "balanceShards")).get();
+                DocumentSnapshot transactorSnap = snapshots.get(0);
+                DocumentSnapshot recipientSnap = snapshots.get(1);
+
+                Account transactor = transactorSnap.toObject(Account.class);
+                Account recipient = recipientSnap.toObject(Account.class);
+
+                // Ensure documents exists.
+                if (!transactorSnap.exists() || transactor == null) {
+                    throw new IllegalArgumentException("Account associated with transactor doesn't exist");
+                } else if (!recipientSnap.exists() || recipient == null) {
+                    throw new IllegalArgumentException("Account associated with recipient doesn't exist");
+                }
+
+                // Ensure transactor is a customer
+                if (recipient.getType() != AccountType.CUSTOMER) {
+                    throw new IllegalArgumentException("Recipient can only be a customer");
+                }
+
+                peerTxn.setId(UUID.randomUUID().toString());
+                peerTxn.setTimestamp(System.currentTimeMillis());
+
+                // Update the balances in both the transactor and recipient documents. The transaction is found
+                // through its participant emails, so nothing else in the account documents changes.
+                if (transactor.getType() == AccountType.CUSTOMER) {
+                    // Transaction amount can't be more than current balance
+                    if (totalBalance(tx::get, transactorDoc, transactor) < peerTxn.getAmount()) {
+                        throw new IllegalArgumentException("Transaction amount exceeds transactor's account balance");
+                    }
+                    tx.update(transactorDoc, "balance", transactor.getBalance() - peerTxn.getAmount());
+                } else {
+                    // This is where we would transfer from merchant's bank account to the customer's balance.
+                    // Can't legally do this yet. :(
+                }
+
+                // A sharded recipient is credited on one of its shards, without writing the account document.
+                int recipientShards = BalanceShards.count(recipient.getBalanceShards());
+                if (recipientShards > 0) {
+                    tx.set(BalanceShards.pick(recipientDoc, recipientShards),
+                            BalanceShards.credit(peerTxn.getAmount()), SetOptions.merge());
+                } else {
+                    tx.update(recipientDoc, "balance", recipient.getBalance() + peerTxn.getAmount());
+                }
+
+                // Only the balances and a small outbox entry are written here; the outbox writes the Transaction
+                // document once this commits, outside the contended transaction.
+                tx.create(outbox.entry(peerTxn.getId()), peerTxn);
+                if (keyDoc != null) {
+                    tx.create(keyDoc, new IdempotencyRecord(peerTxn, "Transaction successful!"));
+                }
+                processed.set(true);
+                return "Transaction successful!";
+            })), peerTxn.getTransactorEmail(), peerTxn.getRecipientEmail()).thenApply(result -> {
+                accountCache.invalidate(peerTxn.getTransactorEmail(), peerTxn.getRecipientEmail());
+                if (processed.get()) {
+                    outbox.enqueue(peerTxn);
+                }
+                remember(keyDoc, peerTxn, result);
+                return result;
+            });
+        });
+    }
+
+    /**
+     * Processes a peer-to-peer transaction as part of a batch of transactions to the same recipient, gathered
+     * over the batching window (piggybank.transfers.batching). The batch is committed in one Firestore transaction
+     * that credits the recipient once with the sum of its transactions, but each transaction gets its own ID and
+     * result: one that fails (e.g. the transactor's balance is too low) fails alone.
+     *
+     * @param peerTxn Peer-to-peer transaction information.
+     * @param idempotencyKey Key chosen by the client for this request, or null to process it unconditionally.
+     * @return Future holding the message indicating success, or failed with an IllegalArgumentException when the
+     *         transaction is invalid (see processPeerTxn(Transaction, String)).
+     */
+    @NonNull
+    CompletableFuture<String> processPeerTxnBatched(Transaction peerTxn, @Nullable String idempotencyKey) {
+        return startAsync(() -> {
+            validatePeerTxn(peerTxn);
+            DocumentReference keyDoc = idempotencyDocument(peerTxn, idempotencyKey);
+            String replayed = replayFromCache(keyDoc, peerTxn);
+            if (replayed != null) {
+                return CompletableFuture.completedFuture(replayed);
+            }
+            return transferBatcher.submit(peerTxn, keyDoc);
+        });
+    }
+
+    /**
+     * @param peerTxn Peer-to-peer transaction to check before reading any account.
+     * @throws IllegalArgumentException When the type doesn't match, the amount is missing, or the transactor is
+     *                                  the recipient.
+     */
+    private static void validatePeerTxn(Transaction peerTxn) {
         if (peerTxn.getType() != Transaction.TransactionType.PEER_TO_PEER) {
             throw new IllegalArgumentException("Transaction type does not match (must be type PEER_TO_PEER)");
         }
@@ -125,62 +443,576 @@ public class TransactionRepository extends PBRepository {
         if (peerTxn.getTransactorEmail().equals(peerTxn.getRecipientEmail())) {
             throw new IllegalArgumentException("Transactor and recipient emails must be different");
         }
+    }
 
-        ApiFuture<String> futureTx = FirestoreClient.getFirestore().runTransaction(tx -> {
-            DocumentReference transactorDoc = accountCollection.document(peerTxn.getTransactorEmail());
-            DocumentReference recipientDoc = accountCollection.document(peerTxn.getRecipientEmail());
+    /**
+     * Commits a batch of peer-to-peer transactions to one recipient in a single Firestore transaction, and
+     * completes the future of every transaction in it once the commit finishes; it doesn't block. Every account,
+     * shard sum and idempotency key is read up front; the transactions are then applied in order against running
+     * balances, so a transactor sending several transactions in one batch can't overdraw. The recipient is
+     * credited once with the netted amount, while every processed transaction gets its own outbox entry and
+     * idempotency record.
+     *
+     * @param recipientEmail Email of the batch's recipient.
+     * @param legs Transactions in the batch, in the order they were submitted.
+     */
+    private void commitPeerBatch(String recipientEmail, List<TransferBatcher.Leg> legs) {
+        DocumentReference recipientDoc = accountCollection.document(recipientEmail);
+        Map<String, DocumentReference> transactorDocs = new LinkedHashMap<>();
+        Map<String, DocumentReference> keyDocs = new LinkedHashMap<>();
+        for (TransferBatcher.Leg leg : legs) {
+            transactorDocs.computeIfAbsent(leg.txn.getTransactorEmail(), accountCollection::document);
+            if (leg.keyDoc != null) {
+                keyDocs.putIfAbsent(leg.keyDoc.getId(), leg.keyDoc);
+            }
+        }
+        List<DocumentReference> accountDocs = new ArrayList<>();
+        accountDocs.add(recipientDoc);
+        accountDocs.addAll(transactorDocs.values());
 
-            DocumentSnapshot transactorSnap = transactorDoc.get(FieldMask.of("type", "balance", "transactionIds")).get();
-            DocumentSnapshot recipientSnap = recipientDoc.get(FieldMask.of("type", "balance", "transactionIds")).get();
+        ApiFuture<Void> futureTx = runTransaction("commitPeerBatch", tx -> {
+            legs.forEach(TransferBatcher.Leg::reset);
 
-            Account transactor = transactorSnap.toObject(Account.class);
+            // Issue every read before waiting on any of them.
+            ApiFuture<List<DocumentSnapshot>> futureAccounts = getAllInChunks(
+                    documents -> tx.getAll(documents, FieldMask.of("type", "balance", "balanceShards")), accountDocs);
+            ApiFuture<List<DocumentSnapshot>> futureKeys = getAllInChunks(
+                    documents -> tx.getAll(documents), new ArrayList<>(keyDocs.values()));
+
+            List<DocumentSnapshot> snapshots = futureAccounts.get();
+            DocumentSnapshot recipientSnap = snapshots.get(0);
             Account recipient = recipientSnap.toObject(Account.class);
+            IllegalArgumentException recipientError = null;
+            if (!recipientSnap.exists() || recipient == null) {
+                recipientError = new IllegalArgumentException("Account associated with recipient doesn't exist");
+            } else if (recipient.getType() != AccountType.CUSTOMER) {
+                recipientError = new IllegalArgumentException("Recipient can only be a customer");
+            }
+            if (recipientError != null) {
+                for (TransferBatcher.Leg leg : legs) {
+                    leg.error = recipientError;
+                }
+                return null;
+            }
 
-            // Ensure documents exists.
-            if (!transactorSnap.exists() || transactor == null) {
-                throw new IllegalArgumentException("Account associated with transactor doesn't exist");
-            } else if (!recipientSnap.exists() || recipient == null) {
-                throw new IllegalArgumentException("Account associated with recipient doesn't exist");
+            // Accounts of the transactors, and what each customer can still send in this batch.
+            Map<String, Account> transactors = new HashMap<>();
+            Map<String, ApiFuture<Long>> shardSums = new HashMap<>();
+            int index = 1;
+            for (Map.Entry<String, DocumentReference> entry : transactorDocs.entrySet()) {
+                DocumentSnapshot snapshot = snapshots.get(index++);
+                Account transactor = snapshot.exists() ? snapshot.toObject(Account.class) : null;
+                if (transactor != null) {
+                    transactors.put(entry.getKey(), transactor);
+                    if (transactor.getType() == AccountType.CUSTOMER
+                            && BalanceShards.count(transactor.getBalanceShards()) > 0) {
+                        shardSums.put(entry.getKey(), BalanceShards.sum(tx::get, entry.getValue()));
+                    }
+                }
+            }
+            Map<String, Long> available = new HashMap<>();
+            for (Map.Entry<String, Account> entry : transactors.entrySet()) {
+                ApiFuture<Long> shardSum = shardSums.get(entry.getKey());
+                available.put(entry.getKey(), entry.getValue().getBalance() + (shardSum == null ? 0 : shardSum.get()));
+            }
+            Map<String, IdempotencyRecord> records = new HashMap<>();
+            for (DocumentSnapshot snapshot : futureKeys.get()) {
+                IdempotencyRecord record = snapshot.exists() ? snapshot.toObject(IdempotencyRecord.class) : null;
+                if (record != null) {
+                    records.put(snapshot.getId(), record);
+                }
             }
 
-            // Ensure transactor is a customer
-            if (recipient.getType() != AccountType.CUSTOMER) {
-                throw new IllegalArgumentException("Recipient can only be a customer");
+            // Apply the transactions in order; a failing one is skipped without failing the batch.
+            Map<String, Long> debits = new LinkedHashMap<>();
+            long credit = 0;
+            for (TransferBatcher.Leg leg : legs) {
+                Transaction peerTxn = leg.txn;
+                try {
+                    IdempotencyRecord record = leg.keyDoc == null ? null : records.get(leg.keyDoc.getId());
+                    if (record != null) {
+                        // Also covers a key sent twice within the batch.
+                        leg.result = replay(record, peerTxn);
+                        continue;
+                    }
+
+                    String email = peerTxn.getTransactorEmail();
+                    Account transactor = transactors.get(email);
+                    if (transactor == null) {
+                        throw new IllegalArgumentException("Account associated with transactor doesn't exist");
+                    }
+                    if (transactor.getType() == AccountType.CUSTOMER) {
+                        // Transaction amount can't be more than what's left of the balance
+                        if (available.get(email) < peerTxn.getAmount()) {
+                            throw new IllegalArgumentException("Transaction amount exceeds transactor's account balance");
+                        }
+                        available.merge(email, -peerTxn.getAmount(), Long::sum);
+                        debits.merge(email, peerTxn.getAmount(), Long::sum);
+                    }
+
+                    peerTxn.setId(UUID.randomUUID().toString());
+                    peerTxn.setTimestamp(System.currentTimeMillis());
+                    credit += peerTxn.getAmount();
+                    leg.result = "Transaction successful!";
+                    leg.processed = true;
+                    if (leg.keyDoc != null) {
+                        records.put(leg.keyDoc.getId(), new IdempotencyRecord(peerTxn, leg.result));
+                    }
+                } catch (IllegalArgumentException e) {
+                    leg.error = e;
+                }
+            }
+
+            // Debits come from each transactor's balance field; the recipient is credited once.
+            for (Map.Entry<String, Long> debit : debits.entrySet()) {
+                long balance = transactors.get(debit.getKey()).getBalance();
+                tx.update(transactorDocs.get(debit.getKey()), "balance", balance - debit.getValue());
+            }
+            if (credit > 0) {
+                int recipientShards = BalanceShards.count(recipient.getBalanceShards());
+                if (recipientShards > 0) {
+                    tx.set(BalanceShards.pick(recipientDoc, recipientShards), BalanceShards.credit(credit), SetOptions.merge());
+                } else {
+                    tx.update(recipientDoc, "balance", recipient.getBalance() + credit);
+                }
+            }
+            for (TransferBatcher.Leg leg : legs) {
+                if (leg.processed) {
+                    tx.create(outbox.entry(leg.txn.getId()), leg.txn);
+                    if (leg.keyDoc != null) {
+                        tx.create(leg.keyDoc, new IdempotencyRecord(leg.txn, leg.result));
+                    }
+                }
+            }
+            return null;
+        });
+
+        toCompletableFuture(futureTx).whenComplete((ignored, error) -> {
+            if (error != null) {
+                legs.forEach(leg -> leg.future.completeExceptionally(error));
+                return;
+            }
+
+            accountCache.invalidate(recipientEmail);
+            accountCache.invalidate(transactorDocs.keySet().toArray(new String[0]));
+            for (TransferBatcher.Leg leg : legs) {
+                if (leg.error != null) {
+                    leg.future.completeExceptionally(leg.error);
+                    continue;
+                }
+                if (leg.processed) {
+                    outbox.enqueue(leg.txn);
+                }
+                remember(leg.keyDoc, leg.txn, leg.result);
+                leg.future.complete(leg.result);
+            }
+        });
+    }
+
+    /**
+     * Processes a multi-leg transfer: pays every leg's recipient from the transfer's transactor. The whole set is
+     * validated once up front, in a single read of the transactor, every recipient and every leg's idempotency
+     * key: when an account doesn't exist, a recipient isn't a customer, or the legs not yet processed add up to
+     * more than the transactor's balance, no leg is processed.
+     *
+     * The legs are then committed in chunks of consecutive legs, as few as Firestore's write limit allows, one
+     * after the other. Each chunk is one Firestore transaction that debits the transactor once, credits each
+     * recipient once and writes an outbox entry (and an idempotency record, when a key is sent) per leg. A chunk
+     * that fails, e.g. because the transactor's balance dropped in the meantime, fails alone; its legs get no ID.
+     *
+     * When an idempotency key is sent, each leg is recorded under the key and its index, so a retry replays the
+     * legs already committed and only processes the rest.
+     *
+     * @param transfer Transfer to process.
+     * @param idempotencyKey Key chosen by the client for this request, or null to process it unconditionally.
+     * @return Outcome of the transfer, with the ID of each leg's transaction and the outcome of each chunk.
+     * @throws IllegalArgumentException When the transfer or one of its legs is invalid (see
+     *                                  processPeerTxn(Transaction)), the legs exceed the transactor's balance,
+     *                                  or the key is too long or was already used for a different transfer.
+     * @throws Exception For any internal error.
+     */
+    @NonNull
+    public MultiLegResult processMultiLegTxn(MultiLegTransfer transfer, @Nullable String idempotencyKey)
+            throws Exception {
+        return await(processMultiLegTxnAsync(transfer, idempotencyKey));
+    }
+
+    /**
+     * Non-blocking variant of processMultiLegTxn(MultiLegTransfer, String).
+     *
+     * @param transfer Transfer to process.
+     * @param idempotencyKey Key chosen by the client for this request, or null to process it unconditionally.
+     * @return Future holding the outcome of the transfer, or failed with the exceptions processMultiLegTxn()
+     *         throws.
+     */
+    @NonNull
+    public CompletableFuture<MultiLegResult> processMultiLegTxnAsync(
+            MultiLegTransfer transfer, @Nullable String idempotencyKey) {
+        return withWriteDeadline("processMultiLegTxn", deadline -> {
+            List<Transaction> legs = validateTransfer(transfer);
+            List<DocumentReference> keyDocs = new ArrayList<>();
+            for (int i = 0; i < legs.size(); i++) {
+                keyDocs.add(idempotencyDocument(legs.get(i), idempotencyKey, i));
+            }
+
+            DocumentReference transactorDoc = accountCollection.document(transfer.getTransactorEmail());
+            Map<String, DocumentReference> recipientDocs = new LinkedHashMap<>();
+            for (Transaction leg : legs) {
+                recipientDocs.computeIfAbsent(leg.getRecipientEmail(), accountCollection::document);
             }
+            List<DocumentReference> accountDocs = new ArrayList<>();
+            accountDocs.add(transactorDoc);
+            accountDocs.addAll(recipientDocs.values());
 
-            peerTxn.setId(UUID.randomUUID().toString());
+            ApiFuture<Void> futureCheck = runReadOnlyTransaction(tx -> {
+                ApiFuture<List<DocumentSnapshot>> futureAccounts = getAllInChunks(
+                        documents -> tx.getAll(documents, FieldMask.of("type", "balance", "balanceShards")), accountDocs);
+                ApiFuture<List<DocumentSnapshot>> futureKeys = getAllInChunks(
+                        documents -> tx.getAll(documents), nonNull(keyDocs));
 
-            // Update transaction ID lists and balances in both the transactor and recipient documents.
-            transactor.getTransactionIds().add(peerTxn.getId());
-            recipient.getTransactionIds().add(peerTxn.getId());
-            Map<String, Object> transactorFields = new HashMap<>() {{
-                put("transactionIds", transactor.getTransactionIds());
-            }};
-            if (transactor.getType() == AccountType.CUSTOMER) {
-                // Transaction amount can't be more than current balance
-                if (transactor.getBalance() < peerTxn.getAmount()) {
+                List<DocumentSnapshot> snapshots = futureAccounts.get();
+                Account transactor = transactorOf(snapshots.get(0));
+                checkRecipients(snapshots.subList(1, snapshots.size()));
+                Map<String, IdempotencyRecord> records = recordsOf(futureKeys.get());
+
+                // Legs already processed under the key have been paid for.
+                long total = 0;
+                for (int i = 0; i < legs.size(); i++) {
+                    IdempotencyRecord record = keyDocs.get(i) == null ? null : records.get(keyDocs.get(i).getId());
+                    if (record != null) {
+                        replay(record, legs.get(i));
+                    } else {
+                        total = Math.addExact(total, legs.get(i).getAmount());
+                    }
+                }
+                if (transactor.getType() == AccountType.CUSTOMER
+                        && totalBalance(tx::get, transactorDoc, transactor) < total) {
                     throw new IllegalArgumentException("Transaction amount exceeds transactor's account balance");
                 }
-                transactorFields.put("balance", transactor.getBalance() - peerTxn.getAmount());
-            } else {
-                // This is where we would transfer from merchant's bank account to the customer's balance.
-                // Can't legally do this yet. :(
+                return null;
+            });
+
+            // Each leg takes up to three writes (credit, outbox entry and idempotency record), and the chunk
+            // takes one more to debit the transactor.
+            int chunkSize = (MAX_BATCH_SIZE - 1) / (idempotencyKey == null ? 2 : 3);
+            List<MultiLegResult.Chunk> chunks = new ArrayList<>();
+            CompletableFuture<Void> committed = toCompletableFuture(futureCheck);
+            for (int start = 0; start < legs.size(); start += chunkSize) {
+                int end = Math.min(start + chunkSize, legs.size());
+                MultiLegResult.Chunk chunk = new MultiLegResult.Chunk(start, end - start);
+                chunks.add(chunk);
+                List<Transaction> chunkLegs = legs.subList(start, end);
+                List<DocumentReference> chunkKeyDocs = keyDocs.subList(start, end);
+                committed = committed.thenCompose(ignored ->
+                        commitTransferChunk(deadline, transactorDoc, chunkLegs, chunkKeyDocs).handle((result, error) -> {
+                            chunk.setCommitted(error == null);
+                            chunk.setMessage(error == null ? result : causeOf(error).getMessage());
+                            return null;
+                        }));
+            }
+
+            return committed.thenApply(ignored -> {
+                List<String> transactionIds = new ArrayList<>();
+                for (MultiLegResult.Chunk chunk : chunks) {
+                    for (int i = chunk.getFirstLeg(); i < chunk.getFirstLeg() + chunk.getLegCount(); i++) {
+                        transactionIds.add(chunk.isCommitted() ? legs.get(i).getId() : null);
+                    }
+                }
+                return new MultiLegResult(transactionIds, chunks);
+            });
+        });
+    }
+
+    /**
+     * @param transfer Multi-leg transfer to check before reading any account.
+     * @return The transfer's legs, each with the transfer's transactor and type PEER_TO_PEER.
+     * @throws IllegalArgumentException When the transactor is missing, there are no legs or too many, or a leg
+     *                                  is invalid (see validatePeerTxn()).
+     */
+    private static List<Transaction> validateTransfer(MultiLegTransfer transfer) {
+        String transactorEmail = transfer.getTransactorEmail();
+        if (transactorEmail == null) {
+            throw new IllegalArgumentException("Transactor email not specified");
+        }
+        List<Transaction> legs = transfer.getLegs();
+        if (legs == null || legs.isEmpty() || legs.size() > MAX_TRANSFER_LEGS) {
+            throw new IllegalArgumentException("Transfer must have between 1 and " + MAX_TRANSFER_LEGS + " legs");
+        }
+        for (Transaction leg : legs) {
+            if (leg.getTransactorEmail() != null && !leg.getTransactorEmail().equals(transactorEmail)) {
+                throw new IllegalArgumentException("Every leg must be sent by the transfer's transactor");
+            }
+            if (leg.getRecipientEmail() == null) {
+                throw new IllegalArgumentException("Recipient email not specified");
+            }
+            leg.setTransactorEmail(transactorEmail);
+            if (leg.getType() == null) {
+                leg.setType(Transaction.TransactionType.PEER_TO_PEER);
+            }
+            validatePeerTxn(leg);
+        }
+        return legs;
+    }
+
+    /**
+     * Commits one chunk of a multi-leg transfer in a single Firestore transaction, once the transactions on this
+     * node touching its accounts have completed (see StripedExecutor). Legs already recorded under their
+     * idempotency key are replayed rather than processed again.
+     *
+     * @param deadline Deadline of the transfer; the chunk is skipped if it passes before the chunk starts.
+     * @param transactorDoc Document of the transfer's transactor.
+     * @param legs Legs in the chunk.
+     * @param keyDocs Document recording each leg's idempotency key, or null for each leg if no key was sent.
+     * @return Future holding the message indicating success, or failed with an IllegalArgumentException when an
+     *         account changed since the transfer was validated, e.g. the transactor's balance is now too low.
+     */
+    private CompletableFuture<String> commitTransferChunk(
+            WriteDeadline deadline,
+            DocumentReference transactorDoc,
+            List<Transaction> legs,
+            List<DocumentReference> keyDocs
+    ) {
+        Map<String, DocumentReference> recipientDocs = new LinkedHashMap<>();
+        for (Transaction leg : legs) {
+            recipientDocs.computeIfAbsent(leg.getRecipientEmail(), accountCollection::document);
+        }
+        List<DocumentReference> accountDocs = new ArrayList<>();
+        accountDocs.add(transactorDoc);
+        accountDocs.addAll(recipientDocs.values());
+        String[] emails = accountDocs.stream().map(DocumentReference::getId).toArray(String[]::new);
+
+        boolean[] processed = new boolean[legs.size()];
+        return accountStripes.submit(deadline, () -> toCompletableFuture(runTransaction("processMultiLegTxn", tx -> {
+            Arrays.fill(processed, false);
+
+            // Issue every read before waiting on any of them.
+            ApiFuture<List<DocumentSnapshot>> futureAccounts = getAllInChunks(
+                    documents -> tx.getAll(documents, FieldMask.of("type", "balance", "balanceShards")), accountDocs);
+            ApiFuture<List<DocumentSnapshot>> futureKeys = getAllInChunks(
+                    documents -> tx.getAll(documents), nonNull(keyDocs));
+
+            List<DocumentSnapshot> snapshots = futureAccounts.get();
+            Account transactor = transactorOf(snapshots.get(0));
+            checkRecipients(snapshots.subList(1, snapshots.size()));
+            Map<String, Account> recipients = new HashMap<>();
+            for (DocumentSnapshot snapshot : snapshots.subList(1, snapshots.size())) {
+                recipients.put(snapshot.getId(), snapshot.toObject(Account.class));
+            }
+            Map<String, IdempotencyRecord> records = recordsOf(futureKeys.get());
+
+            long debit = 0;
+            Map<String, Long> credits = new LinkedHashMap<>();
+            for (int i = 0; i < legs.size(); i++) {
+                Transaction leg = legs.get(i);
+                IdempotencyRecord record = keyDocs.get(i) == null ? null : records.get(keyDocs.get(i).getId());
+                if (record != null) {
+                    replay(record, leg);
+                    continue;
+                }
+                leg.setId(UUID.randomUUID().toString());
+                leg.setTimestamp(System.currentTimeMillis());
+                debit += leg.getAmount();
+                credits.merge(leg.getRecipientEmail(), leg.getAmount(), Long::sum);
+                processed[i] = true;
             }
-            tx.update(transactorDoc, transactorFields);
-            tx.update(recipientDoc, new HashMap<>() {{
-                put("transactionIds", recipient.getTransactionIds());
-                put("balance", recipient.getBalance() + peerTxn.getAmount());
-            }});
 
-            tx.create(collection.document(peerTxn.getId()), peerTxn);
+            // The transactor is debited once, and each recipient credited once, for the whole chunk.
+            if (transactor.getType() == AccountType.CUSTOMER && debit > 0) {
+                if (totalBalance(tx::get, transactorDoc, transactor) < debit) {
+                    throw new IllegalArgumentException("Transaction amount exceeds transactor's account balance");
+                }
+                tx.update(transactorDoc, "balance", transactor.getBalance() - debit);
+            }
+            for (Map.Entry<String, Long> credit : credits.entrySet()) {
+                DocumentReference recipientDoc = recipientDocs.get(credit.getKey());
+                Account recipient = recipients.get(credit.getKey());
+                int recipientShards = BalanceShards.count(recipient.getBalanceShards());
+                if (recipientShards > 0) {
+                    tx.set(BalanceShards.pick(recipientDoc, recipientShards),
+                            BalanceShards.credit(credit.getValue()), SetOptions.merge());
+                } else {
+                    tx.update(recipientDoc, "balance", recipient.getBalance() + credit.getValue());
+                }
+            }
+            for (int i = 0; i < legs.size(); i++) {
+                if (processed[i]) {
+                    tx.create(outbox.entry(legs.get(i).getId()), legs.get(i));
+                    if (keyDocs.get(i) != null) {
+                        tx.create(keyDocs.get(i), new IdempotencyRecord(legs.get(i), "Transaction successful!"));
+                    }
+                }
+            }
             return "Transaction successful!";
+        })), emails).thenApply(result -> {
+            accountCache.invalidate(emails);
+            for (int i = 0; i < legs.size(); i++) {
+                if (processed[i]) {
+                    outbox.enqueue(legs.get(i));
+                }
+            }
+            return result;
         });
+    }
+
+    /**
+     * @param snapshot Snapshot of a transfer's transactor.
+     * @return The transactor's account.
+     * @throws IllegalArgumentException When the account doesn't exist.
+     */
+    private static Account transactorOf(DocumentSnapshot snapshot) {
+        Account transactor = snapshot.exists() ? snapshot.toObject(Account.class) : null;
+        if (transactor == null) {
+            throw new IllegalArgumentException("Account associated with transactor doesn't exist");
+        }
+        return transactor;
+    }
+
+    /**
+     * @param snapshots Snapshots of a transfer's recipients.
+     * @throws IllegalArgumentException When an account doesn't exist or isn't a customer.
+     */
+    private static void checkRecipients(List<DocumentSnapshot> snapshots) {
+        for (DocumentSnapshot snapshot : snapshots) {
+            Account recipient = snapshot.exists() ? snapshot.toObject(Account.class) : null;
+            if (recipient == null) {
+                throw new IllegalArgumentException("Account associated with recipient doesn't exist");
+            }
+            if (recipient.getType() != AccountType.CUSTOMER) {
+                throw new IllegalArgumentException("Recipient can only be a customer");
+            }
+        }
+    }
+
+    /**
+     * @param snapshots Snapshots of idempotency key documents.
+     * @return The records of the keys that were used, by document ID.
+     */
+    private static Map<String, IdempotencyRecord> recordsOf(List<DocumentSnapshot> snapshots) {
+        Map<String, IdempotencyRecord> records = new HashMap<>();
+        for (DocumentSnapshot snapshot : snapshots) {
+            IdempotencyRecord record = snapshot.exists() ? snapshot.toObject(IdempotencyRecord.class) : null;
+            if (record != null) {
+                records.put(snapshot.getId(), record);
+            }
+        }
+        return records;
+    }
 
-        return getApiFuture(futureTx);
+    private static List<DocumentReference> nonNull(List<DocumentReference> documents) {
+        return documents.stream().filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    private static Throwable causeOf(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
     }
 
     /**
-     * Retrieves a transaction given the ID of the transaction.
+     * @param txn Transaction the key was sent with.
+     * @param idempotencyKey Key chosen by the client, or null.
+     * @return Document recording the key, or null if no key was sent.
+     * @throws IllegalArgumentException When the key is too long.
+     */
+    @Nullable
+    private DocumentReference idempotencyDocument(Transaction txn, @Nullable String idempotencyKey) {
+        return idempotencyDocument(txn, idempotencyKey, null);
+    }
+
+    /**
+     * @param txn Transaction the key was sent with.
+     * @param idempotencyKey Key chosen by the client, or null.
+     * @param leg Index of the transaction among the legs of a multi-leg transfer, or null for a single transaction.
+     * @return Document recording the key, or null if no key was sent.
+     * @throws IllegalArgumentException When the key is too long.
+     */
+    @Nullable
+    private DocumentReference idempotencyDocument(
+            Transaction txn, @Nullable String idempotencyKey, @Nullable Integer leg) {
+        if (idempotencyKey == null) {
+            return null;
+        }
+        if (idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+            throw new IllegalArgumentException(
+                    "Idempotency key must be at most " + MAX_IDEMPOTENCY_KEY_LENGTH + " characters");
+        }
+        // Keys can't hold line breaks (they're sent as a header), so the scoped keys can't collide.
+        String scopedKey = txn.getTransactorEmail() + "\n" + idempotencyKey + (leg == null ? "" : "\n" + leg);
+        return idempotencyCollection.document(Hashing.sha256().hashString(scopedKey, StandardCharsets.UTF_8).toString());
+    }
+
+    /**
+     * @param keyDoc Document recording the key, or null.
+     * @param txn Transaction the key was sent with.
+     * @return The original result if the key was used recently on this node, null otherwise.
+     * @throws IllegalArgumentException When the key was used for a different transaction.
+     */
+    @Nullable
+    private String replayFromCache(@Nullable DocumentReference keyDoc, Transaction txn) {
+        IdempotencyRecord record = keyDoc == null ? null : idempotencyCache.getIfPresent(keyDoc.getId());
+        return record == null ? null : replay(record, txn);
+    }
+
+    /**
+     * Answers a retry with the result of the original transaction.
+     *
+     * @param record Record of the original transaction.
+     * @param txn Transaction sent with the retry; it's given the original transaction's ID and timestamp.
+     * @return The original result.
+     * @throws IllegalArgumentException When the key was used for a different transaction.
+     */
+    private static String replay(IdempotencyRecord record, Transaction txn) {
+        if (record.getType() != txn.getType()
+                || !Objects.equals(record.getAmount(), txn.getAmount())
+                || !Objects.equals(record.getRecipientEmail(), txn.getRecipientEmail())) {
+            throw new IllegalArgumentException("Idempotency key was already used for a different transaction");
+        }
+        txn.setId(record.getTransactionId());
+        txn.setTimestamp(record.getTimestamp());
+        return record.getResult();
+    }
+
+    /**
+     * Caches the record of a processed (or replayed) transaction, so further retries skip Firestore.
+     *
+     * @param keyDoc Document recording the key, or null.
+     * @param txn Processed transaction.
+     * @param result Result of the transaction.
+     */
+    private void remember(@Nullable DocumentReference keyDoc, Transaction txn, String result) {
+        if (keyDoc != null) {
+            idempotencyCache.put(keyDoc.getId(), new IdempotencyRecord(txn, result));
+        }
+    }
+
+    /**
+     * Reads the balance of an account that is about to be debited: its balance field, plus its shards if it's
+     * sharded. Debits are then taken from the balance field alone, which may go negative on a sharded account
+     * as long as the total doesn't.
+     *
+     * @param get Query read to use, i.e. the transaction's get.
+     * @param document Account document.
+     * @param account Account read from the document.
+     * @return Total balance of the account.
+     * @throws Exception When the shards can't be read.
+     */
+    private static long totalBalance(
+            Function<Query, ApiFuture<QuerySnapshot>> get,
+            DocumentReference document,
+            Account account
+    ) throws Exception {
+        long balance = account.getBalance();
+        if (BalanceShards.count(account.getBalanceShards()) > 0) {
+            balance += BalanceShards.sum(get, document).get();
+        }
+        return balance;
+    }
+
+    /**
+     * Retrieves a transaction given the ID of the transaction. A processed transaction whose document the outbox
+     * hasn't written yet is read from its outbox entry instead; both are read at once, and the outbox replaces
+     * the entry with the document atomically, so exactly one of them exists.
      *
      * @param txnId ID of the transaction to retrieve.
      * @return Message indicating success.
@@ -189,56 +1021,347 @@ public class TransactionRepository extends PBRepository {
      */
     @NonNull
     public Transaction getTxn(String txnId) throws Exception {
-        for (DocumentReference document : collection.listDocuments()) {
-            if (document.getId().equals(txnId)) {
-                DocumentSnapshot snap = document.get().get();
-                Transaction txn = snap.toObject(Transaction.class);
-                if (!snap.exists() || txn == null) {
-                    break;
-                } else {
-                    return txn;
+        return await(getTxnAsync(txnId));
+    }
+
+    /**
+     * Non-blocking variant of getTxn(String).
+     *
+     * @param txnId ID of the transaction to retrieve.
+     * @return Future holding the transaction, or failed with the exceptions getTxn() throws.
+     */
+    @NonNull
+    public CompletableFuture<Transaction> getTxnAsync(String txnId) {
+        return withDeadline("getTxn", () -> {
+            ApiFuture<List<DocumentSnapshot>> futureSnaps =
+                    FirestoreClient.getFirestore().getAll(collection.document(txnId), outbox.entry(txnId));
+            return toCompletableFuture(futureSnaps).thenApply(snaps -> {
+                Transaction txn = transactionOf(snaps.get(0), snaps.get(1));
+                if (txn == null) {
+                    throw new IllegalArgumentException("Transaction with that ID doesn't exist");
                 }
+                return txn;
+            });
+        });
+    }
+
+    /**
+     * @param document Snapshot of a transaction's document.
+     * @param entry Snapshot of the transaction's outbox entry, read along with the document.
+     * @return The transaction, from its document or else its outbox entry, or null if neither exists.
+     */
+    @Nullable
+    private static Transaction transactionOf(DocumentSnapshot document, DocumentSnapshot entry) {
+        DocumentSnapshot snap = document.exists() ? document : entry;
+        return snap.exists() ? snap.toObject(Transaction.class) : null;
+    }
+
+    /**
+     * Retrieves several transactions given their IDs, in a single batched read. As in getTxn(), transactions
+     * still in the outbox are read from their entries.
+     *
+     * @param txnIds IDs of the transactions to retrieve, at most MAX_GET_ALL_SIZE.
+     * @return The transactions that exist, in the order their IDs were given (without repeats).
+     * @throws IllegalArgumentException When no IDs or too many IDs are specified.
+     * @throws Exception For any internal error.
+     */
+    @NonNull
+    public List<Transaction> getTxns(List<String> txnIds) throws Exception {
+        return await(getTxnsAsync(txnIds));
+    }
+
+    /**
+     * Non-blocking variant of getTxns(List).
+     *
+     * @param txnIds IDs of the transactions to retrieve, at most MAX_GET_ALL_SIZE.
+     * @return Future holding the transactions that exist, or failed with the exceptions getTxns() throws.
+     */
+    @NonNull
+    public CompletableFuture<List<Transaction>> getTxnsAsync(List<String> txnIds) {
+        return withDeadline("getTxns", () -> {
+            if (txnIds == null || txnIds.isEmpty()) {
+                throw new IllegalArgumentException("No transaction IDs specified");
             }
-        }
-        throw new IllegalArgumentException("Transaction with that ID doesn't exist");
+            DocumentReference[] documents = txnIds.stream()
+                    .distinct()
+                    .map(collection::document)
+                    .toArray(DocumentReference[]::new);
+            if (documents.length > MAX_GET_ALL_SIZE) {
+                throw new IllegalArgumentException(
+                        "At most " + MAX_GET_ALL_SIZE + " transactions can be retrieved at once");
+            }
+
+            // Each transaction's outbox entry is read along with its document, as in getTxn(). Both are read in
+            // one batched read (not in chunks) so they're read at the same time.
+            DocumentReference[] reads = Stream.concat(
+                    Arrays.stream(documents),
+                    Arrays.stream(documents).map(document -> outbox.entry(document.getId()))
+            ).toArray(DocumentReference[]::new);
+            ApiFuture<List<DocumentSnapshot>> futureSnaps = FirestoreClient.getFirestore().getAll(reads);
+            return toCompletableFuture(futureSnaps).thenApply(snaps -> IntStream.range(0, documents.length)
+                    .mapToObj(i -> transactionOf(snaps.get(i), snaps.get(documents.length + i)))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList()));
+        });
     }
 
     /**
-     * Retrieves a list of transactions where the IDs of each are contained in the transactionIds field of
-     * the account represented by the email specified.
+     * Retrieves every transaction the account represented by the email specified took part in, as either the
+     * transactor or the recipient, newest first. The history is read a page at a time within one read-only
+     * transaction, so it is consistent even if the account transacts while it's being read.
      *
-     * @param email Email of the account to get the list of transaction IDs from.
-     * @return Message indicating success.
+     * @param email Email of the account to get the transactions of.
+     * @return Transactions of the account, newest first.
      * @throws IllegalArgumentException When the account with the specified email doesn't exist.
      * @throws Exception For any internal error.
      */
     @NonNull
     public List<Transaction> getAllTxnFromUser(String email) throws Exception {
-        ApiFuture<List<Transaction>> futureTx = FirestoreClient.getFirestore().runTransaction(tx -> {
-            // Account to get transactions from.
-            DocumentSnapshot snapshot = accountCollection.document(email).get(FieldMask.of("transactionIds")).get();
-            Account account = snapshot.toObject(Account.class);
-            if (!snapshot.exists() || account == null) {
+        return await(getAllTxnFromUserAsync(email));
+    }
+
+    /**
+     * Non-blocking variant of getAllTxnFromUser(String).
+     *
+     * @param email Email of the account to get the transactions of.
+     * @return Future holding the account's transactions, or failed with the exceptions getAllTxnFromUser() throws.
+     */
+    @NonNull
+    public CompletableFuture<List<Transaction>> getAllTxnFromUserAsync(String email) {
+        return withDeadline("getAllTxnFromUser", () -> toCompletableFuture(runReadOnlyTransaction(tx -> {
+            DocumentReference[] document = { accountCollection.document(email) };
+            if (!tx.getAll(document, FieldMask.of("email")).get().get(0).exists()) {
                 throw new IllegalArgumentException("Account with that email not found");
             }
-            
-            // Select all the transactions whose ID is in the account's transaction ID list.
-            return account.getTransactionIds().parallelStream()
-                    .map(id -> {
-                        try {
-                            return collection.document(id).get().get();
-                        } catch (InterruptedException | ExecutionException e) {
-                            e.printStackTrace();
-                            return null;
-                        }
-                    })
-                    .filter(Objects::nonNull)
-                    .filter(DocumentSnapshot::exists)
-					.map(snap -> snap.toObject(Transaction.class))
-                    .filter(Objects::nonNull)
-					.collect(Collectors.toList());
+
+            List<Transaction> transactions = new ArrayList<>();
+            String cursor = null;
+            do {
+                TransactionPage page = readPage(tx::get, email, MAX_PAGE_SIZE, cursor);
+                transactions.addAll(page.getTransactions());
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+            return transactions;
+        })));
+    }
+
+    /**
+     * Retrieves one page of the transactions the account represented by the email specified took part in,
+     * newest first. Only the transactions on the page (plus one to tell whether another page follows) are read,
+     * however long the account's history is. An email without transactions gets an empty page.
+     *
+     * @param email Email of the account to get the transactions of.
+     * @param limit Maximum number of transactions on the page, between 1 and MAX_PAGE_SIZE.
+     * @param cursor Cursor returned with the previous page, or null for the first page.
+     * @return The page of transactions and the cursor of the next page (null if this is the last page).
+     * @throws IllegalArgumentException When the limit is out of range or the cursor is invalid.
+     * @throws Exception For any internal error.
+     */
+    @NonNull
+    public TransactionPage getTxnPageFromUser(String email, int limit, @Nullable String cursor) throws Exception {
+        return await(getTxnPageFromUserAsync(email, limit, cursor));
+    }
+
+    /**
+     * Non-blocking variant of getTxnPageFromUser(String, int, String).
+     *
+     * @param email Email of the account to get the transactions of.
+     * @param limit Maximum number of transactions on the page, between 1 and MAX_PAGE_SIZE.
+     * @param cursor Cursor returned with the previous page, or null for the first page.
+     * @return Future holding the page, or failed with the exceptions getTxnPageFromUser() throws.
+     */
+    @NonNull
+    public CompletableFuture<TransactionPage> getTxnPageFromUserAsync(String email, int limit, @Nullable String cursor) {
+        return withDeadline("getTxnPageFromUser", () -> {
+            if (limit < 1 || limit > MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE);
+            }
+
+            return toCompletableFuture(runReadOnlyTransaction(tx -> readPage(tx::get, email, limit, cursor)));
+        });
+    }
+
+    /**
+     * Retrieves the spending and revenue rollups of the account represented by the email specified, one per
+     * period that had transactions, oldest first. Only the rollups' shard documents are read, never the
+     * transactions themselves; a rollup reflects a transaction once the outbox has written it.
+     *
+     * @param email Email of the account to get the rollups of.
+     * @param period Length of the periods.
+     * @param from Earliest start of a period, in milliseconds since the epoch (inclusive).
+     * @param to Latest start of a period, in milliseconds since the epoch (exclusive).
+     * @return Rollups of the account's periods starting in [from, to), oldest first.
+     * @throws IllegalArgumentException When the range is empty.
+     * @throws Exception For any internal error.
+     */
+    @NonNull
+    public List<Rollup> getRollups(String email, Rollup.Period period, long from, long to) throws Exception {
+        return await(getRollupsAsync(email, period, from, to));
+    }
+
+    /**
+     * Non-blocking variant of getRollups(String, Rollup.Period, long, long).
+     *
+     * @param email Email of the account to get the rollups of.
+     * @param period Length of the periods.
+     * @param from Earliest start of a period, in milliseconds since the epoch (inclusive).
+     * @param to Latest start of a period, in milliseconds since the epoch (exclusive).
+     * @return Future holding the rollups, or failed with the exceptions getRollups() throws.
+     */
+    @NonNull
+    public CompletableFuture<List<Rollup>> getRollupsAsync(String email, Rollup.Period period, long from, long to) {
+        return withDeadline("getRollups", () -> {
+            if (from >= to) {
+                throw new IllegalArgumentException("Range of rollups is empty");
+            }
+
+            // Needs a composite index on email, period and start, see emulators/firestore.indexes.json.
+            Query query = rollupCollection.whereEqualTo("email", email)
+                    .whereEqualTo("period", period.name())
+                    .whereGreaterThanOrEqualTo("start", from)
+                    .whereLessThan("start", to)
+                    .orderBy("start");
+            return toCompletableFuture(query.get()).thenApply(snapshot -> {
+                // Add up the shards of each period.
+                Map<Long, Rollup> rollups = new LinkedHashMap<>();
+                for (QueryDocumentSnapshot shard : snapshot.getDocuments()) {
+                    Rollup rollup = shard.toObject(Rollup.class);
+                    rollups.merge(rollup.getStart(), rollup, (merged, more) -> {
+                        merged.add(more);
+                        return merged;
+                    });
+                }
+                return new ArrayList<>(rollups.values());
+            });
         });
+    }
+
+    /**
+     * Streams every transaction the account represented by the email specified took part in, newest first.
+     * Pages of 'pageSize' transactions are read one at a time as the subscriber requests more, so a slow
+     * subscriber holds at most a page or two in memory, and one that cancels stops further reads. Unlike
+     * getAllTxnFromUser(), each page is read in its own snapshot.
+     *
+     * @param email Email of the account to get the transactions of.
+     * @param pageSize Number of transactions read at a time, between 1 and MAX_PAGE_SIZE.
+     * @return Transactions of the account, newest first; failed with IllegalArgumentException when the page
+     *         size is out of range.
+     */
+    @NonNull
+    public Flux<Transaction> streamTxnsFromUser(String email, int pageSize) {
+        return Mono.defer(() -> Mono.fromFuture(getTxnPageFromUserAsync(email, pageSize, null)))
+                .expand(page -> page.getNextCursor() == null
+                        ? Mono.empty()
+                        : Mono.defer(() -> Mono.fromFuture(
+                                getTxnPageFromUserAsync(email, pageSize, page.getNextCursor()))))
+                .concatMapIterable(TransactionPage::getTransactions, 1);
+    }
+
+    /**
+     * Sets the timestamp of every transaction that doesn't have one to the time its document was created, so
+     * transactions written before timestamps existed show up in paginated histories. Transactions are read a
+     * page at a time (only the timestamp field) and each page is updated in a single batch.
+     *
+     * @return Number of transactions updated.
+     * @throws Exception When an unexpected exception occurs.
+     */
+    public int backfillTimestamps() throws Exception {
+        int written = 0;
+        Query page = collection.orderBy(FieldPath.documentId()).select("timestamp").limit(MAX_BATCH_SIZE);
+        List<QueryDocumentSnapshot> transactions = getApiFuture(page.get()).getDocuments();
+        while (!transactions.isEmpty()) {
+            WriteBatch batch = FirestoreClient.getFirestore().batch();
+            int batched = 0;
+            for (QueryDocumentSnapshot transaction : transactions) {
+                Timestamp createTime = transaction.getCreateTime();
+                if (transaction.get("timestamp") == null && createTime != null) {
+                    batch.update(transaction.getReference(), "timestamp", createTime.toDate().getTime());
+                    batched++;
+                }
+            }
+            if (batched > 0) {
+                getApiFuture(batch.commit());
+                written += batched;
+            }
 
-        return getApiFuture(futureTx);
+            QueryDocumentSnapshot last = transactions.get(transactions.size() - 1);
+            transactions = getApiFuture(page.startAfter(last).get()).getDocuments();
+        }
+        return written;
+    }
+
+    /**
+     * Reads one page of an account's transactions. One query per participant field is issued up front, each
+     * ordered newest first and limited to one more transaction than the page holds, and the results are merged.
+     * Both queries need a composite index on the participant field, timestamp (descending) and document ID
+     * (descending), see emulators/firestore.indexes.json. Firestore leaves documents without a timestamp out of
+     * queries ordered by it, so transactions written before timestamps existed only appear once
+     * backfillTimestamps() has run (switched on by 'piggybank.migrations.transaction-timestamps').
+     *
+     * @param get Query read to use, e.g. a transaction's get.
+     * @param email Email of the account.
+     * @param limit Maximum number of transactions on the page.
+     * @param cursor Cursor of the page, or null for the first page.
+     * @return The page of transactions and the cursor of the next page.
+     * @throws IllegalArgumentException When the cursor is invalid.
+     * @throws Exception For any internal error.
+     */
+    private TransactionPage readPage(
+            Function<Query, ApiFuture<QuerySnapshot>> get,
+            String email,
+            int limit,
+            @Nullable String cursor
+    ) throws Exception {
+        Object[] after = cursor == null ? null : decodeCursor(cursor);
+        List<ApiFuture<QuerySnapshot>> futures = new ArrayList<>();
+        for (String field : PARTICIPANT_FIELDS) {
+            Query query = collection.whereEqualTo(field, email)
+                    .orderBy("timestamp", Query.Direction.DESCENDING)
+                    .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING);
+            if (after != null) {
+                query = query.startAfter(after);
+            }
+            futures.add(get.apply(query.limit(limit + 1)));
+        }
+
+        List<DocumentSnapshot> snapshots = new ArrayList<>();
+        for (ApiFuture<QuerySnapshot> future : futures) {
+            snapshots.addAll(future.get().getDocuments());
+        }
+        snapshots.sort(NEWEST_FIRST);
+
+        List<Transaction> transactions = snapshots.stream()
+                .limit(limit)
+                .map(snapshot -> snapshot.toObject(Transaction.class))
+                .collect(Collectors.toList());
+        String nextCursor = null;
+        if (snapshots.size() > limit) {
+            nextCursor = encodeCursor(snapshots.get(limit - 1));
+        }
+        return new TransactionPage(transactions, nextCursor);
+    }
+
+    /**
+     * @param last Last transaction on a page.
+     * @return Opaque cursor of the page that follows it.
+     */
+    private static String encodeCursor(DocumentSnapshot last) {
+        String position = last.getLong("timestamp") + ":" + last.getId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor Opaque cursor created by encodeCursor().
+     * @return The timestamp and document ID to start after.
+     * @throws IllegalArgumentException When the cursor is invalid.
+     */
+    private static Object[] decodeCursor(String cursor) {
+        try {
+            String position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = position.indexOf(':');
+            return new Object[] { Long.parseLong(position.substring(0, separator)), position.substring(separator + 1) };
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,166 @@
+package com.piggybank.repository;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.piggybank.model.Transaction;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Gathers peer transfers to the same recipient into batches, so one Firestore transaction can credit the
+ * recipient once with the netted amount instead of every transfer contending for the recipient's document.
+ *
+ * The first transfer to a recipient opens a batch, which stays open for the batching window while other
+ * transfers to the same recipient join it. The batch is closed and committed when the window passes (by a timer
+ * thread) or as soon as it's full (by the thread that filled it); no caller's thread waits for the window. Every
+ * transfer gets its own future, which the commit completes with that transfer's result, so one failing transfer
+ * doesn't fail the others.
+ *
+ * Batch sizes are published under 'transfers.batch.size', and the time each transfer waits for its batch to be
+ * closed under 'transfers.batch.wait'.
+ */
+final class TransferBatcher {
+    /** Closes batches whose window has passed. Closing only starts the commit, so one thread is enough. */
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "transfer-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ConcurrentMap<String, Batch> open = new ConcurrentHashMap<>();
+    private final long windowNanos;
+    private final int maxSize;
+    private final BiConsumer<String, List<Leg>> commit;
+
+    private final DistributionSummary batchSizes;
+    private final Timer waitTimer;
+
+    /**
+     * @param window How long a batch stays open for more transfers.
+     * @param maxSize Number of transfers that closes a batch early.
+     * @param commit Starts committing a closed batch (recipient email and transfers), and completes every
+     *               transfer's future once the commit finishes. It must not block.
+     * @param registry Registry the batcher's metrics are published to.
+     */
+    TransferBatcher(@NonNull Duration window, int maxSize, @NonNull BiConsumer<String, List<Leg>> commit,
+                    @NonNull MeterRegistry registry) {
+        this.windowNanos = window.toNanos();
+        this.maxSize = maxSize;
+        this.commit = commit;
+        batchSizes = registry.summary("transfers.batch.size");
+        waitTimer = registry.timer("transfers.batch.wait");
+    }
+
+    /**
+     * Adds a transfer to the open batch of its recipient, opening one if there is none.
+     *
+     * @param txn Validated peer transfer.
+     * @param keyDoc Document recording the transfer's idempotency key, or null.
+     * @return Future completed with the transfer's result once its batch is committed.
+     */
+    @NonNull
+    CompletableFuture<String> submit(@NonNull Transaction txn, @Nullable DocumentReference keyDoc) {
+        String recipient = txn.getRecipientEmail();
+        Leg leg = new Leg(txn, keyDoc);
+        Batch[] joined = new Batch[1];
+        boolean[] opened = new boolean[1];
+        boolean[] full = new boolean[1];
+        open.compute(recipient, (email, batch) -> {
+            if (batch == null) {
+                batch = new Batch();
+                opened[0] = true;
+            }
+            batch.legs.add(leg);
+            joined[0] = batch;
+            if (batch.legs.size() >= maxSize) {
+                // Close the batch; later transfers open a new one.
+                full[0] = true;
+                return null;
+            }
+            return batch;
+        });
+
+        if (full[0]) {
+            close(recipient, joined[0]);
+        } else if (opened[0]) {
+            Batch batch = joined[0];
+            TIMER.schedule(() -> close(recipient, batch), windowNanos, TimeUnit.NANOSECONDS);
+        }
+        return leg.future;
+    }
+
+    /**
+     * Closes a batch, unless it was closed already, and starts committing it.
+     */
+    private void close(String recipient, Batch batch) {
+        // No transfer can join once the batch is out of the map.
+        open.remove(recipient, batch);
+        if (!batch.closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        batchSizes.record(batch.legs.size());
+        for (Leg leg : batch.legs) {
+            waitTimer.record(now - leg.submittedAt, TimeUnit.NANOSECONDS);
+        }
+        try {
+            commit.accept(recipient, batch.legs);
+        } catch (RuntimeException e) {
+            batch.legs.forEach(leg -> leg.future.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * One transfer in a batch, along with its outcome in the current attempt of the batch's transaction.
+     */
+    static final class Leg {
+        final Transaction txn;
+        final DocumentReference keyDoc;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        private final long submittedAt = System.nanoTime();
+
+        /** Result of the transfer, or null if it failed. */
+        String result;
+        /** Why the transfer failed, or null if it succeeded. */
+        IllegalArgumentException error;
+        /** Whether the transfer was processed now, rather than replayed from its idempotency key. */
+        boolean processed;
+
+        private Leg(Transaction txn, DocumentReference keyDoc) {
+            this.txn = txn;
+            this.keyDoc = keyDoc;
+        }
+
+        /**
+         * Clears the outcome before an attempt of the batch's transaction.
+         */
+        void reset() {
+            result = null;
+            error = null;
+            processed = false;
+        }
+    }
+
+    /**
+     * Transfers to one recipient gathered during a window.
+     */
+    private static final class Batch {
+        private final List<Leg> legs = new ArrayList<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+    }
+}
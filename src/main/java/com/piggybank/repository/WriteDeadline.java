@@ -0,0 +1,49 @@
+package com.piggybank.repository;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deadline of a write (see PBRepository.withWriteDeadline()). Until the write starts its Firestore transaction,
+ * running out of time means it never happens, so it's shed. Once started, it may commit whatever the deadline,
+ * so running out of time only means its outcome isn't known yet.
+ */
+final class WriteDeadline {
+    private static final int PENDING = 0;
+    private static final int STARTED = 1;
+    private static final int EXPIRED = 2;
+
+    /** Deadline as a System.nanoTime() value. */
+    private final long nanos;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    /**
+     * @param nanos Deadline as a System.nanoTime() value.
+     */
+    WriteDeadline(long nanos) {
+        this.nanos = nanos;
+    }
+
+    /**
+     * Called right before the write starts its first Firestore transaction; later calls (e.g. for the next
+     * chunk of a transfer) find it started.
+     *
+     * @return Whether the write may start; false if its deadline passed first, and it must be shed.
+     */
+    boolean start() {
+        if (System.nanoTime() - nanos >= 0) {
+            state.compareAndSet(PENDING, EXPIRED);
+        } else {
+            state.compareAndSet(PENDING, STARTED);
+        }
+        return state.get() == STARTED;
+    }
+
+    /**
+     * Called once the deadline passes.
+     *
+     * @return True if the write hadn't started, and now never will; false if it's already under way.
+     */
+    boolean expire() {
+        return state.compareAndSet(PENDING, EXPIRED) || state.get() == EXPIRED;
+    }
+}
@@ -0,0 +1,158 @@
+package com.piggybank.components;
+
+import com.google.firebase.ErrorCode;
+import com.google.firebase.auth.AuthErrorCode;
+import com.google.firebase.auth.FirebaseAuthException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.piggybank.util.SessionCookies.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit-testing suite for the SessionAuthenticator class's session verification. FirebaseAuth is stood in for by
+ * a stub FirebaseSessions, and local verification uses a generated key pair, so no Firebase service is needed.
+ */
+public class SessionAuthenticatorTest {
+    private static final String UID = "user1";
+    private static final String EMAIL = "user1@email.com";
+    private static final String SESSION_ID = "session-id";
+
+    private static KeyPair keyPair;
+
+    private SessionCookieVerifier verifier;
+
+    @BeforeAll
+    public static void beforeAll() throws Exception {
+        keyPair = generateKeyPair();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (verifier != null) {
+            verifier.stop();
+        }
+    }
+
+    /**
+     * Sessions verified through FirebaseAuth succeed: the user's ID comes from the 'sub' claim, since
+     * FirebaseToken's claims have no 'uid'.
+     */
+    @Test
+    public void getSessionEmailSucceedsThroughFirebase() throws Exception {
+        StubFirebase firebase = new StubFirebase(claims(UID, EMAIL), 0);
+        verifier = new SessionCookieVerifier(new MockEnvironment(), new SimpleMeterRegistry(), keysUnavailable());
+        SessionAuthenticator authenticator = authenticator(firebase);
+
+        assertEquals(EMAIL, authenticator.getSessionEmail(SESSION_ID));
+        assertEquals(List.of(SESSION_ID), firebase.verified);
+        assertEquals(List.of(UID), firebase.revocationChecks);
+    }
+
+    /**
+     * Sessions verified locally succeed without FirebaseAuth checking their signature.
+     */
+    @Test
+    public void getSessionEmailSucceedsLocally() throws Exception {
+        StubFirebase firebase = new StubFirebase(null, 0);
+        verifier = new SessionCookieVerifier(enabledEnvironment(), new SimpleMeterRegistry(), () ->
+                new SigningKeySource.SigningKeys(Map.of(KEY_ID, keyPair.getPublic()),
+                        System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+        SessionAuthenticator authenticator = authenticator(firebase);
+
+        String cookie = sign(keyPair.getPrivate(), KEY_ID, claims(UID, EMAIL));
+        assertEquals(EMAIL, authenticator.getSessionEmail(cookie));
+        assertTrue(firebase.verified.isEmpty());
+        assertEquals(List.of(UID), firebase.revocationChecks);
+    }
+
+    /**
+     * A verified session is cached: validating it again checks neither its signature nor its user again.
+     */
+    @Test
+    public void validateSessionSucceedsFromCache() throws Exception {
+        StubFirebase firebase = new StubFirebase(claims(UID, EMAIL), 0);
+        verifier = new SessionCookieVerifier(new MockEnvironment(), new SimpleMeterRegistry(), keysUnavailable());
+        SessionAuthenticator authenticator = authenticator(firebase);
+
+        authenticator.validateSession(SESSION_ID);
+        authenticator.validateSession(SESSION_ID);
+        assertEquals(1, firebase.verified.size());
+        assertEquals(1, firebase.revocationChecks.size());
+    }
+
+    /**
+     * Sessions signed in before their user's tokens were revoked fail.
+     */
+    @Test
+    public void validateSessionFailsRevoked() {
+        StubFirebase firebase = new StubFirebase(claims(UID, EMAIL), Long.MAX_VALUE);
+        verifier = new SessionCookieVerifier(new MockEnvironment(), new SimpleMeterRegistry(), keysUnavailable());
+        SessionAuthenticator authenticator = authenticator(firebase);
+
+        FirebaseAuthException e = assertThrows(FirebaseAuthException.class,
+                () -> authenticator.validateSession(SESSION_ID));
+        assertEquals(AuthErrorCode.REVOKED_SESSION_COOKIE, e.getAuthErrorCode());
+    }
+
+    private SessionAuthenticator authenticator(FirebaseSessions firebase) {
+        return new SessionAuthenticator(new MockEnvironment(), new SimpleMeterRegistry(), verifier, firebase);
+    }
+
+    private static SigningKeySource keysUnavailable() {
+        return () -> {
+            throw new IllegalStateException("Keys unavailable");
+        };
+    }
+
+    private static MockEnvironment enabledEnvironment() {
+        return new MockEnvironment()
+                .withProperty("piggybank.sessions.local-verification.enabled", "true")
+                .withProperty("firebase.project-id", PROJECT_ID);
+    }
+
+    /**
+     * Stands in for FirebaseAuth, recording the calls it gets.
+     */
+    private static final class StubFirebase extends FirebaseSessions {
+        private final Map<String, Object> claims;
+        private final long validAfter;
+        private final List<String> verified = new ArrayList<>();
+        private final List<String> revocationChecks = new ArrayList<>();
+
+        /**
+         * @param claims Claims of every session cookie, as FirebaseToken.getClaims() returns them, or null if
+         *               FirebaseAuth rejects every session cookie.
+         * @param validAfter Time sessions must be signed in after to be valid.
+         */
+        private StubFirebase(Map<String, Object> claims, long validAfter) {
+            this.claims = claims;
+            this.validAfter = validAfter;
+        }
+
+        @Override
+        Map<String, Object> verifySessionCookie(String sessionCookie) throws FirebaseAuthException {
+            verified.add(sessionCookie);
+            if (claims == null) {
+                throw new FirebaseAuthException(ErrorCode.INVALID_ARGUMENT, "Rejected", null, null,
+                        AuthErrorCode.INVALID_SESSION_COOKIE);
+            }
+            return claims;
+        }
+
+        @Override
+        long validAfter(String uid) {
+            revocationChecks.add(uid);
+            return validAfter;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.piggybank.components;
+
+import com.google.firebase.auth.AuthErrorCode;
+import com.google.firebase.auth.FirebaseAuthException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.security.KeyPair;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.piggybank.util.SessionCookies.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit-testing suite for the SessionCookieVerifier class. Session cookies are signed with a generated key pair,
+ * whose public key is served by a stub SigningKeySource, so no Firebase service is needed.
+ */
+public class SessionCookieVerifierTest {
+    private static final String UID = "user1";
+    private static final String EMAIL = "user1@email.com";
+
+    private static KeyPair keyPair;
+    private static KeyPair otherKeyPair;
+
+    private SimpleMeterRegistry registry;
+    private SessionCookieVerifier verifier;
+
+    @BeforeAll
+    public static void beforeAll() throws Exception {
+        keyPair = generateKeyPair();
+        otherKeyPair = generateKeyPair();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (verifier != null) {
+            verifier.stop();
+        }
+    }
+
+    /**
+     * The verify() method returns the claims of a valid session cookie.
+     */
+    @Test
+    public void verifySucceedsValidCookie() throws Exception {
+        verifier = readyVerifier();
+        Map<String, Object> claims = verifier.verify(sign(keyPair.getPrivate(), KEY_ID, claims(UID, EMAIL)));
+        assertEquals(UID, claims.get("sub"));
+        assertEquals(EMAIL, claims.get("email"));
+    }
+
+    /**
+     * The verify() method fails if the session cookie was signed with a different key than its key ID names.
+     */
+    @Test
+    public void verifyFailsWrongKey() throws Exception {
+        verifier = readyVerifier();
+        String cookie = sign(otherKeyPair.getPrivate(), KEY_ID, claims(UID, EMAIL));
+        assertInvalid(cookie, "Session cookie has an invalid signature");
+    }
+
+    /**
+     * The verify() method fails if the session cookie names a key the source doesn't have.
+     */
+    @Test
+    public void verifyFailsUnknownKeyId() throws Exception {
+        verifier = readyVerifier();
+        String cookie = sign(keyPair.getPrivate(), "unknown-key", claims(UID, EMAIL));
+        assertInvalid(cookie, "Session cookie is signed with an unknown key");
+    }
+
+    /**
+     * The verify() method fails if the session cookie was tampered with after it was signed.
+     */
+    @Test
+    public void verifyFailsTamperedClaims() throws Exception {
+        verifier = readyVerifier();
+        String[] parts = sign(keyPair.getPrivate(), KEY_ID, claims(UID, EMAIL)).split("\\.");
+        String other = sign(keyPair.getPrivate(), KEY_ID, claims("user2", EMAIL)).split("\\.")[1];
+        assertInvalid(parts[0] + "." + other + "." + parts[2], "Session cookie has an invalid signature");
+    }
+
+    /**
+     * The verify() method fails if the session cookie has expired.
+     */
+    @Test
+    public void verifyFailsExpired() throws Exception {
+        verifier = readyVerifier();
+        Map<String, Object> claims = claims(UID, EMAIL);
+        claims.put("exp", nowSeconds() - 1);
+        String cookie = sign(keyPair.getPrivate(), KEY_ID, claims);
+
+        FirebaseAuthException e = assertThrows(FirebaseAuthException.class, () -> verifier.verify(cookie));
+        assertEquals(AuthErrorCode.EXPIRED_SESSION_COOKIE, e.getAuthErrorCode());
+    }
+
+    /**
+     * The verify() method fails if the session cookie was issued for another project.
+     */
+    @Test
+    public void verifyFailsWrongAudience() throws Exception {
+        verifier = readyVerifier();
+        Map<String, Object> claims = claims(UID, EMAIL);
+        claims.put("aud", "other-project");
+        assertInvalid(sign(keyPair.getPrivate(), KEY_ID, claims), "Session cookie wasn't issued for this project");
+    }
+
+    /**
+     * The verify() method fails if the session cookie has another issuer, e.g. it's an ID token.
+     */
+    @Test
+    public void verifyFailsWrongIssuer() throws Exception {
+        verifier = readyVerifier();
+        Map<String, Object> claims = claims(UID, EMAIL);
+        claims.put("iss", "https://securetoken.google.com/" + PROJECT_ID);
+        assertInvalid(sign(keyPair.getPrivate(), KEY_ID, claims), "Session cookie wasn't issued for this project");
+    }
+
+    /**
+     * The verify() method fails if the session cookie has no subject.
+     */
+    @Test
+    public void verifyFailsMissingSubject() throws Exception {
+        verifier = readyVerifier();
+        Map<String, Object> claims = claims(UID, EMAIL);
+        claims.remove("sub");
+        assertInvalid(sign(keyPair.getPrivate(), KEY_ID, claims), "Session cookie has an invalid subject");
+    }
+
+    /**
+     * The verify() method fails if the session cookie's user signed in in the future.
+     */
+    @Test
+    public void verifyFailsFutureAuthTime() throws Exception {
+        verifier = readyVerifier();
+        Map<String, Object> claims = claims(UID, EMAIL);
+        claims.put("auth_time", nowSeconds() + TimeUnit.HOURS.toSeconds(1));
+        assertInvalid(sign(keyPair.getPrivate(), KEY_ID, claims), "Session cookie has an invalid sign-in time");
+    }
+
+    /**
+     * The verify() method fails if the session cookie isn't a JWT.
+     */
+    @Test
+    public void verifyFailsMalformed() throws Exception {
+        verifier = readyVerifier();
+        assertInvalid("not-a-jwt", "Session cookie isn't a JWT");
+    }
+
+    /**
+     * The verifier isn't ready if its keys couldn't be fetched, and counts the failure.
+     */
+    @Test
+    public void verifierNotReadyWhenKeysUnavailable() {
+        registry = new SimpleMeterRegistry();
+        verifier = new SessionCookieVerifier(enabledEnvironment(), registry, () -> {
+            throw new IllegalStateException("Keys unavailable");
+        });
+
+        assertFalse(verifier.isReady());
+        assertEquals(1, registry.counter("sessions.keys.failures").count());
+        assertThrows(IllegalStateException.class, () -> verifier.verify("a.b.c"));
+    }
+
+    private SessionCookieVerifier readyVerifier() {
+        registry = new SimpleMeterRegistry();
+        SessionCookieVerifier ready = new SessionCookieVerifier(enabledEnvironment(), registry, () ->
+                new SigningKeySource.SigningKeys(Map.of(KEY_ID, keyPair.getPublic()),
+                        System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+        assertTrue(ready.isReady());
+        return ready;
+    }
+
+    private void assertInvalid(String cookie, String message) {
+        FirebaseAuthException e = assertThrows(FirebaseAuthException.class, () -> verifier.verify(cookie));
+        assertEquals(AuthErrorCode.INVALID_SESSION_COOKIE, e.getAuthErrorCode());
+        assertEquals(message, e.getMessage());
+    }
+
+    private static MockEnvironment enabledEnvironment() {
+        return new MockEnvironment()
+                .withProperty("piggybank.sessions.local-verification.enabled", "true")
+                .withProperty("firebase.project-id", PROJECT_ID);
+    }
+
+    private static long nowSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    }
+}
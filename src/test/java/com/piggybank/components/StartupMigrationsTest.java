@@ -0,0 +1,61 @@
+package com.piggybank.components;
+
+import com.piggybank.repository.AccountRepository;
+import com.piggybank.repository.TransactionRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit-testing suite for the StartupMigrations class. The repositories are mocked, so no Firestore is needed.
+ */
+public class StartupMigrationsTest {
+    /**
+     * Migrations are off unless switched on, so none of them should run by default.
+     */
+    @Test
+    public void runMigrationsRunsNoneByDefault() throws Exception {
+        // Mock
+        AccountRepository accounts = mock(AccountRepository.class);
+        TransactionRepository transactions = mock(TransactionRepository.class);
+        StartupMigrations migrations = new StartupMigrations(
+                new MockEnvironment(), accounts, transactions, new SimpleMeterRegistry());
+
+        // Test
+        migrations.runMigrations();
+
+        // Verify
+        verifyNoInteractions(accounts, transactions);
+    }
+
+    /**
+     * A failed migration should be counted without throwing, and the migrations after it should still run.
+     */
+    @Test
+    public void runMigrationsCountsFailureAndContinues() throws Exception {
+        // Mock
+        AccountRepository accounts = mock(AccountRepository.class);
+        TransactionRepository transactions = mock(TransactionRepository.class);
+        when(transactions.backfillTimestamps()).thenThrow(new ExecutionException(new RuntimeException("unavailable")));
+        when(accounts.dropTransactionIds()).thenReturn(2);
+        MockEnvironment env = new MockEnvironment()
+                .withProperty("piggybank.migrations.transaction-timestamps", "true")
+                .withProperty("piggybank.migrations.drop-transaction-ids", "true");
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        StartupMigrations migrations = new StartupMigrations(env, accounts, transactions, registry);
+
+        // Test
+        assertDoesNotThrow(migrations::runMigrations);
+
+        // Verify
+        verify(accounts).dropTransactionIds();
+        verify(accounts, never()).backfillUsernameIndex();
+        assertEquals(1.0, registry.counter("piggybank.migrations.failures",
+                "migration", "transaction-timestamps").count());
+    }
+}
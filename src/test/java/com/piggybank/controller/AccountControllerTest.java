@@ -6,6 +6,7 @@ import com.google.firebase.auth.FirebaseAuthException;
 import com.piggybank.components.SessionAuthenticator;
 import com.piggybank.model.Account;
 import com.piggybank.repository.AccountRepository;
+import com.piggybank.repository.OutcomeUnknownException;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -15,6 +16,9 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 
 import javax.security.auth.message.AuthException;
@@ -30,10 +34,13 @@ import static com.piggybank.mocks.MockModels.mockAccount;
 import static com.piggybank.model.Account.AccountType;
 import static com.piggybank.util.FirebaseEmulatorServices.*;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.failedFuture;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -72,6 +79,19 @@ public class AccountControllerTest {
         return new ObjectMapper().writeValueAsString(object);
     }
 
+    /**
+     * Performs a request against an endpoint that responds asynchronously, and dispatches its result once the
+     * endpoint's future completes.
+     *
+     * @param builder Request to perform.
+     * @return Actions on the dispatched response.
+     * @throws Exception When an exception occurs performing the request.
+     */
+    private ResultActions performAsync(RequestBuilder builder) throws Exception {
+        MvcResult result = mvc.perform(builder).andExpect(request().asyncStarted()).andReturn();
+        return mvc.perform(asyncDispatch(result));
+    }
+
     /**
      * Load Firestore with fake data before each test.
      */
@@ -187,14 +207,14 @@ public class AccountControllerTest {
 
         // Mock
         doReturn(VALID_SESSION_COOKIE).when(authenticator).generateNewSession(VALID_TOKEN_ID);
-        when(repository.create(account)).thenReturn("Account created successfully!");
+        when(repository.createAsync(account)).thenReturn(completedFuture("Account created successfully!"));
 
         // Test
         MockHttpServletRequestBuilder request = post("/api/v1/account/create")
                 .param("token", VALID_TOKEN_ID)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(account)))
+            performAsync(request.content(jsonOf(account)))
                     .andExpect(status().isOk())
                     .andExpect(content().string("Account created successfully!"));
         } catch (Exception e) {
@@ -202,7 +222,7 @@ public class AccountControllerTest {
         }
 
         // Verify
-        verify(repository, times(1)).create(account);
+        verify(repository, times(1)).createAsync(account);
         verify(authenticator, times(1)).generateNewSession(VALID_TOKEN_ID);
     }
 
@@ -221,7 +241,7 @@ public class AccountControllerTest {
                 .param("token", INVALID_TOKEN_ID)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(account)))
+            performAsync(request.content(jsonOf(account)))
                     .andExpect(status().isUnauthorized())
                     .andExpect(content().string("Failed to create a session"));
         } catch (Exception t) {
@@ -229,7 +249,7 @@ public class AccountControllerTest {
         }
 
         // Verify
-        verify(repository, never()).create(any());
+        verify(repository, never()).createAsync(any());
         verify(authenticator, times(1)).generateNewSession(INVALID_TOKEN_ID);
     }
 
@@ -248,7 +268,7 @@ public class AccountControllerTest {
                 .param("token", EXPIRED_TOKEN_ID)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(account)))
+            performAsync(request.content(jsonOf(account)))
                     .andExpect(status().isUnauthorized())
                     .andExpect(content().string("Recent sign in required"));
         } catch (Exception e) {
@@ -256,7 +276,7 @@ public class AccountControllerTest {
         }
 
         // Verify
-        verify(repository, never()).create(any());
+        verify(repository, never()).createAsync(any());
         verify(authenticator, times(1)).generateNewSession(EXPIRED_TOKEN_ID);
     }
 
@@ -271,20 +291,21 @@ public class AccountControllerTest {
 
         // Mock
         doReturn(VALID_SESSION_COOKIE).when(authenticator).generateNewSession(VALID_TOKEN_ID);
-        when(repository.create(argThat(acct -> acct.getType() == null))).thenThrow(IllegalArgumentException.class);
+        when(repository.createAsync(argThat(acct -> acct.getType() == null)))
+                .thenReturn(failedFuture(new IllegalArgumentException()));
 
         // Test
         MockHttpServletRequestBuilder request = post("/api/v1/account/create")
                 .param("token", VALID_TOKEN_ID)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(account))).andExpect(status().isBadRequest());
+            performAsync(request.content(jsonOf(account))).andExpect(status().isBadRequest());
         } catch (Exception e) {
             fail(e);
         }
 
         // Verify
-        verify(repository, times(1)).create(account);
+        verify(repository, times(1)).createAsync(account);
         verify(authenticator, times(1)).generateNewSession(VALID_TOKEN_ID);
     }
 
@@ -295,7 +316,7 @@ public class AccountControllerTest {
     public void loginSucceeds() throws Exception {
         // Mock
         doReturn(VALID_SESSION_COOKIE).when(authenticator).generateNewSession(VALID_TOKEN_ID);
-        when(repository.login(CUSTOMER_EMAIL, CUSTOMER_PASSWORD)).thenReturn("Login successful!");
+        when(repository.loginAsync(CUSTOMER_EMAIL, CUSTOMER_PASSWORD)).thenReturn(completedFuture("Login successful!"));
 
         // Test
         MockHttpServletRequestBuilder request = post("/api/v1/account/log-in")
@@ -303,7 +324,7 @@ public class AccountControllerTest {
                 .param("password", CUSTOMER_PASSWORD)
                 .param("token", VALID_TOKEN_ID);
         try {
-            mvc.perform(request)
+            performAsync(request)
                     .andExpect(status().isOk())
                     .andExpect(content().string("Login successful!"));
         } catch (Exception e) {
@@ -311,7 +332,7 @@ public class AccountControllerTest {
         }
 
         // Verify
-        verify(repository, times(1)).login(CUSTOMER_EMAIL, CUSTOMER_PASSWORD);
+        verify(repository, times(1)).loginAsync(CUSTOMER_EMAIL, CUSTOMER_PASSWORD);
         verify(authenticator, times(1)).generateNewSession(VALID_TOKEN_ID);
     }
 
@@ -329,7 +350,7 @@ public class AccountControllerTest {
                 .param("password", CUSTOMER_PASSWORD)
                 .param("token", INVALID_TOKEN_ID);
         try {
-            mvc.perform(request)
+            performAsync(request)
                     .andExpect(status().isUnauthorized())
                     .andExpect(content().string("Failed to create a session"));
         } catch (Exception e) {
@@ -337,7 +358,7 @@ public class AccountControllerTest {
         }
 
         // Verify
-        verify(repository, never()).login(any(), any());
+        verify(repository, never()).loginAsync(any(), any());
         verify(authenticator, times(1)).generateNewSession(INVALID_TOKEN_ID);
     }
 
@@ -355,7 +376,7 @@ public class AccountControllerTest {
                 .param("password", CUSTOMER_PASSWORD)
                 .param("token", EXPIRED_TOKEN_ID);
         try {
-            mvc.perform(request)
+            performAsync(request)
                     .andExpect(status().isUnauthorized())
                     .andExpect(content().string("Recent sign in required"));
         } catch (Exception e) {
@@ -363,7 +384,7 @@ public class AccountControllerTest {
         }
 
         // Verify
-        verify(repository, never()).login(any(), any());
+        verify(repository, never()).loginAsync(any(), any());
         verify(authenticator, times(1)).generateNewSession(EXPIRED_TOKEN_ID);
     }
 
@@ -378,8 +399,8 @@ public class AccountControllerTest {
 
         // Mock
         doReturn(VALID_SESSION_COOKIE).when(authenticator).generateNewSession(VALID_TOKEN_ID);
-        when(repository.login(fakeEmail, fakePassword))
-                .thenThrow(IllegalArgumentException.class);
+        when(repository.loginAsync(fakeEmail, fakePassword))
+                .thenReturn(failedFuture(new IllegalArgumentException()));
 
         // Test
         MockHttpServletRequestBuilder request = post("/api/v1/account/log-in")
@@ -387,13 +408,13 @@ public class AccountControllerTest {
                 .param("password", fakePassword)
                 .param("token", VALID_TOKEN_ID);
         try {
-            mvc.perform(request).andExpect(status().isBadRequest());
+            performAsync(request).andExpect(status().isBadRequest());
         } catch (Exception e) {
             fail(e);
         }
 
         // Verify
-        verify(repository, times(1)).login(fakeEmail, fakePassword);
+        verify(repository, times(1)).loginAsync(fakeEmail, fakePassword);
         verify(authenticator, times(1)).generateNewSession(VALID_TOKEN_ID);
     }
 
@@ -448,7 +469,8 @@ public class AccountControllerTest {
 
         // Mock
         doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
-        when(repository.update(CUSTOMER_EMAIL, account)).thenReturn("Account successfully updated!");
+        when(repository.updateAsync(CUSTOMER_EMAIL, account))
+                .thenReturn(completedFuture("Account successfully updated!"));
 
         // Test
         MockHttpServletRequestBuilder request = put("/api/v1/account/update")
@@ -456,7 +478,7 @@ public class AccountControllerTest {
                 .cookie(VALID_SESSION_COOKIE)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(account)))
+            performAsync(request.content(jsonOf(account)))
                     .andExpect(status().isOk())
                     .andExpect(content().string("Account successfully updated!"));
         } catch (Exception e) {
@@ -464,7 +486,7 @@ public class AccountControllerTest {
         }
 
         // Verify
-        verify(repository, times(1)).update(CUSTOMER_EMAIL, account);
+        verify(repository, times(1)).updateAsync(CUSTOMER_EMAIL, account);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
@@ -485,7 +507,7 @@ public class AccountControllerTest {
                 .cookie(INVALID_SESSION_COOKIE)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(account)))
+            performAsync(request.content(jsonOf(account)))
                     .andExpect(status().isUnauthorized())
                     .andExpect(content().string("Failed to validate session"));
         } catch (Exception e) {
@@ -493,7 +515,7 @@ public class AccountControllerTest {
         }
 
         // Verify
-        verify(repository, never()).update(any(), any());
+        verify(repository, never()).updateAsync(any(), any());
         verify(authenticator, times(1)).validateSession(INVALID_SESSION_ID);
     }
 
@@ -507,7 +529,7 @@ public class AccountControllerTest {
         account.setEmail(invalidEmail);
 
         // Mock
-        when(repository.update(invalidEmail, account)).thenThrow(IllegalArgumentException.class);
+        when(repository.updateAsync(invalidEmail, account)).thenReturn(failedFuture(new IllegalArgumentException()));
 
         // Test
         MockHttpServletRequestBuilder request = put("/api/v1/account/update")
@@ -515,13 +537,45 @@ public class AccountControllerTest {
                 .cookie(VALID_SESSION_COOKIE)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(account))).andExpect(status().isBadRequest());
+            performAsync(request.content(jsonOf(account))).andExpect(status().isBadRequest());
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, times(1)).updateAsync(invalidEmail, account);
+        verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
+    }
+
+    /**
+     * The update() endpoint should respond w/ HTTP status 202 ACCEPTED, not 504 GATEWAY TIMEOUT, because the
+     * deadline passed while the update was being written and it may still complete.
+     */
+    @Test
+    public void updateAcceptedOutcomeUnknown() throws Exception {
+        Account account = mockAccount(AccountType.CUSTOMER);
+        account.setEmail(CUSTOMER_EMAIL);
+        OutcomeUnknownException outcomeUnknown = new OutcomeUnknownException();
+
+        // Mock
+        doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
+        when(repository.updateAsync(CUSTOMER_EMAIL, account)).thenReturn(failedFuture(outcomeUnknown));
+
+        // Test
+        MockHttpServletRequestBuilder request = put("/api/v1/account/update")
+                .param("email", CUSTOMER_EMAIL)
+                .cookie(VALID_SESSION_COOKIE)
+                .contentType(MediaType.APPLICATION_JSON);
+        try {
+            performAsync(request.content(jsonOf(account)))
+                    .andExpect(status().isAccepted())
+                    .andExpect(content().string(outcomeUnknown.getMessage()));
         } catch (Exception e) {
             fail(e);
         }
 
         // Verify
-        verify(repository, times(1)).update(invalidEmail, account);
+        verify(repository, times(1)).updateAsync(CUSTOMER_EMAIL, account);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
@@ -534,14 +588,14 @@ public class AccountControllerTest {
         Account.filterSensitiveData(account);
 
         // Mock
-        when(repository.get(CUSTOMER_EMAIL)).thenReturn(account);
+        when(repository.getAsync(CUSTOMER_EMAIL, false)).thenReturn(completedFuture(account));
 
         // Test
         MockHttpServletRequestBuilder request = get("/api/v1/account/get")
                 .param("email", CUSTOMER_EMAIL)
                 .cookie(VALID_SESSION_COOKIE);
         try {
-            mvc.perform(request)
+            performAsync(request)
                     .andExpect(status().isOk())
                     .andExpect(content().string(jsonOf(account)));
         } catch (Exception e) {
@@ -549,7 +603,36 @@ public class AccountControllerTest {
         }
 
         // Verify
-        verify(repository, times(1)).get(CUSTOMER_EMAIL);
+        verify(repository, times(1)).getAsync(CUSTOMER_EMAIL, false);
+        verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
+    }
+
+    /**
+     * The get() endpoint should bypass the account cache when the request has a 'Cache-Control: no-cache' header.
+     */
+    @Test
+    public void getBypassesCacheWithNoCacheHeader() throws Exception {
+        Account account = getFromFirestore("Accounts", CUSTOMER_EMAIL, Account.class);
+        Account.filterSensitiveData(account);
+
+        // Mock
+        when(repository.getAsync(CUSTOMER_EMAIL, true)).thenReturn(completedFuture(account));
+
+        // Test
+        MockHttpServletRequestBuilder request = get("/api/v1/account/get")
+                .param("email", CUSTOMER_EMAIL)
+                .header("Cache-Control", "no-cache")
+                .cookie(VALID_SESSION_COOKIE);
+        try {
+            performAsync(request)
+                    .andExpect(status().isOk())
+                    .andExpect(content().string(jsonOf(account)));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, times(1)).getAsync(CUSTOMER_EMAIL, true);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
@@ -566,7 +649,7 @@ public class AccountControllerTest {
                 .param("email", CUSTOMER_EMAIL)
                 .cookie(INVALID_SESSION_COOKIE);
         try {
-            mvc.perform(request)
+            performAsync(request)
                     .andExpect(status().isUnauthorized())
                     .andExpect(content().string("Failed to validate session"));
         } catch (Exception e) {
@@ -574,7 +657,7 @@ public class AccountControllerTest {
         }
 
         // Verify
-        verify(repository, never()).get(any());
+        verify(repository, never()).getAsync(any(), anyBoolean());
         verify(authenticator, times(1)).validateSession(INVALID_SESSION_ID);
     }
 
@@ -586,20 +669,74 @@ public class AccountControllerTest {
         String invalidEmail = "invalid-email";
 
         // Mock
-        when(repository.get(invalidEmail)).thenThrow(IllegalArgumentException.class);
+        when(repository.getAsync(invalidEmail, false)).thenReturn(failedFuture(new IllegalArgumentException()));
 
         // Test
         MockHttpServletRequestBuilder request = get("/api/v1/account/get")
                 .param("email", invalidEmail)
                 .cookie(VALID_SESSION_COOKIE);
         try {
-            mvc.perform(request).andExpect(status().isBadRequest());
+            performAsync(request).andExpect(status().isBadRequest());
         } catch (Exception e) {
             fail(e);
         }
 
         // Verify
-        verify(repository, times(1)).get(invalidEmail);
+        verify(repository, times(1)).getAsync(invalidEmail, false);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
-}
\ No newline at end of file
+
+    /**
+     * The setBalanceShards() endpoint should succeed w/ HTTP status 200 OK using a valid session ID.
+     */
+    @Test
+    public void setBalanceShardsSucceeds() throws Exception {
+        // Mock
+        doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
+        when(repository.setBalanceShardsAsync(CUSTOMER_EMAIL, 10))
+                .thenReturn(completedFuture("Balance shards updated!"));
+
+        // Test
+        MockHttpServletRequestBuilder request = put("/api/v1/account/setBalanceShards")
+                .param("email", CUSTOMER_EMAIL)
+                .param("shards", "10")
+                .cookie(VALID_SESSION_COOKIE);
+        try {
+            performAsync(request)
+                    .andExpect(status().isOk())
+                    .andExpect(content().string("Balance shards updated!"));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, times(1)).setBalanceShardsAsync(CUSTOMER_EMAIL, 10);
+        verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
+    }
+
+    /**
+     * The setBalanceShards() endpoint should fail w/ HTTP status 401 UNAUTHORIZED because the session ID is invalid.
+     */
+    @Test
+    public void setBalanceShardsFailsInvalidSession() throws Exception {
+        // Mock
+        doThrow(FirebaseAuthException.class).when(authenticator).validateSession(INVALID_SESSION_ID);
+
+        // Test
+        MockHttpServletRequestBuilder request = put("/api/v1/account/setBalanceShards")
+                .param("email", CUSTOMER_EMAIL)
+                .param("shards", "10")
+                .cookie(INVALID_SESSION_COOKIE);
+        try {
+            performAsync(request)
+                    .andExpect(status().isUnauthorized())
+                    .andExpect(content().string("Failed to validate session"));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, never()).setBalanceShardsAsync(any(), anyInt());
+        verify(authenticator, times(1)).validateSession(INVALID_SESSION_ID);
+    }
+}
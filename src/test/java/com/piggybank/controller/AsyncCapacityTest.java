@@ -0,0 +1,93 @@
+package com.piggybank.controller;
+
+import com.piggybank.components.SessionAuthenticator;
+import com.piggybank.model.Transaction;
+import com.piggybank.repository.TransactionRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Load test of the asynchronous endpoints.
+ * Runs the application on a real port with a fixed, small number of request threads, and a repository whose
+ * futures take a while to complete (standing in for Firestore round trips). Since request threads are released
+ * while the futures are pending, many more requests are in flight at once than there are threads.
+ */
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {"server.tomcat.threads.max=" + AsyncCapacityTest.THREADS, "server.tomcat.threads.min-spare=1"}
+)
+public class AsyncCapacityTest {
+    static final int THREADS = 4;
+    private static final int REQUESTS = THREADS * 16;
+    private static final long LATENCY_MILLIS = 500;
+
+    private final ScheduledExecutorService firestore = Executors.newSingleThreadScheduledExecutor();
+
+    @MockBean private TransactionRepository repository;
+    @MockBean private SessionAuthenticator authenticator;
+
+    @LocalServerPort private int port;
+
+    /**
+     * Stop the scheduler completing the repository's futures after each test.
+     */
+    @AfterEach
+    public void afterEach() {
+        firestore.shutdownNow();
+    }
+
+    /**
+     * Requests far outnumbering the request threads should all be served in about one round trip, rather than
+     * one round trip per thread's worth of requests.
+     */
+    @Test
+    public void concurrentRequestsExceedThreadCount() throws Exception {
+        // Mock
+        when(repository.getTxnAsync(anyString())).thenAnswer(invocation -> {
+            CompletableFuture<Transaction> future = new CompletableFuture<>();
+            firestore.schedule(() -> future.complete(new Transaction()), LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+            return future;
+        });
+
+        // Test
+        HttpClient client = HttpClient.newBuilder().executor(Executors.newFixedThreadPool(REQUESTS)).build();
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + port + "/api/v1/transaction/getSingleTransaction?txnId=tx-id0"))
+                .header("Cookie", "session=session-id")
+                .build();
+
+        long start = System.nanoTime();
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++) {
+            responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+        }
+        for (CompletableFuture<HttpResponse<String>> response : responses) {
+            assertEquals(200, response.get().statusCode());
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // Verify: blocking endpoints would need REQUESTS / THREADS round trips.
+        long blockingMillis = (REQUESTS / THREADS) * LATENCY_MILLIS;
+        assertTrue(elapsedMillis < blockingMillis / 2,
+                "Took " + elapsedMillis + "ms, blocking endpoints would take " + blockingMillis + "ms");
+    }
+}
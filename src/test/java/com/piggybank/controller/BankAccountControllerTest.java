@@ -17,6 +17,9 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 
 import javax.security.auth.message.AuthException;
@@ -33,10 +36,13 @@ import static com.piggybank.mocks.MockModels.mockBankAccount;
 import static com.piggybank.model.Account.AccountType;
 import static com.piggybank.util.FirebaseEmulatorServices.*;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.failedFuture;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -70,6 +76,19 @@ public class BankAccountControllerTest {
         return new ObjectMapper().writeValueAsString(object);
     }
 
+    /**
+     * Performs a request against an endpoint that responds asynchronously, and dispatches its result once the
+     * endpoint's future completes.
+     *
+     * @param builder Request to perform.
+     * @return Actions on the dispatched response.
+     * @throws Exception When an exception occurs performing the request.
+     */
+    private ResultActions performAsync(RequestBuilder builder) throws Exception {
+        MvcResult result = mvc.perform(builder).andExpect(request().asyncStarted()).andReturn();
+        return mvc.perform(asyncDispatch(result));
+    }
+
     /**
      * Load Firestore with fake data before each test.
      */
@@ -185,7 +204,8 @@ public class BankAccountControllerTest {
 
         // Mock
         doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
-        when(repository.update(CUSTOMER_EMAIL, bank)).thenReturn("Bank account successfully updated!");
+        when(repository.updateAsync(CUSTOMER_EMAIL, bank))
+                .thenReturn(completedFuture("Bank account successfully updated!"));
 
         // Test
         MockHttpServletRequestBuilder request = put("/api/v1/bank/update")
@@ -193,7 +213,7 @@ public class BankAccountControllerTest {
                 .cookie(VALID_SESSION_COOKIE)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(bank)))
+            performAsync(request.content(jsonOf(bank)))
                     .andExpect(status().isOk())
                     .andExpect(content().string("Bank account successfully updated!"));
         } catch (Exception e) {
@@ -201,7 +221,7 @@ public class BankAccountControllerTest {
         }
 
         // Verify
-        verify(repository, times(1)).update(CUSTOMER_EMAIL, bank);
+        verify(repository, times(1)).updateAsync(CUSTOMER_EMAIL, bank);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
@@ -221,7 +241,7 @@ public class BankAccountControllerTest {
                 .cookie(INVALID_SESSION_COOKIE)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(bank)))
+            performAsync(request.content(jsonOf(bank)))
                     .andExpect(status().isUnauthorized())
                     .andExpect(content().string("Failed to validate session"));
         } catch (Exception e) {
@@ -229,7 +249,7 @@ public class BankAccountControllerTest {
         }
 
         // Verify
-        verify(repository, never()).update(any(), any());
+        verify(repository, never()).updateAsync(any(), any());
         verify(authenticator, times(1)).validateSession(INVALID_SESSION_ID);
     }
 
@@ -242,7 +262,7 @@ public class BankAccountControllerTest {
         BankAccount bank = mockBankAccount();
 
         // Mock
-        when(repository.update(invalidEmail, bank)).thenThrow(IllegalArgumentException.class);
+        when(repository.updateAsync(invalidEmail, bank)).thenReturn(failedFuture(new IllegalArgumentException()));
 
         // Test
         MockHttpServletRequestBuilder request = put("/api/v1/bank/update")
@@ -250,13 +270,13 @@ public class BankAccountControllerTest {
                 .cookie(VALID_SESSION_COOKIE)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(bank))).andExpect(status().isBadRequest());
+            performAsync(request.content(jsonOf(bank))).andExpect(status().isBadRequest());
         } catch (Exception e) {
             fail(e);
         }
 
         // Verify
-        verify(repository, times(1)).update(invalidEmail, bank);
+        verify(repository, times(1)).updateAsync(invalidEmail, bank);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
@@ -267,14 +287,14 @@ public class BankAccountControllerTest {
     public void removeSucceeds() throws Exception {
         // Mock
         doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
-        when(repository.remove(CUSTOMER_EMAIL)).thenReturn("Bank account successfully removed!");
+        when(repository.removeAsync(CUSTOMER_EMAIL)).thenReturn(completedFuture("Bank account successfully removed!"));
 
         // Test
         MockHttpServletRequestBuilder request = delete("/api/v1/bank/remove")
                 .param("email", CUSTOMER_EMAIL)
                 .cookie(VALID_SESSION_COOKIE);
         try {
-            mvc.perform(request)
+            performAsync(request)
                     .andExpect(status().isOk())
                     .andExpect(content().string("Bank account successfully removed!"));
         } catch (Exception e) {
@@ -282,7 +302,7 @@ public class BankAccountControllerTest {
         }
 
         // Verify
-        verify(repository, times(1)).remove(CUSTOMER_EMAIL);
+        verify(repository, times(1)).removeAsync(CUSTOMER_EMAIL);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
@@ -299,7 +319,7 @@ public class BankAccountControllerTest {
                 .param("email", CUSTOMER_EMAIL)
                 .cookie(INVALID_SESSION_COOKIE);
         try {
-            mvc.perform(request)
+            performAsync(request)
                     .andExpect(status().isUnauthorized())
                     .andExpect(content().string("Failed to validate session"));
         } catch (Exception e) {
@@ -307,7 +327,7 @@ public class BankAccountControllerTest {
         }
 
         // Verify
-        verify(repository, never()).update(any(), any());
+        verify(repository, never()).updateAsync(any(), any());
         verify(authenticator, times(1)).validateSession(INVALID_SESSION_ID);
     }
 
@@ -319,20 +339,20 @@ public class BankAccountControllerTest {
         String invalidEmail = "not-a-valid-email";
 
         // Mock
-        when(repository.remove(invalidEmail)).thenThrow(IllegalArgumentException.class);
+        when(repository.removeAsync(invalidEmail)).thenReturn(failedFuture(new IllegalArgumentException()));
 
         // Test
         MockHttpServletRequestBuilder request = delete("/api/v1/bank/remove")
                 .param("email", invalidEmail)
                 .cookie(VALID_SESSION_COOKIE);
         try {
-            mvc.perform(request).andExpect(status().isBadRequest());
+            performAsync(request).andExpect(status().isBadRequest());
         } catch (Exception e) {
             fail(e);
         }
 
         // Verify
-        verify(repository, times(1)).remove(invalidEmail);
+        verify(repository, times(1)).removeAsync(invalidEmail);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
@@ -344,14 +364,14 @@ public class BankAccountControllerTest {
         BankAccount bank = getFromFirestore("Accounts", CUSTOMER_EMAIL, Account.class).getBankAccount();
 
         // Mock
-        when(repository.get(CUSTOMER_EMAIL)).thenReturn(bank);
+        when(repository.getAsync(CUSTOMER_EMAIL)).thenReturn(completedFuture(bank));
 
         // Test
         MockHttpServletRequestBuilder request = get("/api/v1/bank/get")
                 .param("email", CUSTOMER_EMAIL)
                 .cookie(VALID_SESSION_COOKIE);
         try {
-            mvc.perform(request)
+            performAsync(request)
                     .andExpect(status().isOk())
                     .andExpect(content().string(jsonOf(bank)));
         } catch (Exception e) {
@@ -359,7 +379,7 @@ public class BankAccountControllerTest {
         }
 
         // Verify
-        verify(repository, times(1)).get(CUSTOMER_EMAIL);
+        verify(repository, times(1)).getAsync(CUSTOMER_EMAIL);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
@@ -376,7 +396,7 @@ public class BankAccountControllerTest {
                 .param("email", CUSTOMER_EMAIL)
                 .cookie(INVALID_SESSION_COOKIE);
         try {
-            mvc.perform(request)
+            performAsync(request)
                     .andExpect(status().isUnauthorized())
                     .andExpect(content().string("Failed to validate session"));
         } catch (Exception e) {
@@ -384,7 +404,7 @@ public class BankAccountControllerTest {
         }
 
         // Verify
-        verify(repository, never()).get(any());
+        verify(repository, never()).getAsync(any());
         verify(authenticator, times(1)).validateSession(INVALID_SESSION_ID);
     }
 
@@ -396,20 +416,20 @@ public class BankAccountControllerTest {
         String invalidEmail = "invalid-email";
 
         // Mock
-        when(repository.get(invalidEmail)).thenThrow(IllegalArgumentException.class);
+        when(repository.getAsync(invalidEmail)).thenReturn(failedFuture(new IllegalArgumentException()));
 
         // Test
         MockHttpServletRequestBuilder request = get("/api/v1/bank/get")
                 .param("email", invalidEmail)
                 .cookie(VALID_SESSION_COOKIE);
         try {
-            mvc.perform(request).andExpect(status().isBadRequest());
+            performAsync(request).andExpect(status().isBadRequest());
         } catch (Exception e) {
             fail(e);
         }
 
         // Verify
-        verify(repository, times(1)).get(invalidEmail);
+        verify(repository, times(1)).getAsync(invalidEmail);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 }
\ No newline at end of file
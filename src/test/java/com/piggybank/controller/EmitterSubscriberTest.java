@@ -0,0 +1,80 @@
+package com.piggybank.controller;
+
+import com.piggybank.components.AccountFeed;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit-testing suite for TransactionController's EmitterSubscriber. The client is stood in for by an SseEmitter
+ * whose sends block until the test lets them through.
+ */
+public class EmitterSubscriberTest {
+    /**
+     * Events should be handed off without waiting on a client that isn't reading them, and a client that falls
+     * more than FEED_BUFFER events behind should lose the oldest ones.
+     */
+    @Test
+    public void onEventDoesNotBlockAndDropsOldest() throws Exception {
+        BlockingEmitter emitter = new BlockingEmitter();
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+        TransactionController.EmitterSubscriber subscriber =
+                new TransactionController.EmitterSubscriber(emitter, sender);
+        subscriber.onSubscribe(() -> {});
+
+        try {
+            // Test
+            long start = System.nanoTime();
+            subscriber.onEvent(AccountFeed.BALANCE, 0L);
+            assertTrue(emitter.sending.await(1, TimeUnit.SECONDS));
+            for (long i = 1; i <= TransactionController.FEED_BUFFER + 10; i++) {
+                subscriber.onEvent(AccountFeed.BALANCE, i);
+            }
+            long elapsed = System.nanoTime() - start;
+            emitter.release.countDown();
+            subscriber.onClose();
+
+            // Verify
+            assertTrue(emitter.completed.await(1, TimeUnit.SECONDS));
+            assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(500));
+            assertEquals(TransactionController.FEED_BUFFER + 1, emitter.sent.size());
+        } finally {
+            sender.shutdownNow();
+        }
+    }
+
+    /**
+     * Emitter whose first send blocks until 'release' is counted down, recording every send.
+     */
+    private static final class BlockingEmitter extends SseEmitter {
+        private final CountDownLatch sending = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private final List<SseEventBuilder> sent = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void send(SseEventBuilder event) {
+            sending.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sent.add(event);
+        }
+
+        @Override
+        public void complete() {
+            completed.countDown();
+        }
+    }
+}
@@ -3,11 +3,18 @@ package com.piggybank.controller;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.firebase.auth.FirebaseAuthException;
+import com.piggybank.components.AccountFeed;
+import com.piggybank.components.RequestDeadline;
 import com.piggybank.components.SessionAuthenticator;
 import com.piggybank.model.Account;
 import com.piggybank.model.BankAccount;
+import com.piggybank.model.MultiLegResult;
+import com.piggybank.model.MultiLegTransfer;
+import com.piggybank.model.Rollup;
 import com.piggybank.model.Transaction;
+import com.piggybank.model.TransactionPage;
 import com.piggybank.repository.BankAccountRepository;
+import com.piggybank.repository.OutcomeUnknownException;
 import com.piggybank.repository.TransactionRepository;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -18,6 +25,9 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 
 import javax.servlet.http.Cookie;
@@ -27,17 +37,25 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.piggybank.mocks.MockModels.*;
 import static com.piggybank.util.FirebaseEmulatorServices.*;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.failedFuture;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -65,6 +83,7 @@ public class TransactionControllerTest {
 
     @MockBean private TransactionRepository repository;
     @MockBean private SessionAuthenticator authenticator;
+    @MockBean private AccountFeed feed;
 
     @Autowired private MockMvc mvc;
 
@@ -79,6 +98,19 @@ public class TransactionControllerTest {
         return new ObjectMapper().writeValueAsString(object);
     }
 
+    /**
+     * Performs a request against an endpoint that responds asynchronously, and dispatches its result once the
+     * endpoint's future completes.
+     *
+     * @param builder Request to perform.
+     * @return Actions on the dispatched response.
+     * @throws Exception When an exception occurs performing the request.
+     */
+    private ResultActions performAsync(RequestBuilder builder) throws Exception {
+        MvcResult result = mvc.perform(builder).andExpect(request().asyncStarted()).andReturn();
+        return mvc.perform(asyncDispatch(result));
+    }
+
     /**
      * Load Firestore with fake data before each test.
      */
@@ -194,14 +226,14 @@ public class TransactionControllerTest {
 
         // Mock
         doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
-        when(repository.processBankTxn(txn)).thenReturn("Transaction successful!");
+        when(repository.processBankTxnAsync(txn, null)).thenReturn(completedFuture("Transaction successful!"));
 
         // Test
         MockHttpServletRequestBuilder request = post("/api/v1/transaction/bank")
                 .cookie(VALID_SESSION_COOKIE)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(txn)))
+            performAsync(request.content(jsonOf(txn)))
                     .andExpect(status().isOk())
                     .andExpect(content().string("Transaction successful!"));
         } catch (Exception e) {
@@ -209,7 +241,7 @@ public class TransactionControllerTest {
         }
 
         // Verify
-        verify(repository, times(1)).processBankTxn(txn);
+        verify(repository, times(1)).processBankTxnAsync(txn, null);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
@@ -228,7 +260,7 @@ public class TransactionControllerTest {
                 .cookie(INVALID_SESSION_COOKIE)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(txn)))
+            performAsync(request.content(jsonOf(txn)))
                     .andExpect(status().isUnauthorized())
                     .andExpect(content().string("Failed to validate session"));
         } catch (Exception e) {
@@ -236,7 +268,7 @@ public class TransactionControllerTest {
         }
 
         // Verify
-        verify(repository, never()).processBankTxn(any());
+        verify(repository, never()).processBankTxnAsync(any(), any());
         verify(authenticator, times(1)).validateSession(INVALID_SESSION_ID);
     }
 
@@ -250,20 +282,20 @@ public class TransactionControllerTest {
 
         // Mock
         doThrow(FirebaseAuthException.class).when(authenticator).validateSession(INVALID_SESSION_ID);
-        when(repository.processBankTxn(txn)).thenThrow(IllegalArgumentException.class);
+        when(repository.processBankTxnAsync(txn, null)).thenReturn(failedFuture(new IllegalArgumentException()));
 
         // Test
         MockHttpServletRequestBuilder request = post("/api/v1/transaction/bank")
                 .cookie(VALID_SESSION_COOKIE)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(txn))).andExpect(status().isBadRequest());
+            performAsync(request.content(jsonOf(txn))).andExpect(status().isBadRequest());
         } catch (Exception e) {
             fail(e);
         }
 
         // Verify
-        verify(repository, times(1)).processBankTxn(txn);
+        verify(repository, times(1)).processBankTxnAsync(txn, null);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
@@ -276,14 +308,14 @@ public class TransactionControllerTest {
 
         // Mock
         doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
-        when(repository.processPeerTxn(txn)).thenReturn("Transaction successful!");
+        when(repository.processPeerTxnAsync(txn, null)).thenReturn(completedFuture("Transaction successful!"));
 
         // Test
         MockHttpServletRequestBuilder request = post("/api/v1/transaction/peer")
                 .cookie(VALID_SESSION_COOKIE)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(txn)))
+            performAsync(request.content(jsonOf(txn)))
                     .andExpect(status().isOk())
                     .andExpect(content().string("Transaction successful!"));
         } catch (Exception e) {
@@ -291,7 +323,37 @@ public class TransactionControllerTest {
         }
 
         // Verify
-        verify(repository, times(1)).processPeerTxn(txn);
+        verify(repository, times(1)).processPeerTxnAsync(txn, null);
+        verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
+    }
+
+    /**
+     * The requestPeerTransaction() endpoint should pass the Idempotency-Key header on to the repository.
+     */
+    @Test
+    public void requestPeerTransactionSucceedsWithIdempotencyKey() throws Exception {
+        Transaction txn = mockPeerTransaction(MERCHANT_EMAIL, CUSTOMER_EMAIL);
+        String key = UUID.randomUUID().toString();
+
+        // Mock
+        doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
+        when(repository.processPeerTxnAsync(txn, key)).thenReturn(completedFuture("Transaction successful!"));
+
+        // Test
+        MockHttpServletRequestBuilder request = post("/api/v1/transaction/peer")
+                .cookie(VALID_SESSION_COOKIE)
+                .header("Idempotency-Key", key)
+                .contentType(MediaType.APPLICATION_JSON);
+        try {
+            performAsync(request.content(jsonOf(txn)))
+                    .andExpect(status().isOk())
+                    .andExpect(content().string("Transaction successful!"));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, times(1)).processPeerTxnAsync(txn, key);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
@@ -310,7 +372,7 @@ public class TransactionControllerTest {
                 .cookie(INVALID_SESSION_COOKIE)
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(txn)))
+            performAsync(request.content(jsonOf(txn)))
                     .andExpect(status().isUnauthorized())
                     .andExpect(content().string("Failed to validate session"));
         } catch (Exception e) {
@@ -318,7 +380,7 @@ public class TransactionControllerTest {
         }
 
         // Verify
-        verify(repository, never()).processPeerTxn(any());
+        verify(repository, never()).processPeerTxnAsync(any(), any());
         verify(authenticator, times(1)).validateSession(INVALID_SESSION_ID);
     }
 
@@ -332,23 +394,117 @@ public class TransactionControllerTest {
 
         // Mock
         doThrow(FirebaseAuthException.class).when(authenticator).validateSession(INVALID_SESSION_ID);
-        when(repository.processPeerTxn(txn)).thenThrow(IllegalArgumentException.class);
+        when(repository.processPeerTxnAsync(txn, null)).thenReturn(failedFuture(new IllegalArgumentException()));
+
+        // Test
+        MockHttpServletRequestBuilder request = post("/api/v1/transaction/peer")
+                .cookie(VALID_SESSION_COOKIE)
+                .contentType(MediaType.APPLICATION_JSON);
+        try {
+            performAsync(request.content(jsonOf(txn))).andExpect(status().isBadRequest());
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, times(1)).processPeerTxnAsync(txn, null);
+        verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
+    }
+
+    /**
+     * The requestPeerTransaction() endpoint should respond w/ HTTP status 202 ACCEPTED, not 504 GATEWAY TIMEOUT,
+     * because the deadline passed while the transaction was being processed and it may still complete.
+     */
+    @Test
+    public void requestPeerTransactionAcceptedOutcomeUnknown() throws Exception {
+        Transaction txn = mockPeerTransaction(MERCHANT_EMAIL, CUSTOMER_EMAIL);
+        OutcomeUnknownException outcomeUnknown = new OutcomeUnknownException();
+
+        // Mock
+        doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
+        when(repository.processPeerTxnAsync(txn, "key-1")).thenReturn(failedFuture(outcomeUnknown));
 
         // Test
         MockHttpServletRequestBuilder request = post("/api/v1/transaction/peer")
                 .cookie(VALID_SESSION_COOKIE)
+                .header("Idempotency-Key", "key-1")
                 .contentType(MediaType.APPLICATION_JSON);
         try {
-            mvc.perform(request.content(jsonOf(txn))).andExpect(status().isBadRequest());
+            performAsync(request.content(jsonOf(txn)))
+                    .andExpect(status().isAccepted())
+                    .andExpect(content().string(outcomeUnknown.getMessage()));
         } catch (Exception e) {
             fail(e);
         }
 
         // Verify
-        verify(repository, times(1)).processPeerTxn(txn);
+        verify(repository, times(1)).processPeerTxnAsync(txn, "key-1");
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
+    /**
+     * The requestMultiLegTransfer() endpoint should succeed w/ HTTP status 200 OK using a valid session ID.
+     */
+    @Test
+    public void requestMultiLegTransferSucceeds() throws Exception {
+        MultiLegTransfer transfer = new MultiLegTransfer(MERCHANT_EMAIL, List.of(
+                mockPeerTransaction(MERCHANT_EMAIL, CUSTOMER_EMAIL),
+                mockPeerTransaction(MERCHANT_EMAIL, CUSTOMER_EMAIL)));
+        MultiLegResult.Chunk chunk = new MultiLegResult.Chunk(0, 2);
+        chunk.setCommitted(true);
+        chunk.setMessage("Transaction successful!");
+        MultiLegResult result = new MultiLegResult(List.of("tx-id0", "tx-id1"), List.of(chunk));
+
+        // Mock
+        doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
+        when(repository.processMultiLegTxnAsync(transfer, null)).thenReturn(completedFuture(result));
+
+        // Test
+        MockHttpServletRequestBuilder request = post("/api/v1/transaction/multi")
+                .cookie(VALID_SESSION_COOKIE)
+                .contentType(MediaType.APPLICATION_JSON);
+        try {
+            performAsync(request.content(jsonOf(transfer)))
+                    .andExpect(status().isOk())
+                    .andExpect(content().json(jsonOf(result)));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, times(1)).processMultiLegTxnAsync(transfer, null);
+        verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
+    }
+
+    /**
+     * The requestMultiLegTransfer() endpoint should fail w/ HTTP status 400 BAD REQUEST because the legs exceed
+     * the transactor's balance.
+     */
+    @Test
+    public void requestMultiLegTransferFailsInsufficientBalance() throws Exception {
+        MultiLegTransfer transfer = new MultiLegTransfer(CUSTOMER_EMAIL, List.of(
+                mockPeerTransaction(CUSTOMER_EMAIL, MERCHANT_EMAIL)));
+
+        // Mock
+        when(repository.processMultiLegTxnAsync(transfer, null)).thenReturn(failedFuture(
+                new IllegalArgumentException("Transaction amount exceeds transactor's account balance")));
+
+        // Test
+        MockHttpServletRequestBuilder request = post("/api/v1/transaction/multi")
+                .cookie(VALID_SESSION_COOKIE)
+                .contentType(MediaType.APPLICATION_JSON);
+        try {
+            performAsync(request.content(jsonOf(transfer)))
+                    .andExpect(status().isBadRequest())
+                    .andExpect(content().string("Transaction amount exceeds transactor's account balance"));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, times(1)).processMultiLegTxnAsync(transfer, null);
+    }
+
     /**
      * The getSingleTransaction() endpoint should succeed w/ HTTP status 200 OK using a valid session ID.
      */
@@ -356,14 +512,14 @@ public class TransactionControllerTest {
     public void getSingleTransactionSucceeds() throws Exception {
         // Mock
         doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
-        when(repository.getTxn(VALID_TRANSACTION_ID)).thenReturn(VALID_TRANSACTION);
+        when(repository.getTxnAsync(VALID_TRANSACTION_ID)).thenReturn(completedFuture(VALID_TRANSACTION));
 
         // Test
         MockHttpServletRequestBuilder request = get("/api/v1/transaction/getSingleTransaction")
                 .param("txnId", VALID_TRANSACTION_ID)
                 .cookie(VALID_SESSION_COOKIE);
         try {
-            mvc.perform(request)
+            performAsync(request)
                     .andExpect(status().isOk())
                     .andExpect(content().json(jsonOf(VALID_TRANSACTION)));
         } catch (Exception e) {
@@ -371,7 +527,7 @@ public class TransactionControllerTest {
         }
 
         // Verify
-        verify(repository, times(1)).getTxn(VALID_TRANSACTION_ID);
+        verify(repository, times(1)).getTxnAsync(VALID_TRANSACTION_ID);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
@@ -388,7 +544,7 @@ public class TransactionControllerTest {
                 .param("txnId", VALID_TRANSACTION_ID)
                 .cookie(INVALID_SESSION_COOKIE);
         try {
-            mvc.perform(request)
+            performAsync(request)
                     .andExpect(status().isUnauthorized())
                     .andExpect(content().string("Failed to validate session"));
         } catch (Exception e) {
@@ -396,7 +552,7 @@ public class TransactionControllerTest {
         }
 
         // Verify
-        verify(repository, never()).getTxn(any());
+        verify(repository, never()).getTxnAsync(any());
         verify(authenticator, times(1)).validateSession(INVALID_SESSION_ID);
     }
 
@@ -407,23 +563,210 @@ public class TransactionControllerTest {
     public void getSingleTransactionFailsTransactionNotFound() throws Exception {
         // Mock
         doThrow(FirebaseAuthException.class).when(authenticator).validateSession(INVALID_SESSION_ID);
-        when(repository.getTxn(INVALID_TRANSACTION_ID)).thenThrow(IllegalArgumentException.class);
+        when(repository.getTxnAsync(INVALID_TRANSACTION_ID)).thenReturn(failedFuture(new IllegalArgumentException()));
 
         // Test
         MockHttpServletRequestBuilder request = get("/api/v1/transaction/getSingleTransaction")
                 .param("txnId", INVALID_TRANSACTION_ID)
                 .cookie(VALID_SESSION_COOKIE);
         try {
-            mvc.perform(request).andExpect(status().isBadRequest());
+            performAsync(request).andExpect(status().isBadRequest());
         } catch (Exception e) {
             fail(e);
         }
 
         // Verify
-        verify(repository, times(1)).getTxn(INVALID_TRANSACTION_ID);
+        verify(repository, times(1)).getTxnAsync(INVALID_TRANSACTION_ID);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
+    /**
+     * The getSingleTransaction() endpoint should fail w/ HTTP status 504 GATEWAY TIMEOUT because the read's
+     * deadline passed.
+     */
+    @Test
+    public void getSingleTransactionFailsDeadlineExceeded() throws Exception {
+        // Mock
+        when(repository.getTxnAsync(VALID_TRANSACTION_ID))
+                .thenReturn(failedFuture(new TimeoutException("Deadline exceeded")));
+
+        // Test
+        MockHttpServletRequestBuilder request = get("/api/v1/transaction/getSingleTransaction")
+                .param("txnId", VALID_TRANSACTION_ID)
+                .cookie(VALID_SESSION_COOKIE);
+        try {
+            performAsync(request)
+                    .andExpect(status().isGatewayTimeout())
+                    .andExpect(content().string("Deadline exceeded"));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, times(1)).getTxnAsync(VALID_TRANSACTION_ID);
+    }
+
+    /**
+     * The getSingleTransaction() endpoint should fail w/ HTTP status 504 GATEWAY TIMEOUT without being handled
+     * because the request arrived with no time left.
+     */
+    @Test
+    public void getSingleTransactionFailsNoTimeLeft() throws Exception {
+        // Test
+        MockHttpServletRequestBuilder request = get("/api/v1/transaction/getSingleTransaction")
+                .param("txnId", VALID_TRANSACTION_ID)
+                .header(RequestDeadline.TIMEOUT_HEADER, "0")
+                .cookie(VALID_SESSION_COOKIE);
+        try {
+            mvc.perform(request).andExpect(status().isGatewayTimeout());
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, never()).getTxnAsync(any());
+        verify(authenticator, never()).validateSession(any());
+    }
+
+    /**
+     * The feed() endpoint should stream the session account's events as Server-Sent Events.
+     */
+    @Test
+    public void feedStreamsEvents() throws Exception {
+        // Mock
+        when(authenticator.getSessionEmail(VALID_SESSION_ID)).thenReturn(CUSTOMER_EMAIL);
+        when(feed.subscribe(eq(CUSTOMER_EMAIL), any())).thenAnswer(invocation -> {
+            AccountFeed.Subscriber subscriber = invocation.getArgument(1);
+            Runnable cancel = () -> {};
+            subscriber.onSubscribe(cancel);
+            subscriber.onEvent(AccountFeed.BALANCE, 12021L);
+            subscriber.onClose();
+            return cancel;
+        });
+
+        // Test
+        MockHttpServletRequestBuilder request = get("/api/v1/transaction/feed").cookie(VALID_SESSION_COOKIE);
+        try {
+            MvcResult result = mvc.perform(request).andExpect(request().asyncStarted()).andReturn();
+            // Events are sent on the feed's sender threads.
+            long deadline = System.currentTimeMillis() + 1000;
+            while (!result.getResponse().getContentAsString().contains("event:balance\ndata:12021")
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(result.getResponse().getContentAsString().contains("event:balance\ndata:12021"));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(feed, times(1)).subscribe(eq(CUSTOMER_EMAIL), any());
+    }
+
+    /**
+     * The feed() endpoint should cancel the subscription as soon as sending the initial balance fails because
+     * the client is gone, rather than leak it.
+     */
+    @Test
+    public void feedCancelsWhenInitialSendFails() throws Exception {
+        CountDownLatch cancelled = new CountDownLatch(1);
+
+        // Mock
+        when(authenticator.getSessionEmail(VALID_SESSION_ID)).thenReturn(CUSTOMER_EMAIL);
+        when(feed.subscribe(eq(CUSTOMER_EMAIL), any())).thenAnswer(invocation -> {
+            AccountFeed.Subscriber subscriber = invocation.getArgument(1);
+            Runnable cancel = cancelled::countDown;
+            subscriber.onSubscribe(cancel);
+            subscriber.onClose();
+            subscriber.onEvent(AccountFeed.BALANCE, 12021L);
+            return cancel;
+        });
+
+        // Test
+        MockHttpServletRequestBuilder request = get("/api/v1/transaction/feed").cookie(VALID_SESSION_COOKIE);
+        try {
+            mvc.perform(request).andExpect(request().asyncStarted());
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        assertTrue(cancelled.await(1, TimeUnit.SECONDS));
+        verify(feed, times(1)).subscribe(eq(CUSTOMER_EMAIL), any());
+    }
+
+    /**
+     * The feed() endpoint should fail w/ HTTP status 401 UNAUTHORIZED because the session ID is invalid.
+     */
+    @Test
+    public void feedFailsInvalidSession() throws Exception {
+        // Mock
+        doThrow(FirebaseAuthException.class).when(authenticator).getSessionEmail(INVALID_SESSION_ID);
+
+        // Test
+        MockHttpServletRequestBuilder request = get("/api/v1/transaction/feed").cookie(INVALID_SESSION_COOKIE);
+        try {
+            mvc.perform(request).andExpect(status().isUnauthorized());
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(feed, never()).subscribe(any(), any());
+    }
+
+    /**
+     * The getManyTransactions() endpoint should succeed w/ HTTP status 200 OK using a valid session ID.
+     */
+    @Test
+    public void getManyTransactionsSucceeds() throws Exception {
+        // Mock
+        List<String> txnIds = List.of(VALID_TRANSACTION_ID, INVALID_TRANSACTION_ID);
+        doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
+        when(repository.getTxnsAsync(txnIds)).thenReturn(completedFuture(List.of(VALID_TRANSACTION)));
+
+        // Test
+        MockHttpServletRequestBuilder request = get("/api/v1/transaction/getMany")
+                .param("txnIds", VALID_TRANSACTION_ID, INVALID_TRANSACTION_ID)
+                .cookie(VALID_SESSION_COOKIE);
+        try {
+            performAsync(request)
+                    .andExpect(status().isOk())
+                    .andExpect(content().json(jsonOf(List.of(VALID_TRANSACTION))));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, times(1)).getTxnsAsync(txnIds);
+        verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
+    }
+
+    /**
+     * The getManyTransactions() endpoint should fail w/ HTTP status 401 UNAUTHORIZED because the session ID is invalid.
+     */
+    @Test
+    public void getManyTransactionsFailsInvalidSession() throws Exception {
+        // Mock
+        doThrow(FirebaseAuthException.class).when(authenticator).validateSession(INVALID_SESSION_ID);
+
+        // Test
+        MockHttpServletRequestBuilder request = get("/api/v1/transaction/getMany")
+                .param("txnIds", VALID_TRANSACTION_ID)
+                .cookie(INVALID_SESSION_COOKIE);
+        try {
+            performAsync(request)
+                    .andExpect(status().isUnauthorized())
+                    .andExpect(content().string("Failed to validate session"));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, never()).getTxnsAsync(any());
+        verify(authenticator, times(1)).validateSession(INVALID_SESSION_ID);
+    }
+
     /**
      * The getAllTransactionsFromUser() endpoint should succeed w/ HTTP status 200 OK using a valid session ID.
      */
@@ -431,14 +774,14 @@ public class TransactionControllerTest {
     public void getAllTransactionsFromUserSucceeds() throws Exception {
         // Mock
         doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
-        when(repository.getAllTxnFromUser(CUSTOMER_EMAIL)).thenReturn(new ArrayList<>());
+        when(repository.getAllTxnFromUserAsync(CUSTOMER_EMAIL)).thenReturn(completedFuture(new ArrayList<>()));
 
         // Test
         MockHttpServletRequestBuilder request = get("/api/v1/transaction/getAllFromUser")
                 .param("email", CUSTOMER_EMAIL)
                 .cookie(VALID_SESSION_COOKIE);
         try {
-            mvc.perform(request)
+            performAsync(request)
                     .andExpect(status().isOk())
                     .andExpect(content().json(jsonOf(new ArrayList<>())));
         } catch (Exception e) {
@@ -446,7 +789,7 @@ public class TransactionControllerTest {
         }
 
         // Verify
-        verify(repository, times(1)).getAllTxnFromUser(CUSTOMER_EMAIL);
+        verify(repository, times(1)).getAllTxnFromUserAsync(CUSTOMER_EMAIL);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
 
@@ -463,7 +806,7 @@ public class TransactionControllerTest {
                 .param("email", CUSTOMER_EMAIL)
                 .cookie(INVALID_SESSION_COOKIE);
         try {
-            mvc.perform(request)
+            performAsync(request)
                     .andExpect(status().isUnauthorized())
                     .andExpect(content().string("Failed to validate session"));
         } catch (Exception e) {
@@ -471,7 +814,7 @@ public class TransactionControllerTest {
         }
 
         // Verify
-        verify(repository, never()).getAllTxnFromUser(any());
+        verify(repository, never()).getAllTxnFromUserAsync(any());
         verify(authenticator, times(1)).validateSession(INVALID_SESSION_ID);
     }
 
@@ -483,20 +826,172 @@ public class TransactionControllerTest {
     public void getAllTransactionsFromUserFailsTransactionNotFound() throws Exception {
         // Mock
         doThrow(FirebaseAuthException.class).when(authenticator).validateSession(INVALID_SESSION_ID);
-        when(repository.getAllTxnFromUser(CUSTOMER_EMAIL)).thenThrow(IllegalArgumentException.class);
+        when(repository.getAllTxnFromUserAsync(CUSTOMER_EMAIL))
+                .thenReturn(failedFuture(new IllegalArgumentException()));
 
         // Test
         MockHttpServletRequestBuilder request = get("/api/v1/transaction/getAllFromUser")
                 .param("email", CUSTOMER_EMAIL)
                 .cookie(VALID_SESSION_COOKIE);
         try {
-            mvc.perform(request).andExpect(status().isBadRequest());
+            performAsync(request).andExpect(status().isBadRequest());
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, times(1)).getAllTxnFromUserAsync(CUSTOMER_EMAIL);
+        verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
+    }
+
+    /**
+     * The getPageOfTransactionsFromUser() endpoint should succeed w/ HTTP status 200 OK and return the page, using
+     * the default page size when none is given.
+     */
+    @Test
+    public void getPageOfTransactionsFromUserSucceeds() throws Exception {
+        // Mock
+        TransactionPage page = new TransactionPage(new ArrayList<>(), "next-cursor");
+        doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
+        when(repository.getTxnPageFromUserAsync(CUSTOMER_EMAIL, 20, null)).thenReturn(completedFuture(page));
+
+        // Test
+        MockHttpServletRequestBuilder request = get("/api/v1/transaction/getPageFromUser")
+                .param("email", CUSTOMER_EMAIL)
+                .cookie(VALID_SESSION_COOKIE);
+        try {
+            performAsync(request)
+                    .andExpect(status().isOk())
+                    .andExpect(content().json(jsonOf(page)));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, times(1)).getTxnPageFromUserAsync(CUSTOMER_EMAIL, 20, null);
+        verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
+    }
+
+    /**
+     * The getPageOfTransactionsFromUser() endpoint should fail w/ HTTP status 401 UNAUTHORIZED because the session
+     * ID is invalid.
+     */
+    @Test
+    public void getPageOfTransactionsFromUserFailsInvalidSession() throws Exception {
+        // Mock
+        doThrow(FirebaseAuthException.class).when(authenticator).validateSession(INVALID_SESSION_ID);
+
+        // Test
+        MockHttpServletRequestBuilder request = get("/api/v1/transaction/getPageFromUser")
+                .param("email", CUSTOMER_EMAIL)
+                .param("limit", "5")
+                .param("cursor", "next-cursor")
+                .cookie(INVALID_SESSION_COOKIE);
+        try {
+            performAsync(request)
+                    .andExpect(status().isUnauthorized())
+                    .andExpect(content().string("Failed to validate session"));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, never()).getTxnPageFromUserAsync(any(), anyInt(), any());
+        verify(authenticator, times(1)).validateSession(INVALID_SESSION_ID);
+    }
+
+    /**
+     * The getPageOfTransactionsFromUser() endpoint should fail w/ HTTP status 400 BAD REQUEST because the cursor is
+     * invalid.
+     */
+    @Test
+    public void getPageOfTransactionsFromUserFailsInvalidCursor() throws Exception {
+        // Mock
+        doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
+        when(repository.getTxnPageFromUserAsync(CUSTOMER_EMAIL, 5, "bad-cursor"))
+                .thenReturn(failedFuture(new IllegalArgumentException("Invalid cursor")));
+
+        // Test
+        MockHttpServletRequestBuilder request = get("/api/v1/transaction/getPageFromUser")
+                .param("email", CUSTOMER_EMAIL)
+                .param("limit", "5")
+                .param("cursor", "bad-cursor")
+                .cookie(VALID_SESSION_COOKIE);
+        try {
+            performAsync(request)
+                    .andExpect(status().isBadRequest())
+                    .andExpect(content().string("Invalid cursor"));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, times(1)).getTxnPageFromUserAsync(CUSTOMER_EMAIL, 5, "bad-cursor");
+        verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
+    }
+
+    /**
+     * The getRollups() endpoint should succeed w/ HTTP status 200 OK and return the account's rollups.
+     */
+    @Test
+    public void getRollupsSucceeds() throws Exception {
+        // Mock
+        Rollup rollup = new Rollup(CUSTOMER_EMAIL, Rollup.Period.DAY, 0L);
+        rollup.setSentCount(1);
+        rollup.setSentSum(100);
+        rollup.setSentMax(100);
+        List<Rollup> rollups = List.of(rollup);
+        doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
+        when(repository.getRollupsAsync(CUSTOMER_EMAIL, Rollup.Period.DAY, 0, 86_400_000))
+                .thenReturn(completedFuture(rollups));
+
+        // Test
+        MockHttpServletRequestBuilder request = get("/api/v1/transaction/rollups")
+                .param("email", CUSTOMER_EMAIL)
+                .param("period", "DAY")
+                .param("from", "0")
+                .param("to", "86400000")
+                .cookie(VALID_SESSION_COOKIE);
+        try {
+            performAsync(request)
+                    .andExpect(status().isOk())
+                    .andExpect(content().json(jsonOf(rollups)));
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        // Verify
+        verify(repository, times(1)).getRollupsAsync(CUSTOMER_EMAIL, Rollup.Period.DAY, 0, 86_400_000);
+        verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
+    }
+
+    /**
+     * The getRollups() endpoint should fail w/ HTTP status 400 BAD REQUEST because the range is empty.
+     */
+    @Test
+    public void getRollupsFailsEmptyRange() throws Exception {
+        // Mock
+        doNothing().when(authenticator).validateSession(VALID_SESSION_ID);
+        when(repository.getRollupsAsync(CUSTOMER_EMAIL, Rollup.Period.DAY, 0, 0))
+                .thenReturn(failedFuture(new IllegalArgumentException("Range of rollups is empty")));
+
+        // Test
+        MockHttpServletRequestBuilder request = get("/api/v1/transaction/rollups")
+                .param("email", CUSTOMER_EMAIL)
+                .param("period", "DAY")
+                .param("from", "0")
+                .param("to", "0")
+                .cookie(VALID_SESSION_COOKIE);
+        try {
+            performAsync(request)
+                    .andExpect(status().isBadRequest())
+                    .andExpect(content().string("Range of rollups is empty"));
         } catch (Exception e) {
             fail(e);
         }
 
         // Verify
-        verify(repository, times(1)).getAllTxnFromUser(CUSTOMER_EMAIL);
+        verify(repository, times(1)).getRollupsAsync(CUSTOMER_EMAIL, Rollup.Period.DAY, 0, 0);
         verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
     }
-}
\ No newline at end of file
+}
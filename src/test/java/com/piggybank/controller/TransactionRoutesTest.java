@@ -0,0 +1,182 @@
+package com.piggybank.controller;
+
+import com.google.firebase.auth.FirebaseAuthException;
+import com.piggybank.components.AccountFeed;
+import com.piggybank.components.SessionAuthenticator;
+import com.piggybank.model.Transaction;
+import com.piggybank.repository.TransactionRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.UUID;
+
+import static com.piggybank.mocks.MockModels.*;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.failedFuture;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit-testing suite for the reactive transaction routes in the TransactionRoutes class.
+ * Runs a reactive spring application under the 'reactive' profile and uses a WebTestClient to make mock HTTP
+ * requests to the routes. Mockito is used to inject mock objects to be used in the application context.
+ */
+@SpringBootTest
+@ActiveProfiles("reactive")
+@AutoConfigureWebTestClient
+public class TransactionRoutesTest {
+    private static final String CUSTOMER_EMAIL = "user1@email.com";
+    private static final String MERCHANT_EMAIL = "user2@email.com";
+
+    private static final String VALID_SESSION_ID = UUID.randomUUID().toString();
+    private static final String INVALID_SESSION_ID = UUID.randomUUID().toString();
+
+    @MockBean private TransactionRepository repository;
+    @MockBean private SessionAuthenticator authenticator;
+    @MockBean private AccountFeed feed;
+
+    @Autowired private WebTestClient client;
+
+    /**
+     * The bank route should succeed w/ HTTP status 200 OK using a valid session ID.
+     */
+    @Test
+    public void bankSucceeds() throws Exception {
+        Transaction txn = mockBankTransaction(CUSTOMER_EMAIL);
+
+        // Mock
+        when(repository.processBankTxnAsync(txn, "key")).thenReturn(completedFuture("Transaction successful!"));
+
+        // Test
+        client.post().uri("/api/v1/transaction/bank")
+                .cookie("session", VALID_SESSION_ID)
+                .header(TransactionController.IDEMPOTENCY_KEY, "key")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(txn)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("Transaction successful!");
+
+        // Verify
+        verify(repository, times(1)).processBankTxnAsync(txn, "key");
+        verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
+    }
+
+    /**
+     * The peer route should fail w/ HTTP status 401 UNAUTHORIZED because the session ID is invalid.
+     */
+    @Test
+    public void peerFailsInvalidSession() throws Exception {
+        Transaction txn = mockPeerTransaction(MERCHANT_EMAIL, CUSTOMER_EMAIL);
+
+        // Mock
+        doThrow(FirebaseAuthException.class).when(authenticator).validateSession(INVALID_SESSION_ID);
+
+        // Test
+        client.post().uri("/api/v1/transaction/peer")
+                .cookie("session", INVALID_SESSION_ID)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(txn)
+                .exchange()
+                .expectStatus().isUnauthorized()
+                .expectBody(String.class).isEqualTo("Failed to validate session");
+
+        // Verify
+        verify(repository, never()).processPeerTxnAsync(any(), any());
+    }
+
+    /**
+     * The getSingleTransaction route should fail w/ HTTP status 400 BAD REQUEST because the ID is invalid.
+     */
+    @Test
+    public void getSingleFailsInvalidId() throws Exception {
+        // Mock
+        when(repository.getTxnAsync("invalid-txn-id"))
+                .thenReturn(failedFuture(new IllegalArgumentException("Transaction with that ID doesn't exist")));
+
+        // Test
+        client.get().uri("/api/v1/transaction/getSingleTransaction?txnId=invalid-txn-id")
+                .cookie("session", VALID_SESSION_ID)
+                .exchange()
+                .expectStatus().isBadRequest()
+                .expectBody(String.class).isEqualTo("Transaction with that ID doesn't exist");
+
+        // Verify
+        verify(authenticator, times(1)).validateSession(VALID_SESSION_ID);
+    }
+
+    /**
+     * The streamFromUser route should stream the user's transactions as newline-delimited JSON.
+     */
+    @Test
+    public void streamFromUserSucceeds() throws Exception {
+        Transaction first = mockPeerTransaction(MERCHANT_EMAIL, CUSTOMER_EMAIL);
+        Transaction second = mockBankTransaction(CUSTOMER_EMAIL);
+
+        // Mock
+        when(repository.streamTxnsFromUser(CUSTOMER_EMAIL, 10)).thenReturn(Flux.just(first, second));
+
+        // Test
+        client.get().uri("/api/v1/transaction/streamFromUser?email=" + CUSTOMER_EMAIL + "&pageSize=10")
+                .cookie("session", VALID_SESSION_ID)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .expectBodyList(Transaction.class).isEqualTo(List.of(first, second));
+
+        // Verify
+        verify(repository, times(1)).streamTxnsFromUser(CUSTOMER_EMAIL, 10);
+    }
+
+    /**
+     * The feed route should stream the session account's events as Server-Sent Events.
+     */
+    @Test
+    public void feedStreamsEvents() throws Exception {
+        // Mock
+        when(authenticator.getSessionEmail(VALID_SESSION_ID)).thenReturn(CUSTOMER_EMAIL);
+        when(feed.subscribe(eq(CUSTOMER_EMAIL), any())).thenAnswer(invocation -> {
+            AccountFeed.Subscriber subscriber = invocation.getArgument(1);
+            Runnable cancel = () -> {};
+            subscriber.onSubscribe(cancel);
+            subscriber.onEvent(AccountFeed.BALANCE, 12021L);
+            subscriber.onClose();
+            return cancel;
+        });
+
+        // Test
+        String body = client.get().uri("/api/v1/transaction/feed")
+                .cookie("session", VALID_SESSION_ID)
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).returnResult().getResponseBody();
+        assertTrue(body != null && body.contains("event:balance\ndata:12021"));
+
+        // Verify
+        verify(feed, times(1)).subscribe(eq(CUSTOMER_EMAIL), any());
+    }
+
+    /**
+     * The streamFromUser route should fail w/ HTTP status 400 BAD REQUEST because the page size is out of range.
+     */
+    @Test
+    public void streamFromUserFailsInvalidPageSize() throws Exception {
+        client.get().uri("/api/v1/transaction/streamFromUser?email=" + CUSTOMER_EMAIL + "&pageSize=0")
+                .cookie("session", VALID_SESSION_ID)
+                .exchange()
+                .expectStatus().isBadRequest();
+
+        // Verify
+        verify(repository, never()).streamTxnsFromUser(any(), anyInt());
+    }
+}
@@ -2,7 +2,6 @@ package com.piggybank.mocks;
 
 import com.piggybank.model.*;
 
-import java.util.ArrayList;
 import java.util.Random;
 import java.util.UUID;
 
@@ -67,7 +66,6 @@ public abstract class MockModels {
         account.setProfilePictureUrl(UUID.randomUUID().toString());
         account.setBalance(rand.nextLong());
         account.setBankAccount(mockBankAccount());
-        account.setTransactionIds(new ArrayList<>(0));
         return account;
     }
 
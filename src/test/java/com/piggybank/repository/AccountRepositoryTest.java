@@ -1,8 +1,18 @@
 package com.piggybank.repository;
 
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.firebase.cloud.FirestoreClient;
+import com.piggybank.components.AccountCache;
+import com.piggybank.components.TransactionOutbox;
+import com.piggybank.components.TransactionRollups;
+import com.piggybank.components.UsernameFilter;
 import com.piggybank.model.Account;
 import com.piggybank.model.Customer;
 import com.piggybank.model.Merchant;
+import com.piggybank.model.Rollup;
+import com.piggybank.model.Transaction;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -13,6 +23,8 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
 
@@ -29,14 +41,20 @@ import static org.junit.jupiter.api.Assertions.*;
 public class AccountRepositoryTest {
 
     @Autowired private AccountRepository repository;
+    @Autowired private UsernameFilter usernameFilter;
+    @Autowired private AccountCache accountCache;
+    @Autowired private TransactionRepository txnRepository;
+    @Autowired private TransactionOutbox outbox;
+    @Autowired private TransactionRollups rollups;
 
     /**
-     * Load the fake documents into Firestore before each test.
+     * Load the fake documents into Firestore before each test, and drop any account cached by a previous test.
      */
     @BeforeEach
     public void beforeEach() throws IOException, URISyntaxException, ExecutionException, InterruptedException {
         URI uri = Objects.requireNonNull(ClassLoader.getSystemResource("collections")).toURI();
         loadFirestoreDocuments(new File(uri));
+        accountCache.invalidateAll();
     }
 
     /**
@@ -125,6 +143,37 @@ public class AccountRepositoryTest {
         }
     }
 
+    /**
+     * The create() method fails given a username that is already reserved by another account.
+     */
+    @Test
+    public void createAccountWithTakenUsernameFails() {
+        Customer customer = mockCustomer();
+        customer.setUsername("user1");
+        try {
+            repository.create(customer);
+            fail("Failed to throw exception for taken username");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Account with this username already exists", e.getMessage());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The create() method reserves the new account's username.
+     */
+    @Test
+    public void createAccountReservesUsername() {
+        try {
+            Customer customer = mockCustomer();
+            repository.create(customer);
+            assertTrue(repository.usernameExists(customer.getUsername()));
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
     /**
      * The create() method fails given mock merchant data w/out bank account specified.
      */
@@ -203,7 +252,6 @@ public class AccountRepositoryTest {
             assertEquals("Account successfully updated!", repository.update(account.getEmail(), account));
 
             databaseAccount = getFromFirestore("Accounts", account.getEmail(), Account.class);
-            databaseAccount.setTransactionIds(null);
             databaseAccount.setBankAccount(null);
             assertEquals(account, databaseAccount);
         } catch (Exception e) {
@@ -225,7 +273,6 @@ public class AccountRepositoryTest {
             assertEquals("Account successfully updated!", repository.update("user1@email.com", account));
 
             databaseAccount = getFromFirestore("Accounts", email, Account.class);
-            databaseAccount.setTransactionIds(null);
             databaseAccount.setBankAccount(null);
             assertEquals(account, databaseAccount);
         } catch (Exception e) {
@@ -233,6 +280,158 @@ public class AccountRepositoryTest {
         }
     }
 
+    /**
+     * The update() method moves the account's transaction history and rollups to its new email, including
+     * transactions still waiting in the outbox.
+     */
+    @Test
+    public void updateAccountNewEmailMovesHistory() {
+        Transaction written = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+        written.setTransactorEmail("user1@email.com");
+        written.setRecipientEmail("jbiewer@wisc.edu");
+        written.setAmount(100L);
+        Transaction pending = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+        pending.setTransactorEmail("user1@email.com");
+        pending.setRecipientEmail("jbiewer@wisc.edu");
+        pending.setAmount(300L);
+        Account account = new Account();
+        account.setEmail("user1-renamed@email.com");
+
+        try {
+            txnRepository.processPeerTxn(written);
+            outbox.flush();
+            txnRepository.processPeerTxn(pending);
+            repository.update("user1@email.com", account);
+            outbox.flush();
+
+            // Seven seeded transactions, plus the two processed above.
+            List<Transaction> history = txnRepository.getAllTxnFromUser("user1-renamed@email.com");
+            assertEquals(9, history.size());
+            assertTrue(history.stream().noneMatch(txn -> "user1@email.com".equals(txn.getTransactorEmail())
+                    || "user1@email.com".equals(txn.getRecipientEmail())));
+
+            long day = rollups.startOf(Rollup.Period.DAY, pending.getTimestamp());
+            long from = rollups.startOf(Rollup.Period.DAY, written.getTimestamp());
+            List<Rollup> sent = txnRepository.getRollups("user1-renamed@email.com", Rollup.Period.DAY, from, day + 1);
+            assertEquals(400L, sent.stream().mapToLong(Rollup::getSentSum).sum());
+            assertEquals(2L, sent.stream().mapToLong(Rollup::getSentCount).sum());
+            assertTrue(txnRepository.getRollups("user1@email.com", Rollup.Period.DAY, from, day + 1).isEmpty());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Retrying an update that moved the account, but didn't finish re-keying its history, should succeed and
+     * finish the re-key instead of failing because no account has the old email anymore.
+     */
+    @Test
+    public void updateAccountRetryResumesHistoryMove() {
+        Transaction txn = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+        txn.setTransactorEmail("user1@email.com");
+        txn.setRecipientEmail("jbiewer@wisc.edu");
+        txn.setAmount(100L);
+        Account account = new Account();
+        account.setEmail("user1-renamed@email.com");
+
+        try {
+            txnRepository.processPeerTxn(txn);
+            outbox.flush();
+            repository.update("user1@email.com", account);
+            interruptHistoryMove(txn.getId(), "user1@email.com", "user1-renamed@email.com", System.currentTimeMillis());
+
+            assertEquals("Account successfully updated!", repository.update("user1@email.com", account));
+
+            Transaction moved = getFromFirestore("Transactions", txn.getId(), Transaction.class);
+            assertEquals("user1-renamed@email.com", moved.getTransactorEmail());
+            assertFalse(emailMove("user1@email.com").exists());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The resumeEmailMoves() method should finish re-keying the history of an account whose move is older than
+     * the grace period, and leave younger moves alone.
+     */
+    @Test
+    public void resumeEmailMovesFinishesOldMoves() {
+        Transaction txn = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+        txn.setTransactorEmail("user1@email.com");
+        txn.setRecipientEmail("jbiewer@wisc.edu");
+        txn.setAmount(100L);
+        Account account = new Account();
+        account.setEmail("user1-renamed@email.com");
+
+        try {
+            txnRepository.processPeerTxn(txn);
+            outbox.flush();
+            repository.update("user1@email.com", account);
+            interruptHistoryMove(txn.getId(), "user1@email.com", "user1-renamed@email.com", System.currentTimeMillis());
+
+            assertEquals(0, repository.resumeEmailMoves(60_000));
+            assertEquals(1, repository.resumeEmailMoves(0));
+
+            Transaction moved = getFromFirestore("Transactions", txn.getId(), Transaction.class);
+            assertEquals("user1-renamed@email.com", moved.getTransactorEmail());
+            assertFalse(emailMove("user1@email.com").exists());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The update() method leaves the balance alone when the content doesn't specify one.
+     */
+    @Test
+    public void updateAccountKeepsBalanceWhenAbsent() {
+        Account account = new Account();
+        account.setProfilePictureUrl("/new/pic.jpg");
+        try {
+            Long balance = getFromFirestore("Accounts", "user1@email.com", Account.class).getBalance();
+            repository.update("user1@email.com", account);
+
+            Account databaseAccount = getFromFirestore("Accounts", "user1@email.com", Account.class);
+            assertEquals(balance, databaseAccount.getBalance());
+            assertEquals("/new/pic.jpg", databaseAccount.getProfilePictureUrl());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The update() method releases the old username and reserves the new one.
+     */
+    @Test
+    public void updateAccountMovesUsernameReservation() {
+        Account account = new Account();
+        account.setUsername("user1-renamed");
+        try {
+            repository.update("user1@email.com", account);
+            assertFalse(repository.usernameExists("user1"));
+            assertTrue(repository.usernameExists("user1-renamed"));
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The update() method fails given a username that is already reserved by another account.
+     */
+    @Test
+    public void updateAccountFailsUsernameTaken() {
+        Account account = new Account();
+        account.setUsername("user2");
+        try {
+            repository.update("user1@email.com", account);
+            fail("Failed to throw exception for taken username");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Account with this username already exists", e.getMessage());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
     /**
      * The update() method fails given an invalid email (email not found).
      */
@@ -259,7 +458,6 @@ public class AccountRepositoryTest {
             assertNotNull(account);
 
             databaseAccount = getFromFirestore("Accounts", "user1@email.com", Account.class);
-            databaseAccount.setTransactionIds(null);
             databaseAccount.setPassword(null);
             assertEquals(account, databaseAccount);
         } catch (Exception e) {
@@ -279,6 +477,37 @@ public class AccountRepositoryTest {
         }
     }
 
+    /**
+     * The get() method doesn't serve a cached account after the account is updated.
+     */
+    @Test
+    public void getSucceedsAfterUpdate() {
+        Account content = new Account();
+        content.setProfilePictureUrl("/new/pic.jpg");
+        try {
+            repository.get("user1@email.com");
+            repository.update("user1@email.com", content);
+            assertEquals("/new/pic.jpg", repository.get("user1@email.com").getProfilePictureUrl());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The get() method reads through to Firestore when asked to bypass the cache.
+     */
+    @Test
+    public void getSucceedsBypassingCache() {
+        try {
+            repository.get("user1@email.com");
+            FirestoreClient.getFirestore().collection("Accounts").document("user1@email.com")
+                    .update("profilePictureUrl", "/new/pic.jpg").get();
+            assertEquals("/new/pic.jpg", repository.get("user1@email.com", true).getProfilePictureUrl());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
     /**
      * The get() method fails given an invalid email (email not found).
      */
@@ -296,14 +525,131 @@ public class AccountRepositoryTest {
 
     /**
      * The usernameExists() method returns true given a valid username and false given an invalid username.
+     * The username filter is rebuilt first, since it only learns about the loaded fake documents through
+     * its snapshot listener.
      */
     @Test
     public void usernameExistsSucceeds() {
         try {
+            usernameFilter.rebuild();
             assertTrue(repository.usernameExists("user1"));
             assertFalse(repository.usernameExists("nonexistent-user"));
         } catch(Exception e) {
             fail(e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * The backfillUsernameIndex() method reserves the usernames of accounts that don't have a reservation.
+     */
+    @Test
+    public void backfillUsernameIndexSucceeds() {
+        try {
+            FirestoreClient.getFirestore().collection("Usernames").document("user1").delete().get();
+            assertFalse(repository.usernameExists("user1"));
+
+            assertEquals(1, repository.backfillUsernameIndex());
+            assertTrue(repository.usernameExists("user1"));
+            assertEquals(0, repository.backfillUsernameIndex());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The dropTransactionIds() method removes the legacy transaction ID arrays, and leaves the rest of the account
+     * untouched.
+     */
+    @Test
+    public void dropTransactionIdsSucceeds() {
+        try {
+            DocumentReference document = FirestoreClient.getFirestore().collection("Accounts").document("user1@email.com");
+            document.update("transactionIds", List.of("tx-id0", "tx-id1", "tx-id2")).get();
+            Account before = getFromFirestore("Accounts", "user1@email.com", Account.class);
+
+            assertEquals(1, repository.dropTransactionIds());
+            assertFalse(document.get().get().contains("transactionIds"));
+            assertEquals(before, getFromFirestore("Accounts", "user1@email.com", Account.class));
+            assertEquals(0, repository.dropTransactionIds());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The setBalanceShards() method keeps the balance when the account is sharded and unsharded again, and the
+     * sharded account isn't cached.
+     */
+    @Test
+    public void setBalanceShardsKeepsBalance() {
+        try {
+            long balance = repository.get("user1@email.com").getBalance();
+            assertEquals("Balance shards updated!", repository.setBalanceShards("user1@email.com", 4));
+
+            Account sharded = repository.get("user1@email.com");
+            assertEquals(4, sharded.getBalanceShards());
+            assertEquals(balance, sharded.getBalance());
+            assertNull(accountCache.get("user1@email.com"));
+
+            // Credit a shard directly, as a peer transaction would.
+            FirestoreClient.getFirestore().collection("Accounts").document("user1@email.com")
+                    .collection("BalanceShards").document("2")
+                    .set(Map.of("balance", FieldValue.increment(5))).get();
+            assertEquals(balance + 5, repository.get("user1@email.com").getBalance());
+
+            assertEquals("Balance shards updated!", repository.setBalanceShards("user1@email.com", 0));
+            Account unsharded = getFromFirestore("Accounts", "user1@email.com", Account.class);
+            assertNull(unsharded.getBalanceShards());
+            assertEquals(balance + 5, unsharded.getBalance());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The setBalanceShards() method fails given a shard count out of range.
+     */
+    @Test
+    public void setBalanceShardsFailsInvalidCount() {
+        try {
+            repository.setBalanceShards("user1@email.com", 101);
+            fail("IllegalArgumentException not thrown when it should have.");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Shard count must be between 0 and 100", e.getMessage());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Puts a transaction back under an account's old email and records the account's move as still pending, as
+     * if the update that moved the account stopped before re-keying its history.
+     *
+     * @param txnId ID of a transaction made by the account under its old email.
+     * @param oldEmail Previous email of the account.
+     * @param newEmail Email the account moved to.
+     * @param movedAt Time the account moved.
+     */
+    private static void interruptHistoryMove(String txnId, String oldEmail, String newEmail, long movedAt)
+            throws ExecutionException, InterruptedException {
+        FirestoreClient.getFirestore().collection("Transactions").document(txnId)
+                .update("transactorEmail", oldEmail).get();
+        emailMoveDocument(oldEmail).set(Map.of("newEmail", newEmail, "timestamp", movedAt)).get();
+    }
+
+    /**
+     * @param oldEmail Previous email of an account.
+     * @return The record of the account's pending history move.
+     */
+    private static DocumentSnapshot emailMove(String oldEmail) throws ExecutionException, InterruptedException {
+        return emailMoveDocument(oldEmail).get().get();
+    }
+
+    /**
+     * @param oldEmail Previous email of an account.
+     * @return Document recording the account's pending history move.
+     */
+    private static DocumentReference emailMoveDocument(String oldEmail) {
+        return FirestoreClient.getFirestore().collection("EmailMoves").document(oldEmail);
+    }
+}
@@ -87,6 +87,26 @@ public class BankAccountRepositoryTest {
         }
     }
 
+    /**
+     * The update() method only changes the fields that are present in the content.
+     */
+    @Test
+    public void updateSucceedsPartialBankAccount() {
+        String email = "user1@email.com";
+        BankAccount bank = new BankAccount();
+        bank.setNameOnAccount("New Name");
+
+        try {
+            BankAccount expected = getFromFirestore("Accounts", email, Account.class).getBankAccount();
+            expected.setNameOnAccount("New Name");
+
+            assertEquals("Bank account successfully updated!", repository.update(email, bank));
+            assertEquals(expected, getFromFirestore("Accounts", email, Account.class).getBankAccount());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
     /**
      * The update() method succeeds with fake bank information and the account in Firestore
      * currently doesn't have a bank account defined.
@@ -0,0 +1,129 @@
+package com.piggybank.repository;
+
+import com.piggybank.components.AccountCache;
+import com.piggybank.components.TransactionOutbox;
+import com.piggybank.model.Transaction;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.piggybank.util.FirebaseEmulatorServices.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Contention test for sharded balances. Runs with the account stripes disabled, since they serialize the
+ * transactions on an account within the node, and the transactions must reach Firestore concurrently to contend.
+ * Peer transactions get enough attempts that none runs out of them under contention.
+ */
+@SpringBootTest(properties = {
+        "piggybank.transfers.stripes=0",
+        "piggybank.transactions.retry.operations.TransactionRepository.processPeerTxn.max-attempts=25"
+})
+public class ShardedBalanceContentionTest {
+
+    @Autowired private TransactionRepository txnRepository;
+    @Autowired private AccountRepository accRepository;
+    @Autowired private AccountCache accountCache;
+    @Autowired private TransactionOutbox outbox;
+    @Autowired private MeterRegistry registry;
+
+    /**
+     * Load the fake documents into Firestore before each test, and drop any account cached by a previous test.
+     */
+    @BeforeEach
+    public void beforeEach() throws IOException, URISyntaxException, ExecutionException, InterruptedException {
+        URI uri = Objects.requireNonNull(ClassLoader.getSystemResource("collections")).toURI();
+        loadFirestoreDocuments(new File(uri));
+        accountCache.invalidateAll();
+    }
+
+    /**
+     * Write any transactions still in the outbox, then clear the fake documents from Firestore after each test.
+     */
+    @AfterEach
+    public void afterEach() throws IOException, InterruptedException {
+        outbox.flush();
+        clearFirestoreDocuments();
+    }
+
+    /**
+     * Contention on a hot recipient: many concurrent peer transactions credit user1, first with a single balance
+     * field and then with the balance split across shards. Both runs must credit every payment exactly once, and
+     * the sharded run must have fewer transactions aborted by Firestore than the single balance field, which
+     * every transaction writes.
+     */
+    @Test
+    public void processPeerTxnShardedRecipientAbortsLess() {
+        int rounds = 20;
+        try {
+            long balance = accRepository.get("user1@email.com", true).getBalance();
+
+            double unshardedAborts = creditConcurrently("user1@email.com", rounds);
+            assertEquals(balance + rounds, accRepository.get("user1@email.com", true).getBalance());
+
+            accRepository.setBalanceShards("user1@email.com", 10);
+            double shardedAborts = creditConcurrently("user1@email.com", rounds);
+            assertEquals(balance + 2 * rounds, accRepository.get("user1@email.com", true).getBalance());
+
+            assertTrue(unshardedAborts > 0, "Unsharded credits didn't contend");
+            assertTrue(shardedAborts < unshardedAborts,
+                    shardedAborts + " sharded aborts, " + unshardedAborts + " unsharded");
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Sends 1 cent from the merchant user2 (who isn't debited) to the recipient 'rounds' times concurrently.
+     *
+     * @param recipientEmail Email of the recipient.
+     * @param rounds Number of peer transactions.
+     * @return Number of processPeerTxn() transaction attempts aborted by Firestore.
+     */
+    private double creditConcurrently(String recipientEmail, int rounds) throws Exception {
+        double abortsBefore = aborts();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < rounds; i++) {
+                Transaction txn = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+                txn.setTransactorEmail("user2@email.com");
+                txn.setRecipientEmail(recipientEmail);
+                txn.setAmount(1L);
+                futures.add(executor.submit(() -> txnRepository.processPeerTxn(txn)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return aborts() - abortsBefore;
+    }
+
+    /**
+     * @return Number of processPeerTxn() transaction attempts aborted so far.
+     */
+    private double aborts() {
+        Counter counter = registry.find("firestore.transaction.operation.aborts")
+                .tags("repository", "TransactionRepository", "operation", "processPeerTxn")
+                .counter();
+        return counter == null ? 0 : counter.count();
+    }
+}
@@ -0,0 +1,86 @@
+package com.piggybank.repository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit-testing suite for the StripedExecutor class's handling of write deadlines. Needs no Firestore; writes are
+ * stood in for by futures completed by the tests.
+ */
+public class StripedExecutorTest {
+    private static final String ACCOUNT = "user1@email.com";
+
+    /**
+     * A write whose deadline passes while it's queued behind another on the same account should be skipped
+     * w/ a TimeoutException, without ever starting.
+     */
+    @Test
+    public void submitShedsWriteExpiredWhileQueued() throws Exception {
+        StripedExecutor executor = new StripedExecutor(4, new SimpleMeterRegistry());
+        CompletableFuture<String> first = new CompletableFuture<>();
+        AtomicBoolean started = new AtomicBoolean();
+        WriteDeadline deadline = new WriteDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200));
+
+        // Test
+        executor.submit(() -> first, ACCOUNT);
+        CompletableFuture<String> queued = executor.submit(deadline, () -> {
+            started.set(true);
+            return CompletableFuture.completedFuture("done");
+        }, ACCOUNT);
+        Thread.sleep(300);
+        first.complete("first");
+
+        // Verify
+        ExecutionException e = assertThrows(ExecutionException.class, () -> queued.get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof TimeoutException);
+        assertFalse(started.get());
+        assertTrue(deadline.expire());
+    }
+
+    /**
+     * A write that started before its deadline should run to completion, and should not be expired once the
+     * deadline passes, since it may still commit.
+     */
+    @Test
+    public void submitRunsWriteStartedBeforeDeadline() throws Exception {
+        StripedExecutor executor = new StripedExecutor(4, new SimpleMeterRegistry());
+        CompletableFuture<String> write = new CompletableFuture<>();
+        WriteDeadline deadline = new WriteDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200));
+
+        // Test
+        CompletableFuture<String> result = executor.submit(deadline, () -> write, ACCOUNT);
+        Thread.sleep(300);
+
+        // Verify
+        assertFalse(deadline.expire());
+        write.complete("done");
+        assertEquals("done", result.get(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * With no stripes, a write should start right away, even while another write on the same account is running.
+     */
+    @Test
+    public void submitRunsWriteImmediatelyWithoutStripes() throws Exception {
+        StripedExecutor executor = new StripedExecutor(0, new SimpleMeterRegistry());
+        CompletableFuture<String> first = new CompletableFuture<>();
+        WriteDeadline deadline = new WriteDeadline(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+
+        // Test
+        executor.submit(() -> first, ACCOUNT);
+        CompletableFuture<String> result = executor.submit(deadline,
+                () -> CompletableFuture.completedFuture("done"), ACCOUNT);
+
+        // Verify
+        assertEquals("done", result.get(1, TimeUnit.SECONDS));
+        assertFalse(deadline.expire());
+    }
+}
@@ -1,19 +1,41 @@
 package com.piggybank.repository;
 
+import com.google.cloud.firestore.FieldValue;
+import com.google.firebase.cloud.FirestoreClient;
+import com.piggybank.components.AccountCache;
+import com.piggybank.components.RequestDeadline;
+import com.piggybank.components.TransactionOutbox;
+import com.piggybank.components.TransactionRollups;
+import com.piggybank.model.MultiLegResult;
+import com.piggybank.model.MultiLegTransfer;
+import com.piggybank.model.Rollup;
 import com.piggybank.model.Transaction;
+import com.piggybank.model.TransactionPage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import reactor.test.StepVerifier;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 import static com.piggybank.util.FirebaseEmulatorServices.*;
 import static org.junit.jupiter.api.Assertions.*;
@@ -26,21 +48,27 @@ public class TransactionRepositoryTest {
     
     @Autowired private TransactionRepository txnRepository;
     @Autowired private AccountRepository accRepository; 
+    @Autowired private AccountCache accountCache;
+    @Autowired private TransactionOutbox outbox;
+    @Autowired private TransactionRollups rollups;
+    @Autowired private MeterRegistry registry;
 
     /**
-     * Load the fake documents into Firestore before each test.
+     * Load the fake documents into Firestore before each test, and drop any account cached by a previous test.
      */
     @BeforeEach
     public void beforeEach() throws IOException, URISyntaxException, ExecutionException, InterruptedException {
         URI uri = Objects.requireNonNull(ClassLoader.getSystemResource("collections")).toURI();
         loadFirestoreDocuments(new File(uri));
+        accountCache.invalidateAll();
     }
 
     /**
-     * Clear the fake documents from Firestore after each test.
+     * Write any transactions still in the outbox, then clear the fake documents from Firestore after each test.
      */
     @AfterEach
     public void afterEach() throws IOException, InterruptedException {
+        outbox.flush();
         clearFirestoreDocuments();
     }
 
@@ -77,12 +105,107 @@ public class TransactionRepositoryTest {
             txnRepository.processBankTxn(txn);
             long finalBalance = accRepository.get("user1@email.com").getBalance();
             assertEquals(txn.getAmount(), initialBalance - finalBalance);
+            outbox.flush();
             assertNotNull(getFromFirestore("Transactions", txn.getId(), Transaction.class));
         } catch (Exception e) {
             fail(e); 
         }
     }
 
+    /**
+     * The processPeerTxn() method leaves the Transaction document to the outbox, which writes it and removes the
+     * outbox entry.
+     */
+    @Test
+    public void processPeerTxnSucceedsThroughOutbox() {
+        Transaction txn = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+        txn.setTransactorEmail("user1@email.com");
+        txn.setRecipientEmail("jbiewer@wisc.edu");
+        txn.setAmount(100L);
+
+        try {
+            txnRepository.processPeerTxn(txn);
+            outbox.flush();
+            assertEquals(txn, getFromFirestore("Transactions", txn.getId(), Transaction.class));
+            assertNull(getFromFirestore("Outbox", txn.getId(), Transaction.class));
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The outbox adds processed transactions to the rollups of both accounts, and getRollups() reads them back
+     * without reading the transactions.
+     */
+    @Test
+    public void getRollupsSucceedsAfterOutbox() {
+        Transaction first = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+        first.setTransactorEmail("user1@email.com");
+        first.setRecipientEmail("jbiewer@wisc.edu");
+        first.setAmount(100L);
+        Transaction second = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+        second.setTransactorEmail("user1@email.com");
+        second.setRecipientEmail("jbiewer@wisc.edu");
+        second.setAmount(300L);
+
+        try {
+            txnRepository.processPeerTxn(first);
+            txnRepository.processPeerTxn(second);
+            outbox.flush();
+
+            long day = rollups.startOf(Rollup.Period.DAY, second.getTimestamp());
+            long from = rollups.startOf(Rollup.Period.DAY, first.getTimestamp());
+            List<Rollup> sent = txnRepository.getRollups("user1@email.com", Rollup.Period.DAY, from, day + 1);
+            assertEquals(400L, sent.stream().mapToLong(Rollup::getSentSum).sum());
+            assertEquals(2L, sent.stream().mapToLong(Rollup::getSentCount).sum());
+            assertEquals(300L, sent.stream().mapToLong(Rollup::getSentMax).max().orElse(0));
+            assertEquals(0L, sent.stream().mapToLong(Rollup::getReceivedCount).sum());
+
+            List<Rollup> received = txnRepository.getRollups("jbiewer@wisc.edu", Rollup.Period.DAY, from, day + 1);
+            assertEquals(400L, received.stream().mapToLong(Rollup::getReceivedSum).sum());
+            assertEquals(2L, received.stream().mapToLong(Rollup::getReceivedCount).sum());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The getRollups() method fails if the range is empty.
+     */
+    @Test
+    public void getRollupsFailsEmptyRange() {
+        Exception exception = assertThrows(IllegalArgumentException.class,
+                () -> txnRepository.getRollups("user1@email.com", Rollup.Period.DAY, 10, 10));
+        assertEquals("Range of rollups is empty", exception.getMessage());
+    }
+
+    /**
+     * The processBankTxn() method processes a transaction only once when it's retried with the same idempotency
+     * key, and the retry gets the original transaction's ID.
+     */
+    @Test
+    public void processBankTxnSucceedsOnceWithIdempotencyKey() {
+        String key = UUID.randomUUID().toString();
+        Transaction txn = new Transaction(Transaction.TransactionType.BANK);
+        txn.setTransactorEmail("user1@email.com");
+        txn.setAmount(1000L);
+        Transaction retry = new Transaction(Transaction.TransactionType.BANK);
+        retry.setTransactorEmail("user1@email.com");
+        retry.setAmount(1000L);
+
+        try {
+            long initialBalance = accRepository.get("user1@email.com").getBalance();
+            assertEquals("Transaction successful!", txnRepository.processBankTxn(txn, key));
+            assertEquals("Transaction successful!", txnRepository.processBankTxn(retry, key));
+            long finalBalance = accRepository.get("user1@email.com").getBalance();
+
+            assertEquals(txn.getAmount(), initialBalance - finalBalance);
+            assertEquals(txn.getId(), retry.getId());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
     /**
      * The processesBankTxn() method fails since the transaction type is not of type BANK.
      */
@@ -183,12 +306,39 @@ public class TransactionRepositoryTest {
 
             assertEquals(txn.getAmount(), user1InitialBalance - user1FinalBalance);
             assertEquals(txn.getAmount(), jbiewerFinalBalance - jbiewerInitialBalance);
+            outbox.flush();
             assertNotNull(getFromFirestore("Transactions", txn.getId(), Transaction.class));
         } catch (Exception e) {
             fail(e);
         }
     }
 
+    /**
+     * The processPeerTxn() method fails if an idempotency key is reused for a different transaction.
+     */
+    @Test
+    public void processPeerTxnFailsIdempotencyKeyReused() {
+        String key = UUID.randomUUID().toString();
+        Transaction txn = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+        txn.setTransactorEmail("user1@email.com");
+        txn.setRecipientEmail("jbiewer@wisc.edu");
+        txn.setAmount(100L);
+        Transaction other = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+        other.setTransactorEmail("user1@email.com");
+        other.setRecipientEmail("jbiewer@wisc.edu");
+        other.setAmount(200L);
+
+        try {
+            txnRepository.processPeerTxn(txn, key);
+            txnRepository.processPeerTxn(other, key);
+            fail("IllegalArgumentException not thrown when it should have.");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Idempotency key was already used for a different transaction", e.getMessage());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
     /**
      * The processPeerTxn() method succeeds transferring from a merchant's bank account to a customer's
      * account.
@@ -207,6 +357,7 @@ public class TransactionRepositoryTest {
             long user1FinalBalance = accRepository.get("user1@email.com").getBalance();
 
             assertEquals(txn.getAmount(), user1FinalBalance - user1InitialBalance);
+            outbox.flush();
             assertNotNull(getFromFirestore("Transactions", txn.getId(), Transaction.class));
         } catch (Exception e) {
             fail(e); 
@@ -383,6 +534,65 @@ public class TransactionRepositoryTest {
         }
     }
 
+    /**
+     * The getTxn() method reads a processed transaction from its outbox entry while the outbox hasn't written
+     * its document yet.
+     */
+    @Test
+    public void getTxnSucceedsBeforeOutboxWrite() {
+        Transaction txn = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+        txn.setId("tx-pending");
+        txn.setTransactorEmail("user1@email.com");
+        txn.setRecipientEmail("jbiewer@wisc.edu");
+        txn.setAmount(100L);
+        txn.setTimestamp(System.currentTimeMillis());
+        try {
+            // An entry that was committed but not handed to the worker, and isn't old enough to be swept.
+            outbox.entry("tx-pending").set(txn).get();
+
+            assertEquals(txn, txnRepository.getTxn("tx-pending"));
+            List<Transaction> txns = txnRepository.getTxns(List.of("tx-pending", "tx-id0"));
+            assertEquals(List.of("tx-pending", "tx-id0"),
+                    txns.stream().map(Transaction::getId).collect(Collectors.toList()));
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The getTxns() method returns the transactions that exist, in the order their IDs were given.
+     */
+    @Test
+    public void getTxnsSucceeds() {
+        try {
+            List<Transaction> txns = txnRepository.getTxns(List.of("tx-id2", "invalid-txn-id", "tx-id0", "tx-id2"));
+            assertEquals(2, txns.size());
+            assertEquals("tx-id2", txns.get(0).getId());
+            assertEquals("tx-id0", txns.get(1).getId());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The getTxns() method fails if more transactions are requested than fit in one batched read.
+     */
+    @Test
+    public void getTxnsFailsTooManyIds() {
+        List<String> txnIds = new ArrayList<>();
+        for (int i = 0; i <= 100; i++) {
+            txnIds.add("tx-id" + i);
+        }
+        try {
+            txnRepository.getTxns(txnIds);
+            fail("IllegalArgumentException not thrown when it should have.");
+        } catch (IllegalArgumentException e) {
+            assertEquals("At most 100 transactions can be retrieved at once", e.getMessage());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
     /**
      * todo
      */
@@ -394,10 +604,14 @@ public class TransactionRepositoryTest {
         } catch (Exception e) {
             fail(e);
         }
-        assertEquals(userTxns.size(), 3);
-        assertEquals(userTxns.get(0).getId(), "tx-id0");
-        assertEquals(userTxns.get(1).getId(), "tx-id1");
-        assertEquals(userTxns.get(2).getId(), "tx-id2");
+        assertEquals(userTxns.size(), 7);
+        assertEquals(userTxns.get(0).getId(), "tx-id8");
+        assertEquals(userTxns.get(1).getId(), "tx-id6");
+        assertEquals(userTxns.get(2).getId(), "tx-id4");
+        assertEquals(userTxns.get(3).getId(), "tx-id3");
+        assertEquals(userTxns.get(4).getId(), "tx-id2");
+        assertEquals(userTxns.get(5).getId(), "tx-id1");
+        assertEquals(userTxns.get(6).getId(), "tx-id0");
     }
 
     /**
@@ -414,4 +628,401 @@ public class TransactionRepositoryTest {
             fail(e);
         }
     }
+
+    /**
+     * The getAllTxnFromUser() method never retries while peer transactions write to the same account, since
+     * it reads in a read-only transaction. Compare the read-write attempt count with the number of transfers
+     * to see how many of those were aborted.
+     */
+    @Test
+    public void getAllTxnFromUserDoesNotRetryDuringPeerTxn() {
+        int rounds = 10;
+        double readsBefore = transactionAttempts("read_only");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < rounds; i++) {
+                Transaction txn = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+                txn.setTransactorEmail("user2@email.com");
+                txn.setRecipientEmail("user1@email.com");
+                txn.setAmount(1L);
+                futures.add(executor.submit(() -> txnRepository.processPeerTxn(txn)));
+                futures.add(executor.submit(() -> txnRepository.getAllTxnFromUser("user1@email.com")));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertEquals(rounds, transactionAttempts("read_only") - readsBefore);
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The getTxnPageFromUser() method walks a user's history newest first, one page at a time, and returns no
+     * cursor with the last page.
+     */
+    @Test
+    public void getTxnPageFromUserSucceeds() {
+        try {
+            TransactionPage page = txnRepository.getTxnPageFromUser("user1@email.com", 3, null);
+            assertEquals(List.of("tx-id8", "tx-id6", "tx-id4"), idsOf(page));
+            assertNotNull(page.getNextCursor());
+
+            page = txnRepository.getTxnPageFromUser("user1@email.com", 3, page.getNextCursor());
+            assertEquals(List.of("tx-id3", "tx-id2", "tx-id1"), idsOf(page));
+            assertNotNull(page.getNextCursor());
+
+            page = txnRepository.getTxnPageFromUser("user1@email.com", 3, page.getNextCursor());
+            assertEquals(List.of("tx-id0"), idsOf(page));
+            assertNull(page.getNextCursor());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The getTxnPageFromUser() method fails if the page size is out of range.
+     */
+    @Test
+    public void getTxnPageFromUserFailsInvalidLimit() {
+        try {
+            txnRepository.getTxnPageFromUser("user1@email.com", 0, null);
+            fail("IllegalArgumentException not thrown when it should have.");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Page size must be between 1 and 100", e.getMessage());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The getTxnPageFromUser() method fails if the cursor wasn't returned with a previous page.
+     */
+    @Test
+    public void getTxnPageFromUserFailsInvalidCursor() {
+        try {
+            txnRepository.getTxnPageFromUser("user1@email.com", 3, "not-a-cursor");
+            fail("IllegalArgumentException not thrown when it should have.");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid cursor", e.getMessage());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The streamTxnsFromUser() method emits a user's whole history newest first, only as fast as it's requested.
+     */
+    @Test
+    public void streamTxnsFromUserSucceeds() {
+        StepVerifier.create(txnRepository.streamTxnsFromUser("user1@email.com", 3).map(Transaction::getId), 2)
+                .expectNext("tx-id8", "tx-id6")
+                .expectNoEvent(Duration.ofMillis(100))
+                .thenRequest(Long.MAX_VALUE)
+                .expectNext("tx-id4", "tx-id3", "tx-id2", "tx-id1", "tx-id0")
+                .verifyComplete();
+    }
+
+    /**
+     * The streamTxnsFromUser() method fails if the page size is out of range.
+     */
+    @Test
+    public void streamTxnsFromUserFailsInvalidPageSize() {
+        StepVerifier.create(txnRepository.streamTxnsFromUser("user1@email.com", 0))
+                .expectErrorMessage("Page size must be between 1 and 100")
+                .verify();
+    }
+
+    /**
+     * The backfillTimestamps() method timestamps transactions that don't have a timestamp, so they show up in
+     * the user's history again.
+     */
+    @Test
+    public void backfillTimestampsSucceeds() {
+        try {
+            FirestoreClient.getFirestore().collection("Transactions").document("tx-id0")
+                    .update("timestamp", FieldValue.delete()).get();
+            assertEquals(6, txnRepository.getAllTxnFromUser("user1@email.com").size());
+
+            assertEquals(1, txnRepository.backfillTimestamps());
+            assertEquals(7, txnRepository.getAllTxnFromUser("user1@email.com").size());
+            assertEquals(0, txnRepository.backfillTimestamps());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @param page Page of transactions.
+     * @return IDs of the transactions on the page, in order.
+     */
+    private static List<String> idsOf(TransactionPage page) {
+        return page.getTransactions().stream().map(Transaction::getId).collect(Collectors.toList());
+    }
+
+    /**
+     * Attempts and outcomes of processPeerTxn()'s transactions are recorded for the method: a committed
+     * transaction and one that failed on the transactor's balance (which isn't retried).
+     */
+    @Test
+    public void processPeerTxnRecordsOperationOutcomes() {
+        double attemptsBefore = operationCount("attempts", null);
+        double committedBefore = operationCount("outcomes", "committed");
+        double failedBefore = operationCount("outcomes", "failed");
+
+        Transaction txn = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+        txn.setTransactorEmail("user1@email.com");
+        txn.setRecipientEmail("jbiewer@wisc.edu");
+        txn.setAmount(1L);
+        Transaction overdraft = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+        overdraft.setTransactorEmail("jbiewer@wisc.edu");
+        overdraft.setRecipientEmail("user1@email.com");
+        overdraft.setAmount(1000L);
+
+        try {
+            assertEquals("Transaction successful!", txnRepository.processPeerTxn(txn));
+            assertThrows(IllegalArgumentException.class, () -> txnRepository.processPeerTxn(overdraft));
+
+            assertEquals(2, operationCount("attempts", null) - attemptsBefore);
+            assertEquals(1, operationCount("outcomes", "committed") - committedBefore);
+            assertEquals(1, operationCount("outcomes", "failed") - failedBefore);
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Concurrent peer transactions between the same accounts are serialized on this node, so none of their
+     * Firestore transactions is aborted and retried.
+     */
+    @Test
+    public void processPeerTxnSerializesSameAccounts() {
+        int rounds = 20;
+        try {
+            long balance = accRepository.get("user1@email.com", true).getBalance();
+
+            assertEquals(rounds, creditConcurrently("user1@email.com", rounds));
+            assertEquals(balance + rounds, accRepository.get("user1@email.com", true).getBalance());
+            assertNotNull(registry.find("transfers.stripe.queue.depth").gauge());
+            assertTrue(registry.find("transfers.stripe.wait").timer().count() >= rounds);
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Concurrent batched peer transactions to one recipient each get their own transaction ID and result, the
+     * recipient is credited with their sum, and a transaction that fails doesn't fail the rest of its batch.
+     */
+    @Test
+    public void processPeerTxnBatchedSucceedsPerTransaction() {
+        int rounds = 20;
+        try {
+            long balance = accRepository.get("user1@email.com", true).getBalance();
+
+            List<Transaction> txns = new ArrayList<>();
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < rounds; i++) {
+                Transaction txn = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+                txn.setTransactorEmail("user2@email.com");
+                txn.setRecipientEmail("user1@email.com");
+                txn.setAmount(1L);
+                txns.add(txn);
+                futures.add(txnRepository.processPeerTxnBatched(txn, null));
+            }
+            // JBiewer only has 1 cent.
+            Transaction overdraft = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+            overdraft.setTransactorEmail("jbiewer@wisc.edu");
+            overdraft.setRecipientEmail("user1@email.com");
+            overdraft.setAmount(1000L);
+            CompletableFuture<String> overdraftFuture = txnRepository.processPeerTxnBatched(overdraft, null);
+
+            for (CompletableFuture<String> future : futures) {
+                assertEquals("Transaction successful!", future.get());
+            }
+            ExecutionException e = assertThrows(ExecutionException.class, overdraftFuture::get);
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+            assertEquals("Transaction amount exceeds transactor's account balance", e.getCause().getMessage());
+
+            assertEquals(rounds, txns.stream().map(Transaction::getId).filter(Objects::nonNull).distinct().count());
+            assertEquals(balance + rounds, accRepository.get("user1@email.com", true).getBalance());
+            assertEquals(1L, accRepository.get("jbiewer@wisc.edu", true).getBalance());
+
+            outbox.flush();
+            for (Transaction txn : txns) {
+                assertEquals(txn, txnRepository.getTxn(txn.getId()));
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The processMultiLegTxn() method succeeds if the merchant user2 pays three legs, two of them to the same
+     * recipient: every leg gets its own transaction, and each recipient is credited with the sum of its legs.
+     */
+    @Test
+    public void processMultiLegTxnSucceeds() {
+        MultiLegTransfer transfer = new MultiLegTransfer("user2@email.com", List.of(
+                leg("user1@email.com", 100L), leg("jbiewer@wisc.edu", 50L), leg("user1@email.com", 25L)));
+        try {
+            long user1Balance = accRepository.get("user1@email.com", true).getBalance();
+            long jbiewerBalance = accRepository.get("jbiewer@wisc.edu", true).getBalance();
+
+            MultiLegResult result = txnRepository.processMultiLegTxn(transfer, null);
+
+            assertEquals(1, result.getChunks().size());
+            assertTrue(result.getChunks().get(0).isCommitted());
+            assertEquals(3, result.getTransactionIds().stream().filter(Objects::nonNull).distinct().count());
+            assertEquals(user1Balance + 125, accRepository.get("user1@email.com", true).getBalance());
+            assertEquals(jbiewerBalance + 50, accRepository.get("jbiewer@wisc.edu", true).getBalance());
+
+            outbox.flush();
+            for (Transaction leg : transfer.getLegs()) {
+                assertEquals(leg, txnRepository.getTxn(leg.getId()));
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The processMultiLegTxn() method fails if the legs add up to more than the transactor's balance, even though
+     * each leg alone doesn't, and no leg is processed.
+     */
+    @Test
+    public void processMultiLegTxnFailsInsufficientBalance() {
+        MultiLegTransfer transfer = new MultiLegTransfer("user1@email.com", List.of(
+                leg("jbiewer@wisc.edu", 10000L), leg("jbiewer@wisc.edu", 10000L)));
+        try {
+            long balance = accRepository.get("user1@email.com", true).getBalance();
+
+            Exception e = assertThrows(IllegalArgumentException.class,
+                    () -> txnRepository.processMultiLegTxn(transfer, null));
+            assertEquals("Transaction amount exceeds transactor's account balance", e.getMessage());
+            assertEquals(balance, accRepository.get("user1@email.com", true).getBalance());
+            assertEquals(1L, accRepository.get("jbiewer@wisc.edu", true).getBalance());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * A multi-leg transfer too large for one Firestore transaction is committed in several chunks, and a retry
+     * with the same idempotency key replays every leg without paying it again.
+     */
+    @Test
+    public void processMultiLegTxnCommitsInChunks() {
+        int legs = 300;
+        List<Transaction> transferLegs = new ArrayList<>();
+        for (int i = 0; i < legs; i++) {
+            transferLegs.add(leg(i % 2 == 0 ? "user1@email.com" : "jbiewer@wisc.edu", 1L));
+        }
+        String key = UUID.randomUUID().toString();
+        try {
+            long balance = accRepository.get("user1@email.com", true).getBalance();
+
+            MultiLegResult result = txnRepository.processMultiLegTxn(new MultiLegTransfer("user2@email.com", transferLegs), key);
+            assertTrue(result.getChunks().size() > 1);
+            assertTrue(result.getChunks().stream().allMatch(MultiLegResult.Chunk::isCommitted));
+            assertEquals(legs, result.getTransactionIds().stream().filter(Objects::nonNull).distinct().count());
+            assertEquals(balance + legs / 2, accRepository.get("user1@email.com", true).getBalance());
+
+            List<Transaction> retryLegs = new ArrayList<>();
+            for (int i = 0; i < legs; i++) {
+                retryLegs.add(leg(i % 2 == 0 ? "user1@email.com" : "jbiewer@wisc.edu", 1L));
+            }
+            MultiLegResult retry = txnRepository.processMultiLegTxn(new MultiLegTransfer("user2@email.com", retryLegs), key);
+            assertEquals(result.getTransactionIds(), retry.getTransactionIds());
+            assertEquals(balance + legs / 2, accRepository.get("user1@email.com", true).getBalance());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * A call made for a request whose deadline has already passed is shed: it fails with a TimeoutException
+     * without reading Firestore, and is counted as shed.
+     */
+    @Test
+    public void getTxnShedWhenRequestDeadlinePassed() {
+        Counter shed = registry.counter("firestore.operation.deadline.exceeded",
+                "repository", "TransactionRepository", "operation", "getTxn", "reason", "shed");
+        double shedBefore = shed.count();
+
+        CompletableFuture<Transaction> future =
+                RequestDeadline.callWith(System.nanoTime() - 1, () -> txnRepository.getTxnAsync("txn-id-1"));
+
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertTrue(e.getCause() instanceof TimeoutException);
+        assertEquals("Deadline exceeded", e.getCause().getMessage());
+        assertEquals(1, shed.count() - shedBefore);
+    }
+
+    /**
+     * @param recipientEmail Email of the leg's recipient.
+     * @param amount Amount of the leg.
+     * @return Leg of a multi-leg transfer, without its transactor or type.
+     */
+    private static Transaction leg(String recipientEmail, long amount) {
+        Transaction leg = new Transaction();
+        leg.setRecipientEmail(recipientEmail);
+        leg.setAmount(amount);
+        return leg;
+    }
+
+    /**
+     * Sends 1 cent from the merchant user2 (who isn't debited) to the recipient 'rounds' times concurrently.
+     *
+     * @param recipientEmail Email of the recipient.
+     * @param rounds Number of peer transactions.
+     * @return Number of read-write transaction attempts made.
+     */
+    private double creditConcurrently(String recipientEmail, int rounds) throws Exception {
+        double attemptsBefore = transactionAttempts("read_write");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < rounds; i++) {
+                Transaction txn = new Transaction(Transaction.TransactionType.PEER_TO_PEER);
+                txn.setTransactorEmail("user2@email.com");
+                txn.setRecipientEmail(recipientEmail);
+                txn.setAmount(1L);
+                futures.add(executor.submit(() -> txnRepository.processPeerTxn(txn)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return transactionAttempts("read_write") - attemptsBefore;
+    }
+
+    /**
+     * @param metric Operation metric, e.g. 'attempts' or 'outcomes'.
+     * @param outcome Outcome to count, or null for metrics without outcomes.
+     * @return Count of the metric for TransactionRepository.processPeerTxn.
+     */
+    private double operationCount(String metric, String outcome) {
+        Counter counter = registry.find("firestore.transaction.operation." + metric)
+                .tags("repository", "TransactionRepository", "operation", "processPeerTxn")
+                .tags(outcome == null ? new String[0] : new String[] { "outcome", outcome })
+                .counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    /**
+     * @param mode Transaction mode, either 'read_only' or 'read_write'.
+     * @return Number of transaction attempts the TransactionRepository has made in that mode.
+     */
+    private double transactionAttempts(String mode) {
+        Counter counter = registry.find("firestore.transaction.attempts")
+                .tags("repository", "TransactionRepository", "mode", mode)
+                .counter();
+        return counter == null ? 0 : counter.count();
+    }
 }
@@ -108,7 +108,8 @@ public class FirebaseEmulatorServices {
     }
 
     /**
-     * Adds JSON files representing the Account model to the Firestore instance/emulator.
+     * Adds JSON files representing the Account model to the Firestore instance/emulator, along with the
+     * username reservation of each account.
      *
      * @param mapper Mapper to read JSON data into Account POJOs.
      * @param file JSON file containing array of Account models.
@@ -121,8 +122,10 @@ public class FirebaseEmulatorServices {
 
         List<ApiFuture<WriteResult>> futures = new ArrayList<>();
         CollectionReference collection = FirestoreClient.getFirestore().collection("Accounts");
+        CollectionReference usernames = FirestoreClient.getFirestore().collection("Usernames");
         for (Account account : (Account[]) cache.get("Accounts")) {
             futures.add(collection.document(account.getEmail()).set(account));
+            futures.add(usernames.document(account.getUsername()).set(Map.of("email", account.getEmail())));
         }
 
         for (ApiFuture<WriteResult> future : futures) {
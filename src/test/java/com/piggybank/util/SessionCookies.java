@@ -0,0 +1,70 @@
+package com.piggybank.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds session cookies signed with locally generated keys, the way Firebase signs them, so session
+ * verification can be tested without Firebase.
+ */
+public class SessionCookies {
+    public static final String PROJECT_ID = "piggybank-test";
+    public static final String KEY_ID = "test-key";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * @return A new 2048-bit RSA key pair.
+     */
+    public static KeyPair generateKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * @param uid ID of the session's user, the 'sub' claim.
+     * @param email Email of the session's user.
+     * @return Claims of a session cookie for the test project, signed in now and expiring in an hour.
+     */
+    public static Map<String, Object> claims(String uid, String email) {
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        Map<String, Object> claims = new HashMap<>();
+        claims.put("iss", "https://session.firebase.google.com/" + PROJECT_ID);
+        claims.put("aud", PROJECT_ID);
+        claims.put("sub", uid);
+        claims.put("email", email);
+        claims.put("iat", now);
+        claims.put("auth_time", now);
+        claims.put("exp", now + TimeUnit.HOURS.toSeconds(1));
+        return claims;
+    }
+
+    /**
+     * @param key Private key to sign with.
+     * @param keyId Key ID put in the header.
+     * @param claims Claims of the session cookie.
+     * @return The session cookie, an RS256-signed JWT.
+     */
+    public static String sign(PrivateKey key, String keyId, Map<String, Object> claims) throws Exception {
+        String header = encode(MAPPER.writeValueAsBytes(Map.of("alg", "RS256", "kid", keyId)));
+        String payload = encode(MAPPER.writeValueAsBytes(claims));
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(key);
+        signature.update((header + "." + payload).getBytes(StandardCharsets.US_ASCII));
+        return header + "." + payload + "." + encode(signature.sign());
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}